@@ -573,6 +573,16 @@ class JmsConnection implements Connection {
         }
     }
 
+    /**
+     * Returns the number of messages that may be prefetched by each
+     * synchronous consumer.
+     *
+     * @return the prefetch window size
+     */
+    protected int getPrefetch() {
+        return _factory.getPrefetch();
+    }
+
     /**
      * Returns the running state of the connection.
      *
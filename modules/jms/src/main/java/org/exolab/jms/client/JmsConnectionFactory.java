@@ -51,6 +51,7 @@ import java.io.ObjectOutput;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -107,6 +108,12 @@ public class JmsConnectionFactory
      */
     private List _connections = new ArrayList();
 
+    /**
+     * The property used to configure the number of messages that may be
+     * prefetched by each synchronous consumer.
+     */
+    public static final String PREFETCH = "org.exolab.jms.client.prefetch";
+
     /**
      * Object version no. for serialization
      */
@@ -174,6 +181,45 @@ public class JmsConnectionFactory
         return _proxy;
     }
 
+    /**
+     * Returns the number of messages that the server may push to each
+     * synchronous consumer ahead of it calling receive.
+     *
+     * @return the prefetch window size. If <code>0</code>, each receive
+     *         fetches a single message from the server
+     */
+    public synchronized int getPrefetch() {
+        int result = 0;
+        String value = (String) _properties.get(PREFETCH);
+        if (value != null) {
+            try {
+                result = Integer.parseInt(value);
+            } catch (NumberFormatException ignore) {
+                // use the default
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the number of messages that the server may push to each
+     * synchronous consumer ahead of it calling receive.
+     * <p/>
+     * Prefetching only applies to <code>AUTO_ACKNOWLEDGE</code> and
+     * <code>DUPS_OK_ACKNOWLEDGE</code> sessions.
+     *
+     * @param size the prefetch window size. If <code>0</code>, each receive
+     *             fetches a single message from the server
+     */
+    public synchronized void setPrefetch(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Argument 'size' is negative");
+        }
+        // the properties may be shared with other factories
+        _properties = new HashMap(_properties);
+        _properties.put(PREFETCH, Integer.toString(size));
+    }
+
     /**
      * Notifies user of a JMS exception.
      *
@@ -56,6 +56,8 @@ import org.apache.commons.logging.LogFactory;
 import org.exolab.jms.message.MessageImpl;
 
 import java.rmi.RemoteException;
+import java.util.LinkedList;
+import java.util.List;
 
 
 /**
@@ -100,6 +102,23 @@ class JmsMessageConsumer
      */
     private volatile boolean _closed = false;
 
+    /**
+     * Messages pushed by the server ahead of a synchronous receive.
+     */
+    private final LinkedList _prefetched = new LinkedList();
+
+    /**
+     * The prefetch window size, or <code>0</code> if messages aren't being
+     * prefetched.
+     */
+    private volatile int _window = 0;
+
+    /**
+     * The number of prefetched messages received since credit was last
+     * returned to the server.
+     */
+    private int _consumed = 0;
+
     /**
      * The logger.
      */
@@ -162,6 +181,14 @@ class JmsMessageConsumer
         // otherwise disable it
         if (listener != null) {
             if (_listener == null) {
+                if (_window != 0) {
+                    // stop prefetching. The server redelivers any messages
+                    // pushed but not yet received.
+                    _session.flushAcknowledgements();
+                    _session.setPrefetch(_consumerId, 0);
+                    _window = 0;
+                    clearPrefetched();
+                }
                 // previously asynchronouse messaging was disabled
                 _listener = listener;
                 _session.setMessageListener(this);
@@ -204,7 +231,13 @@ class JmsMessageConsumer
      */
     public Message receive(long timeout) throws JMSException {
         checkReceive();
-        return _session.receive(_consumerId, timeout);
+        Message message;
+        if (prefetch()) {
+            message = receivePrefetched(timeout);
+        } else {
+            message = _session.receive(_consumerId, timeout);
+        }
+        return message;
     }
 
     /**
@@ -216,7 +249,33 @@ class JmsMessageConsumer
      */
     public Message receiveNoWait() throws JMSException {
         checkReceive();
-        return _session.receiveNoWait(_consumerId);
+        MessageImpl message;
+        if (prefetch()) {
+            JmsSession session = _session;
+            message = nextPrefetched(session);
+            if (message == null && !session.isStopped()) {
+                // nothing has been pushed yet, so fetch directly. Any message
+                // pushed in the interim precedes the one received.
+                message = session.receiveNoWait(_consumerId);
+                if (message != null) {
+                    synchronized (_prefetched) {
+                        if (!_prefetched.isEmpty()) {
+                            _prefetched.addLast(message);
+                            message = (MessageImpl) _prefetched.removeFirst();
+                        }
+                    }
+                    received(session, message);
+                }
+            } else if (message != null) {
+                received(session, message);
+            }
+            if (message == null) {
+                session.flushAcknowledgements();
+            }
+        } else {
+            message = _session.receiveNoWait(_consumerId);
+        }
+        return message;
     }
 
     /**
@@ -234,6 +293,11 @@ class JmsMessageConsumer
 
                 // wake up any blocked threads and let them complete
                 notifyAll();
+
+                // discard prefetched messages. The server releases them when
+                // the consumer is removed
+                _window = 0;
+                clearPrefetched();
             } finally {
                 _listener = null;
                 _session = null;
@@ -255,6 +319,13 @@ class JmsMessageConsumer
             if (_listener != null) {
                 _listener.onMessage(message);
                 delivered = true;
+            } else if (_window != 0) {
+                // synchronous consumer. Hold the message until received
+                synchronized (_prefetched) {
+                    _prefetched.addLast(message);
+                    _prefetched.notifyAll();
+                }
+                delivered = true;
             } else {
                 _log.error("NessageListener no longer registered");
             }
@@ -264,6 +335,22 @@ class JmsMessageConsumer
         return delivered;
     }
 
+    /**
+     * Deliver a batch of messages, in order. Delivery stops at the first
+     * message that can't be delivered.
+     *
+     * @param messages a list of {@link MessageImpl} instances
+     * @return the number of messages delivered
+     */
+    public int onMessages(List messages) {
+        int delivered = 0;
+        while (delivered < messages.size()
+                && onMessage((MessageImpl) messages.get(delivered))) {
+            ++delivered;
+        }
+        return delivered;
+    }
+
     /**
      * Informs the session that there is a message available for a synchronous
      * consumer.
@@ -272,6 +359,47 @@ class JmsMessageConsumer
         // no-op
     }
 
+    /**
+     * Determines if messages are being prefetched.
+     *
+     * @return <code>true</code> if messages are being prefetched
+     */
+    protected boolean isPrefetching() {
+        return _window != 0;
+    }
+
+    /**
+     * Returns the number of prefetched messages waiting to be received.
+     *
+     * @return the number of prefetched messages
+     */
+    protected int getPrefetchedCount() {
+        synchronized (_prefetched) {
+            return _prefetched.size();
+        }
+    }
+
+    /**
+     * Discards any prefetched messages. The caller is responsible for
+     * ensuring that the server redelivers them.
+     */
+    protected void clearPrefetched() {
+        synchronized (_prefetched) {
+            _prefetched.clear();
+            _consumed = 0;
+            _prefetched.notifyAll();
+        }
+    }
+
+    /**
+     * Wakes up any thread waiting on prefetched messages.
+     */
+    protected void notifyPrefetched() {
+        synchronized (_prefetched) {
+            _prefetched.notifyAll();
+        }
+    }
+
     /**
      * Returns the destination to receive messages from.
      *
@@ -299,6 +427,110 @@ class JmsMessageConsumer
         return _session;
     }
 
+    /**
+     * Determines if messages should be prefetched, opening the prefetch window
+     * on the first receive.
+     *
+     * @return <code>true</code> if messages should be prefetched
+     * @throws JMSException if the prefetch window can't be opened
+     */
+    private boolean prefetch() throws JMSException {
+        if (_window == 0) {
+            int size = _session.getPrefetch();
+            if (size > 0) {
+                _session.setPrefetch(_consumerId, size);
+                _window = size;
+            }
+        }
+        return _window != 0;
+    }
+
+    /**
+     * Receive the next prefetched message, waiting for one to be pushed by
+     * the server if none is available.
+     *
+     * @param timeout the timeout interval, in milliseconds. A timeout of zero
+     *                never expires
+     * @return the next message, or <code>null</code> if the timeout expires or
+     *         the consumer is concurrently closed
+     * @throws JMSException if the message can't be acknowledged
+     */
+    private MessageImpl receivePrefetched(long timeout) throws JMSException {
+        JmsSession session = _session;
+        MessageImpl message = nextPrefetched(session);
+        if (message == null) {
+            // acknowledge messages received so far before waiting
+            session.flushAcknowledgements();
+        }
+        long end = (timeout != 0) ? System.currentTimeMillis() + timeout : 0;
+        synchronized (_prefetched) {
+            while (message == null && !_closed && _window != 0) {
+                message = nextPrefetched(session);
+                if (message != null) {
+                    break;
+                }
+                try {
+                    if (timeout == 0) {
+                        _prefetched.wait();
+                    } else {
+                        long remaining = end - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        _prefetched.wait(remaining);
+                    }
+                } catch (InterruptedException ignore) {
+                    // no-op
+                }
+            }
+        }
+        if (message != null) {
+            received(session, message);
+        }
+        return message;
+    }
+
+    /**
+     * Returns the next prefetched message, if delivery hasn't been stopped.
+     *
+     * @param session the session
+     * @return the next message, or <code>null</code> if none is available
+     */
+    private MessageImpl nextPrefetched(JmsSession session) {
+        MessageImpl message = null;
+        synchronized (_prefetched) {
+            if (!_prefetched.isEmpty() && !session.isStopped()) {
+                message = (MessageImpl) _prefetched.removeFirst();
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Acknowledges a prefetched message, returning credit to the server
+     * once half the window has been consumed.
+     *
+     * @param session the session
+     * @param message the received message
+     * @throws JMSException if the message can't be acknowledged, or credit
+     *                      can't be returned
+     */
+    private void received(JmsSession session, MessageImpl message)
+            throws JMSException {
+        session.received(message);
+        int credit = 0;
+        synchronized (_prefetched) {
+            ++_consumed;
+            if (_consumed >= Math.max(_window / 2, 1)) {
+                credit = _consumed;
+                _consumed = 0;
+            }
+        }
+        if (credit != 0) {
+            session.credit(_consumerId, credit);
+        }
+    }
+
     /**
      * Determines if the consumer can perform receives.
      *
@@ -45,6 +45,7 @@
 package org.exolab.jms.client;
 
 import java.rmi.RemoteException;
+import java.util.List;
 
 import org.exolab.jms.message.MessageImpl;
 
@@ -68,6 +69,16 @@ public interface JmsMessageListener {
      */
     boolean onMessage(MessageImpl message) throws RemoteException;
 
+    /**
+     * Deliver a batch of messages, in order. Delivery stops at the first
+     * message that can't be delivered.
+     *
+     * @param messages a list of {@link MessageImpl} instances
+     * @return the number of messages delivered
+     * @throws RemoteException if the messages can't be delivered
+     */
+    int onMessages(List messages) throws RemoteException;
+
     /**
      * Inform the session that there is a message available for a synchronous
      * consumer.
@@ -48,6 +48,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import javax.jms.BytesMessage;
 import javax.jms.Connection;
@@ -72,9 +73,11 @@ import javax.jms.TextMessage;
 import javax.jms.Topic;
 import javax.jms.TopicSubscriber;
 
+import EDU.oswego.cs.dl.util.concurrent.ClockDaemon;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.exolab.jms.common.threads.ThreadFactory;
 import org.exolab.jms.message.BytesMessageImpl;
 import org.exolab.jms.message.MapMessageImpl;
 import org.exolab.jms.message.MessageConverter;
@@ -125,7 +128,7 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
      * This flag determines whether message delivery is enabled or disabled.
      * Message delivery if disabled if the enclosing connection is stopped.
      */
-    private boolean _stopped = true;
+    private volatile boolean _stopped = true;
 
     /**
      * Indicates whether the consumer or the client will acknowledge any
@@ -135,6 +138,57 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
      */
     private final int _ackMode;
 
+    /**
+     * The number of messages that may be prefetched by each synchronous
+     * consumer. Only non-zero for <code>AUTO_ACKNOWLEDGE</code> and
+     * <code>DUPS_OK_ACKNOWLEDGE</code> sessions, as these acknowledge each
+     * message as it is received.
+     */
+    private final int _prefetch;
+
+    /**
+     * The last message received by each consumer of a
+     * <code>DUPS_OK_ACKNOWLEDGE</code> session that hasn't yet been
+     * acknowledged, keyed on consumer identifier.
+     */
+    private final HashMap _pendingAcks = new HashMap();
+
+    /**
+     * The number of messages received since acknowledgements were last sent.
+     */
+    private int _pendingCount = 0;
+
+    /**
+     * The time when the oldest pending acknowledgement was received.
+     */
+    private long _pendingSince = 0;
+
+    /**
+     * The scheduled flush of pending acknowledgements, or <code>null</code>
+     * if none is scheduled.
+     */
+    private Object _flushTask;
+
+    /**
+     * The maximum number of messages that a <code>DUPS_OK_ACKNOWLEDGE</code>
+     * session receives before sending acknowledgements.
+     */
+    private static final int MAX_PENDING_ACKS = 100;
+
+    /**
+     * The maximum time, in milliseconds, that a
+     * <code>DUPS_OK_ACKNOWLEDGE</code> session holds acknowledgements before
+     * sending them.
+     */
+    private static final long MAX_ACK_DELAY = 1000;
+
+    /**
+     * Flushes the pending acknowledgements of idle
+     * <code>DUPS_OK_ACKNOWLEDGE</code> sessions. Shared by all sessions, and
+     * created on demand.
+     */
+    private static ClockDaemon _flusher;
+
     /**
      * Maintains the a map of JmsMessageConsumer.getConsumerId() ->
      * JmsMessageConsumer objects.
@@ -204,6 +258,11 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
 
         _connection = connection;
         _ackMode = (transacted) ? SESSION_TRANSACTED : ackMode;
+        if (_ackMode == AUTO_ACKNOWLEDGE || _ackMode == DUPS_OK_ACKNOWLEDGE) {
+            _prefetch = connection.getPrefetch();
+        } else {
+            _prefetch = 0;
+        }
 
         // construct the remote stub
         _session = connection.getServerConnection().createSession(_ackMode,
@@ -818,8 +877,10 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
             // clear any cached messages
             _messagesToSend.clear();
 
-            // issue a close to the remote session. This will release any
-            // allocated remote resources
+            // acknowledge any outstanding messages, and issue a close to the
+            // remote session. This will release any allocated remote
+            // resources
+            flushAcknowledgements();
             getServerSession().close();
             _session = null;
         }
@@ -838,6 +899,24 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
                     "Cannot recover from a transacted session");
         }
 
+        // acknowledge received messages so they aren't redelivered
+        flushAcknowledgements();
+
+        JmsMessageConsumer[] consumers =
+                (JmsMessageConsumer[]) _consumers.values().toArray(
+                        new JmsMessageConsumer[0]);
+        boolean prefetching = false;
+        for (int i = 0; i < consumers.length && !prefetching; ++i) {
+            prefetching = consumers[i].isPrefetching();
+        }
+        if (prefetching) {
+            // halt pushes to the consumers before discarding the messages
+            // they have prefetched. These are redelivered by the server.
+            getServerSession().stop();
+            for (int i = 0; i < consumers.length; ++i) {
+                consumers[i].clearPrefetched();
+            }
+        }
         getServerSession().recover();
     }
 
@@ -923,6 +1002,14 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
             if (_stopped && !_closing) {
                 getServerSession().start();
                 _stopped = false;
+
+                // wake up any consumer waiting on prefetched messages
+                JmsMessageConsumer[] consumers =
+                        (JmsMessageConsumer[]) _consumers.values().toArray(
+                                new JmsMessageConsumer[0]);
+                for (int i = 0; i < consumers.length; ++i) {
+                    consumers[i].notifyPrefetched();
+                }
             }
         }
     }
@@ -1014,6 +1101,22 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
         return delivered;
     }
 
+    /**
+     * Deliver a batch of messages, in order. Delivery stops at the first
+     * message that can't be delivered.
+     *
+     * @param messages a list of {@link MessageImpl} instances
+     * @return the number of messages delivered
+     */
+    public int onMessages(List messages) {
+        int delivered = 0;
+        while (delivered < messages.size()
+                && onMessage((MessageImpl) messages.get(delivered))) {
+            ++delivered;
+        }
+        return delivered;
+    }
+
     /**
      * Inform the session that there is a message available for a synchronous
      * consumer.
@@ -1059,8 +1162,10 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
                     }
                     if (message == null && !isClosed()) {
                         // no message received in the required time.
-                        // Wait for a notification from the server that
-                        // a message has become available.
+                        // Acknowledge messages received so far, and wait for
+                        // a notification from the server that a message has
+                        // become available.
+                        flushAcknowledgements();
                         try {
                             if (timeout == 0) {
                                 _receiveLock.wait();
@@ -1085,13 +1190,7 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
                 }
 
                 if (message != null) {
-                    message.setSession(this);
-                    if (_ackMode == AUTO_ACKNOWLEDGE
-                            || _ackMode == DUPS_OK_ACKNOWLEDGE) {
-                        getServerSession().acknowledgeMessage(
-                                message.getConsumerId(),
-                                message.getMessageId().toString());
-                    }
+                    received(message);
                 }
             } finally {
                 _blockingConsumer = -1;
@@ -1112,17 +1211,164 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
         ensureOpen();
         MessageImpl message = getServerSession().receiveNoWait(consumerId);
         if (message != null) {
-            message.setSession(this);
-            if (_ackMode == AUTO_ACKNOWLEDGE
-                    || _ackMode == DUPS_OK_ACKNOWLEDGE) {
-                getServerSession().acknowledgeMessage(
-                        message.getConsumerId(),
-                        message.getMessageId().toString());
-            }
+            received(message);
+        } else {
+            flushAcknowledgements();
         }
         return message;
     }
 
+    /**
+     * Process a message received by a synchronous consumer, acknowledging it
+     * if required.
+     * <p/>
+     * <code>DUPS_OK_ACKNOWLEDGE</code> sessions acknowledge lazily. Only the
+     * last message received by each consumer is acknowledged, as this
+     * acknowledges all that the consumer received before it. Acknowledgements
+     * are sent once {@link #MAX_PENDING_ACKS} messages have been received,
+     * the oldest has been held for {@link #MAX_ACK_DELAY} milliseconds, or
+     * when a consumer finds no message waiting. The delay is enforced by a
+     * timer, so acknowledgements are sent even if the session goes idle.
+     *
+     * @param message the received message
+     * @throws JMSException if the message can't be acknowledged
+     */
+    protected void received(MessageImpl message) throws JMSException {
+        message.setSession(this);
+        if (_ackMode == AUTO_ACKNOWLEDGE) {
+            getServerSession().acknowledgeMessage(
+                    message.getConsumerId(),
+                    message.getMessageId().toString());
+        } else if (_ackMode == DUPS_OK_ACKNOWLEDGE) {
+            boolean flush;
+            synchronized (_pendingAcks) {
+                long now = System.currentTimeMillis();
+                _pendingAcks.put(new Long(message.getConsumerId()),
+                                 message.getMessageId().toString());
+                if (_pendingCount++ == 0) {
+                    _pendingSince = now;
+                    _flushTask = getFlusher().executeAfterDelay(
+                            MAX_ACK_DELAY, new Runnable() {
+                                public void run() {
+                                    flushIdle();
+                                }
+                            });
+                }
+                flush = _pendingCount >= MAX_PENDING_ACKS
+                        || now - _pendingSince >= MAX_ACK_DELAY;
+            }
+            if (flush) {
+                flushAcknowledgements();
+            }
+        }
+    }
+
+    /**
+     * Sends any acknowledgements held by a <code>DUPS_OK_ACKNOWLEDGE</code>
+     * session.
+     *
+     * @throws JMSException if the messages can't be acknowledged
+     */
+    protected void flushAcknowledgements() throws JMSException {
+        Map.Entry[] acks;
+        synchronized (_pendingAcks) {
+            if (_pendingCount == 0) {
+                return;
+            }
+            acks = (Map.Entry[]) _pendingAcks.entrySet().toArray(
+                    new Map.Entry[0]);
+            _pendingAcks.clear();
+            _pendingCount = 0;
+            if (_flushTask != null) {
+                ClockDaemon.cancel(_flushTask);
+                _flushTask = null;
+            }
+        }
+        for (int i = 0; i < acks.length; ++i) {
+            long consumerId = ((Long) acks[i].getKey()).longValue();
+            String messageId = (String) acks[i].getValue();
+            getServerSession().acknowledgeMessage(consumerId, messageId);
+        }
+    }
+
+    /**
+     * Sends any acknowledgements still held once {@link #MAX_ACK_DELAY} has
+     * expired. Invoked by the flusher thread.
+     * <p/>
+     * Failures, e.g. due to the session being concurrently closed or the
+     * connection being lost, are logged and the acknowledgements discarded.
+     * In <code>DUPS_OK_ACKNOWLEDGE</code> mode, the server may redeliver the
+     * messages.
+     */
+    private void flushIdle() {
+        try {
+            flushAcknowledgements();
+        } catch (Exception exception) {
+            _log.debug("Failed to flush acknowledgements", exception);
+        }
+    }
+
+    /**
+     * Returns the thread used to flush the pending acknowledgements of idle
+     * sessions, creating it if required.
+     *
+     * @return the flusher
+     */
+    private static synchronized ClockDaemon getFlusher() {
+        if (_flusher == null) {
+            _flusher = new ClockDaemon();
+            _flusher.setThreadFactory(
+                    new ThreadFactory(null, "AcknowledgementFlusher", true));
+        }
+        return _flusher;
+    }
+
+    /**
+     * Returns the number of messages that may be prefetched by each
+     * synchronous consumer.
+     *
+     * @return the prefetch window size, or <code>0</code> if messages aren't
+     *         prefetched
+     */
+    protected int getPrefetch() {
+        return _prefetch;
+    }
+
+    /**
+     * Sets the prefetch window of a synchronous consumer.
+     *
+     * @param consumerId the consumer identifier
+     * @param size       the prefetch window size. A size of <code>0</code>
+     *                   closes the window
+     * @throws JMSException if the window can't be set
+     */
+    protected void setPrefetch(long consumerId, int size)
+            throws JMSException {
+        ensureOpen();
+        getServerSession().setPrefetch(consumerId, size);
+    }
+
+    /**
+     * Returns credit to a consumer's prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @param count      the number of prefetched messages consumed
+     * @throws JMSException if the credit can't be returned
+     */
+    protected void credit(long consumerId, int count) throws JMSException {
+        ensureOpen();
+        getServerSession().credit(consumerId, count);
+    }
+
+    /**
+     * Determines if message delivery is stopped.
+     *
+     * @return <code>true</code> if message delivery is stopped
+     */
+    protected boolean isStopped() {
+        return _stopped;
+    }
+
     /**
      * Browse up to count messages.
      *
@@ -1269,6 +1515,9 @@ class JmsSession implements Session, JmsMessageListener, MessageSessionIfc {
             throws JMSException {
         long consumerId = consumer.getConsumerId();
         try {
+            // the server releases unacknowledged messages when the consumer
+            // is closed
+            flushAcknowledgements();
             _session.closeConsumer(consumerId);
         } finally {
             _consumers.remove(new Long(consumerId));
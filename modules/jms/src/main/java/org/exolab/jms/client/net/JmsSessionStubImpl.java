@@ -322,6 +322,30 @@ public class JmsSessionStubImpl
         _session.setAsynchronous(consumerId, enable);
     }
 
+    /**
+     * Sets the number of messages that may be pushed to a synchronous
+     * consumer ahead of it calling receive.
+     *
+     * @param consumerId the consumer identifier
+     * @param size       the prefetch window size. A size of <code>0</code>
+     *                   closes the window
+     * @throws JMSException for any JMS error
+     */
+    public void setPrefetch(long consumerId, int size) throws JMSException {
+        _session.setPrefetch(consumerId, size);
+    }
+
+    /**
+     * Returns credit to a consumer's prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @param count      the number of prefetched messages consumed
+     * @throws JMSException for any JMS error
+     */
+    public void credit(long consumerId, int count) throws JMSException {
+        _session.credit(consumerId, count);
+    }
+
     /**
      * Recover the session. This means all unacknowledged messages are resent
      * with the redelivery flag set
@@ -478,6 +502,18 @@ public class JmsSessionStubImpl
         return _listener.onMessage(message);
     }
 
+    /**
+     * Deliver a batch of messages, in order. Delivery stops at the first
+     * message that can't be delivered.
+     *
+     * @param messages a list of {@link MessageImpl} instances
+     * @return the number of messages delivered
+     * @throws RemoteException if the messages can't be delivered
+     */
+    public int onMessages(List messages) throws RemoteException {
+        return _listener.onMessages(messages);
+    }
+
     /**
      * Inform the session that there is a message available for a synchronous
      * consumer.
@@ -0,0 +1,677 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.exolab.jms.client.JmsQueue;
+import org.exolab.jms.client.JmsTemporaryQueue;
+import org.exolab.jms.client.JmsTemporaryTopic;
+import org.exolab.jms.client.JmsTopic;
+
+
+/**
+ * Compact binary encoding of {@link MessageImpl} instances.
+ * <p/>
+ * Messages are written using their <code>writeExternal</code> methods, but
+ * rather than via an <code>ObjectOutputStream</code>, nested objects are
+ * encoded with a single byte tag. Message, header and destination classes
+ * are identified by a fixed code, and strings, primitive wrappers, byte
+ * arrays and <code>HashMap</code>s are written directly. This avoids the
+ * class descriptors, object handles and reflection of Java serialization.
+ * Any other object is written using Java serialization.
+ * <p/>
+ * Encoded messages are prefixed with a format marker and version, so that
+ * they can be distinguished from messages written with Java serialization
+ * (see {@link #isEncoded}).
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public final class MessageCodec {
+
+    /**
+     * The format marker. This can never be the start of a Java serialization
+     * stream, which begins with <code>0xACED</code>.
+     */
+    private static final byte[] MARKER = {'O', 'J'};
+
+    /**
+     * The codec version.
+     */
+    private static final byte VERSION = 1;
+
+    /**
+     * Tag for <code>null</code>.
+     */
+    private static final byte NULL = 0;
+
+    /**
+     * Tag for <code>Boolean.FALSE</code>.
+     */
+    private static final byte FALSE = 1;
+
+    /**
+     * Tag for <code>Boolean.TRUE</code>.
+     */
+    private static final byte TRUE = 2;
+
+    /**
+     * Tag for <code>Byte</code>.
+     */
+    private static final byte BYTE = 3;
+
+    /**
+     * Tag for <code>Short</code>.
+     */
+    private static final byte SHORT = 4;
+
+    /**
+     * Tag for <code>Character</code>.
+     */
+    private static final byte CHAR = 5;
+
+    /**
+     * Tag for <code>Integer</code>.
+     */
+    private static final byte INT = 6;
+
+    /**
+     * Tag for <code>Long</code>.
+     */
+    private static final byte LONG = 7;
+
+    /**
+     * Tag for <code>Float</code>.
+     */
+    private static final byte FLOAT = 8;
+
+    /**
+     * Tag for <code>Double</code>.
+     */
+    private static final byte DOUBLE = 9;
+
+    /**
+     * Tag for a <code>String</code> short enough to be written with
+     * <code>writeUTF</code>.
+     */
+    private static final byte STRING = 10;
+
+    /**
+     * Tag for a <code>String</code> written as length prefixed UTF-8.
+     */
+    private static final byte LONG_STRING = 11;
+
+    /**
+     * Tag for <code>byte[]</code>.
+     */
+    private static final byte BYTES = 12;
+
+    /**
+     * Tag for <code>HashMap</code>.
+     */
+    private static final byte MAP = 13;
+
+    /**
+     * Tag for one of the {@link #CLASSES}, followed by its code.
+     */
+    private static final byte EXTERNAL = 14;
+
+    /**
+     * Tag for any other object, written using Java serialization.
+     */
+    private static final byte SERIALIZED = 15;
+
+    /**
+     * The maximum no. of characters that are guaranteed to be writable with
+     * <code>writeUTF</code>.
+     */
+    private static final int MAX_UTF_CHARS = 65535 / 3;
+
+    /**
+     * The externalizable classes which are encoded by code, rather than by
+     * name. The code of each class is its index. New classes must only ever
+     * be appended.
+     */
+    private static final Class[] CLASSES = {
+        MessageImpl.class,
+        TextMessageImpl.class,
+        BytesMessageImpl.class,
+        MapMessageImpl.class,
+        ObjectMessageImpl.class,
+        StreamMessageImpl.class,
+        MessageHeader.class,
+        MessageProperties.class,
+        MessageId.class,
+        CorrelationId.class,
+        Timestamp.class,
+        Priority.class,
+        Type.class,
+        DeliveryModeImpl.class,
+        DestinationImpl.class,
+        JmsQueue.class,
+        JmsTopic.class,
+        JmsTemporaryQueue.class,
+        JmsTemporaryTopic.class
+    };
+
+    /**
+     * Map of classes to their codes.
+     */
+    private static final Map CODES = new HashMap();
+
+    /**
+     * Per-thread encoders, to reuse encoding buffers.
+     */
+    private static final ThreadLocal ENCODERS = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Encoder();
+        }
+    };
+
+    static {
+        for (int i = 0; i < CLASSES.length; ++i) {
+            CODES.put(CLASSES[i], new Integer(i));
+        }
+    }
+
+
+    /**
+     * Prevent construction of utility class.
+     */
+    private MessageCodec() {
+    }
+
+    /**
+     * Encodes a message.
+     *
+     * @param message the message to encode
+     * @return the encoded message
+     * @throws IOException if the message can't be encoded
+     */
+    public static byte[] encode(MessageImpl message) throws IOException {
+        Encoder encoder = (Encoder) ENCODERS.get();
+        return encoder.encode(message);
+    }
+
+    /**
+     * Decodes a message.
+     *
+     * @param encoded the encoded message
+     * @return the decoded message
+     * @throws IOException            if the message can't be decoded
+     * @throws ClassNotFoundException if a class can't be found
+     */
+    public static MessageImpl decode(byte[] encoded)
+            throws IOException, ClassNotFoundException {
+        Input in = open(encoded);
+        Object result = in.readObject();
+        if (!(result instanceof MessageImpl)) {
+            throw new StreamCorruptedException(
+                    "Expected MessageImpl but got: " + result);
+        }
+        return (MessageImpl) result;
+    }
+
+    /**
+     * Decodes the header and properties of a message, without decoding its
+     * body.
+     * <p/>
+     * The result is always a <code>MessageImpl</code>, regardless of the
+     * type of the encoded message. It is intended for evaluating selectors
+     * against messages that may never be delivered, and must not be
+     * delivered itself.
+     *
+     * @param encoded the encoded message
+     * @return the message header and properties
+     * @throws IOException            if the message can't be decoded
+     * @throws ClassNotFoundException if a class can't be found
+     */
+    public static MessageImpl decodeHeaders(byte[] encoded)
+            throws IOException, ClassNotFoundException {
+        Input in = open(encoded);
+        byte tag = in.readByte();
+        int code = (tag == EXTERNAL) ? in.readUnsignedByte() : -1;
+        if (code < 0 || code >= CLASSES.length
+                || !MessageImpl.class.isAssignableFrom(CLASSES[code])) {
+            throw new StreamCorruptedException("Expected MessageImpl");
+        }
+        // all message types write the MessageImpl state before their body
+        MessageImpl result = new MessageImpl();
+        result.readExternal(in);
+        return result;
+    }
+
+    /**
+     * Determines if a byte array was produced by {@link #encode}.
+     *
+     * @param bytes the bytes to check
+     * @return <code>true</code> if the bytes start with the format marker
+     */
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes.length > MARKER.length
+                && bytes[0] == MARKER[0] && bytes[1] == MARKER[1];
+    }
+
+    /**
+     * Returns a stream to read an encoded message, positioned after the
+     * format marker and version.
+     *
+     * @param encoded the encoded message
+     * @return a stream to read the message
+     * @throws IOException if the format marker or version is invalid
+     */
+    private static Input open(byte[] encoded) throws IOException {
+        if (!isEncoded(encoded)) {
+            throw new StreamCorruptedException("Invalid format marker");
+        }
+        int offset = MARKER.length;
+        byte version = encoded[offset++];
+        if (version != VERSION) {
+            throw new StreamCorruptedException(
+                    "Unsupported version: " + version);
+        }
+        return new Input(new ByteArrayInputStream(
+                encoded, offset, encoded.length - offset));
+    }
+
+    /**
+     * Encodes messages into a reusable buffer.
+     */
+    private static class Encoder {
+
+        /**
+         * The initial buffer size.
+         */
+        private static final int INITIAL_SIZE = 1024;
+
+        /**
+         * The maximum size the buffer may retain between messages. A buffer
+         * grown beyond this by a large message is discarded, rather than
+         * being held by the thread indefinitely.
+         */
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+        /**
+         * The buffer.
+         */
+        private ByteArrayOutputStream _buffer;
+
+        /**
+         * The output stream, writing to the buffer.
+         */
+        private Output _out;
+
+        /**
+         * Construct a new <code>Encoder</code>.
+         */
+        public Encoder() {
+            allocate();
+        }
+
+        /**
+         * Encodes a message.
+         *
+         * @param message the message to encode
+         * @return the encoded message
+         * @throws IOException if the message can't be encoded
+         */
+        public byte[] encode(MessageImpl message) throws IOException {
+            _buffer.reset();
+            try {
+                _out.write(MARKER);
+                _out.writeByte(VERSION);
+                _out.writeObject(message);
+                _out.flush();
+                return _buffer.toByteArray();
+            } finally {
+                if (_buffer.size() > MAX_RETAINED_SIZE) {
+                    allocate();
+                }
+            }
+        }
+
+        /**
+         * Allocates a new buffer, and output stream to write to it.
+         */
+        private void allocate() {
+            _buffer = new ByteArrayOutputStream(INITIAL_SIZE);
+            _out = new Output(_buffer);
+        }
+    }
+
+    /**
+     * <code>ObjectOutput</code> implementation which tags objects with a
+     * single byte, rather than serializing them.
+     */
+    private static class Output extends DataOutputStream
+            implements ObjectOutput {
+
+        /**
+         * Construct a new <code>Output</code>.
+         *
+         * @param stream the stream to write to
+         */
+        public Output(ByteArrayOutputStream stream) {
+            super(stream);
+        }
+
+        /**
+         * Write an object.
+         *
+         * @param object the object to write. May be <code>null</code>
+         * @throws IOException for any I/O error
+         */
+        public void writeObject(Object object) throws IOException {
+            if (object == null) {
+                writeByte(NULL);
+            } else if (object instanceof String) {
+                writeString((String) object);
+            } else if (object instanceof Boolean) {
+                writeByte(((Boolean) object).booleanValue() ? TRUE : FALSE);
+            } else if (object instanceof Byte) {
+                writeByte(BYTE);
+                writeByte(((Byte) object).byteValue());
+            } else if (object instanceof Short) {
+                writeByte(SHORT);
+                writeShort(((Short) object).shortValue());
+            } else if (object instanceof Character) {
+                writeByte(CHAR);
+                writeChar(((Character) object).charValue());
+            } else if (object instanceof Integer) {
+                writeByte(INT);
+                writeInt(((Integer) object).intValue());
+            } else if (object instanceof Long) {
+                writeByte(LONG);
+                writeLong(((Long) object).longValue());
+            } else if (object instanceof Float) {
+                writeByte(FLOAT);
+                writeFloat(((Float) object).floatValue());
+            } else if (object instanceof Double) {
+                writeByte(DOUBLE);
+                writeDouble(((Double) object).doubleValue());
+            } else if (object instanceof byte[]) {
+                byte[] bytes = (byte[]) object;
+                writeByte(BYTES);
+                writeInt(bytes.length);
+                write(bytes);
+            } else if (object.getClass() == HashMap.class) {
+                writeMap((Map) object);
+            } else {
+                Integer code = (Integer) CODES.get(object.getClass());
+                if (code != null) {
+                    writeByte(EXTERNAL);
+                    writeByte(code.intValue());
+                    ((Externalizable) object).writeExternal(this);
+                } else {
+                    writeSerialized(object);
+                }
+            }
+        }
+
+        /**
+         * Write a string.
+         *
+         * @param string the string to write
+         * @throws IOException for any I/O error
+         */
+        private void writeString(String string) throws IOException {
+            if (string.length() <= MAX_UTF_CHARS) {
+                writeByte(STRING);
+                writeUTF(string);
+            } else {
+                byte[] bytes = string.getBytes("UTF-8");
+                writeByte(LONG_STRING);
+                writeInt(bytes.length);
+                write(bytes);
+            }
+        }
+
+        /**
+         * Write a map.
+         *
+         * @param map the map to write
+         * @throws IOException for any I/O error
+         */
+        private void writeMap(Map map) throws IOException {
+            writeByte(MAP);
+            writeInt(map.size());
+            Iterator iterator = map.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry entry = (Map.Entry) iterator.next();
+                writeObject(entry.getKey());
+                writeObject(entry.getValue());
+            }
+        }
+
+        /**
+         * Write an object using Java serialization.
+         *
+         * @param object the object to write
+         * @throws IOException for any I/O error
+         */
+        private void writeSerialized(Object object) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream stream = new ObjectOutputStream(bytes);
+            stream.writeObject(object);
+            stream.close();
+            writeByte(SERIALIZED);
+            writeInt(bytes.size());
+            bytes.writeTo(this);
+        }
+    }
+
+    /**
+     * <code>ObjectInput</code> implementation which reads objects written
+     * by {@link Output}.
+     */
+    private static class Input extends DataInputStream implements ObjectInput {
+
+        /**
+         * Construct a new <code>Input</code>.
+         *
+         * @param stream the stream to read from
+         */
+        public Input(ByteArrayInputStream stream) {
+            super(stream);
+        }
+
+        /**
+         * Read an object.
+         *
+         * @return the object. May be <code>null</code>
+         * @throws IOException            for any I/O error
+         * @throws ClassNotFoundException if a class can't be found
+         */
+        public Object readObject() throws IOException, ClassNotFoundException {
+            Object result;
+            byte tag = readByte();
+            switch (tag) {
+                case NULL:
+                    result = null;
+                    break;
+                case FALSE:
+                    result = Boolean.FALSE;
+                    break;
+                case TRUE:
+                    result = Boolean.TRUE;
+                    break;
+                case BYTE:
+                    result = new Byte(readByte());
+                    break;
+                case SHORT:
+                    result = new Short(readShort());
+                    break;
+                case CHAR:
+                    result = new Character(readChar());
+                    break;
+                case INT:
+                    result = new Integer(readInt());
+                    break;
+                case LONG:
+                    result = new Long(readLong());
+                    break;
+                case FLOAT:
+                    result = new Float(readFloat());
+                    break;
+                case DOUBLE:
+                    result = new Double(readDouble());
+                    break;
+                case STRING:
+                    result = readUTF();
+                    break;
+                case LONG_STRING:
+                    result = new String(readBytes(), "UTF-8");
+                    break;
+                case BYTES:
+                    result = readBytes();
+                    break;
+                case MAP:
+                    result = readMap();
+                    break;
+                case EXTERNAL:
+                    result = readExternalizable();
+                    break;
+                case SERIALIZED:
+                    result = readSerialized();
+                    break;
+                default:
+                    throw new StreamCorruptedException("Invalid tag: " + tag);
+            }
+            return result;
+        }
+
+        /**
+         * Read a length prefixed byte array.
+         *
+         * @return the byte array
+         * @throws IOException for any I/O error
+         */
+        private byte[] readBytes() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                throw new StreamCorruptedException("Invalid length: " + length);
+            }
+            byte[] result = new byte[length];
+            readFully(result);
+            return result;
+        }
+
+        /**
+         * Read a map.
+         *
+         * @return the map
+         * @throws IOException            for any I/O error
+         * @throws ClassNotFoundException if a class can't be found
+         */
+        private HashMap readMap() throws IOException, ClassNotFoundException {
+            int size = readInt();
+            HashMap result = new HashMap(Math.max(size * 2, 16));
+            for (int i = 0; i < size; ++i) {
+                Object key = readObject();
+                result.put(key, readObject());
+            }
+            return result;
+        }
+
+        /**
+         * Read one of the {@link #CLASSES}.
+         *
+         * @return the object
+         * @throws IOException            for any I/O error
+         * @throws ClassNotFoundException if a class can't be found
+         */
+        private Object readExternalizable()
+                throws IOException, ClassNotFoundException {
+            int code = readUnsignedByte();
+            if (code >= CLASSES.length) {
+                throw new StreamCorruptedException("Invalid class code: "
+                                                   + code);
+            }
+            Externalizable result;
+            try {
+                result = (Externalizable) CLASSES[code].newInstance();
+            } catch (Exception exception) {
+                throw new IOException("Failed to create instance of "
+                                      + CLASSES[code].getName() + ": "
+                                      + exception.getMessage());
+            }
+            result.readExternal(this);
+            return result;
+        }
+
+        /**
+         * Read an object written using Java serialization.
+         *
+         * @return the object
+         * @throws IOException            for any I/O error
+         * @throws ClassNotFoundException if a class can't be found
+         */
+        private Object readSerialized()
+                throws IOException, ClassNotFoundException {
+            ObjectInputStream stream = new ObjectInputStream(
+                    new ByteArrayInputStream(readBytes()));
+            try {
+                return stream.readObject();
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+}
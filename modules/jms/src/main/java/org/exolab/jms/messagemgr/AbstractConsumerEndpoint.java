@@ -48,6 +48,7 @@ import javax.jms.JMSException;
 import org.exolab.jms.client.JmsDestination;
 import org.exolab.jms.message.MessageImpl;
 import org.exolab.jms.selector.Selector;
+import org.exolab.jms.selector.SelectorCache;
 
 
 /**
@@ -308,6 +309,11 @@ public abstract class AbstractConsumerEndpoint implements ConsumerEndpoint {
         synchronized (this) {
             _listener = null;
             doClose();
+            if (_selector != null) {
+                // release the selector, but don't clear it, as a receive
+                // may still be in progress
+                SelectorCache.release(_selector);
+            }
         }
     }
 
@@ -352,13 +358,21 @@ public abstract class AbstractConsumerEndpoint implements ConsumerEndpoint {
 
     /**
      * Sets the message selector.
+     * <p/>
+     * Selectors are shared with other consumers with the same selector
+     * expression, via the {@link SelectorCache}.
      *
      * @param selector the message selector. May be <code>null</code>
      * @throws InvalidSelectorException if the selector is not well formed
      */
     protected void setSelector(String selector)
             throws InvalidSelectorException {
-        _selector = (selector != null) ? new Selector(selector) : null;
+        Selector previous = _selector;
+        _selector = (selector != null) ? SelectorCache.acquire(selector)
+                : null;
+        if (previous != null) {
+            SelectorCache.release(previous);
+        }
     }
 
     /**
@@ -267,6 +267,16 @@ abstract class AbstractConsumerMessageHandle implements MessageHandle {
         return _persistent;
     }
 
+    /**
+     * Determines if neither the handle nor its message is persistent.
+     *
+     * @return <code>true</code> if the handle is transient; otherwise
+     *         <code>false</code>
+     */
+    public boolean isTransient() {
+        return !_persistent && _handle.isTransient();
+    }
+
     /**
      * Returns the message associated with this handle.
      *
@@ -286,8 +296,7 @@ abstract class AbstractConsumerMessageHandle implements MessageHandle {
     public void add() throws JMSException {
         try {
             DatabaseService service = DatabaseService.getInstance();
-            Connection connection = service.getConnection();
-            service.getAdapter().addMessageHandle(connection, this);
+            service.addMessageHandle(this);
         } catch (PersistenceException exception) {
             final String msg = "Failed to make handle persistent";
             _log.error(msg, exception);
@@ -323,8 +332,7 @@ abstract class AbstractConsumerMessageHandle implements MessageHandle {
         if (_persistent) {
             try {
                 DatabaseService service = DatabaseService.getInstance();
-                Connection connection = service.getConnection();
-                service.getAdapter().removeMessageHandle(connection, this);
+                service.removeMessageHandle(this);
             } catch (PersistenceException exception) {
                 final String msg = "Failed to destroy persistent handle";
                 _log.error(msg, exception);
@@ -77,7 +77,7 @@ public abstract class AbstractDestinationCache implements DestinationCache,
     /**
      * The message cache for this destination.
      */
-    private DefaultMessageCache _cache = new DefaultMessageCache();
+    private final DefaultMessageCache _cache;
 
     /**
      * The set of consumers that have subscribed to this cache, keyed on id.
@@ -113,10 +113,12 @@ public abstract class AbstractDestinationCache implements DestinationCache,
      * @param destination the destination to cache messages for
      * @param database    the database service
      * @param leases      the lease manager
+     * @param cache       the message cache
      */
     public AbstractDestinationCache(JmsDestination destination,
                                     DatabaseService database,
-                                    LeaseManager leases) {
+                                    LeaseManager leases,
+                                    DefaultMessageCache cache) {
         if (destination == null) {
             throw new IllegalArgumentException(
                     "Argument 'destination' is null");
@@ -127,9 +129,13 @@ public abstract class AbstractDestinationCache implements DestinationCache,
         if (leases == null) {
             throw new IllegalArgumentException("Argument 'leases' is null");
         }
+        if (cache == null) {
+            throw new IllegalArgumentException("Argument 'cache' is null");
+        }
         _destination = destination;
         _database = database;
         _leaseMgr = leases;
+        _cache = cache;
     }
 
     /**
@@ -274,7 +280,10 @@ public abstract class AbstractDestinationCache implements DestinationCache,
             _log.debug("DESTCACHE -" + getDestination().getName()
                        + " Messages: P[" + _cache.getPersistentCount()
                        + "] T[" + _cache.getTransientCount() + "] Total: ["
-                       + _cache.getMessageCount() + "]");
+                       + _cache.getMessageCount() + "] Hits: ["
+                       + _cache.getHits() + "] Misses: ["
+                       + _cache.getMisses() + "] Evictions: ["
+                       + _cache.getEvictions() + "]");
         }
     }
 
@@ -292,6 +301,36 @@ public abstract class AbstractDestinationCache implements DestinationCache,
         _cache.addMessage(reference, message);
     }
 
+    /**
+     * Returns the maximum no. of messages read ahead by a single prefetch.
+     *
+     * @return the prefetch size, or <code>0</code> if prefetching is disabled
+     */
+    public int getPrefetchSize() {
+        return _cache.getPrefetchSize();
+    }
+
+    /**
+     * Reads ahead the persistent messages for a set of handles, in
+     * anticipation of their delivery.
+     * <p/>
+     * Handles for messages not managed by this cache are ignored.
+     *
+     * @param handles the handles, in the order they will be delivered
+     */
+    public void prefetch(MessageHandle[] handles) {
+        _cache.prefetch(handles);
+    }
+
+    /**
+     * Returns the database service.
+     *
+     * @return the database service
+     */
+    protected DatabaseService getDatabaseService() {
+        return _database;
+    }
+
     /**
      * Returns the message cache.
      *
@@ -325,6 +325,17 @@ public abstract class AbstractMessageHandle implements MessageHandle {
         return false;
     }
 
+    /**
+     * Determines if neither the handle nor its message is persistent.
+     *
+     * @return <code>true</code> if the handle is transient; otherwise
+     *         <code>false</code>
+     */
+    public boolean isTransient() {
+        return !isPersistent() && _reference != null
+                && !_reference.isPersistent();
+    }
+
     /**
      * Indicates whether some other object is "equal to" this one.
      *
@@ -57,7 +57,9 @@ import org.apache.commons.logging.LogFactory;
 import org.exolab.jms.client.JmsDestination;
 import org.exolab.jms.client.JmsTopic;
 import org.exolab.jms.message.MessageImpl;
+import org.exolab.jms.persistence.DatabaseService;
 import org.exolab.jms.persistence.PersistenceException;
+import org.exolab.jms.selector.Selector;
 import org.exolab.jms.server.ServerConnection;
 
 
@@ -200,7 +202,7 @@ abstract class AbstractTopicConsumerEndpoint extends AbstractConsumerEndpoint
             accepted = false;
         } else {
             // create a message handle for this consumer
-            handle = new TopicConsumerMessageHandle(handle, this);
+            handle = createHandle(handle);
 
             if (!_handles.contains(handle)) {
                 // if the message is not already in the cache then add it
@@ -231,6 +233,9 @@ abstract class AbstractTopicConsumerEndpoint extends AbstractConsumerEndpoint
     /**
      * This event is called when a persistent message is added to the
      * <code>DestinationCache</code>.
+     * <p/>
+     * The message is only made available to the consumer once the current
+     * transaction has committed.
      *
      * @param handle  a handle to the added message
      * @param message the added message
@@ -249,15 +254,21 @@ abstract class AbstractTopicConsumerEndpoint extends AbstractConsumerEndpoint
             accepted = false;
         } else {
             // create a message handle for this consumer
-            handle = new TopicConsumerMessageHandle(handle, this);
+            handle = createHandle(handle);
             if (isPersistent()) {
                 // and make it persistent if this is a durable consumer
                 handle.add();
             }
 
             if (!_handles.contains(handle)) {
-                // if the message is not already in the cache then add it
-                addMessage(handle);
+                // if the message is not already in the cache then add it,
+                // once the transaction has committed
+                final MessageHandle added = handle;
+                DatabaseService.getInstance().afterCommit(new Runnable() {
+                    public void run() {
+                        addMessage(added);
+                    }
+                });
             } else {
                 accepted = false;
                 _log.warn("Endpoint=" + this + " already has message cached: " +
@@ -404,7 +415,7 @@ abstract class AbstractTopicConsumerEndpoint extends AbstractConsumerEndpoint
             // ensure that the message still exists
             MessageImpl message = handle.getMessage();
             if (message != null) {
-                if (selects(message)) {
+                if (selects(handle, message)) {
                     // got a message which is applicable for the endpoint
                     result = handle;
                     break;
@@ -414,12 +425,73 @@ abstract class AbstractTopicConsumerEndpoint extends AbstractConsumerEndpoint
                 }
             }
         }
+        if (result != null) {
+            prefetch();
+        }
         if (_log.isDebugEnabled()) {
             _log.debug("doReceive() - result=" + (result != null ? result.getMessageId() : null));
         }
         return result;
     }
 
+    /**
+     * Creates a handle for a message added by a {@link TopicDestinationCache}.
+     * <p/>
+     * The cache only adds messages selected by the consumer's selector. For
+     * non-persistent consumers, the selector cannot change, so the handle
+     * is marked as selected, to avoid evaluating the selector again on
+     * receipt.
+     *
+     * @param handle the shared message handle
+     * @return a new handle for this consumer
+     * @throws JMSException if the handle can't be created
+     */
+    private TopicConsumerMessageHandle createHandle(MessageHandle handle)
+            throws JMSException {
+        TopicConsumerMessageHandle result
+                = new TopicConsumerMessageHandle(handle, this);
+        if (!isPersistent()) {
+            result.setSelector(getSelector());
+        }
+        return result;
+    }
+
+    /**
+     * Determines if a message is selected by the consumer, without
+     * re-evaluating the selector if the handle has already been selected
+     * by it.
+     *
+     * @param handle  the message handle
+     * @param message the message
+     * @return <code>true</code> if the message is selected; otherwise
+     *         <code>false</code>
+     */
+    private boolean selects(MessageHandle handle, MessageImpl message) {
+        Selector selector = getSelector();
+        boolean result;
+        if (selector != null && handle instanceof TopicConsumerMessageHandle
+                && ((TopicConsumerMessageHandle) handle).getSelector()
+                   == selector) {
+            result = true;
+        } else {
+            result = selects(message);
+        }
+        return result;
+    }
+
+    /**
+     * Reads ahead the persistent messages most likely to be delivered next.
+     */
+    private void prefetch() {
+        DestinationCache[] caches = getDestinationCaches();
+        for (int i = 0; i < caches.length; ++i) {
+            int size = caches[i].getPrefetchSize();
+            if (size != 0) {
+                caches[i].prefetch(_handles.first(size));
+            }
+        }
+    }
+
     /**
      * Closes this endpoint.
      */
@@ -51,17 +51,36 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.exolab.jms.message.MessageImpl;
 import org.exolab.jms.persistence.DatabaseService;
+import org.exolab.jms.persistence.EncodedMessage;
 import org.exolab.jms.persistence.PersistenceAdapter;
 import org.exolab.jms.persistence.PersistenceException;
 
 import javax.jms.JMSException;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
  * Default implementation of the {@link MessageCache} interface.
+ * <p/>
+ * The no. of persistent messages held in memory may be bounded. When the
+ * bound is exceeded, the least recently used persistent message is evicted.
+ * As persistent messages are held in the database, evicted messages are
+ * simply re-read on demand. Non-persistent messages are never evicted.
+ * <p/>
+ * If a {@link MessagePrefetcher} is supplied, persistent messages may be read
+ * ahead of demand via {@link #prefetch}.
+ * <p/>
+ * Persistent messages read via {@link #getMessageView} are cached in their
+ * encoded form, and only fully decoded if subsequently requested via
+ * {@link #getMessage}.
  *
  * @author <a href="mailto:jima@comware.com.au">Jim Alateras</a>
  * @author <a href="mailto:tma@netspace.net.au">Tim Anderson</a>
@@ -75,15 +94,48 @@ final class DefaultMessageCache implements MessageCache {
     private final Map _transient = new HashMap(1023);
 
     /**
-     * Maintains the pool of persistent messages.
+     * Maintains the pool of persistent messages, in least recently used order.
+     * Values are either <code>MessageImpl</code> or
+     * <code>EncodedMessage</code> instances.
      */
-    private final Map _persistent = new HashMap(1023);
+    private final Map _persistent;
 
     /**
      * Maintains the references to messages.
      */
     private final Map _references = new HashMap(1023);
 
+    /**
+     * The maximum no. of persistent messages to cache, or <code>0</code> if
+     * the cache is unbounded.
+     */
+    private final int _maxPersistent;
+
+    /**
+     * The prefetcher. May be <code>null</code>.
+     */
+    private final MessagePrefetcher _prefetcher;
+
+    /**
+     * The identifiers of messages currently being prefetched.
+     */
+    private final Set _prefetching = new HashSet();
+
+    /**
+     * The no. of times a persistent message was found in the cache.
+     */
+    private long _hits = 0;
+
+    /**
+     * The no. of times a persistent message had to be read from the database.
+     */
+    private long _misses = 0;
+
+    /**
+     * The no. of persistent messages evicted from the cache.
+     */
+    private long _evictions = 0;
+
     /**
      * The logger.
      */
@@ -91,6 +143,37 @@ final class DefaultMessageCache implements MessageCache {
             DefaultMessageCache.class);
 
 
+    /**
+     * Construct a new <code>DefaultMessageCache</code>, with no limit on the
+     * no. of persistent messages cached.
+     */
+    public DefaultMessageCache() {
+        this(0, null);
+    }
+
+    /**
+     * Construct a new <code>DefaultMessageCache</code>.
+     *
+     * @param maxPersistent the maximum no. of persistent messages to cache,
+     *                      or <code>0</code> if the cache is unbounded
+     * @param prefetcher    the prefetcher, used to read persistent messages
+     *                      ahead of demand. May be <code>null</code>
+     */
+    public DefaultMessageCache(int maxPersistent,
+                               MessagePrefetcher prefetcher) {
+        if (maxPersistent < 0) {
+            throw new IllegalArgumentException(
+                    "Argument 'maxPersistent' must be >= 0");
+        }
+        _maxPersistent = maxPersistent;
+        _prefetcher = prefetcher;
+        _persistent = new LinkedHashMap(1023, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return evict();
+            }
+        };
+    }
+
     /**
      * Add a reference and its corresponding message to the cache.
      *
@@ -141,11 +224,21 @@ final class DefaultMessageCache implements MessageCache {
         final String messageId = reference.getMessageId();
 
         if (reference.isPersistent()) {
-            message = (MessageImpl) _persistent.get(messageId);
+            Object cached = _persistent.get(messageId);
+            if (cached instanceof EncodedMessage) {
+                // the message has been read, but not fully decoded
+                message = decode((EncodedMessage) cached);
+                _persistent.put(messageId, message);
+            } else {
+                message = (MessageImpl) cached;
+            }
 
             // if the message is not cached then try and retrieve it from the
             // database and cache it.
-            if (message == null) {
+            if (message != null) {
+                ++_hits;
+            } else {
+                ++_misses;
                 // fault in at least the next message from the database
                 try {
                     DatabaseService service = DatabaseService.getInstance();
@@ -175,6 +268,131 @@ final class DefaultMessageCache implements MessageCache {
         return message;
     }
 
+    /**
+     * Returns a view of the message corresponding to the specified reference,
+     * suitable for evaluating selectors.
+     * <p/>
+     * If a persistent message isn't cached, only its header and properties
+     * are decoded; the body is decoded if the message is subsequently
+     * requested via {@link #getMessage}. The returned view must therefore not
+     * be delivered to consumers.
+     *
+     * @param reference the message reference
+     * @return a view of the message, or <code>null</code> if none exists
+     * @throws JMSException for any error
+     */
+    public synchronized MessageImpl getMessageView(MessageRef reference)
+            throws JMSException {
+        MessageImpl message;
+        if (reference.isPersistent()) {
+            final String messageId = reference.getMessageId();
+            Object cached = _persistent.get(messageId);
+            if (cached instanceof MessageImpl) {
+                ++_hits;
+                message = (MessageImpl) cached;
+            } else {
+                EncodedMessage encoded = (EncodedMessage) cached;
+                if (encoded != null) {
+                    ++_hits;
+                } else {
+                    ++_misses;
+                    try {
+                        DatabaseService service = DatabaseService.getInstance();
+                        PersistenceAdapter adapter = service.getAdapter();
+                        Connection connection = service.getConnection();
+                        encoded = adapter.getEncodedMessage(connection,
+                                                            messageId);
+                    } catch (PersistenceException exception) {
+                        final String msg = "Failed to retrieve message";
+                        _log.error(msg, exception);
+                        throw new JMSException(msg + ": "
+                                               + exception.getMessage());
+                    }
+                    if (encoded != null) {
+                        _persistent.put(messageId, encoded);
+                    }
+                }
+                message = (encoded != null) ? getHeaders(encoded) : null;
+            }
+        } else {
+            message = getMessage(reference);
+        }
+        return message;
+    }
+
+    /**
+     * Returns the maximum no. of messages read by a single prefetch.
+     *
+     * @return the prefetch batch size, or <code>0</code> if prefetching is
+     *         disabled
+     */
+    public int getPrefetchSize() {
+        return (_prefetcher != null) ? _prefetcher.getBatchSize() : 0;
+    }
+
+    /**
+     * Reads ahead the persistent messages for a set of handles, in the
+     * background.
+     * <p/>
+     * To batch reads, nothing is read until at least half of the handles
+     * refer to uncached messages, unless the first handle's message is
+     * uncached.
+     *
+     * @param handles the handles, in the order they will be delivered
+     */
+    public void prefetch(MessageHandle[] handles) {
+        if (_prefetcher == null || handles.length == 0) {
+            return;
+        }
+        List ids = new ArrayList();
+        synchronized (this) {
+            boolean urgent = false;
+            for (int i = 0; i < handles.length; ++i) {
+                MessageHandle handle = handles[i];
+                String messageId = handle.getMessageId();
+                if (handle.isPersistent()
+                        && _references.containsKey(messageId)
+                        && !_persistent.containsKey(messageId)
+                        && !_prefetching.contains(messageId)) {
+                    ids.add(messageId);
+                    if (i == 0) {
+                        urgent = true;
+                    }
+                }
+            }
+            if (urgent || ids.size() * 2 >= handles.length) {
+                _prefetching.addAll(ids);
+            } else {
+                ids.clear();
+            }
+        }
+        if (!ids.isEmpty()) {
+            _prefetcher.prefetch(this, ids);
+        }
+    }
+
+    /**
+     * Invoked by the {@link MessagePrefetcher} when a prefetch completes.
+     * Messages are only cached if they haven't been destroyed in the interim.
+     *
+     * @param ids      the identifiers of the messages that were requested
+     * @param messages the messages read, keyed on identifier, or
+     *                 <code>null</code> if the read failed
+     */
+    synchronized void prefetched(List ids, Map messages) {
+        Iterator iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            String messageId = (String) iterator.next();
+            _prefetching.remove(messageId);
+            MessageImpl message = (messages != null)
+                    ? (MessageImpl) messages.get(messageId) : null;
+            if (message != null && _references.containsKey(messageId)
+                    && !(_persistent.get(messageId) instanceof MessageImpl)) {
+                _persistent.put(messageId, message);
+            }
+        }
+    }
+
     /**
      * Destroys the message corresponding to the reference.
      *
@@ -186,9 +404,7 @@ final class DefaultMessageCache implements MessageCache {
             if (reference.isPersistent()) {
                 try {
                     DatabaseService service = DatabaseService.getInstance();
-                    Connection connection = service.getConnection();
-                    PersistenceAdapter adapter = service.getAdapter();
-                    adapter.removeMessage(connection, messageId);
+                    service.removeMessage(messageId);
                 } catch (Exception exception) {
                     _log.error("Failed to remove message", exception);
                     throw new JMSException("Failed to remove message: "
@@ -208,6 +424,7 @@ final class DefaultMessageCache implements MessageCache {
         _transient.clear();
         _persistent.clear();
         _references.clear();
+        _prefetching.clear();
     }
 
     /**
@@ -244,6 +461,34 @@ final class DefaultMessageCache implements MessageCache {
         return _references.size();
     }
 
+    /**
+     * Returns the no. of times a persistent message was found in the cache.
+     *
+     * @return the no. of cache hits
+     */
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    /**
+     * Returns the no. of times a persistent message had to be read from the
+     * database.
+     *
+     * @return the no. of cache misses
+     */
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    /**
+     * Returns the no. of persistent messages evicted from the cache.
+     *
+     * @return the no. of evictions
+     */
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
     /**
      * Add a message reference to the cache.
      *
@@ -254,5 +499,55 @@ final class DefaultMessageCache implements MessageCache {
         _references.put(messageId, reference);
     }
 
+    /**
+     * Fully decodes an encoded message.
+     *
+     * @param encoded the encoded message
+     * @return the decoded message
+     * @throws JMSException if the message can't be decoded
+     */
+    private MessageImpl decode(EncodedMessage encoded) throws JMSException {
+        try {
+            return encoded.getMessage();
+        } catch (PersistenceException exception) {
+            final String msg = "Failed to decode message";
+            _log.error(msg, exception);
+            throw new JMSException(msg + ": " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Decodes the header and properties of an encoded message.
+     *
+     * @param encoded the encoded message
+     * @return the header and properties of the message
+     * @throws JMSException if the message can't be decoded
+     */
+    private MessageImpl getHeaders(EncodedMessage encoded)
+            throws JMSException {
+        try {
+            return encoded.getHeaders();
+        } catch (PersistenceException exception) {
+            final String msg = "Failed to decode message";
+            _log.error(msg, exception);
+            throw new JMSException(msg + ": " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Determines if the least recently used persistent message should be
+     * evicted. Invoked after a persistent message is added.
+     *
+     * @return <code>true</code> if the cache is full
+     */
+    private boolean evict() {
+        boolean evict = false;
+        if (_maxPersistent != 0 && _persistent.size() > _maxPersistent) {
+            ++_evictions;
+            evict = true;
+        }
+        return evict;
+    }
+
 }
 
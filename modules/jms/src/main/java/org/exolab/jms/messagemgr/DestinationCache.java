@@ -110,6 +110,23 @@ public interface DestinationCache extends MessageManagerEventListener,
      */
     int getMessageCount();
 
+    /**
+     * Returns the maximum no. of messages read ahead by a single prefetch.
+     *
+     * @return the prefetch size, or <code>0</code> if prefetching is disabled
+     */
+    int getPrefetchSize();
+
+    /**
+     * Reads ahead the persistent messages for a set of handles, in
+     * anticipation of their delivery.
+     * <p/>
+     * Handles for messages not managed by this cache are ignored.
+     *
+     * @param handles the handles, in the order they will be delivered
+     */
+    void prefetch(MessageHandle[] handles);
+
     /**
      * Determines if this cache can be destroyed.
      *
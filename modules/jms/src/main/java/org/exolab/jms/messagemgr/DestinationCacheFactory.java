@@ -52,9 +52,12 @@ import org.apache.commons.logging.Log;
 import org.exolab.jms.client.JmsDestination;
 import org.exolab.jms.client.JmsQueue;
 import org.exolab.jms.client.JmsTopic;
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.config.MessageManagerConfiguration;
 import org.exolab.jms.lease.LeaseManager;
 import org.exolab.jms.server.ServerConnectionManager;
 import org.exolab.jms.persistence.DatabaseService;
+import org.exolab.jms.scheduler.Scheduler;
 
 
 /**
@@ -80,6 +83,16 @@ public class DestinationCacheFactory {
      */
     private final DatabaseService _database;
 
+    /**
+     * The maximum no. of persistent messages each cache holds in memory.
+     */
+    private final int _cacheSize;
+
+    /**
+     * The prefetcher, shared by all caches. May be <code>null</code>.
+     */
+    private final MessagePrefetcher _prefetcher;
+
     /**
      * The logger.
      */
@@ -90,13 +103,19 @@ public class DestinationCacheFactory {
     /**
      * Construct a new <code>DestinationCacheFactory</code>.
      *
+     * @param config      the configuration to use
      * @param leases      the lease mananger
+     * @param database    the database service
      * @param connections the connection manager
+     * @param scheduler   the scheduler, used to prefetch messages
      */
-    public DestinationCacheFactory(LeaseManager leases,
+    public DestinationCacheFactory(Configuration config, LeaseManager leases,
                                    DatabaseService database,
-                                   ServerConnectionManager connections) {
-
+                                   ServerConnectionManager connections,
+                                   Scheduler scheduler) {
+        if (config == null) {
+            throw new IllegalArgumentException("Argument 'config' is null");
+        }
         if (leases == null) {
             throw new IllegalArgumentException("Argument 'leases' is null");
         }
@@ -107,9 +126,22 @@ public class DestinationCacheFactory {
             throw new IllegalArgumentException(
                     "Argument 'connections' is null");
         }
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Argument 'scheduler' is null");
+        }
         _leases = leases;
         _database = database;
         _connections = connections;
+        MessageManagerConfiguration msgConfig
+                = config.getMessageManagerConfiguration();
+        _cacheSize = msgConfig.getDestinationCacheSize();
+        int prefetchSize = msgConfig.getPrefetchSize();
+        if (prefetchSize > 0) {
+            _prefetcher = new MessagePrefetcher(database, scheduler,
+                                                prefetchSize);
+        } else {
+            _prefetcher = null;
+        }
     }
 
     /**
@@ -124,13 +156,24 @@ public class DestinationCacheFactory {
         DestinationCache result;
         if (destination instanceof JmsTopic) {
             result = new TopicDestinationCache((JmsTopic) destination,
-                                               _database, _leases);
+                                               _database, _leases,
+                                               createMessageCache());
         } else {
             result = new QueueDestinationCache((JmsQueue) destination,
                                                 _database, _leases,
-                                               _connections);
+                                               _connections,
+                                               createMessageCache());
         }
         return result;
     }
 
+    /**
+     * Creates a new message cache.
+     *
+     * @return a new message cache
+     */
+    private DefaultMessageCache createMessageCache() {
+        return new DefaultMessageCache(_cacheSize, _prefetcher);
+    }
+
 }
@@ -0,0 +1,398 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import javax.jms.JMSException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.exolab.jms.message.MessageImpl;
+import org.exolab.jms.persistence.DatabaseService;
+import org.exolab.jms.persistence.PersistenceException;
+
+
+/**
+ * Writes concurrently published persistent messages to the database using a
+ * single transaction per batch.
+ * <p/>
+ * Publishing threads queue their messages, and one of them is elected to
+ * write the batch and commit it on behalf of the others. The remaining
+ * threads block until the commit completes, so that no producer is
+ * acknowledged before its message is durable. Messages arriving while a
+ * batch is being committed form the next batch.
+ * <p/>
+ * If a batch fails, each of its messages is retried in its own transaction,
+ * so that a single bad message doesn't fail the messages of other
+ * producers.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+class GroupCommitter {
+
+    /**
+     * Writes a batch of messages within the current transaction.
+     * <p/>
+     * A writer may be invoked more than once for the same message, if its
+     * batch fails. Anything that must only happen once the messages are
+     * durable, such as making them available to consumers, must be deferred
+     * via {@link DatabaseService#afterCommit}.
+     */
+    interface Writer {
+
+        /**
+         * Writes a batch of messages.
+         *
+         * @param messages a list of <code>MessageImpl</code> instances
+         * @throws JMSException         for any JMS error
+         * @throws PersistenceException for any persistence error
+         */
+        void write(List messages) throws JMSException, PersistenceException;
+    }
+
+    /**
+     * The database service.
+     */
+    private final DatabaseService _database;
+
+    /**
+     * The writer, invoked for each batch.
+     */
+    private final Writer _writer;
+
+    /**
+     * The maximum no. of messages to commit in a single transaction.
+     */
+    private final int _batchSize;
+
+    /**
+     * The maximum time, in milliseconds, to wait for a batch to fill.
+     */
+    private final long _maxLinger;
+
+    /**
+     * The queue of pending {@link Request}s.
+     */
+    private final LinkedList _pending = new LinkedList();
+
+    /**
+     * Determines if a thread is currently writing a batch.
+     */
+    private boolean _writing = false;
+
+    /**
+     * Synchronization helper.
+     */
+    private final Object _lock = new Object();
+
+    /**
+     * The logger.
+     */
+    private static final Log _log = LogFactory.getLog(GroupCommitter.class);
+
+
+    /**
+     * Construct a new <code>GroupCommitter</code>.
+     *
+     * @param database  the database service
+     * @param writer    the writer, invoked for each batch
+     * @param batchSize the maximum no. of messages to commit in a single
+     *                  transaction
+     * @param maxLinger the maximum time, in milliseconds, to wait for a batch
+     *                  to fill
+     */
+    public GroupCommitter(DatabaseService database, Writer writer,
+                          int batchSize, long maxLinger) {
+        if (database == null) {
+            throw new IllegalArgumentException("Argument 'database' is null");
+        }
+        if (writer == null) {
+            throw new IllegalArgumentException("Argument 'writer' is null");
+        }
+        _database = database;
+        _writer = writer;
+        _batchSize = (batchSize < 1) ? 1 : batchSize;
+        _maxLinger = (maxLinger < 0) ? 0 : maxLinger;
+    }
+
+    /**
+     * Writes a message, returning when the transaction containing it has
+     * been committed.
+     *
+     * @param message the message to write
+     * @throws JMSException if the message cannot be written, or the
+     *                      transaction fails to commit
+     */
+    public void write(MessageImpl message) throws JMSException {
+        Request request = new Request(message);
+        synchronized (_lock) {
+            _pending.addLast(request);
+            if (_pending.size() >= _batchSize) {
+                // wake any thread lingering for the batch to fill
+                _lock.notifyAll();
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (!request.isDone()) {
+                List batch = null;
+                synchronized (_lock) {
+                    while (!request.isDone() && _writing) {
+                        try {
+                            _lock.wait();
+                        } catch (InterruptedException exception) {
+                            // the request is queued, so must be waited on.
+                            // Restore the interrupt once it is done
+                            interrupted = true;
+                        }
+                    }
+                    if (!request.isDone()) {
+                        _writing = true;
+                        batch = getBatch();
+                        // don't commit the batch with the interrupt set
+                        if (Thread.interrupted()) {
+                            interrupted = true;
+                        }
+                    }
+                }
+                if (batch != null) {
+                    try {
+                        commit(batch);
+                    } finally {
+                        synchronized (_lock) {
+                            _writing = false;
+                            _lock.notifyAll();
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        JMSException error = request.getException();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Removes the next batch of requests from the queue, waiting up to the
+     * maximum linger time for the batch to fill.
+     * <p/>
+     * This must be invoked while holding <code>_lock</code>.
+     *
+     * @return the next batch of requests
+     */
+    private List getBatch() {
+        if (_maxLinger > 0 && _pending.size() < _batchSize) {
+            long end = System.currentTimeMillis() + _maxLinger;
+            long remaining = _maxLinger;
+            while (remaining > 0 && _pending.size() < _batchSize) {
+                try {
+                    _lock.wait(remaining);
+                } catch (InterruptedException exception) {
+                    // stop lingering, and leave the caller to handle it
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = end - System.currentTimeMillis();
+            }
+        }
+        List batch = new LinkedList();
+        while (!_pending.isEmpty() && batch.size() < _batchSize) {
+            batch.add(_pending.removeFirst());
+        }
+        return batch;
+    }
+
+    /**
+     * Writes a batch of requests in a single transaction, and marks each
+     * request as done.
+     * <p/>
+     * If the batch fails, and it contains more than one request, each
+     * request is retried in its own transaction.
+     *
+     * @param batch the batch of requests to write
+     */
+    private void commit(List batch) {
+        JMSException error = write(batch);
+        if (error != null && batch.size() > 1) {
+            _log.warn("Failed to commit batch of " + batch.size()
+                      + " messages. Retrying each message individually");
+            Iterator iterator = batch.iterator();
+            while (iterator.hasNext()) {
+                Request request = (Request) iterator.next();
+                List single = new ArrayList(1);
+                single.add(request);
+                request.done(write(single));
+            }
+        } else {
+            if (error == null && _log.isDebugEnabled()) {
+                _log.debug("Committed batch of " + batch.size() + " messages");
+            }
+            Iterator iterator = batch.iterator();
+            while (iterator.hasNext()) {
+                Request request = (Request) iterator.next();
+                request.done(error);
+            }
+        }
+    }
+
+    /**
+     * Writes the messages of a list of requests in a single transaction.
+     *
+     * @param requests the requests to write
+     * @return <code>null</code> if the transaction committed, otherwise the
+     *         reason for the failure
+     */
+    private JMSException write(List requests) {
+        JMSException error = null;
+        try {
+            List messages = new ArrayList(requests.size());
+            Iterator iterator = requests.iterator();
+            while (iterator.hasNext()) {
+                Request request = (Request) iterator.next();
+                messages.add(request.getMessage());
+            }
+            _database.begin();
+            _writer.write(messages);
+            _database.commit();
+        } catch (Exception exception) {
+            final String msg = "Failed to process message";
+            _log.error(msg, exception);
+            try {
+                if (_database.isTransacted()) {
+                    _database.rollback();
+                }
+            } catch (PersistenceException rollback) {
+                _log.error(rollback, rollback);
+            }
+            if (exception instanceof JMSException) {
+                error = (JMSException) exception;
+            } else {
+                error = new JMSException(msg + ": " + exception.getMessage());
+            }
+        }
+        return error;
+    }
+
+    /**
+     * A request to write a message.
+     */
+    private static class Request {
+
+        /**
+         * The message to write.
+         */
+        private final MessageImpl _message;
+
+        /**
+         * Determines if the request has been processed.
+         */
+        private volatile boolean _done = false;
+
+        /**
+         * The exception raised while processing the request, or
+         * <code>null</code> if it succeeded.
+         */
+        private JMSException _exception;
+
+
+        /**
+         * Construct a new <code>Request</code>.
+         *
+         * @param message the message to write
+         */
+        public Request(MessageImpl message) {
+            _message = message;
+        }
+
+        /**
+         * Returns the message to write.
+         *
+         * @return the message to write
+         */
+        public MessageImpl getMessage() {
+            return _message;
+        }
+
+        /**
+         * Marks the request as processed.
+         *
+         * @param exception the exception raised while processing the request,
+         *                  or <code>null</code> if it succeeded
+         */
+        public void done(JMSException exception) {
+            _exception = exception;
+            _done = true;
+        }
+
+        /**
+         * Determines if the request has been processed.
+         *
+         * @return <code>true</code> if the request has been processed
+         */
+        public boolean isDone() {
+            return _done;
+        }
+
+        /**
+         * Returns the exception raised while processing the request.
+         *
+         * @return the exception, or <code>null</code> if the request succeeded
+         */
+        public JMSException getException() {
+            return _exception;
+        }
+    }
+
+}
@@ -0,0 +1,474 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.exolab.jms.message.MessageImpl;
+import org.exolab.jms.selector.Selector;
+
+
+/**
+ * A {@link MessageQueue} that indexes its message handles on the key values
+ * of the selectors used to retrieve them.
+ * <p/>
+ * A selector has a key if it restricts a header field or property to a set of
+ * string values, e.g. <code>JMSType = 'order'</code> or
+ * <code>region IN ('EU', 'US')</code>. Selectors are registered via
+ * {@link #addSelector}. When a selector with a key is first registered, an
+ * index is created for the key identifier, and lookups only need to consider
+ * those handles with a matching key value. The index is removed when the last
+ * selector using its key identifier is deregistered via
+ * {@link #removeSelector}.
+ * <p/>
+ * Handles added without their message (e.g. those loaded from the database)
+ * cannot be indexed until the message is available. These are returned as
+ * candidates for every lookup, and are indexed via {@link #index} as
+ * they are evaluated.
+ * <p/>
+ * Until an index is created, operations are delegated directly to the
+ * underlying queue, without further synchronization. Once indexed, the index
+ * bookkeeping is synchronized on the queue.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ * @see Selector#getKeyName
+ */
+class IndexedMessageQueue extends MessageQueue {
+
+    /**
+     * The indexes, keyed on key identifier name.
+     */
+    private final Map _indexes = new HashMap();
+
+    /**
+     * The indexed key values of each handle, keyed on message identifier.
+     * Each value is a map of key identifier name to key value.
+     */
+    private final Map _keys = new HashMap();
+
+    /**
+     * Handles which haven't been indexed against every index.
+     */
+    private final MessageQueue _unindexed = new MessageQueue();
+
+    /**
+     * Determines if any indexes have been created.
+     */
+    private volatile boolean _indexed = false;
+
+
+    /**
+     * Add a message handle. The handle will be indexed when it is first
+     * evaluated by a lookup.
+     *
+     * @param handle the message handle
+     * @return <code>true</code> if queue set did not already contain the handle
+     */
+    public boolean add(MessageHandle handle) {
+        boolean added = super.add(handle);
+        if (added && _indexed) {
+            synchronized (this) {
+                if (isUnindexed(handle)) {
+                    _unindexed.add(handle);
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Add a message handle, indexing it using its message.
+     *
+     * @param handle  the message handle
+     * @param message the message
+     * @return <code>true</code> if queue set did not already contain the handle
+     */
+    public boolean add(MessageHandle handle, MessageImpl message) {
+        boolean added = super.add(handle);
+        if (added && _indexed) {
+            synchronized (this) {
+                if (isUnindexed(handle)) {
+                    _unindexed.remove(handle);
+                    addKeys(handle, message);
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes a message handle from the queue.
+     *
+     * @param handle the message handle to remove
+     * @return the removed handle, or <code>null</code> if it wasn't present
+     */
+    public MessageHandle remove(MessageHandle handle) {
+        MessageHandle result = super.remove(handle);
+        if (result != null && _indexed) {
+            removeKeys(result);
+        }
+        return result;
+    }
+
+    /**
+     * Removes a message handle from the queue.
+     *
+     * @param messageId the message identifier of the handle to remove
+     * @return the removed handle, or <code>null</code> if it wasn't present
+     */
+    public MessageHandle remove(String messageId) {
+        MessageHandle result = super.remove(messageId);
+        if (result != null && _indexed) {
+            removeKeys(result);
+        }
+        return result;
+    }
+
+    /**
+     * Removes and returns the first message handle in the queue.
+     *
+     * @return the first message handle in the queue, or <code>null</code>,
+     *         if the queue is empty
+     */
+    public MessageHandle removeFirst() {
+        MessageHandle result = super.removeFirst();
+        if (result != null && _indexed) {
+            removeKeys(result);
+        }
+        return result;
+    }
+
+    /**
+     * Removes all the elements from the queue. Registered selectors are
+     * retained.
+     */
+    public synchronized void clear() {
+        super.clear();
+        clearIndexes();
+    }
+
+    /**
+     * Registers a selector. If the selector has a key, and no index exists
+     * for its key identifier, an index is created and all handles are
+     * re-indexed.
+     *
+     * @param selector the selector
+     */
+    public synchronized void addSelector(Selector selector) {
+        String name = selector.getKeyName();
+        if (name != null) {
+            Index index = (Index) _indexes.get(name);
+            if (index == null) {
+                // flag the queue as indexed prior to taking the snapshot, so
+                // that concurrently added handles are either in the
+                // snapshot, or synchronize on the queue to index themselves
+                _indexed = true;
+                _indexes.put(name, new Index(selector));
+
+                // all existing handles need to be re-indexed to include the
+                // new key
+                clearIndexes();
+                MessageHandle[] handles = toArray();
+                for (int i = 0; i < handles.length; ++i) {
+                    _unindexed.add(handles[i]);
+                }
+            } else {
+                index.acquire();
+            }
+        }
+    }
+
+    /**
+     * Deregisters a selector. If it is the last selector registered for its
+     * key identifier, the index for the key identifier is removed.
+     *
+     * @param selector the selector
+     */
+    public synchronized void removeSelector(Selector selector) {
+        String name = selector.getKeyName();
+        Index index = (name != null) ? (Index) _indexes.get(name) : null;
+        if (index != null && index.release()) {
+            _indexes.remove(name);
+            if (_indexes.isEmpty()) {
+                _indexed = false;
+                _keys.clear();
+                _unindexed.clear();
+            } else {
+                Iterator iterator = _keys.values().iterator();
+                while (iterator.hasNext()) {
+                    ((Map) iterator.next()).remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the handles that may be selected by a selector, in queue order.
+     * <p/>
+     * If the selector has no key, or hasn't been registered, all handles are
+     * returned. Otherwise, only those handles with a matching key value, and
+     * those not yet indexed, are returned.
+     *
+     * @param selector the selector
+     * @return the candidate handles
+     */
+    public MessageHandle[] getCandidates(Selector selector) {
+        String name = selector.getKeyName();
+        if (name == null) {
+            return toArray();
+        }
+        return getCandidates(selector, name);
+    }
+
+    /**
+     * Returns the handles that may be selected by a selector with a key.
+     *
+     * @param selector the selector
+     * @param name     the key identifier name
+     * @return the candidate handles
+     */
+    private synchronized MessageHandle[] getCandidates(Selector selector,
+                                                      String name) {
+        Index index = (Index) _indexes.get(name);
+        if (index == null) {
+            return toArray();
+        }
+        Map values = index.getValues();
+
+        List result = new ArrayList();
+        int sources = 0;
+        if (_unindexed.size() != 0) {
+            addAll(result, _unindexed.toArray());
+            ++sources;
+        }
+        Iterator iterator = selector.getKeyValues().iterator();
+        while (iterator.hasNext()) {
+            MessageQueue queue = (MessageQueue) values.get(iterator.next());
+            if (queue != null) {
+                addAll(result, queue.toArray());
+                ++sources;
+            }
+        }
+        if (sources > 1) {
+            Collections.sort(result, new MessageHandleComparator());
+        }
+        return (MessageHandle[]) result.toArray(new MessageHandle[0]);
+    }
+
+    /**
+     * Indexes a handle, if it is in the queue but not yet indexed.
+     *
+     * @param handle  the message handle
+     * @param message the message
+     */
+    public synchronized void index(MessageHandle handle, MessageImpl message) {
+        if (_unindexed.remove(handle) != null && contains(handle)) {
+            addKeys(handle, message);
+        }
+    }
+
+    /**
+     * Determines if a handle is in the queue, but hasn't been indexed.
+     *
+     * @param handle the message handle
+     * @return <code>true</code> if the handle hasn't been indexed
+     */
+    private boolean isUnindexed(MessageHandle handle) {
+        return contains(handle) && !_keys.containsKey(handle.getMessageId());
+    }
+
+    /**
+     * Indexes a handle against each index.
+     *
+     * @param handle  the message handle
+     * @param message the message
+     */
+    private void addKeys(MessageHandle handle, MessageImpl message) {
+        Map keys = new HashMap();
+        Iterator iterator = _indexes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            Index index = (Index) entry.getValue();
+            String value = index.getSelector().getKeyValue(message);
+            if (value != null) {
+                Map values = index.getValues();
+                MessageQueue queue = (MessageQueue) values.get(value);
+                if (queue == null) {
+                    queue = new MessageQueue();
+                    values.put(value, queue);
+                }
+                queue.add(handle);
+                keys.put(entry.getKey(), value);
+            }
+        }
+        _keys.put(handle.getMessageId(), keys);
+    }
+
+    /**
+     * Removes a handle from the indexes.
+     *
+     * @param handle the message handle
+     */
+    private synchronized void removeKeys(MessageHandle handle) {
+        if (!_indexes.isEmpty()) {
+            _unindexed.remove(handle);
+            Map keys = (Map) _keys.remove(handle.getMessageId());
+            if (keys != null) {
+                Iterator iterator = keys.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry entry = (Map.Entry) iterator.next();
+                    Index index = (Index) _indexes.get(entry.getKey());
+                    Map values = index.getValues();
+                    MessageQueue queue = (MessageQueue) values.get(
+                            entry.getValue());
+                    if (queue != null) {
+                        queue.remove(handle);
+                        if (queue.size() == 0) {
+                            values.remove(entry.getValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all handles from the indexes, retaining the indexes themselves.
+     */
+    private void clearIndexes() {
+        Iterator iterator = _indexes.values().iterator();
+        while (iterator.hasNext()) {
+            ((Index) iterator.next()).getValues().clear();
+        }
+        _keys.clear();
+        _unindexed.clear();
+    }
+
+    /**
+     * Helper to add an array of handles to a list.
+     *
+     * @param list    the list to add to
+     * @param handles the handles to add
+     */
+    private void addAll(List list, MessageHandle[] handles) {
+        for (int i = 0; i < handles.length; ++i) {
+            list.add(handles[i]);
+        }
+    }
+
+    /**
+     * An index of handles for a key identifier.
+     */
+    private static class Index {
+
+        /**
+         * The selector used to determine the key values of messages.
+         */
+        private final Selector _selector;
+
+        /**
+         * The handles, keyed on key value. Each value is a
+         * {@link MessageQueue}.
+         */
+        private final Map _values = new HashMap();
+
+        /**
+         * The no. of registered selectors using the index.
+         */
+        private int _count = 1;
+
+
+        /**
+         * Construct a new <code>Index</code>.
+         *
+         * @param selector the selector used to determine the key values of
+         *                 messages
+         */
+        public Index(Selector selector) {
+            _selector = selector;
+        }
+
+        /**
+         * Returns the selector used to determine the key values of messages.
+         *
+         * @return the selector
+         */
+        public Selector getSelector() {
+            return _selector;
+        }
+
+        /**
+         * Returns the handles, keyed on key value.
+         *
+         * @return the map of key values to {@link MessageQueue} instances
+         */
+        public Map getValues() {
+            return _values;
+        }
+
+        /**
+         * Registers another selector against the index.
+         */
+        public void acquire() {
+            ++_count;
+        }
+
+        /**
+         * Deregisters a selector from the index.
+         *
+         * @return <code>true</code> if no selectors remain registered
+         */
+        public boolean release() {
+            return --_count == 0;
+        }
+    }
+
+}
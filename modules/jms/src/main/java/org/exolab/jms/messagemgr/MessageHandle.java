@@ -162,6 +162,17 @@ public interface MessageHandle {
      */
     boolean isPersistent();
 
+    /**
+     * Determines if neither the handle nor its message is persistent.
+     * <p/>
+     * Operations on a transient handle never access the database, so may be
+     * performed outside of a transaction.
+     *
+     * @return <code>true</code> if the handle is transient; otherwise
+     *         <code>false</code>
+     */
+    boolean isTransient();
+
     /**
      * Returns the message associated with this handle.
      *
@@ -1,5 +1,6 @@
 package org.exolab.jms.messagemgr;
 
+import java.util.List;
 import javax.jms.JMSException;
 
 import org.exolab.jms.client.JmsDestination;
@@ -30,6 +31,15 @@ public interface MessageManager {
      */
     void add(MessageImpl message) throws JMSException;
 
+    /**
+     * Add a list of messages, in a single transaction. If a transaction is
+     * already in progress, the messages are added within it.
+     *
+     * @param messages a list of <code>MessageImpl</code> instances
+     * @throws JMSException if the messages cannot be added
+     */
+    void add(List messages) throws JMSException;
+
     /**
      * Register a listener for a specific destination, to be notified when
      * messages for the destination arrive.
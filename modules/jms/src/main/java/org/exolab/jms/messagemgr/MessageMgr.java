@@ -43,9 +43,12 @@
 package org.exolab.jms.messagemgr;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
@@ -56,6 +59,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.exolab.jms.client.JmsDestination;
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.config.MessageManagerConfiguration;
 import org.exolab.jms.message.MessageImpl;
 import org.exolab.jms.persistence.DatabaseService;
 import org.exolab.jms.persistence.PersistenceException;
@@ -84,6 +89,12 @@ public class MessageMgr extends Service implements MessageManager {
      */
     private DestinationManager _destinations;
 
+    /**
+     * Writes persistent messages, committing concurrently published messages
+     * in a single transaction.
+     */
+    private final GroupCommitter _committer;
+
     /**
      * A map of <code>MessageHanagerEventListener instances, keyed on
      * <code>JmsDestination</ocde>.
@@ -110,13 +121,32 @@ public class MessageMgr extends Service implements MessageManager {
     /**
      * Construct a new <code>MessageMgr</code>.
      *
+     * @param config   the configuration
      * @param database the database service
      */
-    public MessageMgr(DatabaseService database) {
+    public MessageMgr(Configuration config, DatabaseService database) {
+        if (config == null) {
+            throw new IllegalArgumentException("Argument 'config' is null");
+        }
         if (database == null) {
             throw new IllegalArgumentException("Argument 'database' is null");
         }
         _database = database;
+
+        MessageManagerConfiguration msgConfig =
+                config.getMessageManagerConfiguration();
+        GroupCommitter.Writer writer = new GroupCommitter.Writer() {
+            public void write(List messages)
+                    throws JMSException, PersistenceException {
+                // listeners only make the messages available to consumers
+                // once the batch has committed
+                addPersistentMessages(messages);
+                notifyPersistentMessagesAdded(messages);
+            }
+        };
+        _committer = new GroupCommitter(
+                database, writer, msgConfig.getGroupCommitBatchSize(),
+                msgConfig.getGroupCommitMaxLinger());
     }
 
     /**
@@ -163,40 +193,81 @@ public class MessageMgr extends Service implements MessageManager {
     public void add(MessageImpl message) throws JMSException {
         prepare(message);
 
-        JmsDestination destination =
-                (JmsDestination) message.getJMSDestination();
-        final JmsDestination existing
-                = _destinations.getDestination(destination.getName());
-        final boolean persistent = (existing != null)
-                ? existing.getPersistent() : false;
+        // if the message's delivery mode is PERSISTENT, and the destination
+        // is also persistent, then then process it accordingly, otherwise use
+        // the non-persistent quality of service
+        if (isPersistent(message)) {
+            // persistent messages are committed in batches with those
+            // published concurrently
+            _committer.write(message);
+            return;
+        }
 
+        // non-persistent messages are never written to the database, so
+        // don't require a transaction. If the destination cache needs to be
+        // created, it loads any persistent messages in its own transaction
         try {
-            _database.begin(); // need a transaction for any database access
-
-            // if the message's delivery mode is PERSISTENT, and the destination
-            // is also persistent, then then process it accordingly, otherwise use
-            // the non-persistent quality of service
-            if (message.getJMSDeliveryMode() == DeliveryMode.PERSISTENT
-                    && persistent) {
-                addPersistentMessage(message);
-            } else {
-                addNonPersistentMessage(message);
-            }
-            _database.commit();
+            addNonPersistentMessage(message);
         } catch (Exception exception) {
-            final String msg = "Failed to process message";
-            _log.error(msg, exception);
-            try {
-                if (_database.isTransacted()) {
-                    _database.rollback();
+            fail(exception);
+        }
+    }
+
+    /**
+     * Add a list of messages, in a single transaction.
+     * <p/>
+     * The persistent messages, and their handles, are inserted using
+     * single JDBC batches.
+     * <p/>
+     * If a transaction is already in progress, the messages are added within
+     * it, and the caller is responsible for committing or rolling it back.
+     * Otherwise, a transaction is only begun if a message is persistent.
+     *
+     * @param messages a list of <code>MessageImpl</code> instances
+     * @throws JMSException if the messages cannot be added
+     */
+    public void add(List messages) throws JMSException {
+        List persistent = new ArrayList();
+        boolean[] flags = new boolean[messages.size()];
+        for (int i = 0; i < flags.length; ++i) {
+            MessageImpl message = (MessageImpl) messages.get(i);
+            prepare(message);
+            if (isPersistent(message)) {
+                persistent.add(message);
+                flags[i] = true;
+            }
+        }
+
+        boolean begin = !_database.isTransacted() && !persistent.isEmpty();
+        try {
+            if (begin) {
+                // need a transaction for any database access
+                _database.begin();
+            }
+            if (!persistent.isEmpty()) {
+                addPersistentMessages(persistent);
+            }
+
+            // notify listeners in the order the messages were sent
+            for (int i = 0; i < flags.length; ++i) {
+                MessageImpl message = (MessageImpl) messages.get(i);
+                if (flags[i]) {
+                    notifyPersistentMessageAdded(message);
+                } else {
+                    addNonPersistentMessage(message);
                 }
-            } catch (PersistenceException error) {
-                _log.error(error, error);
             }
-            if (exception instanceof JMSException) {
-                throw (JMSException) exception;
+            if (begin) {
+                _database.commit();
+            }
+        } catch (Exception exception) {
+            if (begin) {
+                rollback(exception);
+            } else {
+                // the transaction belongs to the caller, which is
+                // responsible for rolling it back
+                fail(exception);
             }
-            throw new JMSException(msg + ": " + exception.getMessage());
         }
     }
 
@@ -260,27 +331,111 @@ public class MessageMgr extends Service implements MessageManager {
     }
 
     /**
-     * Add a persistent message.
+     * Add a list of persistent messages to the database.
+     * <p/>
+     * This enables batching of message handle inserts for the current
+     * transaction, so that the handles created when listeners are notified
+     * are inserted in a single batch on commit.
      *
-     * @param message the message to add
-     * @throws JMSException if the message cannot be processed
+     * @param messages a list of <code>MessageImpl</code> instances
      * @throws PersistenceException for any persistence error
      */
-    private void addPersistentMessage(MessageImpl message)
+    private void addPersistentMessages(List messages)
+            throws PersistenceException {
+        Connection connection = _database.getConnection();
+        _database.enableBatching();
+
+        // add the messages to the database
+        _database.getAdapter().addMessages(connection, messages);
+    }
+
+    /**
+     * Notifies listeners that a list of persistent messages has arrived.
+     *
+     * @param messages a list of persistent <code>MessageImpl</code> instances
+     * @throws JMSException         if a listener fails to handle a message
+     * @throws PersistenceException for any persistence error
+     */
+    private void notifyPersistentMessagesAdded(List messages)
+            throws JMSException, PersistenceException {
+        Iterator iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            MessageImpl message = (MessageImpl) iterator.next();
+            notifyPersistentMessageAdded(message);
+        }
+    }
+
+    /**
+     * Notifies the listener for a persistent message's destination that the
+     * message has arrived.
+     *
+     * @param message the persistent message
+     * @throws JMSException         if the listener fails to handle the message
+     * @throws PersistenceException for any persistence error
+     */
+    private void notifyPersistentMessageAdded(MessageImpl message)
             throws JMSException, PersistenceException {
         JmsDestination destination =
                 (JmsDestination) message.getJMSDestination();
 
-        Connection connection = _database.getConnection();
-
-            // add the message to the database
-        _database.getAdapter().addMessage(connection, message);
-
         // notify the listener that a persistent message has arrived
         MessageManagerEventListener listener = getEventListener(destination);
         listener.persistentMessageAdded(destination, message);
     }
 
+    /**
+     * Determines if a message should be processed using the persistent
+     * quality of service. This is the case if the message's delivery mode is
+     * <code>PERSISTENT</code> and its destination is persistent.
+     *
+     * @param message the message
+     * @return <code>true</code> if the message is persistent
+     * @throws JMSException if the message's destination can't be determined
+     */
+    private boolean isPersistent(MessageImpl message) throws JMSException {
+        JmsDestination destination =
+                (JmsDestination) message.getJMSDestination();
+        final JmsDestination existing
+                = _destinations.getDestination(destination.getName());
+        final boolean persistent = (existing != null)
+                ? existing.getPersistent() : false;
+        return (message.getJMSDeliveryMode() == DeliveryMode.PERSISTENT
+                && persistent);
+    }
+
+    /**
+     * Rolls back the current transaction, if any, after a failure to
+     * process messages.
+     *
+     * @param exception the cause of the failure
+     * @throws JMSException the cause of the failure, converted if required
+     */
+    private void rollback(Exception exception) throws JMSException {
+        try {
+            if (_database.isTransacted()) {
+                _database.rollback();
+            }
+        } catch (PersistenceException error) {
+            _log.error(error, error);
+        }
+        fail(exception);
+    }
+
+    /**
+     * Logs a failure to process messages, and rethrows its cause.
+     *
+     * @param exception the cause of the failure
+     * @throws JMSException the cause of the failure, converted if required
+     */
+    private void fail(Exception exception) throws JMSException {
+        final String msg = "Failed to process message";
+        _log.error(msg, exception);
+        if (exception instanceof JMSException) {
+            throw (JMSException) exception;
+        }
+        throw new JMSException(msg + ": " + exception.getMessage());
+    }
+
     /**
      * Returns the event listener for the specified destination.
      * <p/>
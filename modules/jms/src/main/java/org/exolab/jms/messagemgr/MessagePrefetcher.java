@@ -0,0 +1,181 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.exolab.jms.persistence.DatabaseService;
+import org.exolab.jms.persistence.PersistenceAdapter;
+import org.exolab.jms.persistence.PersistenceException;
+import org.exolab.jms.scheduler.Scheduler;
+
+
+/**
+ * Reads persistent messages from the database ahead of their delivery.
+ * <p/>
+ * Messages are read in batches, in a single query, on a {@link Scheduler}
+ * thread. Once read, they are added to the {@link DefaultMessageCache} that
+ * requested them.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+class MessagePrefetcher {
+
+    /**
+     * The database service.
+     */
+    private final DatabaseService _database;
+
+    /**
+     * The scheduler, used to read messages in the background.
+     */
+    private final Scheduler _scheduler;
+
+    /**
+     * The maximum no. of messages to read in a single batch.
+     */
+    private final int _batchSize;
+
+    /**
+     * The logger.
+     */
+    private static final Log _log = LogFactory.getLog(MessagePrefetcher.class);
+
+
+    /**
+     * Construct a new <code>MessagePrefetcher</code>.
+     *
+     * @param database  the database service
+     * @param scheduler the scheduler
+     * @param batchSize the maximum no. of messages to read in a single batch
+     */
+    public MessagePrefetcher(DatabaseService database, Scheduler scheduler,
+                             int batchSize) {
+        if (database == null) {
+            throw new IllegalArgumentException("Argument 'database' is null");
+        }
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Argument 'scheduler' is null");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Argument 'batchSize' must be > 0");
+        }
+        _database = database;
+        _scheduler = scheduler;
+        _batchSize = batchSize;
+    }
+
+    /**
+     * Returns the maximum no. of messages to read in a single batch.
+     *
+     * @return the batch size
+     */
+    public int getBatchSize() {
+        return _batchSize;
+    }
+
+    /**
+     * Schedules a set of messages to be read, and added to a cache.
+     * <p/>
+     * The cache is notified via {@link DefaultMessageCache#prefetched} when
+     * the read completes, whether or not it was successful.
+     *
+     * @param cache the cache to add the messages to
+     * @param ids   the identifiers of the messages to read
+     */
+    public void prefetch(final DefaultMessageCache cache, final List ids) {
+        Runnable task = new Runnable() {
+            public void run() {
+                cache.prefetched(ids, read(ids));
+            }
+        };
+        try {
+            _scheduler.execute(task);
+        } catch (InterruptedException exception) {
+            _log.debug("Interrupted while scheduling prefetch", exception);
+            cache.prefetched(ids, null);
+        }
+    }
+
+    /**
+     * Reads a set of messages.
+     *
+     * @param ids the identifiers of the messages to read
+     * @return the messages, keyed on identifier, or <code>null</code> if they
+     *         couldn't be read
+     */
+    private Map read(List ids) {
+        Map result = null;
+        try {
+            _database.begin();
+            PersistenceAdapter adapter = _database.getAdapter();
+            result = adapter.getMessages(_database.getConnection(), ids);
+            _database.commit();
+            if (_log.isDebugEnabled()) {
+                _log.debug("Prefetched " + result.size() + " of "
+                           + ids.size() + " messages");
+            }
+        } catch (Exception exception) {
+            // messages will be read on demand
+            _log.warn("Failed to prefetch messages", exception);
+            try {
+                if (_database.isTransacted()) {
+                    _database.rollback();
+                }
+            } catch (PersistenceException error) {
+                _log.warn("Failed to rollback", error);
+            }
+            result = null;
+        }
+        return result;
+    }
+
+}
@@ -44,17 +44,39 @@
  */
 package org.exolab.jms.messagemgr;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
+
 
 /**
- * <code>MessageQueue</code> implements a synchronized queue of
+ * <code>MessageQueue</code> implements a thread safe queue of
  * {@link MessageHandle} instances.
  * .<p/>
  * Message handles are ordered using {@link MessageHandleComparator}
+ * <p/>
+ * As JMS defines only 10 priorities, handles are partitioned into a lane per
+ * priority. Handles are normally added in order of accepted time and
+ * sequence number, so each lane appends them to a linked FIFO, as per a two
+ * lock queue: adding locks only the tail of the FIFO, and removing locks
+ * only its head, so producers and consumers don't contend with each other.
+ * Handles added out of order (e.g. those loaded from the database, or
+ * returned for redelivery) are held in a sorted map guarded by the head
+ * lock, and merged with the FIFO on removal.
+ * <p/>
+ * Handles are also indexed on message identifier in a concurrent map, so
+ * that arbitrary handles can be located without locking. Handles removed
+ * from the middle of a FIFO are marked as removed, and unlinked when they
+ * reach its head, or when the FIFO is compacted.
+ * <p/>
+ * No operation holds the locks of more than one lane. Consequently,
+ * {@link #toArray} and {@link #size} are not atomic with respect to
+ * concurrent modifications.
  *
  * @version     $Revision: 1.3 $ $Date: 2005/12/20 20:31:59 $
  * @author      <a href="mailto:jima@comware.com.au">Jim Alateras</a>
@@ -63,15 +85,40 @@ import java.util.TreeMap;
 class MessageQueue {
 
     /**
-     * The message handle queue.
+     * The lanes, indexed on priority.
+     */
+    private final Lane[] _lanes = new Lane[PRIORITIES];
+
+    /**
+     * The nodes of the queued handles, keyed on message identifier.
+     */
+    private final Map _nodes = new ConcurrentHashMap();
+
+    /**
+     * The no. of JMS priorities.
+     */
+    private static final int PRIORITIES = 10;
+
+    /**
+     * The minimum no. of removed nodes in a FIFO before it is compacted.
      */
-    private final SortedMap _queue = new TreeMap(new MessageHandleComparator());
+    private static final int COMPACT_THRESHOLD = 64;
 
     /**
-     * The set of handles, keyed on message identifier.
+     * The handle comparator, shared by all lanes.
      */
-    private final Map _handles = new HashMap();
+    private static final MessageHandleComparator COMPARATOR
+            = new MessageHandleComparator();
+
 
+    /**
+     * Construct a new <code>MessageQueue</code>.
+     */
+    public MessageQueue() {
+        for (int i = 0; i < PRIORITIES; ++i) {
+            _lanes[i] = new Lane();
+        }
+    }
 
     /**
      * Add a message handle.
@@ -79,13 +126,8 @@ class MessageQueue {
      * @param handle the message handle
      * @return <code>true</code> if queue set did not already contain the handle
      */
-    public synchronized boolean add(MessageHandle handle) {
-        boolean added = false;
-        if (_queue.put(handle, handle) == null) {
-            _handles.put(handle.getMessageId(), handle);
-            added = true;
-        }
-        return added;
+    public boolean add(MessageHandle handle) {
+        return getLane(handle).add(handle);
     }
 
     /**
@@ -94,8 +136,8 @@ class MessageQueue {
      * @param handle the message handle
      * @return <code>true</code> if it exists
      */
-    public synchronized boolean contains(MessageHandle handle) {
-        return _queue.containsKey(handle);
+    public boolean contains(MessageHandle handle) {
+        return _nodes.containsKey(handle.getMessageId());
     }
 
     /**
@@ -103,8 +145,22 @@ class MessageQueue {
      *
      * @return a list of message handles
      */
-    public synchronized MessageHandle[] toArray() {
-        return (MessageHandle[]) _queue.keySet().toArray(new MessageHandle[0]);
+    public MessageHandle[] toArray() {
+        return first(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the first message handles in the queue, without removing them.
+     *
+     * @param max the maximum no. of handles to return
+     * @return up to <code>max</code> handles, in queue order
+     */
+    public MessageHandle[] first(int max) {
+        List result = new ArrayList();
+        for (int i = PRIORITIES - 1; i >= 0 && result.size() < max; --i) {
+            _lanes[i].addTo(result, max);
+        }
+        return (MessageHandle[]) result.toArray(new MessageHandle[0]);
     }
 
     /**
@@ -113,12 +169,8 @@ class MessageQueue {
      * @param handle the message handle to remove
      * @return the removed handle, or <code>null</code> if it wasn't present
      */
-    public synchronized MessageHandle remove(MessageHandle handle) {
-        MessageHandle result = (MessageHandle) _queue.remove(handle);
-        if (result != null) {
-            _handles.remove(handle.getMessageId());
-        }
-        return result;
+    public MessageHandle remove(MessageHandle handle) {
+        return remove(handle.getMessageId());
     }
 
     /**
@@ -127,20 +179,18 @@ class MessageQueue {
      * @param messageId the message identifier of the handle to remove
      * @return the removed handle, or <code>null</code> if it wasn't present
      */
-    public synchronized MessageHandle remove(String messageId) {
-        MessageHandle result = (MessageHandle) _handles.remove(messageId);
-        if (result != null) {
-            _queue.remove(result);
-        }
-        return result;
+    public MessageHandle remove(String messageId) {
+        Node node = (Node) _nodes.get(messageId);
+        return (node != null) ? node.getLane().remove(node) : null;
     }
 
     /**
      * Removes all the elements from the queue.
      */
-    public synchronized void clear() {
-        _queue.clear();
-        _handles.clear();
+    public void clear() {
+        for (int i = 0; i < PRIORITIES; ++i) {
+            _lanes[i].clear();
+        }
     }
 
     /**
@@ -148,8 +198,12 @@ class MessageQueue {
      *
      * @return the number message handles in the queue
      */
-    public synchronized int size() {
-        return _queue.size();
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < PRIORITIES; ++i) {
+            size += _lanes[i].size();
+        }
+        return size;
     }
 
     /**
@@ -158,14 +212,407 @@ class MessageQueue {
      * @return the first message handle in the queue, or <code>null</code>,
      * if the queue is empty
      */
-    public synchronized MessageHandle removeFirst() {
+    public MessageHandle removeFirst() {
         MessageHandle first = null;
-        if (_queue.size() > 0) {
-            first = (MessageHandle) _queue.firstKey();
-            _queue.remove(first);
-            _handles.remove(first.getMessageId());
+        for (int i = PRIORITIES - 1; i >= 0 && first == null; --i) {
+            first = _lanes[i].removeFirst();
         }
         return first;
     }
 
+    /**
+     * Returns the lane for a message handle.
+     *
+     * @param handle the message handle
+     * @return the lane corresponding to the handle's priority
+     */
+    private Lane getLane(MessageHandle handle) {
+        int priority = handle.getPriority();
+        if (priority < 0) {
+            priority = 0;
+        } else if (priority >= PRIORITIES) {
+            priority = PRIORITIES - 1;
+        }
+        return _lanes[priority];
+    }
+
+    /**
+     * A queue of message handles of the same priority.
+     */
+    private final class Lane {
+
+        /**
+         * The lock guarding the head of the FIFO, and the sorted handles.
+         */
+        private final Object _takeLock = new Object();
+
+        /**
+         * The lock guarding the tail of the FIFO.
+         */
+        private final Object _putLock = new Object();
+
+        /**
+         * The sentinel node at the head of the FIFO. Guarded by
+         * <code>_takeLock</code>.
+         */
+        private Node _head = new Node(null, this);
+
+        /**
+         * The last node of the FIFO. Guarded by <code>_putLock</code>.
+         */
+        private Node _last = _head;
+
+        /**
+         * The accepted time of the last handle appended to the FIFO. Guarded
+         * by <code>_putLock</code>.
+         */
+        private long _lastTime = Long.MIN_VALUE;
+
+        /**
+         * The sequence number of the last handle appended to the FIFO.
+         * Guarded by <code>_putLock</code>.
+         */
+        private long _lastSequence = Long.MIN_VALUE;
+
+        /**
+         * The handles added out of order, mapped to their nodes. Lazily
+         * created. Guarded by <code>_takeLock</code>.
+         */
+        private SortedMap _sorted;
+
+        /**
+         * The no. of nodes appended to the FIFO. Updated with
+         * <code>_putLock</code> held.
+         */
+        private volatile int _appended = 0;
+
+        /**
+         * The no. of nodes removed from the FIFO. Updated with
+         * <code>_takeLock</code> held.
+         */
+        private volatile int _taken = 0;
+
+        /**
+         * The no. of sorted handles. Updated with <code>_takeLock</code>
+         * held.
+         */
+        private volatile int _sortedSize = 0;
+
+        /**
+         * The no. of removed nodes still linked in the FIFO. Guarded by
+         * <code>_takeLock</code>.
+         */
+        private int _garbage = 0;
+
+
+        /**
+         * Add a message handle.
+         *
+         * @param handle the message handle
+         * @return <code>true</code> if the queue did not already contain the
+         *         handle
+         */
+        public boolean add(MessageHandle handle) {
+            String messageId = handle.getMessageId();
+            Node node = new Node(handle, this);
+            synchronized (_putLock) {
+                // the last appended handle only ever increases, so a handle
+                // that is in order here can't be in the sorted handles
+                long time = handle.getAcceptedTime();
+                long sequence = handle.getSequenceNumber();
+                if (time > _lastTime
+                        || (time == _lastTime && sequence >= _lastSequence)) {
+                    if (_nodes.containsKey(messageId)) {
+                        return false;
+                    }
+                    _nodes.put(messageId, node);
+                    _last.setNext(node);
+                    _last = node;
+                    _lastTime = time;
+                    _lastSequence = sequence;
+                    ++_appended;
+                    return true;
+                }
+            }
+            synchronized (_takeLock) {
+                if (_sorted == null) {
+                    _sorted = new TreeMap(COMPARATOR);
+                }
+                if (_nodes.containsKey(messageId)
+                        || _sorted.containsKey(handle)) {
+                    return false;
+                }
+                _nodes.put(messageId, node);
+                node.setSorted();
+                _sorted.put(handle, node);
+                ++_sortedSize;
+                return true;
+            }
+        }
+
+        /**
+         * Adds the first handles in the lane to a list, in order, until the
+         * list reaches a maximum size.
+         *
+         * @param list the list to add to
+         * @param max  the maximum size of the list
+         */
+        public void addTo(List list, int max) {
+            if (size() == 0) {
+                return;
+            }
+            synchronized (_takeLock) {
+                Iterator sorted = (_sortedSize != 0)
+                        ? _sorted.keySet().iterator() : null;
+                MessageHandle next = next(sorted);
+                Node node = next(_head);
+                while (list.size() < max && (next != null || node != null)) {
+                    if (node == null || (next != null
+                            && COMPARATOR.compare(next,
+                                                  node.getHandle()) <= 0)) {
+                        list.add(next);
+                        next = next(sorted);
+                    } else {
+                        list.add(node.getHandle());
+                        node = next(node);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes a message handle.
+         *
+         * @param node the node of the handle to remove
+         * @return the removed handle, or <code>null</code> if it has
+         *         already been removed
+         */
+        public MessageHandle remove(Node node) {
+            synchronized (_takeLock) {
+                MessageHandle handle = node.getHandle();
+                if (node.isRemoved()) {
+                    return null;
+                }
+                if (node.isSorted()) {
+                    _sorted.remove(handle);
+                    --_sortedSize;
+                } else {
+                    ++_taken;
+                    ++_garbage;
+                }
+                node.remove();
+                _nodes.remove(handle.getMessageId());
+                if (_garbage > COMPACT_THRESHOLD && _garbage > size()) {
+                    compact();
+                }
+                return handle;
+            }
+        }
+
+        /**
+         * Removes and returns the first message handle.
+         *
+         * @return the first message handle, or <code>null</code> if the
+         *         lane is empty
+         */
+        public MessageHandle removeFirst() {
+            if (size() == 0) {
+                return null;
+            }
+            synchronized (_takeLock) {
+                Node first = next(_head);
+                if (_sortedSize != 0) {
+                    MessageHandle sorted = (MessageHandle) _sorted.firstKey();
+                    if (first == null || COMPARATOR.compare(
+                            sorted, first.getHandle()) <= 0) {
+                        return remove((Node) _sorted.get(sorted));
+                    }
+                }
+                if (first == null) {
+                    return null;
+                }
+                // the first node becomes the sentinel
+                MessageHandle handle = first.getHandle();
+                first.remove();
+                _head = first;
+                ++_taken;
+                _nodes.remove(handle.getMessageId());
+                return handle;
+            }
+        }
+
+        /**
+         * Removes all handles.
+         */
+        public void clear() {
+            synchronized (_takeLock) {
+                synchronized (_putLock) {
+                    for (Node node = next(_head); node != null;
+                         node = next(node)) {
+                        _nodes.remove(node.getHandle().getMessageId());
+                    }
+                    if (_sorted != null) {
+                        Iterator iterator = _sorted.keySet().iterator();
+                        while (iterator.hasNext()) {
+                            MessageHandle handle
+                                    = (MessageHandle) iterator.next();
+                            _nodes.remove(handle.getMessageId());
+                        }
+                    }
+                    _head = new Node(null, this);
+                    _last = _head;
+                    _lastTime = Long.MIN_VALUE;
+                    _lastSequence = Long.MIN_VALUE;
+                    _sorted = null;
+                    _appended = 0;
+                    _taken = 0;
+                    _sortedSize = 0;
+                    _garbage = 0;
+                }
+            }
+        }
+
+        /**
+         * Returns the number of message handles in the lane.
+         *
+         * @return the number message handles in the lane
+         */
+        public int size() {
+            return _appended - _taken + _sortedSize;
+        }
+
+        /**
+         * Returns the next node in the FIFO that hasn't been removed,
+         * unlinking any removed nodes at the head of the FIFO.
+         * The caller must hold <code>_takeLock</code>.
+         *
+         * @param node the node to start from
+         * @return the next node, or <code>null</code> if there is none
+         */
+        private Node next(Node node) {
+            Node next = node.getNext();
+            while (next != null && next.isRemoved()) {
+                if (node == _head) {
+                    _head = next;
+                    --_garbage;
+                }
+                node = next;
+                next = node.getNext();
+            }
+            return next;
+        }
+
+        /**
+         * Helper to return the next handle from an iterator.
+         *
+         * @param iterator the iterator. May be <code>null</code>
+         * @return the next handle, or <code>null</code> if there is none
+         */
+        private MessageHandle next(Iterator iterator) {
+            return (iterator != null && iterator.hasNext())
+                    ? (MessageHandle) iterator.next() : null;
+        }
+
+        /**
+         * Unlinks the removed nodes from the FIFO.
+         * The caller must hold <code>_takeLock</code>.
+         */
+        private void compact() {
+            synchronized (_putLock) {
+                Node previous = _head;
+                Node node = _head.getNext();
+                while (node != null) {
+                    if (node.isRemoved()) {
+                        previous.setNext(node.getNext());
+                        if (node == _last) {
+                            _last = previous;
+                        }
+                    } else {
+                        previous = node;
+                    }
+                    node = node.getNext();
+                }
+                _garbage = 0;
+            }
+        }
+    }
+
+    /**
+     * A queued message handle.
+     */
+    private static final class Node {
+
+        /**
+         * The message handle. <code>null</code> once removed, and for the
+         * initial sentinel.
+         */
+        private MessageHandle _handle;
+
+        /**
+         * The lane that the node belongs to.
+         */
+        private final Lane _lane;
+
+        /**
+         * The next node in the FIFO.
+         */
+        private volatile Node _next;
+
+        /**
+         * Determines if the node is held in the lane's sorted handles,
+         * rather than its FIFO.
+         */
+        private boolean _sorted = false;
+
+        /**
+         * Determines if the handle has been removed.
+         */
+        private boolean _removed = false;
+
+
+        /**
+         * Construct a new <code>Node</code>.
+         *
+         * @param handle the message handle
+         * @param lane   the lane that the node belongs to
+         */
+        public Node(MessageHandle handle, Lane lane) {
+            _handle = handle;
+            _lane = lane;
+        }
+
+        public MessageHandle getHandle() {
+            return _handle;
+        }
+
+        public Lane getLane() {
+            return _lane;
+        }
+
+        public Node getNext() {
+            return _next;
+        }
+
+        public void setNext(Node next) {
+            _next = next;
+        }
+
+        public boolean isSorted() {
+            return _sorted;
+        }
+
+        public void setSorted() {
+            _sorted = true;
+        }
+
+        public boolean isRemoved() {
+            return _removed;
+        }
+
+        public void remove() {
+            _removed = true;
+            _handle = null;
+        }
+    }
+
 }
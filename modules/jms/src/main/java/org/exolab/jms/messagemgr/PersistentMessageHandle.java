@@ -151,8 +151,7 @@ public class PersistentMessageHandle extends AbstractMessageHandle {
     public void add() throws JMSException {
         try {
             DatabaseService service = DatabaseService.getInstance();
-            Connection connection = service.getConnection();
-            service.getAdapter().addMessageHandle(connection, this);
+            service.addMessageHandle(this);
         } catch (PersistenceException exception) {
             final String msg = "Failed to make handle persistent";
             _log.error(msg, exception);
@@ -207,8 +206,7 @@ public class PersistentMessageHandle extends AbstractMessageHandle {
     public void destroy() throws JMSException {
         try {
             DatabaseService service = DatabaseService.getInstance();
-            Connection connection = service.getConnection();
-            service.getAdapter().removeMessageHandle(connection, this);
+            service.removeMessageHandle(this);
         } catch (PersistenceException exception) {
             final String msg = "Failed to destroy persistent handle";
             _log.error(msg, exception);
@@ -75,9 +75,10 @@ import org.exolab.jms.server.ServerConnectionManager;
 public class QueueDestinationCache extends AbstractDestinationCache {
 
     /**
-     * Maintains a list of {@link QueueConsumerMessageHandle} instances.
+     * Maintains a list of {@link QueueConsumerMessageHandle} instances,
+     * indexed on the keys of the selectors used to retrieve them.
      */
-    private final MessageQueue _handles = new MessageQueue();
+    private final IndexedMessageQueue _handles = new IndexedMessageQueue();
 
     /**
      * Maintains a list of queue browsers for this cache.
@@ -116,14 +117,16 @@ public class QueueDestinationCache extends AbstractDestinationCache {
      * @param database    the database service
      * @param leases      the lease manager
      * @param connections the connection manager
+     * @param cache       the message cache
      * @throws JMSException if the cache can't be initialised
      */
     public QueueDestinationCache(JmsQueue queue,
                                  DatabaseService database,
                                  LeaseManager leases,
-                                 ServerConnectionManager connections)
+                                 ServerConnectionManager connections,
+                                 DefaultMessageCache cache)
             throws JMSException {
-        super(queue, database, leases);
+        super(queue, database, leases, cache);
         if (connections == null) {
             throw new IllegalArgumentException(
                     "Argument 'connections' is null");
@@ -135,6 +138,42 @@ public class QueueDestinationCache extends AbstractDestinationCache {
         }
     }
 
+    /**
+     * Register a consumer with this cache. The consumer's selector is
+     * registered with the handle queue, so that handles are indexed on its
+     * key.
+     *
+     * @param consumer the message consumer for this destination
+     * @return <code>true</code> if registered; otherwise <code>false</code>
+     */
+    public boolean addConsumer(ConsumerEndpoint consumer) {
+        boolean added;
+        synchronized (_handles) {
+            added = super.addConsumer(consumer);
+            if (added && consumer.getSelector() != null) {
+                _handles.addSelector(consumer.getSelector());
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Remove the consumer for the list of registered consumers, deregistering
+     * its selector.
+     *
+     * @param consumer the consumer to remove
+     */
+    public void removeConsumer(ConsumerEndpoint consumer) {
+        synchronized (_handles) {
+            if (getConsumerEndpoint(consumer.getId()) != null) {
+                super.removeConsumer(consumer);
+                if (consumer.getSelector() != null) {
+                    _handles.removeSelector(consumer.getSelector());
+                }
+            }
+        }
+    }
+
     /**
      * A Queue can also hav a queue listener, which simply gets informed of all
      * messages that arrive at this destination.
@@ -189,6 +228,10 @@ public class QueueDestinationCache extends AbstractDestinationCache {
 
     /**
      * Invoked when the {@link MessageMgr} receives a persistent message.
+     * <p/>
+     * The message's handle is added in the current transaction, but the
+     * message is only made available to consumers once the transaction has
+     * committed.
      *
      * @param destination the message's destination
      * @param message     the message
@@ -196,23 +239,24 @@ public class QueueDestinationCache extends AbstractDestinationCache {
      * @throws PersistenceException if there is a persistence related problem
      */
     public void persistentMessageAdded(JmsDestination destination,
-                                       MessageImpl message)
+                                       final MessageImpl message)
             throws JMSException, PersistenceException {
-        MessageRef reference = new CachedMessageRef(message, true,
+        final MessageRef reference = new CachedMessageRef(message, true,
                 getMessageCache());
         MessageHandle shared = new SharedMessageHandle(this, reference,
                 message);
-        MessageHandle handle = new QueueConsumerMessageHandle(shared);
+        final MessageHandle handle = new QueueConsumerMessageHandle(shared);
         handle.add();
 
-        addMessage(reference, message, handle);
-
-        // if there are any registered consumers, notify one of them that
-        // a message has arrived
-        ConsumerEndpoint consumer = getConsumerForMessage(message);
-        if (consumer != null) {
-            consumer.persistentMessageAdded(handle, message);
-        }
+        DatabaseService.getInstance().afterCommit(new Runnable() {
+            public void run() {
+                try {
+                    publish(reference, message, handle);
+                } catch (Exception exception) {
+                    _log.error(exception, exception);
+                }
+            }
+        });
     }
 
     /**
@@ -233,16 +277,30 @@ public class QueueDestinationCache extends AbstractDestinationCache {
             // if no selector has been specified then remove and return
             // the first message
             handle = (QueueConsumerMessageHandle) _handles.removeFirst();
+
+            // read ahead the messages most likely to be delivered next
+            int size = getPrefetchSize();
+            if (handle != null && size != 0) {
+                prefetch(_handles.first(size));
+            }
         } else {
-            // for non null selector we must find the first matching
-            MessageHandle[] handles = _handles.toArray();
+            // for non null selector we must find the first matching.
+            // Only those handles with a key value matching that of the
+            // selector need be evaluated
+            // selectors are evaluated against views of the messages, to
+            // avoid decoding the bodies of persistent messages that
+            // aren't selected
+            MessageHandle[] handles = _handles.getCandidates(selector);
             for (int i = 0; i < handles.length && !cancel.get(); ++i) {
                 MessageHandle hdl = handles[i];
-                MessageImpl message = hdl.getMessage();
-                if (message != null && selector.selects(message)) {
-                    handle = (QueueConsumerMessageHandle) hdl;
-                    _handles.remove(handle);
-                    break;
+                MessageImpl message = getMessageView(hdl);
+                if (message != null) {
+                    _handles.index(hdl, message);
+                    if (selector.selects(message)
+                            && _handles.remove(hdl) != null) {
+                        handle = (QueueConsumerMessageHandle) hdl;
+                        break;
+                    }
                 }
             }
         }
@@ -280,6 +338,8 @@ public class QueueDestinationCache extends AbstractDestinationCache {
         try {
             MessageImpl message = handle.getMessage();
             if (message != null) {
+                _handles.index(handle, message);
+
                 // if there are any registered consumers, notify one of them
                 // that a message has arrived
                 ConsumerEndpoint consumer = getConsumerForMessage(message);
@@ -358,6 +418,10 @@ public class QueueDestinationCache extends AbstractDestinationCache {
      * Initialise the cache. This removes all the expired messages, and then
      * retrieves all unacked messages from the database and stores them
      * locally.
+     * <p/>
+     * If no transaction is in progress (e.g. the cache is being created for
+     * a non-persistent message), the messages are retrieved in a new
+     * transaction.
      *
      * @throws JMSException if the cache can't be initialised
      */
@@ -365,18 +429,24 @@ public class QueueDestinationCache extends AbstractDestinationCache {
         JmsDestination queue = getDestination();
 
         List handles;
-        DatabaseService service = null;
+        DatabaseService service = getDatabaseService();
+        boolean begin = false;
         try {
-            service = DatabaseService.getInstance();
+            if (!service.isTransacted()) {
+                service.begin();
+                begin = true;
+            }
             Connection connection = service.getConnection();
             service.getAdapter().removeExpiredMessageHandles(connection,
                     queue.getName());
-            handles = service.getAdapter().getMessageHandles(connection, queue,
-                    queue.getName());
+            handles = service.getMessageHandles(queue, queue.getName());
+            if (begin) {
+                service.commit();
+            }
         } catch (PersistenceException exception) {
             _log.error(exception, exception);
             try {
-                if (service != null) {
+                if (service.isTransacted()) {
                     service.rollback();
                 }
             } catch (PersistenceException error) {
@@ -414,7 +484,7 @@ public class QueueDestinationCache extends AbstractDestinationCache {
     protected void addMessage(MessageRef reference, MessageImpl message,
                               MessageHandle handle) throws JMSException {
         addMessage(reference, message);
-        _handles.add(handle);
+        _handles.add(handle, message);
 
         // notify any queue listeners that a message has arrived
         notifyQueueListeners(handle, message);
@@ -424,6 +494,28 @@ public class QueueDestinationCache extends AbstractDestinationCache {
     }
 
 
+    /**
+     * Makes a committed persistent message available to consumers.
+     *
+     * @param reference the message reference
+     * @param message   the message
+     * @param handle    the message handle
+     * @throws JMSException         for any JMS error
+     * @throws PersistenceException for any persistence error
+     */
+    private void publish(MessageRef reference, MessageImpl message,
+                         MessageHandle handle)
+            throws JMSException, PersistenceException {
+        addMessage(reference, message, handle);
+
+        // if there are any registered consumers, notify one of them that
+        // a message has arrived
+        ConsumerEndpoint consumer = getConsumerForMessage(message);
+        if (consumer != null) {
+            consumer.persistentMessageAdded(handle, message);
+        }
+    }
+
     /**
      * Notify queue browsers that a message has arrived.
      *
@@ -471,6 +563,27 @@ public class QueueDestinationCache extends AbstractDestinationCache {
         super.messageExpired(reference);
     }
 
+    /**
+     * Returns a view of the message associated with a handle, suitable for
+     * evaluating selectors.
+     *
+     * @param handle the message handle
+     * @return a view of the message, or <code>null</code> if the message
+     *         no longer exists
+     * @throws JMSException for any error
+     * @see DefaultMessageCache#getMessageView
+     */
+    private MessageImpl getMessageView(MessageHandle handle)
+            throws JMSException {
+        MessageRef reference = handle.getMessageRef();
+        if (reference == null) {
+            throw new JMSException("Cannot get message with identifier="
+                                   + handle.getMessageId()
+                                   + ": MessageRef null");
+        }
+        return getMessageCache().getMessageView(reference);
+    }
+
     /**
      * Return the next QueueConsumerEndpoint that can consume the specified
      * message or null if there is none.
@@ -46,10 +46,13 @@ package org.exolab.jms.messagemgr;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.Vector;
 import javax.jms.JMSException;
@@ -57,6 +60,7 @@ import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -145,6 +149,11 @@ public class ResourceManager extends Service {
      */
     private final MessageManager _messages;
 
+    /**
+     * The database service.
+     */
+    private final DatabaseService _database;
+
     /**
      * The destination manager.
      */
@@ -162,6 +171,13 @@ public class ResourceManager extends Service {
      */
     private TreeSet _logs = new TreeSet(new TranLogFileComparator());
 
+    /**
+     * Transaction logs which are no longer in use, and whose files may be
+     * recycled as new transaction logs. Access to this is synchronized on
+     * <code>_logs</code>
+     */
+    private LinkedList _freeLogs = new LinkedList();
+
     /**
      * Maintain a mapping between the TRID (transaction id and the log file it
      * is associated with.
@@ -182,9 +198,15 @@ public class ResourceManager extends Service {
     /**
      * This maintains a cache of all open transactions and the corresponding
      * data. The key is the transaction identifier and the object is a
-     * LinkedList transaction entries, which includes both state and data
+     * {@link Branch}, holding the transaction entries, which includes both
+     * state and data.
+     * <p/>
+     * Operations on a transaction synchronize on its branch only, so that
+     * unrelated transactions proceed concurrently. Log file rollover and
+     * garbage collection synchronize on <code>_cacheLock</code> and
+     * <code>_logs</code>, in that order.
      */
-    private HashMap _activeTransactions = new HashMap();
+    private final Map _activeTransactions = new ConcurrentHashMap();
 
     /**
      * The directory where the log files are stored. This can be set by the
@@ -202,7 +224,7 @@ public class ResourceManager extends Service {
      * This will either be configured or passed in with the transaction context
      * The value is specified in seconds.
      */
-    private int _txExpiryTime = 120;
+    private volatile int _txExpiryTime = 120;
 
     /**
      * This attribute caches the garbage collection mode for the resouce
@@ -229,6 +251,11 @@ public class ResourceManager extends Service {
      */
     private final static String RM_LOGFILE_PREFIX = "ojmsrm";
 
+    /**
+     * The maximum no. of transaction logs to keep for recycling
+     */
+    private final static int MAX_FREE_LOGS = 2;
+
     /**
      * The logger
      */
@@ -255,6 +282,7 @@ public class ResourceManager extends Service {
 
         _messages = messages;
         _destinations = destinations;
+        _database = database;
         /*
 
         final String dir = "./logs";
@@ -295,7 +323,7 @@ public class ResourceManager extends Service {
      * @throws JMSException             - if there is an issue with prep'ing the
      *                                  message
      */
-    public synchronized void logPublishedMessage(Xid xid, MessageImpl message)
+    public void logPublishedMessage(Xid xid, MessageImpl message)
             throws TransactionLogException, ResourceManagerException,
             JMSException {
         _messages.prepare(message);
@@ -316,8 +344,7 @@ public class ResourceManager extends Service {
      * @throws TransactionLogException  - error adding the entry
      * @throws ResourceManagerException - error getting the transaction log
      */
-    public synchronized void logReceivedMessage(Xid xid, long id,
-                                                MessageHandle handle)
+    public void logReceivedMessage(Xid xid, long id, MessageHandle handle)
             throws TransactionLogException, ResourceManagerException {
         logTransactionData(new ExternalXid(xid), _rid,
                            createReceivedMessageWrapper(id, handle));
@@ -332,62 +359,52 @@ public class ResourceManager extends Service {
      * @throws TransactionLogException  - error adding the entry
      * @throws ResourceManagerException - error getting the trnasaction log
      */
-    public synchronized void logTransactionState(Xid xid,
-                                                 TransactionState state)
+    public void logTransactionState(Xid xid, TransactionState state)
             throws TransactionLogException, ResourceManagerException {
         ExternalXid txid = new ExternalXid(xid);
         switch (state.getOrd()) {
             case TransactionState.OPENED_ORD:
-                {
-                    TransactionLog log = getCurrentTransactionLog();
-                    addTridLogEntry(txid, log);
-                    log.logTransactionState(txid, _txExpiryTime * 1000, _rid,
-                                            state);
-
-                    // cache the transaction state
-                    _activeTransactions.put(txid, new LinkedList());
+                // the transaction isn't logged until it is prepared
+                synchronized (_activeTransactions) {
+                    if (_activeTransactions.containsKey(txid)) {
+                        throw new ResourceManagerException(
+                                "Transaction " + txid + " is already active.");
+                    }
+                    _activeTransactions.put(txid, new Branch());
                 }
                 break;
 
             case TransactionState.PREPARED_ORD:
-                // cache the transaction state
-                LinkedList list = (LinkedList) _activeTransactions.get(txid);
-                if (list != null) {
-                    list.add(state);
-                } else {
-                    throw new ResourceManagerException("Trasaction " + txid +
-                                                       " is not active.");
+                {
+                    // log the transaction, and cache the transaction state
+                    Branch branch = getBranch(txid);
+                    synchronized (branch) {
+                        checkOpen(txid, branch);
+                        if (!branch._logged) {
+                            journal(txid, branch);
+                        }
+                        getTransactionLog(txid).logTransactionState(
+                                txid, _txExpiryTime * 1000, _rid, state);
+                        branch._records.add(state);
+                    }
                 }
                 break;
 
             case TransactionState.CLOSED_ORD:
                 {
-                    TransactionLog log = getTransactionLog(txid);
-                    log.logTransactionState(txid, _txExpiryTime * 1000, _rid,
-                                            state);
-                    removeTridLogEntry(txid, log);
-
-                    // check whether this log has anymore open transactions
-                    synchronized (_cacheLock) {
-                        if ((_logToTridCache.get(log) == null) &&
-                                (!isCurrentTransactionLog(log))) {
-                            log.close();
-
-                            // now check if gc mode is GC_SYNCHRONOUS. If it is
-                            // remove the log file
-                            if (_gcMode == GC_SYNCHRONOUS) {
-                                try {
-                                    log.destroy();
-                                } catch (TransactionLogException exception) {
-                                    exception.printStackTrace();
+                    Branch active = (Branch) _activeTransactions.get(txid);
+                    if (active != null) {
+                        synchronized (active) {
+                            if (!active._closed) {
+                                if (active._logged) {
+                                    closeTransaction(txid, state);
                                 }
+                                close(txid, active);
                             }
                         }
+                    } else {
+                        closeTransaction(txid, state);
                     }
-
-                    // we also want to remove this entry from the list
-                    // of active transactions
-                    _activeTransactions.remove(txid);
                 }
                 break;
 
@@ -397,6 +414,96 @@ public class ResourceManager extends Service {
         }
     }
 
+    /**
+     * Log a transaction, and the entries cached for it. Subsequent entries
+     * are logged as they are added.
+     *
+     * @param txid   - the transaction identifier
+     * @param branch - the transaction branch
+     * @throws TransactionLogException  - error adding the entry
+     * @throws ResourceManagerException - error getting the trnasaction log
+     */
+    private void journal(ExternalXid txid, Branch branch)
+            throws TransactionLogException, ResourceManagerException {
+        TransactionLog log;
+        synchronized (_cacheLock) {
+            log = getCurrentTransactionLog();
+            addTridLogEntry(txid, log);
+        }
+        long expiry = _txExpiryTime * 1000;
+        try {
+            log.logTransactionState(txid, expiry, _rid,
+                                    TransactionState.OPENED);
+            Iterator iterator = branch._records.iterator();
+            while (iterator.hasNext()) {
+                Object record = iterator.next();
+                if (record instanceof TransactionState) {
+                    log.logTransactionState(txid, expiry, _rid,
+                                            (TransactionState) record);
+                } else {
+                    log.logTransactionData(txid, expiry, _rid, record);
+                }
+            }
+        } catch (TransactionLogException exception) {
+            // the branch isn't logged, so its closure won't be. Remove the
+            // entry now, so that the log can still be garbage collected
+            removeTridLogEntry(txid, log);
+            try {
+                closeIfUnused(log);
+            } catch (TransactionLogException error) {
+                _log.warn("Failed to close " + log.getName(), error);
+            }
+            throw exception;
+        }
+        branch._logged = true;
+    }
+
+    /**
+     * Log the closure of a transaction, releasing its transaction log if it
+     * has no other open transactions.
+     *
+     * @param txid  - the transaction identifier
+     * @param state - the closed transaction state
+     * @throws TransactionLogException  - error adding the entry
+     * @throws ResourceManagerException - error getting the trnasaction log
+     */
+    private void closeTransaction(ExternalXid txid, TransactionState state)
+            throws TransactionLogException, ResourceManagerException {
+        TransactionLog log = getTransactionLog(txid);
+        log.logTransactionState(txid, _txExpiryTime * 1000, _rid,
+                                state);
+        removeTridLogEntry(txid, log);
+        closeIfUnused(log);
+    }
+
+    /**
+     * Close a transaction log if it has no open transactions and is not the
+     * current log, releasing it if the gc mode is synchronous.
+     *
+     * @param log - the transaction log
+     * @throws TransactionLogException - error closing the log
+     */
+    private void closeIfUnused(TransactionLog log)
+            throws TransactionLogException {
+        // check whether this log has anymore open transactions
+        synchronized (_cacheLock) {
+            if ((_logToTridCache.get(log) == null) &&
+                    (!isCurrentTransactionLog(log))) {
+                log.close();
+
+                // now check if gc mode is GC_SYNCHRONOUS. If it is
+                // release the log file
+                if (_gcMode == GC_SYNCHRONOUS) {
+                    try {
+                        releaseTransactionLog(log);
+                    } catch (TransactionLogException exception) {
+                        exception.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Add an {@link DataTransactionLogEntry} using the specified txid, rid and
      * data
@@ -406,21 +513,65 @@ public class ResourceManager extends Service {
      * @throws TransactionLogException  - error adding the entry
      * @throws ResourceManagerException - error getting the trnasaction log
      */
-    synchronized void logTransactionData(ExternalXid txid, String rid,
-                                         Object data)
+    void logTransactionData(ExternalXid txid, String rid, Object data)
             throws ResourceManagerException, TransactionLogException {
-        getTransactionLog(txid).logTransactionData(txid, _txExpiryTime * 1000,
-                                                   rid, data);
+        Branch branch = getBranch(txid);
+        synchronized (branch) {
+            checkOpen(txid, branch);
+            if (branch._logged) {
+                getTransactionLog(txid).logTransactionData(
+                        txid, _txExpiryTime * 1000, rid, data);
+            }
 
-        // we also want to add this to the transaction data for that
-        // txid
-        LinkedList list = (LinkedList) _activeTransactions.get(txid);
-        if (list != null) {
-            list.add(data);
-        } else {
+            // we also want to add this to the transaction data for that
+            // txid. If the transaction hasn't been prepared, it is only
+            // logged if it is
+            branch._records.add(data);
+        }
+    }
+
+    /**
+     * Returns the branch of an active transaction.
+     *
+     * @param txid - the transaction identifier
+     * @return the branch
+     * @throws ResourceManagerException if the transaction is not active
+     */
+    private Branch getBranch(ExternalXid txid)
+            throws ResourceManagerException {
+        Branch branch = (Branch) _activeTransactions.get(txid);
+        if (branch == null) {
             throw new ResourceManagerException("Trasaction " + txid +
                                                " is not active.");
         }
+        return branch;
+    }
+
+    /**
+     * Verifies that a branch hasn't been closed while waiting to lock it.
+     *
+     * @param txid   - the transaction identifier
+     * @param branch - the branch
+     * @throws ResourceManagerException if the branch is closed
+     */
+    private void checkOpen(ExternalXid txid, Branch branch)
+            throws ResourceManagerException {
+        if (branch._closed) {
+            throw new ResourceManagerException("Trasaction " + txid +
+                                               " is not active.");
+        }
+    }
+
+    /**
+     * Marks a branch as closed, and removes it from the list of active
+     * transactions.
+     *
+     * @param txid   - the transaction identifier
+     * @param branch - the branch
+     */
+    private void close(ExternalXid txid, Branch branch) {
+        branch._closed = true;
+        _activeTransactions.remove(txid);
     }
 
     /**
@@ -441,25 +592,28 @@ public class ResourceManager extends Service {
             TreeSet copy = null;
             synchronized (_logs) {
                 copy = new TreeSet(_logs);
-            }
 
-            // remove the current log file, since this is likely to be the
-            // current log file
-            copy.remove(_logs.last());
+                // remove the current log file, since this is likely to be the
+                // current log file
+                copy.remove(_logs.last());
+            }
 
             // process each of the remaining log files
             while (copy.size() > 0) {
                 TransactionLog log = (TransactionLog) copy.first();
                 copy.remove(log);
-                if (log.canGarbageCollect()) {
-                    // destroy the log
-                    log.destroy();
-
-                    // remove it from the log cache
-                    synchronized (_logs) {
-                        _logs.remove(log);
+                // a log with transactions registered against it may not have
+                // logged them yet
+                boolean collect;
+                synchronized (_cacheLock) {
+                    collect = (_logToTridCache.get(log) == null)
+                            && log.canGarbageCollect();
+                    if (collect) {
+                        // release the log, and remove it from the log cache
+                        releaseTransactionLog(log);
                     }
-
+                }
+                if (collect) {
                     // increment the number of garbafe collected files
                     ++gcfiles;
                 }
@@ -483,7 +637,7 @@ public class ResourceManager extends Service {
      * @param onePhase - treu if it is a one phase commit
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized void commit(Xid id, boolean onePhase)
+    public void commit(Xid id, boolean onePhase)
             throws XAException {
         // check that the xid is not null
         if (id == null) {
@@ -495,48 +649,74 @@ public class ResourceManager extends Service {
 
         // check to see that the transaction is active and open. We should
         // not be allowed to commit a committed transaction.
-        if (!isTransactionActive(xid)) {
+        Branch branch = (Branch) _activeTransactions.get(xid);
+        if (branch == null) {
             throw new XAException(XAException.XAER_PROTO);
         }
 
-        // process all the messages associated with this global transaction
-        // If a message has been  published then sent it to the message mgr
-        // for processing. If a message has been consumed then remove it
-        // from the list of unconsumed messages.
-        try {
-            // retrieve a list of recrods for the specified global transaction
-            // and process them. Ignore the state records and only process the
-            // data records, which are of type TransacitonalObjectWrapper.
-            Object[] records = getTransactionRecords(xid, _rid);
-            for (int index = 0; index < records.length; index++) {
-                if (records[index] instanceof TransactionalObjectWrapper) {
-                    TransactionalObjectWrapper wrapper =
-                            (TransactionalObjectWrapper) records[index];
-                    if (wrapper.isPublishedMessage()) {
-                        // send the published message to the message manager
-                        MessageImpl message = (MessageImpl) wrapper.getObject();
-                        _messages.add(message);
-
-                    } else if (wrapper.isReceivedMessage()) {
-                        // if it is a received message handle then simply
-                        // delete it and mark it as acknowledged
-                        MessageHandle handle = ((ReceivedMessageWrapper) (wrapper)).getMessageHandle();
-                        handle.destroy();
-                    }
-                } else {
-                    // ignore since it is a state records.
-                }
+        synchronized (branch) {
+            if (branch._closed) {
+                // completed concurrently
+                throw new XAException(XAException.XAER_PROTO);
             }
-        } catch (Exception exception) {
-            _log.error(exception, exception);
-            throw new XAException("Failed in ResourceManager.commit : " +
-                                  exception.toString());
-        } finally {
-            // and now mark the transaction as closed
+
+            // process all the messages associated with this global transaction
+            // in a single database transaction. If a message has been
+            // published then sent it to the message mgr for processing. If a
+            // message has been consumed then remove it from the list of
+            // unconsumed messages.
+            // A transaction committed in one phase without being prepared
+            // was never logged, so no log entries are written for it.
             try {
-                logTransactionState(xid, TransactionState.CLOSED);
+                _database.begin();
+
+                // retrieve a list of recrods for the specified global
+                // transaction and process them. Ignore the state records and
+                // only process the data records, which are of type
+                // TransacitonalObjectWrapper.
+                List published = new ArrayList();
+                Object[] records = getTransactionRecords(xid, _rid);
+                for (int index = 0; index < records.length; index++) {
+                    if (records[index] instanceof TransactionalObjectWrapper) {
+                        TransactionalObjectWrapper wrapper =
+                                (TransactionalObjectWrapper) records[index];
+                        if (wrapper.isPublishedMessage()) {
+                            // send the published message to the message
+                            // manager
+                            published.add(wrapper.getObject());
+                        } else if (wrapper.isReceivedMessage()) {
+                            // if it is a received message handle then simply
+                            // delete it and mark it as acknowledged
+                            MessageHandle handle = ((ReceivedMessageWrapper) (wrapper)).getMessageHandle();
+                            handle.destroy();
+                        }
+                    } else {
+                        // ignore since it is a state records.
+                    }
+                }
+                if (!published.isEmpty()) {
+                    _messages.add(published);
+                }
+                _database.commit();
             } catch (Exception exception) {
-                throw new XAException("Error processing commit : " + exception);
+                _log.error(exception, exception);
+                try {
+                    if (_database.isTransacted()) {
+                        _database.rollback();
+                    }
+                } catch (PersistenceException error) {
+                    _log.error(error, error);
+                }
+                throw new XAException("Failed in ResourceManager.commit : " +
+                                      exception.toString());
+            } finally {
+                // and now mark the transaction as closed
+                try {
+                    logTransactionState(xid, TransactionState.CLOSED);
+                } catch (Exception exception) {
+                    throw new XAException("Error processing commit : "
+                                          + exception);
+                }
             }
         }
     }
@@ -551,7 +731,7 @@ public class ResourceManager extends Service {
      * @param flags - one of TMSUCCESS, TMFAIL, or TMSUSPEND
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized void end(Xid id, int flags)
+    public void end(Xid id, int flags)
             throws XAException {
         //check the xid is not null
         if (id == null) {
@@ -562,8 +742,8 @@ public class ResourceManager extends Service {
         ExternalXid xid = new ExternalXid(id);
 
         // check that the flags are valid for this method
-        if ((flags != XAResource.TMSUSPEND) ||
-                (flags != XAResource.TMSUCCESS) ||
+        if ((flags != XAResource.TMSUSPEND) &&
+                (flags != XAResource.TMSUCCESS) &&
                 (flags != XAResource.TMFAIL)) {
             throw new XAException(XAException.XAER_PROTO);
         }
@@ -588,9 +768,9 @@ public class ResourceManager extends Service {
 
             case XAResource.TMSUCCESS:
                 // nothing to do here but check that the resource manager is
-                // in a consistent state wrt to this xid. The xid should not
-                // be active if it received the commit, forget etc.
-                if (isTransactionActive(xid)) {
+                // in a consistent state wrt to this xid. The xid must still
+                // be active, as it is yet to be prepared or committed.
+                if (!isTransactionActive(xid)) {
                     throw new XAException(XAException.XAER_PROTO);
                 }
                 break;
@@ -604,7 +784,7 @@ public class ResourceManager extends Service {
      * @param id - the xa transaction identity
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized void forget(Xid id)
+    public void forget(Xid id)
             throws XAException {
         //check the xid is not null
         if (id == null) {
@@ -630,7 +810,7 @@ public class ResourceManager extends Service {
      * @return int - the timeout in seconds
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized int getTransactionTimeout()
+    public int getTransactionTimeout()
             throws XAException {
         return _txExpiryTime;
     }
@@ -643,7 +823,7 @@ public class ResourceManager extends Service {
      * @return int - XA_RDONLY or XA_OK
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized boolean isSameRM(XAResource xares)
+    public boolean isSameRM(XAResource xares)
             throws XAException {
         boolean result = false;
 
@@ -664,7 +844,7 @@ public class ResourceManager extends Service {
      *
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized int prepare(Xid id)
+    public int prepare(Xid id)
             throws XAException {
         //check the xid is not null
         if (id == null) {
@@ -697,7 +877,7 @@ public class ResourceManager extends Service {
      *
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized Xid[] recover(int flag)
+    public Xid[] recover(int flag)
             throws XAException {
 
         Xid[] result = new Xid[0];
@@ -706,18 +886,22 @@ public class ResourceManager extends Service {
                 (flag == XAResource.TMSTARTRSCAN) ||
                 (flag == XAResource.TMENDRSCAN)) {
             LinkedList xids = new LinkedList();
-            Iterator iter = _activeTransactions.keySet().iterator();
+            Iterator iter = _activeTransactions.entrySet().iterator();
             while (iter.hasNext()) {
-                Xid xid = (Xid) iter.next();
-                LinkedList list = (LinkedList) _activeTransactions.get(xid);
-                if (list.size() > 1) {
-                    // need at least a start in the chain.
-                    Object last = list.getLast();
-                    if ((last instanceof StateTransactionLogEntry)
-                            &&
-                            (((StateTransactionLogEntry) last).getState()
-                            .isPrepared())) {
-                        xids.add(xid);
+                Map.Entry entry = (Map.Entry) iter.next();
+                Xid xid = (Xid) entry.getKey();
+                Branch branch = (Branch) entry.getValue();
+                synchronized (branch) {
+                    LinkedList list = branch._records;
+                    if (list.size() > 1) {
+                        // need at least a start in the chain.
+                        Object last = list.getLast();
+                        if ((last instanceof StateTransactionLogEntry)
+                                &&
+                                (((StateTransactionLogEntry) last).getState()
+                                .isPrepared())) {
+                            xids.add(xid);
+                        }
                     }
                 }
 
@@ -733,7 +917,7 @@ public class ResourceManager extends Service {
      *
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized void rollback(Xid id)
+    public void rollback(Xid id)
             throws XAException {
         //check the xid is not null
         if (id == null) {
@@ -744,49 +928,58 @@ public class ResourceManager extends Service {
         ExternalXid xid = new ExternalXid(id);
 
         // check to see that the xid actually exists
-        if (!isTransactionActive(xid)) {
+        Branch branch = (Branch) _activeTransactions.get(xid);
+        if (branch == null) {
             throw new XAException(XAException.XAER_PROTO);
         }
 
-        // process the data in that transaction. If it was a published message
-        // then drop it. If it was a consumed message then return it back to
-        // the destination.
-        try {
-            // retrieve a list of recrods for the specified global transaction
-            // and process them. Ignore the state records and only process the
-            // data records, which are of type TransacitonalObjectWrapper.
-            Object[] records = getTransactionRecords(xid, _rid);
-            for (int index = 0; index < records.length; index++) {
-                if (records[index] instanceof TransactionalObjectWrapper) {
-                    TransactionalObjectWrapper wrapper =
-                            (TransactionalObjectWrapper) records[index];
-                    if (wrapper.isPublishedMessage()) {
-                        // we don't need to process these messages since the
-                        // global transaction has been rolled back.
-                    } else if (wrapper.isReceivedMessage()) {
-                        ReceivedMessageWrapper rmsg_wrapper =
-                                (ReceivedMessageWrapper) wrapper;
-                        MessageHandle handle =
-                                (MessageHandle) rmsg_wrapper.getObject();
-                        JmsDestination dest = handle.getDestination();
-                        DestinationCache cache =
-                                _destinations.getDestinationCache(dest);
-                        cache.returnMessageHandle(handle);
-                    }
-                } else {
-                    // ignore since it is a state records.
-                }
+        synchronized (branch) {
+            if (branch._closed) {
+                // completed concurrently
+                throw new XAException(XAException.XAER_PROTO);
             }
-        } catch (Exception exception) {
-            throw new XAException("Failed in ResourceManager.rollback : " +
-                                  exception.toString());
-        } finally {
-            // and now mark the transaction as closed
+
+            // process the data in that transaction. If it was a published message
+            // then drop it. If it was a consumed message then return it back to
+            // the destination.
             try {
-                logTransactionState(xid, TransactionState.CLOSED);
+                // retrieve a list of recrods for the specified global
+                // transaction and process them. Ignore the state records and
+                // only process the data records, which are of type
+                // TransacitonalObjectWrapper.
+                Object[] records = getTransactionRecords(xid, _rid);
+                for (int index = 0; index < records.length; index++) {
+                    if (records[index] instanceof TransactionalObjectWrapper) {
+                        TransactionalObjectWrapper wrapper =
+                                (TransactionalObjectWrapper) records[index];
+                        if (wrapper.isPublishedMessage()) {
+                            // we don't need to process these messages since the
+                            // global transaction has been rolled back.
+                        } else if (wrapper.isReceivedMessage()) {
+                            ReceivedMessageWrapper rmsg_wrapper =
+                                    (ReceivedMessageWrapper) wrapper;
+                            MessageHandle handle =
+                                    (MessageHandle) rmsg_wrapper.getObject();
+                            JmsDestination dest = handle.getDestination();
+                            DestinationCache cache =
+                                    _destinations.getDestinationCache(dest);
+                            cache.returnMessageHandle(handle);
+                        }
+                    } else {
+                        // ignore since it is a state records.
+                    }
+                }
             } catch (Exception exception) {
-                throw new XAException(
-                        "Error processing rollback : " + exception);
+                throw new XAException("Failed in ResourceManager.rollback : " +
+                                      exception.toString());
+            } finally {
+                // and now mark the transaction as closed
+                try {
+                    logTransactionState(xid, TransactionState.CLOSED);
+                } catch (Exception exception) {
+                    throw new XAException(
+                            "Error processing rollback : " + exception);
+                }
             }
         }
     }
@@ -798,14 +991,14 @@ public class ResourceManager extends Service {
      *
      * @throws XAException - if there is a problem completing the call
      */
-    public synchronized boolean setTransactionTimeout(int seconds)
+    public boolean setTransactionTimeout(int seconds)
             throws XAException {
         _txExpiryTime = seconds;
         return true;
     }
 
     // implementation of XAResource.start
-    public synchronized void start(Xid id, int flags)
+    public void start(Xid id, int flags)
             throws XAException {
 
         //check the xid is not null
@@ -817,8 +1010,8 @@ public class ResourceManager extends Service {
         ExternalXid xid = new ExternalXid(id);
 
         // check that the flags are valid for this method
-        if ((flags != XAResource.TMNOFLAGS) ||
-                (flags != XAResource.TMJOIN) ||
+        if ((flags != XAResource.TMNOFLAGS) &&
+                (flags != XAResource.TMJOIN) &&
                 (flags != XAResource.TMRESUME)) {
             throw new XAException(XAException.XAER_PROTO);
         }
@@ -889,8 +1082,21 @@ public class ResourceManager extends Service {
                         RM_LOGFILE_PREFIX + Long.toString(++last)
                         + RM_LOGFILE_EXTENSION;
 
-                // create a transaction log and add it to the collection
-                newlog = new TransactionLog(name, true);
+                // recycle a released transaction log if possible, otherwise
+                // create one. Add it to the collection
+                if (!_freeLogs.isEmpty()) {
+                    TransactionLog free = (TransactionLog) _freeLogs.removeFirst();
+                    try {
+                        newlog = free.recycle(name);
+                    } catch (TransactionLogException exception) {
+                        _log.warn("Failed to recycle " + free.getName(),
+                                  exception);
+                        free.destroy();
+                    }
+                }
+                if (newlog == null) {
+                    newlog = new TransactionLog(name, true, _logFileSize);
+                }
                 _logs.add(newlog);
             } catch (TransactionLogException exception) {
                 throw new ResourceManagerException(
@@ -901,6 +1107,30 @@ public class ResourceManager extends Service {
         return newlog;
     }
 
+    /**
+     * Release a transaction log that no longer has any open transactions.
+     * The log is retained for recycling if there are fewer than
+     * {@link #MAX_FREE_LOGS} retained, otherwise it is destroyed.
+     *
+     * @param log the transaction log to release
+     * @throws TransactionLogException if the log can't be destroyed
+     */
+    private void releaseTransactionLog(TransactionLog log)
+            throws TransactionLogException {
+        synchronized (_logs) {
+            if (!_logs.remove(log)) {
+                // already released
+                return;
+            }
+            if (_freeLogs.size() < MAX_FREE_LOGS) {
+                log.close();
+                _freeLogs.add(log);
+            } else {
+                log.destroy();
+            }
+        }
+    }
+
     /**
      * Build a list of all log files in the specified log directory
      *
@@ -975,10 +1205,13 @@ public class ResourceManager extends Service {
      */
     private TransactionLog getTransactionLog(ExternalXid txid)
             throws TransactionLogException, ResourceManagerException {
-        TransactionLog log = (TransactionLog) _tridToLogCache.get(txid);
-        if (log == null) {
-            log = getCurrentTransactionLog();
-            addTridLogEntry(txid, log);
+        TransactionLog log;
+        synchronized (_cacheLock) {
+            log = (TransactionLog) _tridToLogCache.get(txid);
+            if (log == null) {
+                log = getCurrentTransactionLog();
+                addTridLogEntry(txid, log);
+            }
         }
 
         return log;
@@ -1045,8 +1278,10 @@ public class ResourceManager extends Service {
     private boolean isCurrentTransactionLog(TransactionLog log) {
         boolean result = false;
 
-        if (_logs.size() > 0) {
-            result = log.equals(_logs.last());
+        synchronized (_logs) {
+            if (_logs.size() > 0) {
+                result = log.equals(_logs.last());
+            }
         }
 
         return result;
@@ -1089,9 +1324,11 @@ public class ResourceManager extends Service {
 
         // we also want to add this to the transaction data for that
         // txid
-        LinkedList list = (LinkedList) _activeTransactions.get(xid);
-        if (list != null) {
-            records = list.toArray();
+        Branch branch = (Branch) _activeTransactions.get(xid);
+        if (branch != null) {
+            synchronized (branch) {
+                records = branch._records.toArray();
+            }
         } else {
             records = new Object[0];
         }
@@ -1128,7 +1365,7 @@ public class ResourceManager extends Service {
      *
      * @param xid - the gobal transaction identifier
      */
-    private synchronized boolean isTransactionActive(ExternalXid xid) {
+    private boolean isTransactionActive(ExternalXid xid) {
         return _activeTransactions.containsKey(xid);
     }
 
@@ -1358,4 +1595,29 @@ public class ResourceManager extends Service {
         }
     }
 
+    /**
+     * The state of a transaction branch. Operations on the transaction
+     * synchronize on its branch.
+     */
+    private static class Branch {
+
+        /**
+         * The transaction entries, which includes both state and data.
+         */
+        private final LinkedList _records = new LinkedList();
+
+        /**
+         * Determines if the transaction has been closed.
+         */
+        private boolean _closed = false;
+
+        /**
+         * Determines if the transaction has been written to the transaction
+         * log. This only occurs when it is prepared; a transaction committed
+         * in one phase is never logged.
+         */
+        private boolean _logged = false;
+
+    }
+
 }
@@ -47,6 +47,8 @@ package org.exolab.jms.messagemgr;
 import javax.jms.JMSException;
 import javax.jms.MessageConsumer;
 
+import org.exolab.jms.selector.Selector;
+
 
 /**
  * A {@link MessageHandle} used by the {@link TopicDestinationCache}.
@@ -64,6 +66,12 @@ class TopicConsumerMessageHandle extends AbstractConsumerMessageHandle {
      */
     private boolean _delivered = false;
 
+    /**
+     * The selector that has selected the message, or <code>null</code> if the
+     * message hasn't been evaluated by a selector.
+     */
+    private Selector _selector;
+
 
     /**
      * Construct a new <code>TopicConsumerMessageHandle</code>.
@@ -113,6 +121,25 @@ class TopicConsumerMessageHandle extends AbstractConsumerMessageHandle {
         return _delivered;
     }
 
+    /**
+     * Sets the selector that has selected the message.
+     *
+     * @param selector the selector. May be <code>null</code>
+     */
+    public void setSelector(Selector selector) {
+        _selector = selector;
+    }
+
+    /**
+     * Returns the selector that has selected the message.
+     *
+     * @return the selector, or <code>null</code> if the message hasn't been
+     *         evaluated by a selector
+     */
+    public Selector getSelector() {
+        return _selector;
+    }
+
     /**
      * Initialise this handle.
      *
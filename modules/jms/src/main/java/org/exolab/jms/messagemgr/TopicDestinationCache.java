@@ -44,19 +44,24 @@
  */
 package org.exolab.jms.messagemgr;
 
-import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import javax.jms.JMSException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import org.exolab.jms.client.JmsDestination;
 import org.exolab.jms.client.JmsTopic;
 import org.exolab.jms.lease.LeaseManager;
 import org.exolab.jms.message.MessageImpl;
 import org.exolab.jms.persistence.DatabaseService;
 import org.exolab.jms.persistence.PersistenceException;
+import org.exolab.jms.selector.Selector;
 
 
 /**
@@ -68,16 +73,25 @@ import org.exolab.jms.persistence.PersistenceException;
  */
 class TopicDestinationCache extends AbstractDestinationCache {
 
+    /**
+     * The logger.
+     */
+    private static final Log _log = LogFactory.getLog(
+            TopicDestinationCache.class);
+
+
     /**
      * Construct a new <code>TopicDestinationCache</code>.
      *
      * @param topic    the topic to cache messages for
      * @param database the database service
      * @param leases   the lease manager
+     * @param cache    the message cache
      */
     public TopicDestinationCache(JmsTopic topic, DatabaseService database,
-                                 LeaseManager leases) {
-        super(topic, database, leases);
+                                 LeaseManager leases,
+                                 DefaultMessageCache cache) {
+        super(topic, database, leases, cache);
     }
 
     /**
@@ -124,9 +138,12 @@ class TopicDestinationCache extends AbstractDestinationCache {
                                                        message);
 
         ConsumerEndpoint[] consumers = getConsumerArray();
+        boolean[] selected = select(consumers, message);
         for (int index = 0; index < consumers.length; index++) {
-            ConsumerEndpoint consumer = consumers[index];
-            processed |= consumer.messageAdded(handle, message);
+            if (selected[index]) {
+                ConsumerEndpoint consumer = consumers[index];
+                processed |= consumer.messageAdded(handle, message);
+            }
         }
 
         // create a lease iff one is required and the message has actually
@@ -144,6 +161,10 @@ class TopicDestinationCache extends AbstractDestinationCache {
 
     /**
      * Invoked when the {@link MessageMgr} receives a persistent message.
+     * <p/>
+     * The handles of durable consumers are added in the current transaction,
+     * but the message is only cached, and made available to consumers, once
+     * the transaction has committed.
      *
      * @param destination the message's destination
      * @param message     the message
@@ -151,24 +172,26 @@ class TopicDestinationCache extends AbstractDestinationCache {
      * @throws PersistenceException if there is a persistence related problem
      */
     public void persistentMessageAdded(JmsDestination destination,
-                                       MessageImpl message)
+                                       final MessageImpl message)
             throws JMSException, PersistenceException {
         boolean processed = false;
-        MessageRef reference = new CachedMessageRef(message, true,
-                                                    getMessageCache());
+        final MessageRef reference = new CachedMessageRef(message, true,
+                                                          getMessageCache());
         reference.reference(); // temporary reference to ensure the message has
                                // a non-zero reference while passing it to each
                                // of the consumers, to avoid premature
                                // destruction
-        addMessage(reference, message);
         SharedMessageHandle handle = new SharedMessageHandle(this, reference,
                                                              message);
 
         // now send the message to all active consumers
         ConsumerEndpoint[] consumers = getConsumerArray();
+        boolean[] selected = select(consumers, message);
         for (int index = 0; index < consumers.length; index++) {
-            ConsumerEndpoint consumer = consumers[index];
-            processed |= consumer.persistentMessageAdded(handle, message);
+            if (selected[index]) {
+                ConsumerEndpoint consumer = consumers[index];
+                processed |= consumer.persistentMessageAdded(handle, message);
+            }
         }
 
         // for each inactive durable consumer, add a persistent handle
@@ -190,11 +213,20 @@ class TopicDestinationCache extends AbstractDestinationCache {
         }
 */
 
-        // create a lease iff one is required and the message has actually
-        // been accepted by at least one endpoint
+        // cache the message and create a lease iff one is required, and the
+        // message has actually been accepted by at least one endpoint
         if (processed) {
-            checkMessageExpiry(reference, message);
-            reference.dereference(); // remove temporary reference
+            DatabaseService.getInstance().afterCommit(new Runnable() {
+                public void run() {
+                    try {
+                        addMessage(reference, message);
+                        checkMessageExpiry(reference, message);
+                        reference.dereference(); // remove temporary reference
+                    } catch (JMSException exception) {
+                        _log.error(exception, exception);
+                    }
+                }
+            });
         } else {
             // no consumer picked up the message, so toss it
             handle.destroy();
@@ -234,9 +266,7 @@ class TopicDestinationCache extends AbstractDestinationCache {
     public List getDurableMessageHandles(String name)
             throws JMSException, PersistenceException {
         DatabaseService service = DatabaseService.getInstance();
-        Connection connection = service.getConnection();
-        Vector handles = service.getAdapter().getMessageHandles(
-                connection, getDestination(), name);
+        Vector handles = service.getMessageHandles(getDestination(), name);
         List result = new ArrayList(handles.size());
 
         MessageCache cache = getMessageCache();
@@ -278,5 +308,42 @@ class TopicDestinationCache extends AbstractDestinationCache {
         }
     }
 
+    /**
+     * Determines which consumers select a message.
+     * <p/>
+     * Consumers with the same selector expression share the same
+     * {@link Selector} instance, so each distinct selector is evaluated once,
+     * and its result shared by all consumers that use it.
+     *
+     * @param consumers the consumers
+     * @param message   the message
+     * @return an array indicating which consumers select the message
+     */
+    private boolean[] select(ConsumerEndpoint[] consumers,
+                             MessageImpl message) {
+        boolean[] result = new boolean[consumers.length];
+        Map evaluated = null;
+        for (int i = 0; i < consumers.length; ++i) {
+            Selector selector = consumers[i].getSelector();
+            if (selector == null) {
+                result[i] = true;
+            } else {
+                Boolean selected = null;
+                if (evaluated != null) {
+                    selected = (Boolean) evaluated.get(selector);
+                } else {
+                    evaluated = new HashMap();
+                }
+                if (selected == null) {
+                    selected = (selector.selects(message)) ? Boolean.TRUE
+                            : Boolean.FALSE;
+                    evaluated.put(selector, selected);
+                }
+                result[i] = selected.booleanValue();
+            }
+        }
+        return result;
+    }
+
 }
 
@@ -105,6 +105,11 @@ public abstract class AbstractConnectionManager
      */
     private boolean _testBeforeUse = false;
 
+    /**
+     * The maximum number of prepared statements to cache per connection
+     */
+    private int _maxPreparedStatements;
+
 
     /**
      * Sets the user name that is used to obtain the connection
@@ -300,4 +305,25 @@ public abstract class AbstractConnectionManager
         return _testBeforeUse;
     }
 
+    /**
+     * Sets the maximum number of prepared statements to cache for each
+     * connection, or zero to disable caching.
+     *
+     * @param max the maximum number of prepared statements per connection
+     */
+    public void setMaxPreparedStatements(int max) {
+        _maxPreparedStatements = max;
+    }
+
+    /**
+     * Returns the maximum number of prepared statements to cache for each
+     * connection.
+     *
+     * @return the maximum number of prepared statements per connection, or
+     * zero if caching is disabled
+     */
+    public int getMaxPreparedStatements() {
+        return _maxPreparedStatements;
+    }
+
 } //-- AbstractConnectionManager
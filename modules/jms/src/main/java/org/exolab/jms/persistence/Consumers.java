@@ -158,7 +158,7 @@ class Consumers {
         }
 
         // get the next id from the seed table
-        long consumerId = _seeds.next(connection, CONSUMER_ID_SEED);
+        long consumerId = _seeds.next(CONSUMER_ID_SEED);
 
         PreparedStatement insert = null;
         try {
@@ -47,6 +47,7 @@ import java.sql.SQLException;
 import javax.sql.DataSource;
 
 import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.DelegatingConnection;
 
 
 /**
@@ -62,6 +63,12 @@ public class DBCPConnectionManager extends AbstractConnectionManager {
      */
     private DataSource _dataSource;
 
+    /**
+     * The prepared statement cache, or <code>null</code> if statements
+     * aren't cached.
+     */
+    private PreparedStatementCache _statements;
+
     /**
      * Default constructor.
      */
@@ -90,7 +97,15 @@ public class DBCPConnectionManager extends AbstractConnectionManager {
         dataSource.setDriverClassName(getDriver());
         dataSource.setUrl(getURL());
         dataSource.setDefaultAutoCommit(false);
-        dataSource.setPoolPreparedStatements(true);
+
+        // prepared statements are cached by PreparedStatementCache, rather
+        // than DBCP, in order to bound the no. of statements per connection.
+        // This requires access to the physical connection
+        int maxStatements = getMaxPreparedStatements();
+        if (maxStatements > 0) {
+            dataSource.setAccessToUnderlyingConnectionAllowed(true);
+            _statements = new PreparedStatementCache(maxStatements);
+        }
 
         // configure pooling
         dataSource.setMaxActive(getMaxActive());
@@ -119,6 +134,15 @@ public class DBCPConnectionManager extends AbstractConnectionManager {
         Connection connection;
         try {
             connection = _dataSource.getConnection();
+            if (_statements != null
+                    && connection instanceof DelegatingConnection) {
+                Connection physical = ((DelegatingConnection) connection)
+                        .getInnermostDelegate();
+                if (physical != null) {
+                    connection = _statements.getConnection(connection,
+                                                           physical);
+                }
+            }
         } catch (SQLException exception) {
             throw new PersistenceException("Failed to get pooled connection",
                 exception);
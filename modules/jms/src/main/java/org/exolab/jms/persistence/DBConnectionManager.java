@@ -137,6 +137,14 @@ public interface DBConnectionManager {
      */
     void setTestBeforeUse(boolean test);
 
+    /**
+     * Sets the maximum number of prepared statements to cache for each
+     * connection, or zero to disable caching.
+     *
+     * @param max the maximum number of prepared statements per connection
+     */
+    void setMaxPreparedStatements(int max);
+
     /**
      * Initialise the connection manager. This must be called before a call to
      * {@link #getConnection} is made and after all the properties have been
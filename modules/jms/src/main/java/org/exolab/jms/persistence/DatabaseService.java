@@ -46,13 +46,20 @@ package org.exolab.jms.persistence;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.exolab.jms.client.JmsDestination;
 import org.exolab.jms.common.threads.ThreadListener;
 import org.exolab.jms.config.Configuration;
 import org.exolab.jms.config.DatabaseConfiguration;
 import org.exolab.jms.config.RdbmsDatabaseConfiguration;
+import org.exolab.jms.messagemgr.MessageHandle;
 import org.exolab.jms.service.Service;
 import org.exolab.jms.service.ServiceException;
 import org.exolab.jms.service.ServiceThreadListener;
@@ -77,6 +84,13 @@ public class DatabaseService extends Service {
      */
     private PersistenceAdapter _adapter;
 
+    /**
+     * Removes message handles and messages in the background. May be
+     * <code>null</code>, in which case removals are performed in the caller's
+     * transaction.
+     */
+    private DeleteBatcher _batcher;
+
     /**
      * Thread listener.
      */
@@ -175,6 +189,130 @@ public class DatabaseService extends Service {
         return state.getConnection();
     }
 
+    /**
+     * Enables batching of message handle inserts for the current transaction.
+     * <p/>
+     * Handles subsequently added via {@link #addMessageHandle} are inserted
+     * in a single batch when the transaction is committed.
+     *
+     * @throws PersistenceException if there is no current transaction
+     */
+    public void enableBatching() throws PersistenceException {
+        State state = getState();
+        if (state.getHandles() == null) {
+            state.setHandles(new ArrayList());
+        }
+    }
+
+    /**
+     * Adds a persistent message handle in the current transaction.
+     * <p/>
+     * If batching is enabled, the insert is deferred until the transaction is
+     * committed.
+     *
+     * @param handle the handle to add
+     * @throws PersistenceException if the handle cannot be added
+     */
+    public void addMessageHandle(MessageHandle handle)
+            throws PersistenceException {
+        State state = getState();
+        List handles = state.getHandles();
+        if (handles != null) {
+            handles.add(handle);
+        } else {
+            _adapter.addMessageHandle(getConnection(), handle);
+        }
+    }
+
+    /**
+     * Removes a persistent message handle in the current transaction.
+     * <p/>
+     * If removals are batched, the handle is removed by a background thread
+     * once the transaction has committed. If the server fails before then,
+     * the message will be redelivered.
+     *
+     * @param handle the handle to remove
+     * @throws PersistenceException if the handle cannot be removed
+     */
+    public void removeMessageHandle(MessageHandle handle)
+            throws PersistenceException {
+        State state = getState();
+        List handles = state.getHandles();
+        if (handles != null && handles.remove(handle)) {
+            // never inserted
+            return;
+        }
+        if (_batcher != null) {
+            state.getRemovedHandles().add(handle);
+        } else {
+            _adapter.removeMessageHandle(getConnection(), handle);
+        }
+    }
+
+    /**
+     * Removes a message in the current transaction.
+     * <p/>
+     * If removals are batched, the message is removed by a background thread
+     * once the transaction has committed, after any of its handles removed
+     * by the same transaction.
+     *
+     * @param messageId the message identifier
+     * @throws PersistenceException if the message cannot be removed
+     */
+    public void removeMessage(String messageId) throws PersistenceException {
+        State state = getState();
+        if (_batcher != null) {
+            state.getRemovedMessages().add(messageId);
+        } else {
+            _adapter.removeMessage(getConnection(), messageId);
+        }
+    }
+
+    /**
+     * Returns the message handles for a destination and consumer, in the
+     * current transaction.
+     * <p/>
+     * Handles removed by committed transactions, but still queued for
+     * removal, are excluded.
+     *
+     * @param destination the destination
+     * @param name        the consumer name
+     * @return a list of <code>MessageHandle</code> instances
+     * @throws PersistenceException if the handles cannot be retrieved
+     */
+    public Vector getMessageHandles(JmsDestination destination, String name)
+            throws PersistenceException {
+        // snapshot the pending removals before loading, so that a handle
+        // is excluded if its removal completes in the interim
+        Set removed = (_batcher != null) ? _batcher.getPending() : null;
+        Vector handles = _adapter.getMessageHandles(getConnection(),
+                                                    destination, name);
+        if (removed != null && !removed.isEmpty()) {
+            Iterator iterator = handles.iterator();
+            while (iterator.hasNext()) {
+                MessageHandle handle = (MessageHandle) iterator.next();
+                if (removed.contains(DeleteBatcher.getKey(handle))) {
+                    iterator.remove();
+                }
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Registers a task to run once the current transaction has committed.
+     * <p/>
+     * Tasks are run in the order they were registered, by the committing
+     * thread, within a new transaction. They are discarded if the
+     * transaction rolls back.
+     *
+     * @param task the task to run
+     * @throws PersistenceException if there is no current transaction
+     */
+    public void afterCommit(Runnable task) throws PersistenceException {
+        getState().getTasks().add(task);
+    }
+
     /**
      * Commit the current transaction.
      *
@@ -184,15 +322,30 @@ public class DatabaseService extends Service {
         State state = getState();
         Connection connection = state.getConnection();
         try {
+            List handles = state.getHandles();
+            if (handles != null && !handles.isEmpty()) {
+                connection = getConnection();
+                flush(connection, handles);
+            }
             if (connection != null) {
                 connection.commit();
             }
+            if (state.hasRemovals()) {
+                _batcher.remove(state.getRemovedHandles(),
+                                state.getRemovedMessages());
+            }
+        } catch (PersistenceException exception) {
+            SQLHelper.rollback(connection);
+            throw exception;
         } catch (SQLException exception) {
             throw new PersistenceException("Failed to commit", exception);
         } finally {
             SQLHelper.close(connection);
             _state.set(null);
         }
+        if (state.hasTasks()) {
+            run(state.getTasks());
+        }
     }
 
     /**
@@ -238,6 +391,13 @@ public class DatabaseService extends Service {
         }
 
         _adapter = createAdapter(_config);
+        RdbmsDatabaseConfiguration config
+                = _config.getRdbmsDatabaseConfiguration();
+        if (config.getAckBatchSize() > 0) {
+            _batcher = new DeleteBatcher(this, config.getAckBatchSize(),
+                                         config.getAckMaxLinger());
+            _batcher.start();
+        }
 
         // remove the expired messages
         try {
@@ -270,10 +430,75 @@ public class DatabaseService extends Service {
         if (_listener != null) {
             _listener.removeThreadListener(_monitor);
         }
+        if (_batcher != null) {
+            // flushes any pending removals
+            _batcher.stop();
+            _batcher = null;
+        }
         _adapter.close();
         _state.set(null);
     }
 
+    /**
+     * Inserts the batched message handles that are still persistent.
+     * <p/>
+     * A handle may be destroyed by another thread between being batched and
+     * the batch being flushed. Such handles are skipped.
+     *
+     * @param connection the connection to use
+     * @param handles    the batched message handles
+     * @throws PersistenceException if the handles cannot be added
+     */
+    private void flush(Connection connection, List handles)
+            throws PersistenceException {
+        List pending = new ArrayList(handles.size());
+        Iterator iterator = handles.iterator();
+        while (iterator.hasNext()) {
+            MessageHandle handle = (MessageHandle) iterator.next();
+            if (handle.isPersistent()) {
+                pending.add(handle);
+            }
+        }
+        handles.clear();
+        if (!pending.isEmpty()) {
+            _adapter.addMessageHandles(connection, pending);
+        }
+    }
+
+    /**
+     * Runs the tasks registered by a committed transaction, in a new
+     * transaction.
+     * <p/>
+     * The committed transaction is durable regardless of the outcome, so
+     * failures are logged rather than propagated.
+     *
+     * @param tasks the tasks to run
+     */
+    private void run(List tasks) {
+        try {
+            begin();
+            Iterator iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                Runnable task = (Runnable) iterator.next();
+                try {
+                    task.run();
+                } catch (RuntimeException exception) {
+                    _log.error("Failed to run task after commit", exception);
+                }
+            }
+            commit();
+        } catch (PersistenceException exception) {
+            _log.error("Failed to run tasks after commit", exception);
+            try {
+                if (isTransacted()) {
+                    rollback();
+                }
+            } catch (PersistenceException error) {
+                _log.warn("Failed to rollback", error);
+            }
+        }
+    }
+
     /**
      * Returns the current transaction state.
      *
@@ -318,10 +543,25 @@ public class DatabaseService extends Service {
 
     class State {
 
-        public final Exception STACK = new Exception();
+        /**
+         * The stack trace of the thread that began the transaction, used to
+         * diagnose unfinished transactions. This is only captured if debug
+         * logging is enabled, as it is expensive to fill in on every
+         * transaction, and is <code>null</code> otherwise.
+         */
+        public final Exception STACK
+                = _log.isDebugEnabled() ? new Exception() : null;
 
         private Connection _connection;
 
+        private List _handles;
+
+        private List _removedHandles;
+
+        private List _removedMessages;
+
+        private List _tasks;
+
         public DatabaseService getInstance() {
             return DatabaseService.this;
         }
@@ -333,6 +573,43 @@ public class DatabaseService extends Service {
         public void setConnection(Connection connection) {
             _connection = connection;
         }
+
+        public List getHandles() {
+            return _handles;
+        }
+
+        public void setHandles(List handles) {
+            _handles = handles;
+        }
+
+        public List getRemovedHandles() {
+            if (_removedHandles == null) {
+                _removedHandles = new ArrayList();
+            }
+            return _removedHandles;
+        }
+
+        public List getRemovedMessages() {
+            if (_removedMessages == null) {
+                _removedMessages = new ArrayList();
+            }
+            return _removedMessages;
+        }
+
+        public boolean hasRemovals() {
+            return _removedHandles != null || _removedMessages != null;
+        }
+
+        public List getTasks() {
+            if (_tasks == null) {
+                _tasks = new ArrayList();
+            }
+            return _tasks;
+        }
+
+        public boolean hasTasks() {
+            return _tasks != null;
+        }
     }
 
     static class Monitor implements ThreadListener {
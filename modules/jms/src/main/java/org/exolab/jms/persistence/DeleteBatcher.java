@@ -0,0 +1,326 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.persistence;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.exolab.jms.messagemgr.MessageHandle;
+import org.exolab.jms.service.BasicService;
+
+
+/**
+ * Removes message handles and messages from the database in batches, in the
+ * background.
+ * <p/>
+ * Removals are queued once the transaction that performed them has
+ * committed. They are flushed in a single transaction when
+ * <code>batchSize</code> removals are queued, or <code>maxLinger</code>
+ * milliseconds after the first removal was queued, whichever happens first.
+ * Message handles are removed before messages.
+ * <p/>
+ * Until a handle has been removed, its row remains in the database. Code
+ * that loads handles must exclude those returned by {@link #getPending},
+ * to avoid redelivering messages that have already been acknowledged.
+ * <p/>
+ * If a batch fails to be flushed, it is queued again, and retried after
+ * {@link #RETRY_INTERVAL} milliseconds. If the server fails before a batch
+ * is flushed, the corresponding messages are redelivered on restart.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+class DeleteBatcher extends BasicService {
+
+    /**
+     * The database service.
+     */
+    private final DatabaseService _database;
+
+    /**
+     * The no. of removals that triggers a flush.
+     */
+    private final int _batchSize;
+
+    /**
+     * The maximum time, in milliseconds, that a removal may be queued for.
+     */
+    private final long _maxLinger;
+
+    /**
+     * The queued message handles.
+     */
+    private List _handles = new ArrayList();
+
+    /**
+     * The queued message identifiers.
+     */
+    private List _messages = new ArrayList();
+
+    /**
+     * The keys of the queued message handles, and those being flushed.
+     */
+    private final Set _pending = new HashSet();
+
+    /**
+     * The lock, guarding the queues.
+     */
+    private final Object _lock = new Object();
+
+    /**
+     * The interval, in milliseconds, to wait before retrying a batch that
+     * failed to be flushed.
+     */
+    private static final long RETRY_INTERVAL = 1000;
+
+    /**
+     * The logger.
+     */
+    private static final Log _log = LogFactory.getLog(DeleteBatcher.class);
+
+
+    /**
+     * Construct a new <code>DeleteBatcher</code>.
+     *
+     * @param database  the database service
+     * @param batchSize the no. of removals that triggers a flush
+     * @param maxLinger the maximum time, in milliseconds, that a removal may
+     *                  be queued for
+     */
+    public DeleteBatcher(DatabaseService database, int batchSize,
+                         long maxLinger) {
+        super("DeleteBatcher");
+        _database = database;
+        _batchSize = batchSize;
+        _maxLinger = maxLinger;
+    }
+
+    /**
+     * Queues message handles and messages for removal.
+     *
+     * @param handles  a list of <code>MessageHandle</code> instances
+     * @param messages a list of message identifiers
+     */
+    public void remove(List handles, List messages) {
+        synchronized (_lock) {
+            _handles.addAll(handles);
+            _messages.addAll(messages);
+            Iterator iterator = handles.iterator();
+            while (iterator.hasNext()) {
+                _pending.add(getKey((MessageHandle) iterator.next()));
+            }
+            _lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the keys of the message handles that have been queued for
+     * removal, but not yet removed.
+     * <p/>
+     * The result is a snapshot. It must be taken before handles are loaded,
+     * so that a handle removed concurrently is either excluded, or not
+     * loaded at all.
+     *
+     * @return the keys of the pending message handles, as returned by
+     *         {@link #getKey}
+     */
+    public Set getPending() {
+        synchronized (_lock) {
+            return new HashSet(_pending);
+        }
+    }
+
+    /**
+     * Returns the key of a message handle, used to determine if it is
+     * pending removal.
+     *
+     * @param handle the message handle
+     * @return the key of the message handle
+     */
+    public static String getKey(MessageHandle handle) {
+        return handle.getMessageId() + '\n' + handle.getConsumerPersistentId()
+                + '\n' + handle.getDestination().getName();
+    }
+
+    /**
+     * Flushes queued removals until the service is stopped.
+     */
+    public void run() {
+        boolean stop = false;
+        boolean done = false;
+        while (!done) {
+            List handles;
+            List messages;
+            synchronized (_lock) {
+                if (!stop) {
+                    try {
+                        while (size() == 0) {
+                            _lock.wait();
+                        }
+                        long end = System.currentTimeMillis() + _maxLinger;
+                        long wait = _maxLinger;
+                        while (size() < _batchSize && wait > 0) {
+                            _lock.wait(wait);
+                            wait = end - System.currentTimeMillis();
+                        }
+                    } catch (InterruptedException exception) {
+                        // flush anything queued, and terminate
+                        stop = true;
+                    }
+                }
+                handles = _handles;
+                messages = _messages;
+                _handles = new ArrayList();
+                _messages = new ArrayList();
+            }
+            done = stop;
+            if (!flush(handles, messages)) {
+                if (stop) {
+                    _log.error("Failed to remove " + handles.size()
+                               + " handles and " + messages.size()
+                               + " messages on shutdown. These messages will"
+                               + " be redelivered on restart");
+                } else {
+                    stop = retry(handles, messages);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the no. of queued removals.
+     *
+     * @return the no. of queued removals
+     */
+    private int size() {
+        return _handles.size() + _messages.size();
+    }
+
+    /**
+     * Queues a batch that failed to be flushed ahead of any removals queued
+     * since, and waits before it is retried.
+     *
+     * @param handles  a list of <code>MessageHandle</code> instances
+     * @param messages a list of message identifiers
+     * @return <code>true</code> if the thread was interrupted while waiting
+     */
+    private boolean retry(List handles, List messages) {
+        boolean interrupted = false;
+        synchronized (_lock) {
+            handles.addAll(_handles);
+            messages.addAll(_messages);
+            _handles = handles;
+            _messages = messages;
+            try {
+                _lock.wait(RETRY_INTERVAL);
+            } catch (InterruptedException exception) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * Removes message handles and messages in a single transaction.
+     * <p/>
+     * On success, the handles are no longer pending removal.
+     *
+     * @param handles  a list of <code>MessageHandle</code> instances
+     * @param messages a list of message identifiers
+     * @return <code>true</code> if the removals were committed, otherwise
+     *         <code>false</code>
+     */
+    private boolean flush(List handles, List messages) {
+        if (handles.isEmpty() && messages.isEmpty()) {
+            return true;
+        }
+        boolean flushed = false;
+        try {
+            _database.begin();
+            Connection connection = _database.getConnection();
+            PersistenceAdapter adapter = _database.getAdapter();
+            if (!handles.isEmpty()) {
+                adapter.removeMessageHandles(connection, handles);
+            }
+            if (!messages.isEmpty()) {
+                adapter.removeMessages(connection, messages);
+            }
+            _database.commit();
+            flushed = true;
+            if (_log.isDebugEnabled()) {
+                _log.debug("Removed " + handles.size() + " handles and "
+                           + messages.size() + " messages");
+            }
+        } catch (Exception exception) {
+            _log.error("Failed to remove " + handles.size()
+                       + " handles and " + messages.size() + " messages",
+                       exception);
+            try {
+                if (_database.isTransacted()) {
+                    _database.rollback();
+                }
+            } catch (PersistenceException error) {
+                _log.warn("Failed to rollback", error);
+            }
+        }
+        if (flushed) {
+            synchronized (_lock) {
+                Iterator iterator = handles.iterator();
+                while (iterator.hasNext()) {
+                    _pending.remove(getKey((MessageHandle) iterator.next()));
+                }
+            }
+        }
+        return flushed;
+    }
+
+}
@@ -119,7 +119,7 @@ class Destinations {
 
         PreparedStatement insert = null;
         try {
-            long Id = _seeds.next(connection, DESTINATION_ID_SEED);
+            long Id = _seeds.next(DESTINATION_ID_SEED);
             boolean isQueue = (destination instanceof JmsQueue);
 
             insert = connection.prepareStatement(
@@ -0,0 +1,148 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.persistence;
+
+import org.exolab.jms.message.MessageCodec;
+import org.exolab.jms.message.MessageImpl;
+
+
+/**
+ * A persistent message as read from the database, decoded on demand.
+ * <p/>
+ * The header and properties of the message may be decoded without decoding
+ * its body via {@link #getHeaders}. This enables selectors to be evaluated
+ * against messages without the cost of fully decoding those that aren't
+ * selected. The full message is only decoded by {@link #getMessage}.
+ * <p/>
+ * Messages written by prior versions using Java serialization can't be
+ * partially decoded, so these are fully decoded on first access.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public final class EncodedMessage {
+
+    /**
+     * The serialized message.
+     */
+    private final byte[] _blob;
+
+    /**
+     * Determines if the message has been processed.
+     */
+    private final boolean _processed;
+
+    /**
+     * The decoded header and properties, or <code>null</code> if they
+     * haven't been decoded.
+     */
+    private MessageImpl _headers;
+
+    /**
+     * The fully decoded message, if the blob was written using Java
+     * serialization.
+     */
+    private MessageImpl _message;
+
+
+    /**
+     * Construct a new <code>EncodedMessage</code>.
+     *
+     * @param blob      the serialized message
+     * @param processed determines if the message has been processed
+     */
+    public EncodedMessage(byte[] blob, boolean processed) {
+        _blob = blob;
+        _processed = processed;
+    }
+
+    /**
+     * Returns the header and properties of the message.
+     * <p/>
+     * The returned message has no body, and is read-only. It must not be
+     * delivered to consumers.
+     *
+     * @return the header and properties of the message
+     * @throws PersistenceException if the message can't be decoded
+     */
+    public synchronized MessageImpl getHeaders() throws PersistenceException {
+        if (_headers == null) {
+            if (MessageCodec.isEncoded(_blob)) {
+                try {
+                    MessageImpl headers = MessageCodec.decodeHeaders(_blob);
+                    headers.setProcessed(_processed);
+                    headers.setReadOnly(true);
+                    _headers = headers;
+                } catch (Exception exception) {
+                    throw new PersistenceException(
+                        "Failed to de-serialize message", exception);
+                }
+            } else {
+                _headers = getMessage();
+            }
+        }
+        return _headers;
+    }
+
+    /**
+     * Returns the fully decoded message.
+     *
+     * @return the message
+     * @throws PersistenceException if the message can't be decoded
+     */
+    public synchronized MessageImpl getMessage() throws PersistenceException {
+        MessageImpl result = _message;
+        if (result == null) {
+            result = Messages.decode(_blob);
+            result.setProcessed(_processed);
+            if (!MessageCodec.isEncoded(_blob)) {
+                // can't be partially decoded, so retain it for getHeaders()
+                _message = result;
+            }
+        }
+        return result;
+    }
+
+}
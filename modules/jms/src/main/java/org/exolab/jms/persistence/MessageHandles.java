@@ -46,6 +46,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -190,44 +194,15 @@ class MessageHandles {
 
         PreparedStatement insert = null;
         try {
-            // map the destination name to an actual identity
-            long destinationId = _destinations.getId(
-                handle.getDestination().getName());
-            if (destinationId == 0) {
-                throw new PersistenceException(
-                    "Cannot add message handle id=" + handle.getMessageId() +
-                    " for destination=" + handle.getDestination().getName() +
-                    " and consumer=" + handle.getConsumerPersistentId() +
-                    " since the destination cannot be mapped to an id");
-            }
-
-            // map the consumer name ot an identity
-            long consumerId = _consumers.getConsumerId(
-                handle.getConsumerPersistentId());
-            if (consumerId == 0) {
-                throw new PersistenceException(
-                    "Cannot add message handle id=" + handle.getMessageId() +
-                    " for destination=" + handle.getDestination().getName() +
-                    " and consumer=" + handle.getConsumerPersistentId() +
-                    " since the consumer cannot be mapped to an id");
-            }
-
             insert = connection.prepareStatement(INSERT_MSG_HANDLE_STMT);
-            insert.setString(1, handle.getMessageId());
-            insert.setLong(2, destinationId);
-            insert.setLong(3, consumerId);
-            insert.setInt(4, handle.getPriority());
-            insert.setLong(5, handle.getAcceptedTime());
-            insert.setLong(6, handle.getSequenceNumber());
-            insert.setLong(7, handle.getExpiryTime());
-            insert.setInt(8, (handle.getDelivered()) ? 1 : 0);
+            setInsertValues(insert, handle);
 
             // execute the insert
             if (insert.executeUpdate() != 1) {
                 _log.error(
                     "Failed to execute addMessageHandle for handle="
-                    + handle.getMessageId() + ", destination Id="
-                    + destinationId);
+                    + handle.getMessageId() + ", destination="
+                    + handle.getDestination().getName());
             }
         } catch (SQLException exception) {
             throw new PersistenceException("Failed to add message handle=" +
@@ -237,6 +212,185 @@ class MessageHandles {
         }
     }
 
+    /**
+     * Add a list of message handles to the database, using a single JDBC
+     * batch.
+     *
+     * @param connection - the connection to use
+     * @param handles - a list of <code>MessageHandle</code> instances
+     * @throws PersistenceException - if add does not complete
+     */
+    public void addMessageHandles(Connection connection, List handles)
+        throws PersistenceException {
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("addMessageHandles(count=" + handles.size() + ")");
+        }
+
+        PreparedStatement insert = null;
+        try {
+            insert = connection.prepareStatement(INSERT_MSG_HANDLE_STMT);
+            Iterator iterator = handles.iterator();
+            while (iterator.hasNext()) {
+                MessageHandle handle = (MessageHandle) iterator.next();
+                setInsertValues(insert, handle);
+                insert.addBatch();
+            }
+
+            // execute the batch
+            int[] counts = insert.executeBatch();
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                    MessageHandle handle = (MessageHandle) handles.get(i);
+                    _log.error(
+                        "Failed to execute addMessageHandles for handle="
+                        + handle.getMessageId() + ", destination="
+                        + handle.getDestination().getName());
+                }
+            }
+        } catch (SQLException exception) {
+            throw new PersistenceException("Failed to add " + handles.size()
+                + " message handles", exception);
+        } finally {
+            SQLHelper.close(insert);
+        }
+    }
+
+    /**
+     * Remove a list of message handles from the database, using JDBC
+     * batches. Handles whose consumer no longer exists are ignored.
+     *
+     * @param connection - the connection to use
+     * @param handles - a list of <code>MessageHandle</code> instances
+     * @throws PersistenceException - if remove does not complete
+     */
+    public void removeMessageHandles(Connection connection, List handles)
+        throws PersistenceException {
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("removeMessageHandles(count=" + handles.size() + ")");
+        }
+
+        // handles of destinations that no longer exist are removed using
+        // DELETE_MSG_HANDLE_STMT1, the remainder using DELETE_MSG_HANDLE_STMT2
+        PreparedStatement orphans = null;
+        PreparedStatement delete = null;
+        List orphanHandles = new ArrayList();
+        List deleteHandles = new ArrayList();
+
+        try {
+            Iterator iterator = handles.iterator();
+            while (iterator.hasNext()) {
+                MessageHandle handle = (MessageHandle) iterator.next();
+                long consumerId = _consumers.getConsumerId(
+                    handle.getConsumerPersistentId());
+                if (consumerId == 0) {
+                    continue;
+                }
+                String id = handle.getMessageId();
+                long destinationId = _destinations.getId(
+                    handle.getDestination().getName());
+                if (destinationId == 0) {
+                    if (orphans == null) {
+                        orphans = connection.prepareStatement(
+                            DELETE_MSG_HANDLE_STMT1);
+                    }
+                    orphans.setString(1, id);
+                    orphans.setLong(2, consumerId);
+                    orphans.addBatch();
+                    orphanHandles.add(handle);
+                } else {
+                    if (delete == null) {
+                        delete = connection.prepareStatement(
+                            DELETE_MSG_HANDLE_STMT2);
+                    }
+                    delete.setString(1, id);
+                    delete.setLong(2, destinationId);
+                    delete.setLong(3, consumerId);
+                    delete.addBatch();
+                    deleteHandles.add(handle);
+                }
+            }
+
+            // execute the batches
+            if (orphans != null) {
+                checkRemoved(orphans.executeBatch(), orphanHandles);
+            }
+            if (delete != null) {
+                checkRemoved(delete.executeBatch(), deleteHandles);
+            }
+        } catch (SQLException exception) {
+            throw new PersistenceException("Failed to remove "
+                + handles.size() + " message handles", exception);
+        } finally {
+            SQLHelper.close(orphans);
+            SQLHelper.close(delete);
+        }
+    }
+
+    /**
+     * Logs any unexpired handle that a batch failed to remove.
+     *
+     * @param counts - the update counts of the batch
+     * @param handles - the handles removed by the batch
+     */
+    private void checkRemoved(int[] counts, List handles) {
+        for (int i = 0; i < counts.length; ++i) {
+            MessageHandle handle = (MessageHandle) handles.get(i);
+            if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO
+                && !handle.hasExpired()) {
+                _log.error("Failed to execute removeMessageHandles for "
+                    + "handle=" + handle.getMessageId() + " consumer="
+                    + handle.getConsumerPersistentId());
+            }
+        }
+    }
+
+    /**
+     * Populates the insert statement for a message handle.
+     *
+     * @param insert - the insert statement
+     * @param handle - the message handle to insert
+     * @throws PersistenceException - if the handle's destination or consumer
+     * cannot be mapped to an identity
+     * @throws SQLException - for any SQL error
+     */
+    private void setInsertValues(PreparedStatement insert,
+                                 MessageHandle handle)
+        throws PersistenceException, SQLException {
+
+        // map the destination name to an actual identity
+        long destinationId = _destinations.getId(
+            handle.getDestination().getName());
+        if (destinationId == 0) {
+            throw new PersistenceException(
+                "Cannot add message handle id=" + handle.getMessageId() +
+                " for destination=" + handle.getDestination().getName() +
+                " and consumer=" + handle.getConsumerPersistentId() +
+                " since the destination cannot be mapped to an id");
+        }
+
+        // map the consumer name ot an identity
+        long consumerId = _consumers.getConsumerId(
+            handle.getConsumerPersistentId());
+        if (consumerId == 0) {
+            throw new PersistenceException(
+                "Cannot add message handle id=" + handle.getMessageId() +
+                " for destination=" + handle.getDestination().getName() +
+                " and consumer=" + handle.getConsumerPersistentId() +
+                " since the consumer cannot be mapped to an id");
+        }
+
+        insert.setString(1, handle.getMessageId());
+        insert.setLong(2, destinationId);
+        insert.setLong(3, consumerId);
+        insert.setInt(4, handle.getPriority());
+        insert.setLong(5, handle.getAcceptedTime());
+        insert.setLong(6, handle.getSequenceNumber());
+        insert.setLong(7, handle.getExpiryTime());
+        insert.setInt(8, (handle.getDelivered()) ? 1 : 0);
+    }
+
     /**
      * Remove the specified message handle from the database. Once the handle
      * has been removed check to see whether there are any more message handles
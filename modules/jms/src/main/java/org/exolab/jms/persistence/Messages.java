@@ -43,14 +43,16 @@
 package org.exolab.jms.persistence;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import javax.jms.JMSException;
@@ -60,6 +62,7 @@ import org.apache.commons.logging.LogFactory;
 
 import org.exolab.jms.client.JmsDestination;
 import org.exolab.jms.client.JmsTopic;
+import org.exolab.jms.message.MessageCodec;
 import org.exolab.jms.message.MessageImpl;
 import org.exolab.jms.messagemgr.PersistentMessageHandle;
 
@@ -77,11 +80,46 @@ class Messages {
      */
     private final Destinations _destinations;
 
+    /**
+     * Insert a message.
+     */
+    private static final String INSERT_MESSAGE_STMT =
+        "insert into messages (messageid, destinationid, priority, "
+        + "createtime, expirytime, processed, messageblob) values "
+        + "(?,?,?,?,?,?,?)";
+
+    /**
+     * The no. of identifiers that messages are selected by, in a single
+     * statement. Batches are padded to the nearest size, so that only a few
+     * distinct statements need be prepared and cached.
+     */
+    private static final int[] BATCH_SIZES = {1, 10, 50};
+
+    /**
+     * The statements to select messages by identifier, one for each of
+     * the {@link #BATCH_SIZES}.
+     */
+    private static final String[] SELECT_MESSAGES_STMTS
+        = new String[BATCH_SIZES.length];
+
     /**
      * The logger.
      */
     private static final Log _log = LogFactory.getLog(Messages.class);
 
+    static {
+        for (int i = 0; i < BATCH_SIZES.length; ++i) {
+            StringBuffer sql = new StringBuffer(
+                "select messageId, messageBlob, processed from messages "
+                + "where messageId in (?");
+            for (int j = 1; j < BATCH_SIZES[i]; ++j) {
+                sql.append(", ?");
+            }
+            sql.append(")");
+            SELECT_MESSAGES_STMTS[i] = sql.toString();
+        }
+    }
+
 
     /**
      * Construct a new <code>Messages</code>.
@@ -104,47 +142,13 @@ class Messages {
         throws PersistenceException {
 
         PreparedStatement insert = null;
-
-        // extract the identity of the message
-        String messageId = message.getMessageId().getId();
-
-        // check that the destination is actually registered
-        // and map the name to the corresponding id
-        String name;
-        try {
-            name = ((JmsDestination) message.getJMSDestination()).getName();
-        } catch (JMSException exception) {
-            throw new PersistenceException(
-                "Failed to get destination for message=" +
-                message.getMessageId(), exception);
-        }
-
-        long destinationId = _destinations.getId(name);
-        if (destinationId == 0) {
-            throw new PersistenceException(
-                "Cannot add message=" + message.getMessageId() +
-                ", destination=" + name + " (" + destinationId +
-                "): destination does not exist");
-        }
+        String name = getDestinationName(message);
+        long destinationId = getDestinationId(message, name);
 
         try {
             // create, populate and execute the insert
-            insert = connection.prepareStatement(
-                "insert into messages (messageid, destinationid, priority, "
-                + "createtime, expirytime, processed, messageblob) values "
-                + "(?,?,?,?,?,?,?)");
-            insert.setString(1, messageId);
-            insert.setLong(2, destinationId);
-            insert.setInt(3, message.getJMSPriority());
-            insert.setLong(4, message.getAcceptedTime());
-            insert.setLong(5, message.getJMSExpiration());
-            insert.setInt(6, (message.getProcessed()) ? 1 : 0);
-
-            // serialize the message
-            byte[] bytes = serialize(message);
-            insert.setBinaryStream(7, new ByteArrayInputStream(bytes),
-                bytes.length);
-            //insert.setBytes(8, bytes);
+            insert = connection.prepareStatement(INSERT_MESSAGE_STMT);
+            setInsertValues(insert, message, destinationId);
 
             // execute the insert
             if (insert.executeUpdate() != 1) {
@@ -164,6 +168,49 @@ class Messages {
         }
     }
 
+    /**
+     * Add a list of messages to the database, in the context of the specified
+     * transaction and connection. The messages are inserted using a single
+     * JDBC batch.
+     *
+     * @param connection - execute on this connection
+     * @param messages - a list of <code>MessageImpl</code> instances
+     * @throws PersistenceException - an sql related error
+     */
+    public void add(Connection connection, List messages)
+        throws PersistenceException {
+
+        PreparedStatement insert = null;
+        try {
+            insert = connection.prepareStatement(INSERT_MESSAGE_STMT);
+            Iterator iterator = messages.iterator();
+            while (iterator.hasNext()) {
+                MessageImpl message = (MessageImpl) iterator.next();
+                String name = getDestinationName(message);
+                long destinationId = getDestinationId(message, name);
+                setInsertValues(insert, message, destinationId);
+                insert.addBatch();
+            }
+
+            // execute the batch
+            int[] counts = insert.executeBatch();
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                    MessageImpl message = (MessageImpl) messages.get(i);
+                    throw new PersistenceException(
+                        "Failed to add message=" + message.getMessageId());
+                }
+            }
+        } catch (PersistenceException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new PersistenceException(
+                "Failed to add " + messages.size() + " messages", exception);
+        } finally {
+            SQLHelper.close(insert);
+        }
+    }
+
     /**
      * Update the message state in the database. This will be called to set
      * the message state to processed by the provider
@@ -226,6 +273,41 @@ class Messages {
         }
     }
 
+    /**
+     * Remove a list of messages, using a single JDBC batch.
+     *
+     * @param connection the connection to use
+     * @param ids        the identifiers of the messages to remove
+     * @throws PersistenceException for any persistence error
+     */
+    public void remove(Connection connection, List ids)
+        throws PersistenceException {
+
+        PreparedStatement delete = null;
+        try {
+            delete = connection.prepareStatement(
+                "delete from messages where messageId=?");
+            Iterator iterator = ids.iterator();
+            while (iterator.hasNext()) {
+                delete.setString(1, (String) iterator.next());
+                delete.addBatch();
+            }
+
+            // execute the batch
+            int[] counts = delete.executeBatch();
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                    _log.error("Cannot remove message=" + ids.get(i));
+                }
+            }
+        } catch (SQLException exception) {
+            throw new PersistenceException(
+                "Failed to remove " + ids.size() + " messages", exception);
+        } finally {
+            SQLHelper.close(delete);
+        }
+    }
+
     /**
      * Return the message identified by the message Id
      *
@@ -261,6 +343,116 @@ class Messages {
         return result;
     }
 
+    /**
+     * Return the message identified by the message Id, without decoding it.
+     *
+     * @param connection the connection to use
+     * @param messageId the identifier of the message to retrieve
+     * @return the encoded message, or <code>null</code> if it doesn't exist
+     * @throws PersistenceException for any SQL error
+     */
+    public EncodedMessage getEncoded(Connection connection, String messageId)
+        throws PersistenceException {
+
+        EncodedMessage result = null;
+        PreparedStatement select = null;
+        ResultSet set = null;
+        try {
+            select = connection.prepareStatement(
+                "select messageBlob, processed from messages where messageId=?");
+
+            select.setString(1, messageId);
+            set = select.executeQuery();
+            if (set.next()) {
+                byte[] blob = set.getBytes(1);
+                if (blob == null) {
+                    throw new PersistenceException(
+                        "Cannot de-serialize null message blob");
+                }
+                result = new EncodedMessage(blob, set.getInt(2) == 1);
+            }
+        } catch (SQLException exception) {
+            throw new PersistenceException(
+                "Failed to retrieve message, id=" + messageId, exception);
+        } finally {
+            SQLHelper.close(set);
+            SQLHelper.close(select);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the messages identified by a list of message identifiers.
+     *
+     * @param connection the connection to use
+     * @param ids        the identifiers of the messages to retrieve
+     * @return a map of message identifiers to their corresponding messages.
+     *         Messages that don't exist are excluded
+     * @throws PersistenceException for any persistence error
+     */
+    public Map get(Connection connection, List ids)
+        throws PersistenceException {
+
+        Map result = new HashMap();
+        int max = BATCH_SIZES[BATCH_SIZES.length - 1];
+        for (int i = 0; i < ids.size(); i += max) {
+            get(connection, ids.subList(i, Math.min(i + max, ids.size())),
+                result);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves a batch of messages, identified by a list of message
+     * identifiers. The identifiers are padded to the nearest batch size by
+     * repeating the last identifier.
+     *
+     * @param connection the connection to use
+     * @param ids        the identifiers of the messages to retrieve. Must
+     *                   contain between 1 and the maximum batch size
+     *                   identifiers
+     * @param result     the map to add the messages to, keyed on message
+     *                   identifier
+     * @throws PersistenceException for any persistence error
+     */
+    private void get(Connection connection, List ids, Map result)
+        throws PersistenceException {
+
+        int batch = 0;
+        while (BATCH_SIZES[batch] < ids.size()) {
+            ++batch;
+        }
+
+        PreparedStatement select = null;
+        ResultSet set = null;
+        try {
+            select = connection.prepareStatement(
+                SELECT_MESSAGES_STMTS[batch]);
+            int index = 1;
+            Iterator iterator = ids.iterator();
+            while (iterator.hasNext()) {
+                select.setString(index++, (String) iterator.next());
+            }
+            String last = (String) ids.get(ids.size() - 1);
+            while (index <= BATCH_SIZES[batch]) {
+                select.setString(index++, last);
+            }
+            set = select.executeQuery();
+            while (set.next()) {
+                MessageImpl message = deserialize(set.getBytes(2));
+                message.setProcessed((set.getInt(3) == 1 ? true : false));
+                result.put(set.getString(1), message);
+            }
+        } catch (SQLException exception) {
+            throw new PersistenceException(
+                "Failed to retrieve messages", exception);
+        } finally {
+            SQLHelper.close(set);
+            SQLHelper.close(select);
+        }
+    }
+
     /**
      * Delete all messages for the given destination
      *
@@ -566,7 +758,73 @@ class Messages {
     }
 
     /**
-     * Get the message as a serialized blob
+     * Returns the name of a message's destination.
+     *
+     * @param message the message
+     * @return the name of the message's destination
+     * @throws PersistenceException if the destination cannot be determined
+     */
+    private String getDestinationName(MessageImpl message)
+        throws PersistenceException {
+        try {
+            return ((JmsDestination) message.getJMSDestination()).getName();
+        } catch (JMSException exception) {
+            throw new PersistenceException(
+                "Failed to get destination for message=" +
+                message.getMessageId(), exception);
+        }
+    }
+
+    /**
+     * Maps the name of a message's destination to its identifier, checking
+     * that the destination is actually registered.
+     *
+     * @param message the message
+     * @param name the name of the message's destination
+     * @return the destination identifier
+     * @throws PersistenceException if the destination does not exist
+     */
+    private long getDestinationId(MessageImpl message, String name)
+        throws PersistenceException {
+        long destinationId = _destinations.getId(name);
+        if (destinationId == 0) {
+            throw new PersistenceException(
+                "Cannot add message=" + message.getMessageId() +
+                ", destination=" + name + " (" + destinationId +
+                "): destination does not exist");
+        }
+        return destinationId;
+    }
+
+    /**
+     * Populates the insert statement for a message.
+     *
+     * @param insert the insert statement
+     * @param message the message to insert
+     * @param destinationId the identifier of the message's destination
+     * @throws JMSException if the message header cannot be read
+     * @throws PersistenceException if the message cannot be serialized
+     * @throws SQLException for any SQL error
+     */
+    private void setInsertValues(PreparedStatement insert, MessageImpl message,
+                                 long destinationId)
+        throws JMSException, PersistenceException, SQLException {
+        insert.setString(1, message.getMessageId().getId());
+        insert.setLong(2, destinationId);
+        insert.setInt(3, message.getJMSPriority());
+        insert.setLong(4, message.getAcceptedTime());
+        insert.setLong(5, message.getJMSExpiration());
+        insert.setInt(6, (message.getProcessed()) ? 1 : 0);
+
+        // serialize the message
+        byte[] bytes = serialize(message);
+        insert.setBinaryStream(7, new ByteArrayInputStream(bytes),
+            bytes.length);
+    }
+
+    /**
+     * Get the message as a serialized blob. The message is encoded using
+     * {@link MessageCodec}.
      *
      * @param       message             the message to serialize
      * @return      byte[]              the serialized message
@@ -575,32 +833,45 @@ class Messages {
         throws PersistenceException {
 
         byte[] result = null;
-        ObjectOutputStream ostream = null;
         try {
-            ByteArrayOutputStream bstream = new ByteArrayOutputStream();
-            ostream = new ObjectOutputStream(bstream);
-            ostream.writeObject(message);
-            result = bstream.toByteArray();
+            result = MessageCodec.encode(message);
         } catch (Exception exception) {
             throw new PersistenceException("Failed to serialize message",
                 exception);
-        } finally {
-            SQLHelper.close(ostream);
         }
 
         return result;
     }
 
     /**
-     * Set the message from a serialized blob
+     * Set the message from a serialized blob. The blob may have been written
+     * by {@link MessageCodec}, or by Java serialization, by prior versions.
      *
      * @param blob the serialized message
      * @return the re-constructed message
      */
     public MessageImpl deserialize(byte[] blob) throws PersistenceException {
+        return decode(blob);
+    }
+
+    /**
+     * Set the message from a serialized blob. The blob may have been written
+     * by {@link MessageCodec}, or by Java serialization, by prior versions.
+     *
+     * @param blob the serialized message
+     * @return the re-constructed message
+     */
+    static MessageImpl decode(byte[] blob) throws PersistenceException {
         MessageImpl message = null;
 
-        if (blob != null) {
+        if (blob != null && MessageCodec.isEncoded(blob)) {
+            try {
+                message = MessageCodec.decode(blob);
+            } catch (Exception exception) {
+                throw new PersistenceException(
+                    "Failed to de-serialize message", exception);
+            }
+        } else if (blob != null) {
             ObjectInputStream istream = null;
             try {
                 ByteArrayInputStream bstream = new ByteArrayInputStream(blob);
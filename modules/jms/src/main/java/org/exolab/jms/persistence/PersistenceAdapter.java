@@ -47,6 +47,8 @@ package org.exolab.jms.persistence;
 import java.sql.Connection;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.exolab.jms.authentication.User;
@@ -105,6 +107,16 @@ public abstract class PersistenceAdapter {
                                     MessageImpl message)
         throws PersistenceException;
 
+    /**
+     * Add a list of new messages to the database, in a single batch.
+     *
+     * @param connection  the connection to use
+     * @param messages a list of <code>MessageImpl</code> instances
+     * @throws PersistenceException
+     */
+    public abstract void addMessages(Connection connection, List messages)
+        throws PersistenceException;
+
     /**
      * Update this message in the database
      *
@@ -127,6 +139,16 @@ public abstract class PersistenceAdapter {
                                        String id)
         throws PersistenceException;
 
+    /**
+     * Remove a list of messages from the database, in a single batch.
+     *
+     * @param connection the connection to use
+     * @param ids        the identities of the messages to remove
+     * @throws PersistenceException
+     */
+    public abstract void removeMessages(Connection connection, List ids)
+        throws PersistenceException;
+
     /**
      * Remove all expired messages and associated references from the
      * database. It uses the current time to determine messages that
@@ -175,6 +197,33 @@ public abstract class PersistenceAdapter {
                                            String id)
         throws PersistenceException;
 
+    /**
+     * Get a message from the persistence store, without decoding it.
+     * The message header and properties may subsequently be decoded
+     * independently of the message body.
+     *
+     * @param connection the connection to use
+     * @param id the id of the message to search for
+     * @return the encoded message if found, otherwise <code>null</code>
+     * @throws PersistenceException for any persistence error
+     */
+    public abstract EncodedMessage getEncodedMessage(Connection connection,
+                                                     String id)
+        throws PersistenceException;
+
+    /**
+     * Get a set of messages from the persistence store, in a single query.
+     *
+     * @param connection the connection to use
+     * @param ids        the identifiers of the messages to retrieve
+     * @return a map of message identifiers to their corresponding
+     *         <code>MessageImpl</code> instances. Messages that weren't found
+     *         are excluded
+     * @throws PersistenceException
+     */
+    public abstract Map getMessages(Connection connection, List ids)
+        throws PersistenceException;
+
     /**
      * Get at least the next message given the specified persistent
      * handle. The handle encodes all the information, including destination
@@ -212,6 +261,17 @@ public abstract class PersistenceAdapter {
                                           MessageHandle handle)
         throws PersistenceException;
 
+    /**
+     * Add a list of persistent message handles, in a single batch.
+     *
+     * @param connection - the connection to use
+     * @param handles - a list of <code>MessageHandle</code> instances
+     * @throws PersistenceException
+     */
+    public abstract void addMessageHandles(Connection connection,
+                                           List handles)
+        throws PersistenceException;
+
     /**
      * Update the specified persistent message handle.
      *
@@ -235,6 +295,17 @@ public abstract class PersistenceAdapter {
                                              MessageHandle handle)
         throws PersistenceException;
 
+    /**
+     * Remove a list of persistent message handles, in a single batch.
+     *
+     * @param connection the connection to use
+     * @param handles    a list of <code>MessageHandle</code> instances
+     * @throws PersistenceException
+     */
+    public abstract void removeMessageHandles(Connection connection,
+                                              List handles)
+        throws PersistenceException;
+
     /**
      * Get all the persistent message handles for the specified destination
      * and consumer name.
@@ -0,0 +1,501 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.persistence;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Caches <code>PreparedStatement</code>s for each physical database
+ * connection, keyed on SQL.
+ * <p/>
+ * Connections are wrapped so that <code>prepareStatement(String)</code>
+ * returns a cached statement if one is available, and so that closing the
+ * statement returns it to the cache. The DAOs therefore use the cache
+ * transparently. Each connection caches at most <code>maxStatements</code>
+ * statements; the least recently used is closed when the limit is exceeded.
+ * <p/>
+ * Statements are prepared on the physical connection rather than on the
+ * connection pool's wrapper, so that they survive the connection being
+ * returned to the pool. The statements of a physical connection are
+ * discarded once the pool closes it.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+class PreparedStatementCache {
+
+    /**
+     * The maximum no. of statements to cache per connection.
+     */
+    private final int _maxStatements;
+
+    /**
+     * The statement caches, keyed on physical connection.
+     */
+    private final Map _caches = new HashMap();
+
+    /**
+     * The no. of statements returned from the cache.
+     */
+    private long _hits = 0;
+
+    /**
+     * The no. of statements that had to be prepared.
+     */
+    private long _misses = 0;
+
+    /**
+     * The no. of lookups between logging the hit rate.
+     */
+    private static final int LOG_INTERVAL = 1000;
+
+    /**
+     * The logger.
+     */
+    private static final Log _log
+            = LogFactory.getLog(PreparedStatementCache.class);
+
+
+    /**
+     * Construct a new <code>PreparedStatementCache</code>.
+     *
+     * @param maxStatements the maximum no. of statements to cache per
+     *                      connection
+     */
+    public PreparedStatementCache(int maxStatements) {
+        if (maxStatements <= 0) {
+            throw new IllegalArgumentException(
+                    "Argument 'maxStatements' must be > 0");
+        }
+        _maxStatements = maxStatements;
+    }
+
+    /**
+     * Wraps a connection so that its prepared statements are cached.
+     *
+     * @param connection the connection to wrap
+     * @param physical   the underlying physical connection, used to prepare
+     *                   statements
+     * @return the wrapped connection
+     */
+    public Connection getConnection(Connection connection,
+                                    Connection physical) {
+        Statements statements;
+        synchronized (_caches) {
+            statements = (Statements) _caches.get(physical);
+            if (statements == null) {
+                // a new physical connection typically replaces one that the
+                // pool has closed
+                purge();
+                statements = new Statements(physical);
+                _caches.put(physical, statements);
+            }
+        }
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class[]{Connection.class},
+                new ConnectionHandler(connection, statements));
+    }
+
+    /**
+     * Returns the no. of physical connections with cached statements.
+     *
+     * @return the no. of physical connections
+     */
+    int size() {
+        synchronized (_caches) {
+            return _caches.size();
+        }
+    }
+
+    /**
+     * Returns the no. of statements returned from the cache.
+     *
+     * @return the no. of cache hits
+     */
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    /**
+     * Returns the no. of statements that had to be prepared.
+     *
+     * @return the no. of cache misses
+     */
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    /**
+     * Records a lookup, periodically logging the hit rate.
+     *
+     * @param hit if <code>true</code> the lookup was a cache hit
+     */
+    private synchronized void record(boolean hit) {
+        if (hit) {
+            ++_hits;
+        } else {
+            ++_misses;
+        }
+        long total = _hits + _misses;
+        if (total % LOG_INTERVAL == 0 && _log.isDebugEnabled()) {
+            _log.debug("Statement cache hits=" + _hits + ", misses="
+                       + _misses + ", hit rate=" + (_hits * 100 / total)
+                       + "%");
+        }
+    }
+
+    /**
+     * Removes the statements of a closed physical connection, closing them.
+     *
+     * @param statements the statements to remove
+     */
+    private void remove(Statements statements) {
+        synchronized (_caches) {
+            if (_caches.get(statements.getConnection()) == statements) {
+                _caches.remove(statements.getConnection());
+            }
+        }
+        statements.clear();
+    }
+
+    /**
+     * Removes the statements of all closed physical connections.
+     * The caller must hold the lock on <code>_caches</code>.
+     */
+    private void purge() {
+        Iterator iterator = _caches.values().iterator();
+        while (iterator.hasNext()) {
+            Statements statements = (Statements) iterator.next();
+            if (statements.isClosed()) {
+                iterator.remove();
+                statements.clear();
+            }
+        }
+    }
+
+    /**
+     * Invokes a method, unwrapping any exception it throws.
+     *
+     * @param target the object to invoke the method on
+     * @param method the method
+     * @param args   the method arguments
+     * @return the result of the method
+     * @throws Throwable the exception thrown by the method
+     */
+    private static Object invoke(Object target, Method method, Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException exception) {
+            throw exception.getTargetException();
+        }
+    }
+
+    /**
+     * The cached statements of a physical connection, in least recently
+     * used order.
+     */
+    private class Statements {
+
+        /**
+         * The physical connection.
+         */
+        private final Connection _connection;
+
+        /**
+         * The idle statements, keyed on SQL.
+         */
+        private final LinkedHashMap _statements
+                = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                boolean remove = size() > _maxStatements;
+                if (remove) {
+                    close((PreparedStatement) eldest.getValue());
+                }
+                return remove;
+            }
+        };
+
+        /**
+         * Construct a new <code>Statements</code>.
+         *
+         * @param connection the physical connection
+         */
+        public Statements(Connection connection) {
+            _connection = connection;
+        }
+
+        /**
+         * Returns the physical connection.
+         *
+         * @return the physical connection
+         */
+        public Connection getConnection() {
+            return _connection;
+        }
+
+        /**
+         * Returns a statement for the supplied SQL, preparing it if there is
+         * no idle statement in the cache.
+         *
+         * @param sql the SQL
+         * @return the statement
+         * @throws SQLException if the statement can't be prepared
+         */
+        public synchronized PreparedStatement prepare(String sql)
+                throws SQLException {
+            PreparedStatement statement
+                    = (PreparedStatement) _statements.remove(sql);
+            record(statement != null);
+            if (statement == null) {
+                statement = _connection.prepareStatement(sql);
+            }
+            return statement;
+        }
+
+        /**
+         * Returns a statement to the cache. If there is already an idle
+         * statement for the same SQL, the statement is closed.
+         *
+         * @param sql       the statement's SQL
+         * @param statement the statement
+         */
+        public synchronized void release(String sql,
+                                         PreparedStatement statement) {
+            boolean cached = false;
+            if (!_statements.containsKey(sql)) {
+                try {
+                    statement.clearParameters();
+                    statement.clearWarnings();
+                    _statements.put(sql, statement);
+                    cached = true;
+                } catch (SQLException ignore) {
+                    // statement is unusable
+                }
+            }
+            if (!cached) {
+                close(statement);
+            }
+        }
+
+        /**
+         * Closes all idle statements.
+         */
+        public synchronized void clear() {
+            Iterator iterator = _statements.values().iterator();
+            while (iterator.hasNext()) {
+                close((PreparedStatement) iterator.next());
+            }
+            _statements.clear();
+        }
+
+        /**
+         * Determines if the physical connection has been closed.
+         *
+         * @return <code>true</code> if the connection has been closed
+         */
+        public boolean isClosed() {
+            boolean closed;
+            try {
+                closed = _connection.isClosed();
+            } catch (SQLException exception) {
+                closed = true;
+            }
+            return closed;
+        }
+
+        /**
+         * Helper to close a statement, logging any error.
+         *
+         * @param statement the statement to close
+         */
+        private void close(PreparedStatement statement) {
+            try {
+                statement.close();
+            } catch (SQLException exception) {
+                _log.debug("Failed to close statement", exception);
+            }
+        }
+    }
+
+    /**
+     * Handler for connection proxies, which prepares statements via the
+     * cache. All other methods are delegated to the connection.
+     */
+    private class ConnectionHandler implements InvocationHandler {
+
+        /**
+         * The connection to delegate to.
+         */
+        private final Connection _connection;
+
+        /**
+         * The cached statements.
+         */
+        private final Statements _statements;
+
+        /**
+         * Construct a new <code>ConnectionHandler</code>.
+         *
+         * @param connection the connection to delegate to
+         * @param statements the cached statements
+         */
+        public ConnectionHandler(Connection connection,
+                                 Statements statements) {
+            _connection = connection;
+            _statements = statements;
+        }
+
+        /**
+         * Invokes a connection method.
+         *
+         * @param proxy  the proxy instance
+         * @param method the method to invoke
+         * @param args   the method arguments
+         * @return the result of the method
+         * @throws Throwable the exception thrown by the method
+         */
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            Class[] types = method.getParameterTypes();
+            if (method.getName().equals("prepareStatement")
+                    && types.length == 1 && types[0] == String.class) {
+                if (_statements.isClosed()) {
+                    remove(_statements);
+                    return PreparedStatementCache.invoke(_connection, method,
+                                                         args);
+                }
+                String sql = (String) args[0];
+                PreparedStatement statement = _statements.prepare(sql);
+                return Proxy.newProxyInstance(
+                        PreparedStatement.class.getClassLoader(),
+                        new Class[]{PreparedStatement.class},
+                        new StatementHandler(sql, statement, _statements));
+            }
+            return PreparedStatementCache.invoke(_connection, method, args);
+        }
+    }
+
+    /**
+     * Handler for statement proxies, which returns the statement to the cache
+     * when it is closed.
+     */
+    private static class StatementHandler implements InvocationHandler {
+
+        /**
+         * The statement's SQL.
+         */
+        private final String _sql;
+
+        /**
+         * The statement to delegate to.
+         */
+        private final PreparedStatement _statement;
+
+        /**
+         * The cache to return the statement to.
+         */
+        private final Statements _statements;
+
+        /**
+         * Determines if the statement has been closed.
+         */
+        private boolean _closed = false;
+
+        /**
+         * Construct a new <code>StatementHandler</code>.
+         *
+         * @param sql        the statement's SQL
+         * @param statement  the statement to delegate to
+         * @param statements the cache to return the statement to
+         */
+        public StatementHandler(String sql, PreparedStatement statement,
+                                Statements statements) {
+            _sql = sql;
+            _statement = statement;
+            _statements = statements;
+        }
+
+        /**
+         * Invokes a statement method.
+         *
+         * @param proxy  the proxy instance
+         * @param method the method to invoke
+         * @param args   the method arguments
+         * @return the result of the method
+         * @throws Throwable the exception thrown by the method
+         */
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if (method.getName().equals("close")
+                    && method.getParameterTypes().length == 0) {
+                if (!_closed) {
+                    _closed = true;
+                    _statements.release(_sql, _statement);
+                }
+                return null;
+            } else if (_closed) {
+                throw new SQLException("Statement is closed");
+            }
+            return PreparedStatementCache.invoke(_statement, method, args);
+        }
+    }
+
+}
@@ -51,6 +51,8 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import EDU.oswego.cs.dl.util.concurrent.FIFOReadWriteLock;
@@ -166,6 +168,8 @@ public class RDBMSAdapter
         _connectionManager.setEvictionInterval(config.getEvictionInterval());
         _connectionManager.setTestQuery(config.getTestQuery());
         _connectionManager.setTestBeforeUse(config.getTestBeforeUse());
+        _connectionManager.setMaxPreparedStatements(
+                config.getMaxPreparedStatements());
 
         // initialisze the connection manager
         _connectionManager.init();
@@ -187,7 +191,7 @@ public class RDBMSAdapter
                     + "to convert the schema");
             }
 
-            _seeds = new SeedGenerator();
+            _seeds = new SeedGenerator(_connectionManager);
             _consumers = new Consumers(_seeds, connection);
             _destinations = new Destinations(_seeds, _consumers, connection);
             _consumers.setDestinations(_destinations);
@@ -316,6 +320,32 @@ public class RDBMSAdapter
         }
     }
 
+    // implementation of PersistenceAdapter.addMessages
+    public void addMessages(Connection connection, List messages)
+            throws PersistenceException {
+
+        long start = 0;
+
+        if (_log.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+
+        try {
+            _destinationLock.readLock().acquire();
+            _messages.add(connection, messages);
+        } catch (InterruptedException exception) {
+            throw new PersistenceException("Failed to acquire lock",
+                                           exception);
+        } finally {
+            _destinationLock.readLock().release();
+
+            if (_log.isDebugEnabled()) {
+                _log.debug("addMessages," +
+                           (System.currentTimeMillis() - start));
+            }
+        }
+    }
+
     // implementation of PersistenceMessage.addMessage
     public void updateMessage(Connection connection, MessageImpl message)
             throws PersistenceException {
@@ -359,6 +389,29 @@ public class RDBMSAdapter
     }
 
 
+    // implementation of PersistenceAdapter.removeMessages
+    public void removeMessages(Connection connection, List ids)
+            throws PersistenceException {
+        long start = 0;
+        if (_log.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+
+        try {
+            _destinationLock.readLock().acquire();
+            _messages.remove(connection, ids);
+        } catch (InterruptedException exception) {
+            throw new PersistenceException("Failed to acquire lock",
+                                           exception);
+        } finally {
+            _destinationLock.readLock().release();
+            if (_log.isDebugEnabled()) {
+                _log.debug("removeMessages," + ids.size() + ","
+                           + (System.currentTimeMillis() - start));
+            }
+        }
+    }
+
     // implementation of PersistenceAdapter.removeMessage
     public void removeMessage(Connection connection, String id)
             throws PersistenceException {
@@ -400,6 +453,42 @@ public class RDBMSAdapter
         }
     }
 
+    // implementation of PersistenceAdapter.getEncodedMessage
+    public EncodedMessage getEncodedMessage(Connection connection, String id)
+            throws PersistenceException {
+        long start = 0;
+        if (_log.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+
+        try {
+            return _messages.getEncoded(connection, id);
+        } finally {
+            if (_log.isDebugEnabled()) {
+                _log.debug("getEncodedMessage,"
+                           + (System.currentTimeMillis() - start));
+            }
+        }
+    }
+
+    // implementation of PersistenceAdapter.getMessages
+    public Map getMessages(Connection connection, List ids)
+            throws PersistenceException {
+        long start = 0;
+        if (_log.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+
+        try {
+            return _messages.get(connection, ids);
+        } finally {
+            if (_log.isDebugEnabled()) {
+                _log.debug("getMessages," + ids.size() + ","
+                           + (System.currentTimeMillis() - start));
+            }
+        }
+    }
+
     // implementation of PersistenceAdapter.getMessages
     public Vector getMessages(Connection connection, MessageHandle handle)
             throws PersistenceException {
@@ -445,6 +534,30 @@ public class RDBMSAdapter
         }
     }
 
+    // implementation of PersistenceAdapter.addMessageHandles
+    public void addMessageHandles(Connection connection, List handles)
+            throws PersistenceException {
+        long start = 0;
+        if (_log.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+
+        try {
+            _destinationLock.readLock().acquire();
+            _handles.addMessageHandles(connection, handles);
+        } catch (InterruptedException exception) {
+            throw new PersistenceException("Failed to acquire lock",
+                                           exception);
+        } finally {
+            _destinationLock.readLock().release();
+            if (_log.isDebugEnabled()) {
+                _log.debug(
+                        "addMessageHandles,"
+                        + (System.currentTimeMillis() - start));
+            }
+        }
+    }
+
     // implementation of PersistenceAdapter.updateMessageHandle
     public void updateMessageHandle(Connection connection,
                                     MessageHandle handle)
@@ -495,6 +608,29 @@ public class RDBMSAdapter
         }
     }
 
+    // implementation of PersistenceAdapter.removeMessageHandles
+    public void removeMessageHandles(Connection connection, List handles)
+            throws PersistenceException {
+        long start = 0;
+        if (_log.isDebugEnabled()) {
+            start = System.currentTimeMillis();
+        }
+
+        try {
+            _destinationLock.readLock().acquire();
+            _handles.removeMessageHandles(connection, handles);
+        } catch (InterruptedException exception) {
+            throw new PersistenceException("Failed to acquire lock",
+                                           exception);
+        } finally {
+            _destinationLock.readLock().release();
+            if (_log.isDebugEnabled()) {
+                _log.debug("removeMessageHandles," + handles.size() + ","
+                           + (System.currentTimeMillis() - start));
+            }
+        }
+    }
+
     // implementation of PersistenceAdapter.getMessageHandles
     public Vector getMessageHandles(Connection connection,
                                     JmsDestination destination, String name)
@@ -45,56 +45,157 @@ package org.exolab.jms.persistence;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
  * This class generates seeds.
+ * <p/>
+ * Seeds are allocated from blocks reserved in the <em>seeds</em> table.
+ * Each reservation is committed in its own transaction, on a connection
+ * taken from the connection manager, independently of that of the caller.
+ * The table therefore always records the highest value that may have been
+ * handed out. Values in a block that are unused when the server stops are
+ * simply discarded.
  *
  * @version     $Revision: 1.4 $ $Date: 2005/08/31 05:45:50 $
  * @author      <a href="mailto:tma@netspace.net.au">Tim Anderson</a>
  */
 class SeedGenerator {
 
+    /**
+     * The connection manager, used to obtain connections to reserve blocks.
+     */
+    private final DBConnectionManager _connections;
+
+    /**
+     * The no. of seeds to reserve at a time.
+     */
+    private final int _blockSize;
+
+    /**
+     * The current block of each seed, keyed on name.
+     */
+    private final Map _blocks = new HashMap();
+
+    /**
+     * The default no. of seeds to reserve at a time.
+     */
+    private static final int BLOCK_SIZE = 1000;
+
+
+    /**
+     * Construct a new <code>SeedGenerator</code>.
+     *
+     * @param connections the connection manager
+     */
+    public SeedGenerator(DBConnectionManager connections) {
+        this(connections, BLOCK_SIZE);
+    }
+
+    /**
+     * Construct a new <code>SeedGenerator</code>.
+     *
+     * @param connections the connection manager
+     * @param blockSize   the no. of seeds to reserve at a time
+     */
+    public SeedGenerator(DBConnectionManager connections, int blockSize) {
+        if (connections == null) {
+            throw new IllegalArgumentException(
+                "Argument 'connections' is null");
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException(
+                "Argument 'blockSize' must be > 0");
+        }
+        _connections = connections;
+        _blockSize = blockSize;
+    }
+
     /**
      * Return the next seed value for the given name.
      *
-     * @param connection the connection to use
      * @param name - the name of the seed
      * @return long - the next seed value
      * @exception PersistenceException - if the seed cannot be retrieved
      */
-    public synchronized long next(Connection connection, String name)
+    public long next(String name) throws PersistenceException {
+        Block block;
+        synchronized (_blocks) {
+            block = (Block) _blocks.get(name);
+            if (block == null) {
+                block = new Block(name);
+                _blocks.put(name, block);
+            }
+        }
+        return block.next();
+    }
+
+    /**
+     * Remove all seeds.
+     *
+     * @param connection the connection to use
+     * @exception PersistenceException if the seeds can't be removed
+     */
+    public void removeAll(Connection connection)
         throws PersistenceException {
 
+        PreparedStatement delete = null;
+        try {
+            delete = connection.prepareStatement("delete from seeds");
+            delete.executeUpdate();
+            synchronized (_blocks) {
+                _blocks.clear();
+            }
+        } catch (Exception error) {
+            throw new PersistenceException("Failed in removeAll with " +
+                error.toString());
+        } finally {
+            SQLHelper.close(delete);
+        }
+    }
+
+    /**
+     * Reserves a block of seeds, in a separate transaction.
+     *
+     * @param name the name of the seed
+     * @return the last seed value in the reserved block
+     * @exception PersistenceException if the block cannot be reserved
+     */
+    private long reserve(String name) throws PersistenceException {
+        Connection connection = _connections.getConnection();
         PreparedStatement select = null;
         PreparedStatement update = null;
         PreparedStatement insert = null;
         ResultSet result = null;
-        long value = 0;
+        long value = _blockSize;
 
         try {
-            select = connection.prepareStatement(
-                "select seed from seeds where name=?");
-            select.setString(1, name);
-
-            result = select.executeQuery();
-            if (result.next()) {
+            update = connection.prepareStatement(
+                "update seeds set seed=seed+? where name=?");
+            update.setLong(1, _blockSize);
+            update.setString(2, name);
+            if (update.executeUpdate() == 1) {
+                select = connection.prepareStatement(
+                    "select seed from seeds where name=?");
+                select.setString(1, name);
+                result = select.executeQuery();
+                if (!result.next()) {
+                    throw new PersistenceException(
+                        "Failed to read seed=" + name);
+                }
                 value = result.getLong(1);
-                value++;
-                update = connection.prepareStatement(
-                    "update seeds set seed=? where name=?");
-                update.setLong(1, value);
-                update.setString(2, name);
-                update.executeUpdate();
             } else {
-                value = 1;
                 insert = connection.prepareStatement(
                     "insert into seeds (name, seed) values (?,?)");
                 insert.setString(1, name);
                 insert.setLong(2, value);
                 insert.executeUpdate();
             }
+            connection.commit();
         } catch (Exception exception) {
+            SQLHelper.rollback(connection);
             throw new PersistenceException("Failed to generate seed="+ name,
                                            exception);
         } finally {
@@ -102,29 +203,54 @@ class SeedGenerator {
             SQLHelper.close(select);
             SQLHelper.close(update);
             SQLHelper.close(insert);
+            SQLHelper.close(connection);
         }
 
         return value;
     }
 
     /**
-     * Remove all seeds.
-     *
-     * @param connection the connection to use
-     * @exception PersistenceException if the seeds can't be removed
+     * A block of reserved seeds.
      */
-    public void removeAll(Connection connection)
-        throws PersistenceException {
+    private class Block {
 
-        PreparedStatement delete = null;
-        try {
-            delete = connection.prepareStatement("delete from seeds");
-            delete.executeUpdate();
-        } catch (Exception error) {
-            throw new PersistenceException("Failed in removeAll with " +
-                error.toString());
-        } finally {
-            SQLHelper.close(delete);
+        /**
+         * The name of the seed.
+         */
+        private final String _name;
+
+        /**
+         * The next value to hand out.
+         */
+        private long _next = 1;
+
+        /**
+         * The last value in the block.
+         */
+        private long _last = 0;
+
+        /**
+         * Construct a new <code>Block</code>.
+         *
+         * @param name the name of the seed
+         */
+        public Block(String name) {
+            _name = name;
+        }
+
+        /**
+         * Returns the next value, reserving a new block if this one is
+         * exhausted.
+         *
+         * @return the next value
+         * @exception PersistenceException if a block cannot be reserved
+         */
+        public synchronized long next() throws PersistenceException {
+            if (_next > _last) {
+                _last = reserve(_name);
+                _next = _last - _blockSize + 1;
+            }
+            return _next++;
         }
     }
 
@@ -98,6 +98,33 @@ class BetweenExpression implements Expression {
         _num3 = num3;
     }
 
+    /**
+     * Returns the expression being tested
+     *
+     * @return the expression corresponding to numeric-expr1
+     */
+    public final Expression value() {
+        return _num1;
+    }
+
+    /**
+     * Returns the lower bound
+     *
+     * @return the expression corresponding to numeric-expr2
+     */
+    public final Expression lower() {
+        return _num2;
+    }
+
+    /**
+     * Returns the upper bound
+     *
+     * @return the expression corresponding to numeric-expr3
+     */
+    public final Expression upper() {
+        return _num3;
+    }
+
     /**
      * Evaluate the 'between' expression
      *
@@ -60,16 +60,27 @@ import javax.jms.Message;
  */
 class Identifier implements Expression {
 
+    /**
+     * Identifier kinds
+     */
+    public static final int PROPERTY = 0;
+    public static final int HEADER = 1;
+    public static final int PRIORITY = 2;
+    public static final int TIMESTAMP = 3;
+    public static final int DELIVERY_MODE = 4;
+    public static final int MESSAGE_ID = 5;
+    public static final int CORRELATION_ID = 6;
+    public static final int TYPE = 7;
+
     /**
      * The identifier name
      */
     private final String _name;
 
     /**
-     * If true the identifier is a header identifier, otherwise it is an user
-     * identifier
+     * The identifier kind
      */
-    private final boolean _headerField;
+    private final int _kind;
 
     /**
      * Persistent delivery mode
@@ -83,6 +94,18 @@ class Identifier implements Expression {
     private static final SString NON_PERSISTENT =
         new SString(Identifiers.NON_PERSISTENT);
 
+    /**
+     * Priorities, indexed on value. These avoid allocating a new object
+     * each time the JMSPriority header field is accessed
+     */
+    private static final Long[] PRIORITIES = new Long[10];
+
+    static {
+        for (int i = 0; i < PRIORITIES.length; ++i) {
+            PRIORITIES[i] = new Long(i);
+        }
+    }
+
 
     /**
      * Construct a new <code>Identifier</code>
@@ -98,12 +121,35 @@ class Identifier implements Expression {
             if (!Identifiers.isQueryableJMSIdentifier(_name)) {
                 throw new SelectorException("Invalid header field: " + _name);
             }
-            _headerField = true;
+            if (_name.equals(Identifiers.JMS_PRIORITY)) {
+                _kind = PRIORITY;
+            } else if (_name.equals(Identifiers.JMS_TIMESTAMP)) {
+                _kind = TIMESTAMP;
+            } else if (_name.equals(Identifiers.JMS_DELIVERY_MODE)) {
+                _kind = DELIVERY_MODE;
+            } else if (_name.equals(Identifiers.JMS_MESSAGE_ID)) {
+                _kind = MESSAGE_ID;
+            } else if (_name.equals(Identifiers.JMS_CORRELATION_ID)) {
+                _kind = CORRELATION_ID;
+            } else if (_name.equals(Identifiers.JMS_TYPE)) {
+                _kind = TYPE;
+            } else {
+                _kind = HEADER;
+            }
         } else {
-            _headerField = false;
+            _kind = PROPERTY;
         }
     }
 
+    /**
+     * Returns the identifier kind
+     *
+     * @return the identifier kind
+     */
+    public final int kind() {
+        return _kind;
+    }
+
     /**
      * Evaluate the expression
      *
@@ -114,32 +160,62 @@ class Identifier implements Expression {
      */
     public final SObject evaluate(final Message msg) {
         SObject value = null;
+        if (_kind == DELIVERY_MODE) {
+            try {
+                value = deliveryMode(msg.getJMSDeliveryMode());
+            } catch (JMSException ignore) {
+                // do nothing
+            }
+        } else {
+            value = SObjectFactory.create(getValue(msg));
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of the identifier, without wrapping it in an
+     * {@link SObject}.
+     * <p/>
+     * Property values are returned as stored by the message. Apart from
+     * JMSTimestamp, header field values are returned without allocation.
+     *
+     * @param msg the message to use to obtain any header identifier and
+     * property values
+     * @return the value of the identifier, or <code>null</code> if it is
+     * null, doesn't exist or can't be accessed
+     */
+    public final Object getValue(final Message msg) {
+        Object value = null;
         try {
-            if (_headerField) {
-                if (_name.equals(Identifiers.JMS_DELIVERY_MODE)) {
-                    value = deliveryMode(msg.getJMSDeliveryMode());
-                } else if (_name.equals(Identifiers.JMS_PRIORITY)) {
-                    value = new SLong(msg.getJMSPriority());
-                } else if (_name.equals(Identifiers.JMS_TIMESTAMP)) {
-                    value = new SLong(msg.getJMSTimestamp());
-                } else if (_name.equals(Identifiers.JMS_MESSAGE_ID)) {
-                    String id = msg.getJMSMessageID();
-                    if (id != null) {
-                        value = new SString(id);
+            switch (_kind) {
+                case PROPERTY:
+                    value = msg.getObjectProperty(_name);
+                    break;
+                case PRIORITY:
+                    int priority = msg.getJMSPriority();
+                    if (priority >= 0 && priority < PRIORITIES.length) {
+                        value = PRIORITIES[priority];
+                    } else {
+                        value = new Long(priority);
                     }
-                } else if (_name.equals(Identifiers.JMS_CORRELATION_ID)) {
-                    String id = msg.getJMSCorrelationID();
-                    if (id != null) {
-                        value = new SString(id);
-                    }
-                } else if (_name.equals(Identifiers.JMS_TYPE)) {
-                    String type = msg.getJMSType();
-                    if (type != null) {
-                        value = new SString(type);
-                    }
-                }
-            } else {
-                value = SObjectFactory.create(msg.getObjectProperty(_name));
+                    break;
+                case TIMESTAMP:
+                    value = new Long(msg.getJMSTimestamp());
+                    break;
+                case DELIVERY_MODE:
+                    value = deliveryMode(msg.getJMSDeliveryMode()).getObject();
+                    break;
+                case MESSAGE_ID:
+                    value = msg.getJMSMessageID();
+                    break;
+                case CORRELATION_ID:
+                    value = msg.getJMSCorrelationID();
+                    break;
+                case TYPE:
+                    value = msg.getJMSType();
+                    break;
+                default:
+                    break;
             }
         } catch (JMSException ignore) {
             // do nothing
@@ -147,6 +223,19 @@ class Identifier implements Expression {
         return value;
     }
 
+    /**
+     * Returns the value of a numeric header field identifier.
+     * This may only be used for JMSPriority and JMSTimestamp identifiers.
+     *
+     * @param msg the message to obtain the header field value from
+     * @return the value of the header field
+     * @throws JMSException if the header field cannot be accessed
+     */
+    public final long getLong(final Message msg) throws JMSException {
+        return (_kind == PRIORITY) ? msg.getJMSPriority()
+            : msg.getJMSTimestamp();
+    }
+
     /**
      * Return a string representation of this expression.
      *
@@ -45,6 +45,7 @@ package org.exolab.jms.selector;
 
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.TreeSet;
 
 import javax.jms.Message;
@@ -81,6 +82,15 @@ class InExpression extends IdentifierExpression {
         _values = values;
     }
 
+    /**
+     * Returns the set of values to compare against
+     *
+     * @return the set of values to compare against
+     */
+    public final Set values() {
+        return _values;
+    }
+
     /**
      * Evaluate the expression
      *
@@ -45,10 +45,6 @@ package org.exolab.jms.selector;
 
 import javax.jms.Message;
 
-import org.apache.oro.text.regex.Pattern;
-import org.apache.oro.text.regex.PatternMatcher;
-import org.apache.oro.text.regex.Perl5Matcher;
-
 
 /**
  * This class implements a 'like' expression.
@@ -59,19 +55,14 @@ import org.apache.oro.text.regex.Perl5Matcher;
  * @author      <a href="mailto:tma@netspace.net.au">Tim Anderson</a>
  * @see         Identifier
  * @see         IdentifierExpression
- * @see         RegexpFactory
+ * @see         LikeMatcher
  */
 class LikeExpression extends IdentifierExpression {
 
-    /**
-     * The regular expression
-     */
-    private final Pattern _regexp;
-
     /**
      * The pattern matcher
      */
-    private final PatternMatcher _matcher;
+    private final LikeMatcher _matcher;
 
     /**
      * The pattern
@@ -98,8 +89,16 @@ class LikeExpression extends IdentifierExpression {
         super(identifier);
         _pattern = pattern;
         _escape = escape;
-        _regexp = getRegexp(_pattern, _escape);
-        _matcher = new Perl5Matcher();
+        _matcher = LikeMatcher.create(_pattern, _escape);
+    }
+
+    /**
+     * Returns the pattern matcher
+     *
+     * @return the pattern matcher
+     */
+    public final LikeMatcher matcher() {
+        return _matcher;
     }
 
     /**
@@ -118,7 +117,7 @@ class LikeExpression extends IdentifierExpression {
         SString value = TypeCaster.castToString(identifier().evaluate(msg),
             "like expression");
         if (value != null) {
-            if (_matcher.matches((String) value.getObject(), _regexp)) {
+            if (_matcher.matches((String) value.getObject())) {
                 result = SBool.TRUE;
             } else {
                 result = SBool.FALSE;
@@ -148,34 +147,4 @@ class LikeExpression extends IdentifierExpression {
         return result.toString();
     }
 
-    /**
-     * Converts the pattern and escape to an ORO <code>Pattern</code>
-     *
-     * @param pattern the pattern
-     * @param escape the escape character. May be null
-     * @return an ORO <code>Pattern</code> corresponding to
-     * <code>pattern</code> and <code>escape</code>
-     * @throws SelectorException if <code>pattern</code> or <code>escape</code>
-     * are invalid
-     */
-    private Pattern getRegexp(final String pattern, final String escape)
-        throws SelectorException {
-        Pattern result = null;
-        Character esc = null;
-
-        if (escape != null) {
-            if (escape.length() != 1) {
-                throw new SelectorException("Invalid escape: " + escape);
-            }
-            esc = new Character(escape.charAt(0));
-        }
-
-        try {
-            result = RegexpFactory.create(pattern, esc);
-        } catch (InvalidRegexpException err) {
-            throw new SelectorException("Invalid pattern: " + pattern);
-        }
-        return result;
-    }
-
 } //-- LikeExpression
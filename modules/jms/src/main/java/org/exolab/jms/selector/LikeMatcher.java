@@ -0,0 +1,361 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+
+package org.exolab.jms.selector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Matches strings against an SQL LIKE pattern.
+ * <p/>
+ * Patterns are classified when they are created, so that common forms
+ * ('abc', 'abc%', '%abc' and '%abc%') are evaluated using simple
+ * <code>String</code> operations. Other patterns are split on '%' into
+ * segments, which are matched left to right without backtracking.
+ *
+ * @version     $Revision$ $Date$
+ * @author      <a href="mailto:agent@local">agent</a>
+ * @see         LikeExpression
+ */
+abstract class LikeMatcher {
+
+    /**
+     * Determines if a string matches the pattern
+     *
+     * @param value the string to match
+     * @return <code>true</code> if the string matches, otherwise
+     * <code>false</code>
+     */
+    public abstract boolean matches(String value);
+
+    /**
+     * Create a matcher for a LIKE pattern
+     *
+     * @param pattern the pattern
+     * @param escape the escape character, or <code>null</code> if there is
+     * no escape character
+     * @return a matcher for the pattern
+     * @throws SelectorException if the pattern or escape is invalid
+     */
+    public static LikeMatcher create(final String pattern,
+                                     final String escape)
+        throws SelectorException {
+        char esc = 0;
+        if (escape != null) {
+            if (escape.length() != 1) {
+                throw new SelectorException("Invalid escape: " + escape);
+            }
+            esc = escape.charAt(0);
+        }
+
+        // split the pattern into segments delimited by unescaped '%'
+        List segments = new ArrayList();
+        StringBuffer text = new StringBuffer();
+        StringBuffer wild = new StringBuffer();
+        boolean anyWild = false;
+        for (int i = 0; i < pattern.length(); ++i) {
+            char ch = pattern.charAt(i);
+            boolean escaped = false;
+            if (escape != null && ch == esc) {
+                if (++i < pattern.length()) {
+                    ch = pattern.charAt(i);
+                    escaped = true;
+                } else {
+                    throw new SelectorException("Invalid pattern: "
+                                                + pattern);
+                }
+            }
+            if (ch == '%' && !escaped) {
+                segments.add(new Segment(text.toString(), wild.toString()));
+                text.setLength(0);
+                wild.setLength(0);
+            } else {
+                boolean single = (ch == '_' && !escaped);
+                anyWild |= single;
+                text.append(ch);
+                wild.append((single) ? '_' : ' ');
+            }
+        }
+        segments.add(new Segment(text.toString(), wild.toString()));
+
+        LikeMatcher result;
+        int count = segments.size();
+        Segment first = (Segment) segments.get(0);
+        Segment last = (Segment) segments.get(count - 1);
+        if (anyWild) {
+            result = new Wildcard(segments);
+        } else if (count == 1) {
+            result = new Exact(first._text);
+        } else if (count == 2 && last.isEmpty()) {
+            result = new Prefix(first._text);
+        } else if (count == 2 && first.isEmpty()) {
+            result = new Suffix(last._text);
+        } else if (count == 3 && first.isEmpty() && last.isEmpty()) {
+            result = new Contains(((Segment) segments.get(1))._text);
+        } else {
+            result = new Wildcard(segments);
+        }
+        return result;
+    }
+
+    /**
+     * A sequence of characters between '%' characters, which may contain
+     * '_' single character wildcards
+     */
+    private static final class Segment {
+
+        /**
+         * The segment text
+         */
+        private final String _text;
+
+        /**
+         * The segment characters
+         */
+        private final char[] _chars;
+
+        /**
+         * Indicates which characters are single character wildcards, or
+         * <code>null</code> if there are none
+         */
+        private final boolean[] _wild;
+
+        /**
+         * Construct a new <code>Segment</code>
+         *
+         * @param text the segment text
+         * @param wild the wildcard mask. A '_' indicates that the
+         * corresponding character is a wildcard
+         */
+        public Segment(final String text, final String wild) {
+            _text = text;
+            _chars = text.toCharArray();
+            if (wild.indexOf('_') != -1) {
+                _wild = new boolean[_chars.length];
+                for (int i = 0; i < _wild.length; ++i) {
+                    _wild[i] = (wild.charAt(i) == '_');
+                }
+            } else {
+                _wild = null;
+            }
+        }
+
+        /**
+         * Returns the length of the segment
+         *
+         * @return the length of the segment
+         */
+        public int length() {
+            return _chars.length;
+        }
+
+        /**
+         * Determines if the segment is empty
+         *
+         * @return <code>true</code> if the segment is empty
+         */
+        public boolean isEmpty() {
+            return _chars.length == 0;
+        }
+
+        /**
+         * Determines if the segment matches a string at the specified offset
+         *
+         * @param value the string
+         * @param offset the offset into the string
+         * @return <code>true</code> if the segment matches
+         */
+        public boolean matches(final String value, final int offset) {
+            boolean result = true;
+            for (int i = 0; i < _chars.length; ++i) {
+                if ((_wild == null || !_wild[i])
+                    && value.charAt(offset + i) != _chars[i]) {
+                    result = false;
+                    break;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the offset of the first match of the segment in a string
+         *
+         * @param value the string
+         * @param from the offset to start searching from
+         * @param to the offset that the match must end at or before
+         * @return the offset of the match, or <code>-1</code> if there is no
+         * match
+         */
+        public int find(final String value, final int from, final int to) {
+            int result = -1;
+            for (int i = from; i + _chars.length <= to; ++i) {
+                if (matches(value, i)) {
+                    result = i;
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Matches patterns without wildcards
+     */
+    private static final class Exact extends LikeMatcher {
+
+        private final String _text;
+
+        public Exact(final String text) {
+            _text = text;
+        }
+
+        public boolean matches(final String value) {
+            return value.equals(_text);
+        }
+    }
+
+    /**
+     * Matches patterns of the form 'abc%'
+     */
+    private static final class Prefix extends LikeMatcher {
+
+        private final String _text;
+
+        public Prefix(final String text) {
+            _text = text;
+        }
+
+        public boolean matches(final String value) {
+            return value.startsWith(_text);
+        }
+    }
+
+    /**
+     * Matches patterns of the form '%abc'
+     */
+    private static final class Suffix extends LikeMatcher {
+
+        private final String _text;
+
+        public Suffix(final String text) {
+            _text = text;
+        }
+
+        public boolean matches(final String value) {
+            return value.endsWith(_text);
+        }
+    }
+
+    /**
+     * Matches patterns of the form '%abc%'
+     */
+    private static final class Contains extends LikeMatcher {
+
+        private final String _text;
+
+        public Contains(final String text) {
+            _text = text;
+        }
+
+        public boolean matches(final String value) {
+            return value.indexOf(_text) != -1;
+        }
+    }
+
+    /**
+     * Matches arbitrary patterns.
+     * <p/>
+     * The first and last segments are anchored to the start and end of the
+     * string. Each intermediate segment is matched at the first position
+     * after the preceding segment. As '%' matches any sequence of
+     * characters, taking the leftmost match never excludes a later match,
+     * so no backtracking is required.
+     */
+    private static final class Wildcard extends LikeMatcher {
+
+        private final Segment[] _segments;
+
+        private final int _minLength;
+
+        public Wildcard(final List segments) {
+            _segments = (Segment[]) segments.toArray(
+                new Segment[segments.size()]);
+            int length = 0;
+            for (int i = 0; i < _segments.length; ++i) {
+                length += _segments[i].length();
+            }
+            _minLength = length;
+        }
+
+        public boolean matches(final String value) {
+            boolean result;
+            int length = value.length();
+            Segment first = _segments[0];
+            if (_segments.length == 1) {
+                result = (length == first.length())
+                    && first.matches(value, 0);
+            } else {
+                Segment last = _segments[_segments.length - 1];
+                int to = length - last.length();
+                result = (length >= _minLength) && first.matches(value, 0)
+                    && last.matches(value, to);
+                int from = first.length();
+                for (int i = 1; result && i < _segments.length - 1; ++i) {
+                    Segment segment = _segments[i];
+                    int offset = segment.find(value, from, to);
+                    if (offset == -1) {
+                        result = false;
+                    } else {
+                        from = offset + segment.length();
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+} //-- LikeMatcher
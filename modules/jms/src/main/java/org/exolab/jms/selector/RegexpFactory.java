@@ -1,143 +0,0 @@
-/**
- * Redistribution and use of this software and associated documentation
- * ("Software"), with or without modification, are permitted provided
- * that the following conditions are met:
- *
- * 1. Redistributions of source code must retain copyright
- *    statements and notices.  Redistributions must also contain a
- *    copy of this document.
- *
- * 2. Redistributions in binary form must reproduce the
- *    above copyright notice, this list of conditions and the
- *    following disclaimer in the documentation and/or other
- *    materials provided with the distribution.
- *
- * 3. The name "Exolab" must not be used to endorse or promote
- *    products derived from this Software without prior written
- *    permission of Exoffice Technologies.  For written permission,
- *    please contact info@exolab.org.
- *
- * 4. Products derived from this Software may not be called "Exolab"
- *    nor may "Exolab" appear in their names without prior written
- *    permission of Exoffice Technologies. Exolab is a registered
- *    trademark of Exoffice Technologies.
- *
- * 5. Due credit should be given to the Exolab Project
- *    (http://www.exolab.org/).
- *
- * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
- * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
- * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
- * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
- * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
- * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
- * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
- * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
- * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
- * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
- * OF THE POSSIBILITY OF SUCH DAMAGE.
- *
- * Copyright 2000-2001,2003 (C) Exoffice Technologies Inc. All Rights Reserved.
- */
-
-package org.exolab.jms.selector;
-
-import org.apache.oro.text.regex.MalformedPatternException;
-import org.apache.oro.text.regex.Pattern;
-import org.apache.oro.text.regex.Perl5Compiler;
-
-
-/**
- * Regular expression factory. This creates a regular expression for a given
- * SQL92 pattern and escape character.
- *
- * @version     $Revision: 1.1 $ $Date: 2004/11/26 01:50:44 $
- * @author      <a href="mailto:tma@netspace.net.au">Tim Anderson</a>
- */
-final class RegexpFactory {
-
-    /**
-     * Private constructor
-     */
-    private RegexpFactory() {
-    }
-
-    /**
-     * Converts the pattern and escape to an ORO <code>Pattern</code>
-     *
-     * @param pattern the pattern
-     * @param escape the escape character. May be null
-     * @return an ORO <code>Pattern</code> corresponding to
-     * <code>pattern</code> and <code>escape</code>
-     * @throws InvalidRegexpException if <code>pattern</code> or
-     * <code>escape</code> are invalid
-     */
-    public static Pattern create(final String pattern, final Character escape)
-        throws InvalidRegexpException {
-        StringBuffer buff = new StringBuffer();
-        buff.append('^');
-
-        for (int i = 0; i < pattern.length(); ++i) {
-            boolean escaped = false;
-            char ch = pattern.charAt(i);
-            if (escape != null && ch == escape.charValue()) {
-                if (++i < pattern.length()) {
-                    ch = pattern.charAt(i);
-                    escaped = true;
-                } else {
-                    throw new InvalidRegexpException(pattern);
-                }
-            }
-
-            switch (ch) {
-                case '_':
-                    if (escaped) {
-                        buff.append(ch);
-                    } else {
-                        buff.append('.');
-                    }
-                    break;
-                case '%':
-                    if (escaped) {
-                        buff.append(ch);
-                    } else {
-                        buff.append(".*");
-                    }
-                    break;
-                case '.':
-                case '[':
-                case ']':
-                case '\\':
-                case '+':
-                case '?':
-                case '{':
-                case '}':
-                case '$':
-                case '^':
-                case '|':
-                case '(':
-                case ')':
-                    // the above are all special characters that need to be
-                    // escaped.
-                    buff.append('\\');
-                    buff.append(ch);
-                    break;
-                default:
-                    buff.append(ch);
-            }
-        }
-        buff.append('$');
-
-        Pattern result = null;
-        try {
-            Perl5Compiler compiler = new Perl5Compiler();
-            result = compiler.compile(buff.toString());
-        } catch (MalformedPatternException exception) {
-            // coding error if this gets thrown here...
-            throw new InvalidRegexpException(pattern);
-        }
-        return result;
-    }
-
-} //-- RegexpFactory
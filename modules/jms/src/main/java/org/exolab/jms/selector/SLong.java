@@ -56,7 +56,7 @@ final class SLong extends SNumber {
     /**
      * The wrapped value
      */
-    private long _value;
+    private final long _value;
 
     /**
      * Construct a new <code>SLong</code>
@@ -54,6 +54,17 @@ package org.exolab.jms.selector;
  */
 final class SObjectFactory {
 
+    /**
+     * Cached exact numerics in the range <code>-128..127</code>
+     */
+    private static final SLong[] LONGS = new SLong[256];
+
+    static {
+        for (int i = 0; i < LONGS.length; ++i) {
+            LONGS[i] = new SLong(i - 128);
+        }
+    }
+
     /**
      * Private constructor
      */
@@ -75,7 +86,12 @@ final class SObjectFactory {
             if (value instanceof Float || value instanceof Double) {
                 result = new SDouble(((Number) value).doubleValue());
             } else {
-                result = new SLong(((Number) value).longValue());
+                long number = ((Number) value).longValue();
+                if (number >= -128 && number <= 127) {
+                    result = LONGS[(int) number + 128];
+                } else {
+                    result = new SLong(number);
+                }
             }
         } else if (value instanceof Boolean) {
             if (value.equals(Boolean.TRUE)) {
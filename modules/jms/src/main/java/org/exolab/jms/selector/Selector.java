@@ -44,6 +44,8 @@
 package org.exolab.jms.selector;
 
 import java.io.StringReader;
+import java.util.Collections;
+import java.util.Set;
 
 import javax.jms.InvalidSelectorException;
 import javax.jms.Message;
@@ -213,11 +215,34 @@ import org.exolab.jms.selector.parser.SelectorTreeParser;
  */
 public class Selector {
 
+    /**
+     * The selector expression
+     */
+    private final String _expression;
+
     /**
      * The 'compiled' expression
      */
     private final Expression _evaluator;
 
+    /**
+     * The compiled form of <code>_evaluator</code>, or <code>null</code> if
+     * the expression is interpreted
+     */
+    private final SelectorCompiler.Condition _condition;
+
+    /**
+     * An identifier which must have one of the string values in
+     * <code>_keyValues</code> for a message to be selected, or
+     * <code>null</code> if the expression has no such constraint
+     */
+    private Identifier _key;
+
+    /**
+     * The set of string values that <code>_key</code> must have one of
+     */
+    private Set _keyValues;
+
 
     /**
      * Construct a message selector that selects messages based on the
@@ -227,6 +252,26 @@ public class Selector {
      * @throws      InvalidSelectorException if expression is invalid
      */
     public Selector(final String expression) throws InvalidSelectorException {
+        this(expression, true);
+    }
+
+    /**
+     * Construct a message selector that selects messages based on the
+     * supplied expression.
+     * <p/>
+     * If <code>compile</code> is <code>true</code>, the expression is
+     * compiled so that comparisons of identifiers with literals are
+     * evaluated without allocating intermediate objects. Other expressions
+     * are interpreted.
+     *
+     * @param       expression      the conditional expression
+     * @param       compile         if <code>true</code>, compile the
+     *                              expression, otherwise interpret it
+     * @throws      InvalidSelectorException if expression is invalid
+     */
+    public Selector(final String expression, final boolean compile)
+        throws InvalidSelectorException {
+        _expression = expression;
         try {
             if (expression == null || expression.length() == 0) {
                 // always return true for null or empty expressions
@@ -247,6 +292,61 @@ public class Selector {
         } catch (Exception exception) {
             throw new InvalidSelectorException(exception.toString());
         }
+        _condition = (compile) ? SelectorCompiler.compile(_evaluator) : null;
+        initKey(_evaluator);
+    }
+
+    /**
+     * Returns the selector expression.
+     *
+     * @return the selector expression. May be <code>null</code>
+     */
+    public String getExpression() {
+        return _expression;
+    }
+
+    /**
+     * Returns the name of the key identifier. This is a header field or
+     * property which must have one of the values returned by
+     * {@link #getKeyValues} for a message to be selected.
+     * <p/>
+     * This may be used to index messages, so that only those with a matching
+     * key value need be evaluated by the selector.
+     *
+     * @return the name of the key identifier, or <code>null</code> if the
+     * expression doesn't constrain any identifier to a set of string values
+     */
+    public String getKeyName() {
+        return (_key != null) ? _key.toString() : null;
+    }
+
+    /**
+     * Returns the set of string values that the key identifier must have one
+     * of, for a message to be selected.
+     *
+     * @return the key values, or <code>null</code> if there is no key
+     * identifier
+     */
+    public Set getKeyValues() {
+        return _keyValues;
+    }
+
+    /**
+     * Returns the value of the key identifier for a message.
+     *
+     * @param message the message
+     * @return the value of the key identifier, or <code>null</code> if there
+     * is no key identifier, or the message has no string value for it
+     */
+    public String getKeyValue(final Message message) {
+        String result = null;
+        if (_key != null) {
+            Object value = _key.getValue(message);
+            if (value instanceof String) {
+                result = (String) value;
+            }
+        }
+        return result;
     }
 
     /**
@@ -258,12 +358,67 @@ public class Selector {
      */
     public boolean selects(final Message message) {
         boolean result = false;
-        try {
-            SObject value = _evaluator.evaluate(message);
-            if (value instanceof SBool) {
-                result = ((SBool) value).value();
+        if (_condition != null) {
+            result = (_condition.test(message) == SelectorCompiler.TRUE);
+        } else {
+            try {
+                SObject value = _evaluator.evaluate(message);
+                if (value instanceof SBool) {
+                    result = ((SBool) value).value();
+                }
+            } catch (TypeMismatchException ignore) {
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines the key identifier and values of an expression.
+     * <p/>
+     * An expression has a key if it is an <code>identifier = 'literal'</code>
+     * or <code>identifier IN ('literal', ...)</code> expression, or is the
+     * conjunction of expressions where one has a key. A message can only be
+     * selected if the identifier evaluates to one of the string literals.
+     *
+     * @param expression the expression
+     */
+    private void initKey(final Expression expression) {
+        if (expression instanceof And) {
+            And and = (And) expression;
+            initKey(and.left());
+            if (_key == null) {
+                initKey(and.right());
+            }
+        } else if (expression instanceof Equal) {
+            Equal equal = (Equal) expression;
+            if (!initKey(equal.left(), equal.right())) {
+                initKey(equal.right(), equal.left());
+            }
+        } else if (expression instanceof InExpression) {
+            InExpression in = (InExpression) expression;
+            _key = in.identifier();
+            _keyValues = Collections.unmodifiableSet(in.values());
+        }
+    }
+
+    /**
+     * Determines if an identifier is compared with a string literal, and if
+     * so, uses them as the key.
+     *
+     * @param identifier the possible identifier
+     * @param literal the possible string literal
+     * @return <code>true</code> if the key was set
+     */
+    private boolean initKey(final Expression identifier,
+                            final Expression literal) {
+        boolean result = false;
+        if (identifier instanceof Identifier && literal instanceof Literal) {
+            SObject value = ((Literal) literal).getValue();
+            if (value instanceof SString) {
+                _key = (Identifier) identifier;
+                _keyValues = Collections.singleton(value.getObject());
+                result = true;
             }
-        } catch (TypeMismatchException ignore) {
         }
         return result;
     }
@@ -0,0 +1,157 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+
+package org.exolab.jms.selector;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.InvalidSelectorException;
+
+
+/**
+ * Shares {@link Selector} instances between consumers with identical
+ * selector expressions.
+ * <p/>
+ * Selectors are reference counted. Each {@link #acquire} must be paired with
+ * a {@link #release}; a selector is discarded when it is no longer
+ * referenced. Sharing instances avoids parsing and compiling the same
+ * expression for each consumer, and enables callers to evaluate a selector
+ * once per message for all consumers that share it.
+ *
+ * @version     $Revision$ $Date$
+ * @author      <a href="mailto:agent@local">agent</a>
+ * @see         Selector
+ */
+public final class SelectorCache {
+
+    /**
+     * The cached selectors, keyed on expression
+     */
+    private static final Map _selectors = new HashMap();
+
+
+    /**
+     * Prevent construction of utility class
+     */
+    private SelectorCache() {
+    }
+
+    /**
+     * Returns a selector for an expression, creating it if it isn't cached.
+     *
+     * @param expression the selector expression
+     * @return the selector corresponding to <code>expression</code>
+     * @throws InvalidSelectorException if the expression is invalid
+     */
+    public static Selector acquire(final String expression)
+        throws InvalidSelectorException {
+        Selector result;
+        synchronized (_selectors) {
+            Entry entry = (Entry) _selectors.get(expression);
+            if (entry == null) {
+                entry = new Entry(new Selector(expression));
+                _selectors.put(expression, entry);
+            }
+            ++entry._references;
+            result = entry._selector;
+        }
+        return result;
+    }
+
+    /**
+     * Release a selector returned by {@link #acquire}.
+     *
+     * @param selector the selector to release
+     */
+    public static void release(final Selector selector) {
+        synchronized (_selectors) {
+            String expression = selector.getExpression();
+            Entry entry = (Entry) _selectors.get(expression);
+            if (entry != null && entry._selector == selector) {
+                if (--entry._references == 0) {
+                    _selectors.remove(expression);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached selectors.
+     *
+     * @return the number of cached selectors
+     */
+    public static int size() {
+        synchronized (_selectors) {
+            return _selectors.size();
+        }
+    }
+
+    /**
+     * A reference counted selector.
+     */
+    private static final class Entry {
+
+        /**
+         * The selector
+         */
+        private final Selector _selector;
+
+        /**
+         * The no. of references to the selector
+         */
+        private int _references;
+
+        /**
+         * Construct a new <code>Entry</code>.
+         *
+         * @param selector the selector
+         */
+        public Entry(final Selector selector) {
+            _selector = selector;
+        }
+    }
+
+} //-- SelectorCache
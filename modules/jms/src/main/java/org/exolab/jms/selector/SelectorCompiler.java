@@ -0,0 +1,697 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+
+package org.exolab.jms.selector;
+
+import java.util.Set;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+
+/**
+ * Compiles an {@link Expression} tree into a tree of {@link Condition}s.
+ * <p/>
+ * Conditions evaluate comparisons of identifiers with literals using
+ * primitive values, and report type mismatches via a result code rather than
+ * by throwing {@link TypeMismatchException}. Evaluating a compiled condition
+ * doesn't allocate, other than for sub-expressions that the compiler doesn't
+ * handle, which are delegated to the interpreter.
+ *
+ * @version     $Revision$ $Date$
+ * @author      <a href="mailto:agent@local">agent</a>
+ * @see         Selector
+ */
+final class SelectorCompiler {
+
+    /**
+     * Indicates that a condition evaluated to false
+     */
+    public static final int FALSE = 0;
+
+    /**
+     * Indicates that a condition evaluated to true
+     */
+    public static final int TRUE = 1;
+
+    /**
+     * Indicates that a condition evaluated to null (unknown)
+     */
+    public static final int UNKNOWN = 2;
+
+    /**
+     * Indicates that evaluation of a condition encountered mismatched types.
+     * This corresponds to the interpreter throwing
+     * <code>TypeMismatchException</code>, and is propagated by all
+     * enclosing conditions
+     */
+    public static final int MISMATCH = 3;
+
+    /**
+     * Comparison operators
+     */
+    private static final int EQ = 0;
+    private static final int NE = 1;
+    private static final int LT = 2;
+    private static final int GT = 3;
+    private static final int LE = 4;
+    private static final int GE = 5;
+
+    /**
+     * Prevent construction of utility class
+     */
+    private SelectorCompiler() {
+    }
+
+    /**
+     * Compile an expression
+     *
+     * @param expression the expression to compile
+     * @return the compiled expression
+     */
+    public static Condition compile(final Expression expression) {
+        Condition result = null;
+        if (expression instanceof And) {
+            And and = (And) expression;
+            result = new AndCondition(compile(and.left()),
+                                      compile(and.right()));
+        } else if (expression instanceof Or) {
+            Or or = (Or) expression;
+            result = new OrCondition(compile(or.left()), compile(or.right()));
+        } else if (expression instanceof Not) {
+            result = new NotCondition(compile(((Not) expression).operand()));
+        } else if (expression instanceof Literal) {
+            SObject value = ((Literal) expression).getValue();
+            if (value instanceof SBool) {
+                int code = ((SBool) value).value() ? TRUE : FALSE;
+                result = new ConstantCondition(code);
+            } else {
+                result = new ConstantCondition(MISMATCH);
+            }
+        } else if (expression instanceof Identifier) {
+            result = new BooleanCondition((Identifier) expression);
+        } else if (expression instanceof InExpression) {
+            InExpression in = (InExpression) expression;
+            result = new InCondition(in.identifier(), in.values());
+        } else if (expression instanceof LikeExpression) {
+            LikeExpression like = (LikeExpression) expression;
+            result = new LikeCondition(like.identifier(), like.matcher());
+        } else if (expression instanceof IsExpression) {
+            IsExpression is = (IsExpression) expression;
+            result = new IsNullCondition(is.identifier());
+        } else if (expression instanceof BetweenExpression) {
+            result = compileBetween((BetweenExpression) expression);
+        } else if (expression instanceof LogicalOperator) {
+            LogicalOperator operator = (LogicalOperator) expression;
+            result = compileComparison(operator, operator.left(),
+                                       operator.right(), false);
+            if (result == null) {
+                result = compileComparison(operator, operator.right(),
+                                           operator.left(), true);
+            }
+        }
+        if (result == null) {
+            result = new InterpretedCondition(expression);
+        }
+        return result;
+    }
+
+    /**
+     * Compile a comparison of an identifier with a literal
+     *
+     * @param operator the comparison operator
+     * @param identifier the possible identifier
+     * @param literal the possible literal
+     * @param mirror if <code>true</code>, the operands have been swapped
+     * @return the compiled comparison, or <code>null</code> if it can't be
+     * compiled
+     */
+    private static Condition compileComparison(final LogicalOperator operator,
+                                               final Expression identifier,
+                                               final Expression literal,
+                                               final boolean mirror) {
+        Condition result = null;
+        if (identifier instanceof Identifier && literal instanceof Literal) {
+            int op = getOperator(operator, mirror);
+            Identifier ident = (Identifier) identifier;
+            SObject value = ((Literal) literal).getValue();
+            if (op != -1 && value instanceof SNumber) {
+                Bound[] bounds = {new Bound(op, (SNumber) value)};
+                result = new NumericCondition(ident, bounds);
+            } else if ((op == EQ || op == NE)
+                       && (value instanceof SString
+                           || value instanceof SBool)) {
+                result = new EqualCondition(ident, value.getObject(),
+                                            op == NE);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compile a 'between' expression, where the value is an identifier and
+     * the bounds are numeric literals
+     *
+     * @param between the expression
+     * @return the compiled expression, or <code>null</code> if it can't be
+     * compiled
+     */
+    private static Condition compileBetween(final BetweenExpression between) {
+        Condition result = null;
+        if (between.value() instanceof Identifier
+            && between.lower() instanceof Literal
+            && between.upper() instanceof Literal) {
+            SObject lower = ((Literal) between.lower()).getValue();
+            SObject upper = ((Literal) between.upper()).getValue();
+            if (lower instanceof SNumber && upper instanceof SNumber) {
+                Bound[] bounds = {new Bound(GE, (SNumber) lower),
+                                  new Bound(LE, (SNumber) upper)};
+                result = new NumericCondition(
+                    (Identifier) between.value(), bounds);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the comparison operator code of an operator
+     *
+     * @param operator the operator
+     * @param mirror if <code>true</code>, return the operator to use when
+     * the operands are swapped
+     * @return the operator code, or <code>-1</code> if the operator isn't a
+     * comparison operator
+     */
+    private static int getOperator(final LogicalOperator operator,
+                                   final boolean mirror) {
+        int result = -1;
+        if (operator instanceof Equal) {
+            result = EQ;
+        } else if (operator instanceof NotEqual) {
+            result = NE;
+        } else if (operator instanceof Less) {
+            result = (mirror) ? GT : LT;
+        } else if (operator instanceof Greater) {
+            result = (mirror) ? LT : GT;
+        } else if (operator instanceof LessEqual) {
+            result = (mirror) ? GE : LE;
+        } else if (operator instanceof GreaterEqual) {
+            result = (mirror) ? LE : GE;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the result code of a boolean
+     *
+     * @param value the boolean
+     * @return {@link #TRUE} or {@link #FALSE}
+     */
+    private static int code(final boolean value) {
+        return (value) ? TRUE : FALSE;
+    }
+
+    /**
+     * Determines if an object is a type that can be used in selectors
+     *
+     * @param value the object to check
+     * @return <code>true</code> if the object is a string, number or boolean
+     */
+    private static boolean isSelectable(final Object value) {
+        return (value instanceof String || value instanceof Number
+                || value instanceof Boolean);
+    }
+
+
+    /**
+     * A compiled expression
+     */
+    abstract static class Condition {
+
+        /**
+         * Evaluate the condition against a message
+         *
+         * @param msg the message
+         * @return one of {@link #TRUE}, {@link #FALSE}, {@link #UNKNOWN} or
+         * {@link #MISMATCH}
+         */
+        public abstract int test(Message msg);
+    }
+
+    /**
+     * Compares a numeric value with a numeric literal
+     */
+    private static final class Bound {
+
+        /**
+         * The comparison operator
+         */
+        private final int _op;
+
+        /**
+         * Determines if the literal is an exact numeric
+         */
+        private final boolean _exact;
+
+        /**
+         * The literal, if it is exact
+         */
+        private final long _long;
+
+        /**
+         * The literal, as a double
+         */
+        private final double _double;
+
+        /**
+         * Construct a new <code>Bound</code>
+         *
+         * @param op the comparison operator
+         * @param literal the literal to compare against
+         */
+        public Bound(final int op, final SNumber literal) {
+            _op = op;
+            _exact = (literal instanceof SLong);
+            _long = literal.getLong();
+            _double = literal.getDouble();
+        }
+
+        /**
+         * Compare an object with the literal
+         *
+         * @param value the value to compare
+         * @return the result code
+         */
+        public int test(final Object value) {
+            int result;
+            if (value instanceof Number) {
+                if (value instanceof Float || value instanceof Double) {
+                    result = test(((Number) value).doubleValue());
+                } else {
+                    result = test(((Number) value).longValue());
+                }
+            } else if (value instanceof String || value instanceof Boolean) {
+                result = MISMATCH;
+            } else {
+                result = UNKNOWN;
+            }
+            return result;
+        }
+
+        /**
+         * Compare an exact numeric value with the literal
+         *
+         * @param value the value to compare
+         * @return the result code
+         */
+        public int test(final long value) {
+            int result;
+            if (!_exact) {
+                result = test((double) value);
+            } else {
+                switch (_op) {
+                    case EQ:
+                        result = code(value == _long);
+                        break;
+                    case NE:
+                        result = code(value != _long);
+                        break;
+                    case LT:
+                        result = code(value < _long);
+                        break;
+                    case GT:
+                        result = code(value > _long);
+                        break;
+                    case LE:
+                        result = code(value <= _long);
+                        break;
+                    default:
+                        result = code(value >= _long);
+                        break;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Compare an approximate numeric value with the literal
+         *
+         * @param value the value to compare
+         * @return the result code
+         */
+        public int test(final double value) {
+            int result;
+            switch (_op) {
+                case EQ:
+                    result = code(value == _double);
+                    break;
+                case NE:
+                    result = code(!(value == _double));
+                    break;
+                case LT:
+                    result = code(value < _double);
+                    break;
+                case GT:
+                    result = code(value > _double);
+                    break;
+                case LE:
+                    result = code(value < _double || value == _double);
+                    break;
+                default:
+                    result = code(value > _double || value == _double);
+                    break;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates to a constant
+     */
+    private static final class ConstantCondition extends Condition {
+
+        private final int _code;
+
+        public ConstantCondition(final int code) {
+            _code = code;
+        }
+
+        public int test(final Message msg) {
+            return _code;
+        }
+    }
+
+    /**
+     * Evaluates <code>left AND right</code>
+     */
+    private static final class AndCondition extends Condition {
+
+        private final Condition _left;
+        private final Condition _right;
+
+        public AndCondition(final Condition left, final Condition right) {
+            _left = left;
+            _right = right;
+        }
+
+        public int test(final Message msg) {
+            int result = _left.test(msg);
+            if (result == TRUE) {
+                result = _right.test(msg);
+            } else if (result == UNKNOWN) {
+                int rhs = _right.test(msg);
+                if (rhs == FALSE || rhs == MISMATCH) {
+                    result = rhs;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates <code>left OR right</code>
+     */
+    private static final class OrCondition extends Condition {
+
+        private final Condition _left;
+        private final Condition _right;
+
+        public OrCondition(final Condition left, final Condition right) {
+            _left = left;
+            _right = right;
+        }
+
+        public int test(final Message msg) {
+            int result = _left.test(msg);
+            if (result == FALSE) {
+                result = _right.test(msg);
+            } else if (result == UNKNOWN) {
+                int rhs = _right.test(msg);
+                if (rhs == TRUE || rhs == MISMATCH) {
+                    result = rhs;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates <code>NOT operand</code>
+     */
+    private static final class NotCondition extends Condition {
+
+        private final Condition _operand;
+
+        public NotCondition(final Condition operand) {
+            _operand = operand;
+        }
+
+        public int test(final Message msg) {
+            int result = _operand.test(msg);
+            if (result == TRUE) {
+                result = FALSE;
+            } else if (result == FALSE) {
+                result = TRUE;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates an identifier with a boolean value
+     */
+    private static final class BooleanCondition extends Condition {
+
+        private final Identifier _identifier;
+
+        public BooleanCondition(final Identifier identifier) {
+            _identifier = identifier;
+        }
+
+        public int test(final Message msg) {
+            int result;
+            Object value = _identifier.getValue(msg);
+            if (value instanceof Boolean) {
+                result = code(((Boolean) value).booleanValue());
+            } else if (value instanceof String || value instanceof Number) {
+                result = MISMATCH;
+            } else {
+                result = UNKNOWN;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Compares an identifier against one or more numeric bounds, all of
+     * which must be satisfied
+     */
+    private static final class NumericCondition extends Condition {
+
+        private final Identifier _identifier;
+        private final Bound[] _bounds;
+
+        public NumericCondition(final Identifier identifier,
+                                final Bound[] bounds) {
+            _identifier = identifier;
+            _bounds = bounds;
+        }
+
+        public int test(final Message msg) {
+            int result = TRUE;
+            try {
+                int kind = _identifier.kind();
+                if (kind == Identifier.PRIORITY
+                    || kind == Identifier.TIMESTAMP) {
+                    long value = _identifier.getLong(msg);
+                    for (int i = 0; i < _bounds.length && result == TRUE;
+                         ++i) {
+                        result = _bounds[i].test(value);
+                    }
+                } else {
+                    Object value = _identifier.getValue(msg);
+                    for (int i = 0; i < _bounds.length && result == TRUE;
+                         ++i) {
+                        result = _bounds[i].test(value);
+                    }
+                }
+            } catch (JMSException exception) {
+                result = UNKNOWN;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Compares an identifier for equality with a string or boolean literal
+     */
+    private static final class EqualCondition extends Condition {
+
+        private final Identifier _identifier;
+        private final Object _literal;
+        private final boolean _negate;
+
+        public EqualCondition(final Identifier identifier,
+                              final Object literal, final boolean negate) {
+            _identifier = identifier;
+            _literal = literal;
+            _negate = negate;
+        }
+
+        public int test(final Message msg) {
+            int result;
+            Object value = _identifier.getValue(msg);
+            if (value != null && value.getClass() == _literal.getClass()) {
+                result = code(_literal.equals(value) != _negate);
+            } else if (isSelectable(value)) {
+                result = MISMATCH;
+            } else {
+                result = UNKNOWN;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates <code>identifier IN (string-literal, ...)</code>
+     */
+    private static final class InCondition extends Condition {
+
+        private final Identifier _identifier;
+        private final Set _values;
+
+        public InCondition(final Identifier identifier, final Set values) {
+            _identifier = identifier;
+            _values = values;
+        }
+
+        public int test(final Message msg) {
+            int result;
+            Object value = _identifier.getValue(msg);
+            if (value instanceof String) {
+                result = code(_values.contains(value));
+            } else if (isSelectable(value)) {
+                result = MISMATCH;
+            } else {
+                result = UNKNOWN;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates <code>identifier LIKE pattern</code>
+     */
+    private static final class LikeCondition extends Condition {
+
+        private final Identifier _identifier;
+        private final LikeMatcher _matcher;
+
+        public LikeCondition(final Identifier identifier,
+                             final LikeMatcher matcher) {
+            _identifier = identifier;
+            _matcher = matcher;
+        }
+
+        public int test(final Message msg) {
+            int result;
+            Object value = _identifier.getValue(msg);
+            if (value instanceof String) {
+                result = code(_matcher.matches((String) value));
+            } else if (isSelectable(value)) {
+                result = MISMATCH;
+            } else {
+                result = UNKNOWN;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Evaluates <code>identifier IS NULL</code>
+     */
+    private static final class IsNullCondition extends Condition {
+
+        private final Identifier _identifier;
+
+        public IsNullCondition(final Identifier identifier) {
+            _identifier = identifier;
+        }
+
+        public int test(final Message msg) {
+            return code(!isSelectable(_identifier.getValue(msg)));
+        }
+    }
+
+    /**
+     * Evaluates an expression using the interpreter
+     */
+    private static final class InterpretedCondition extends Condition {
+
+        private final Expression _expression;
+
+        public InterpretedCondition(final Expression expression) {
+            _expression = expression;
+        }
+
+        public int test(final Message msg) {
+            int result;
+            try {
+                SObject value = _expression.evaluate(msg);
+                if (value instanceof SBool) {
+                    result = code(((SBool) value).value());
+                } else if (value == null) {
+                    result = UNKNOWN;
+                } else {
+                    result = MISMATCH;
+                }
+            } catch (TypeMismatchException exception) {
+                result = MISMATCH;
+            }
+            return result;
+        }
+    }
+
+} //-- SelectorCompiler
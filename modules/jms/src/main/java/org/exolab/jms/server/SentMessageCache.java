@@ -44,14 +44,18 @@
  */
 package org.exolab.jms.server;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import javax.jms.JMSException;
 import javax.jms.Session;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import org.exolab.jms.messagemgr.MessageHandle;
+import org.exolab.jms.persistence.DatabaseService;
+import org.exolab.jms.persistence.PersistenceException;
 
 
 /**
@@ -61,6 +65,15 @@ import org.exolab.jms.messagemgr.MessageHandle;
  * <p/>
  * Messages will only be added to the cache, if the session is transacted or the
  * ack mode for the session is set to CLIENT_ACKNOWLEDGE
+ * <p/>
+ * Unacked messages are held in the order they were sent, and also in the
+ * order they were sent to each consumer. Each is indexed on consumer and
+ * message identifier, so acknowledging a message only visits those messages
+ * that it acknowledges.
+ * <p/>
+ * Handles are destroyed or released within the caller's transaction, if
+ * any. Otherwise, a transaction is only begun if a handle isn't transient,
+ * so that acknowledging non-persistent messages never touches the database.
  *
  * @author <a href="mailto:jima@exoffice.com">Jim Alateras</a>
  * @author <a href="mailto:tma@netspace.net.au">Tim Anderson</a>
@@ -76,10 +89,24 @@ class SentMessageCache {
     private final int _ackMode;
 
     /**
-     * Holds a list of unacked messages in the order they were sent.
+     * The database service.
      */
-    private List _unackedMessages = Collections.synchronizedList(
-            new LinkedList());
+    private final DatabaseService _database;
+
+    /**
+     * Sentinel of the list of unacked messages, in the order they were sent.
+     */
+    private final Entry _unacked = new Entry(null);
+
+    /**
+     * The unacked messages of each consumer, keyed on consumer identifier.
+     */
+    private final HashMap _consumers = new HashMap();
+
+    /**
+     * The logger.
+     */
+    private static final Log _log = LogFactory.getLog(SentMessageCache.class);
 
 
     /**
@@ -88,9 +115,11 @@ class SentMessageCache {
      * @param ackMode  the message acknowledgement mode, or
      *                 <code>Session.TRANSACTED_SESSION</code>
      *                 if the session is transactional
+     * @param database the database service
      */
-    public SentMessageCache(int ackMode) {
+    public SentMessageCache(int ackMode, DatabaseService database) {
         _ackMode = ackMode;
+        _database = database;
     }
 
     /**
@@ -102,7 +131,7 @@ class SentMessageCache {
      */
     public void preSend(MessageHandle handle) throws JMSException {
         handle.setDelivered(true);
-        _unackedMessages.add(handle);
+        add(handle);
         if (handle.isPersistent()) {
             handle.update();
         }
@@ -118,14 +147,37 @@ class SentMessageCache {
     public void postSend(MessageHandle handle) throws JMSException {
         if (_ackMode == Session.AUTO_ACKNOWLEDGE
                 || _ackMode == Session.DUPS_OK_ACKNOWLEDGE) {
-            _unackedMessages.remove(handle);
-            handle.destroy();
+            if (remove(handle)) {
+                handle.destroy();
+            }
         }
     }
 
+    /**
+     * Removes a message handle that was pre-processed, but couldn't be sent
+     * to the client. The caller is responsible for releasing it.
+     *
+     * @param handle the message handle
+     * @return <code>true</code> if the handle was removed,
+     *         <code>false</code> if it wasn't present
+     */
+    public synchronized boolean remove(MessageHandle handle) {
+        Entry entry = get(handle.getConsumerId(), handle.getMessageId());
+        boolean removed = (entry != null && entry._handle == handle);
+        if (removed) {
+            remove(entry);
+        }
+        return removed;
+    }
+
     /**
      * Acknowledge the specified messages in the cache and all previously sent
      * messages.
+     * <p/>
+     * For <code>AUTO_ACKNOWLEDGE</code> and <code>DUPS_OK_ACKNOWLEDGE</code>
+     * sessions, only the messages previously sent to the same consumer are
+     * acknowledged, as other consumers may have messages prefetched, but not
+     * yet received.
      *
      * @param messageId  the id of the message to ack
      * @param consumerId the consumer id that sent the ack.
@@ -133,35 +185,30 @@ class SentMessageCache {
      */
     public void acknowledge(String messageId, long consumerId)
             throws JMSException {
-        // first check that the message exists in the list of unacked
-        // messages
-        boolean exists = false;
-        Iterator iterator = _unackedMessages.iterator();
-        while (iterator.hasNext()) {
-            MessageHandle handle = (MessageHandle) iterator.next();
-            if (handle.getConsumerId() == consumerId
-                    && handle.getMessageId().equals(messageId)) {
-                exists = true;
-                break;
-            }
-        }
-
-        if (exists) {
-            // start from the top of the cache and remove each
-            // message and then call destroy on it.
-            while (!_unackedMessages.isEmpty()) {
-                MessageHandle handle
-                        = (MessageHandle) _unackedMessages.remove(0);
-                handle.destroy();
-
-                // if the handle is equal to the source handle then
-                // break the loop
-                if (handle.getConsumerId() == consumerId
-                    && handle.getMessageId().equals(messageId)) {
-                    break;
+        List handles = new ArrayList();
+        synchronized (this) {
+            Entry entry = get(consumerId, messageId);
+            if (entry != null) {
+                if (_ackMode == Session.AUTO_ACKNOWLEDGE
+                        || _ackMode == Session.DUPS_OK_ACKNOWLEDGE) {
+                    Consumer consumer = entry._consumer;
+                    Entry next;
+                    do {
+                        next = consumer._first;
+                        remove(next);
+                        handles.add(next._handle);
+                    } while (next != entry);
+                } else {
+                    Entry next;
+                    do {
+                        next = _unacked._next;
+                        remove(next);
+                        handles.add(next._handle);
+                    } while (next != entry);
                 }
             }
         }
+        destroy(handles);
     }
 
     /**
@@ -170,12 +217,27 @@ class SentMessageCache {
      * @throws JMSException for any error
      */
     public void acknowledgeAll() throws JMSException {
-        // start from the top of the cache and remove each
-        // message and then call destroy on it.
-        while (!_unackedMessages.isEmpty()) {
-            MessageHandle handle = (MessageHandle) _unackedMessages.remove(0);
-            handle.destroy();
+        destroy(removeAll());
+    }
+
+    /**
+     * Release the unacknowledged message handles of a consumer.
+     *
+     * @param consumerId the consumer identifier
+     * @throws JMSException for any error
+     */
+    public void release(long consumerId) throws JMSException {
+        List handles = new ArrayList();
+        synchronized (this) {
+            Consumer consumer = (Consumer) _consumers.get(
+                    new Long(consumerId));
+            while (consumer != null && consumer._first != null) {
+                Entry entry = consumer._first;
+                remove(entry);
+                handles.add(entry._handle);
+            }
         }
+        release(handles);
     }
 
     /**
@@ -184,16 +246,292 @@ class SentMessageCache {
      * @throws JMSException for any error
      */
     public void clear() throws JMSException {
-        if (!_unackedMessages.isEmpty()) {
-            MessageHandle[] handles
-                    = (MessageHandle[]) _unackedMessages.toArray(
-                            new MessageHandle[0]);
-            _unackedMessages.clear();
-
-            for (int i = 0; i < handles.length; ++i) {
-                MessageHandle handle = handles[i];
+        release(removeAll());
+    }
+
+    /**
+     * Adds a handle to the end of the list of unacked messages.
+     * <p/>
+     * If the handle's message is already present for the consumer, the index
+     * refers to the new entry. If the existing entry holds a different handle,
+     * it remains in the send orders, so that its handle is destroyed or
+     * released along with those sent around it. It precedes the new entry,
+     * so is covered by any acknowledgement of it.
+     *
+     * @param handle the handle to add
+     */
+    private synchronized void add(MessageHandle handle) {
+        Long key = new Long(handle.getConsumerId());
+        Consumer consumer = (Consumer) _consumers.get(key);
+        if (consumer == null) {
+            consumer = new Consumer(key);
+            _consumers.put(key, consumer);
+        }
+        Entry entry = new Entry(handle);
+        entry._consumer = consumer;
+
+        Entry existing = (Entry) consumer._index.put(handle.getMessageId(),
+                                                     entry);
+        if (existing != null && existing._handle == handle) {
+            // the handle is being resent. Move it to the end of the orders
+            unlink(existing);
+        }
+
+        // append to the session order
+        entry._prev = _unacked._prev;
+        entry._next = _unacked;
+        _unacked._prev._next = entry;
+        _unacked._prev = entry;
+
+        // append to the consumer order
+        entry._prevSent = consumer._last;
+        if (consumer._last != null) {
+            consumer._last._nextSent = entry;
+        } else {
+            consumer._first = entry;
+        }
+        consumer._last = entry;
+    }
+
+    /**
+     * Returns the entry for a message sent to a consumer.
+     *
+     * @param consumerId the consumer identifier
+     * @param messageId  the message identifier
+     * @return the corresponding entry, or <code>null</code> if none is found
+     */
+    private Entry get(long consumerId, String messageId) {
+        Entry result = null;
+        Consumer consumer = (Consumer) _consumers.get(new Long(consumerId));
+        if (consumer != null) {
+            result = (Entry) consumer._index.get(messageId);
+        }
+        return result;
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param entry the entry to remove
+     */
+    private void remove(Entry entry) {
+        Consumer consumer = entry._consumer;
+        String messageId = entry._handle.getMessageId();
+        if (consumer._index.get(messageId) == entry) {
+            // superseded entries are no longer indexed
+            consumer._index.remove(messageId);
+        }
+        unlink(entry);
+        if (consumer._first == null) {
+            _consumers.remove(consumer._id);
+        }
+    }
+
+    /**
+     * Unlinks an entry from the session and consumer orders.
+     *
+     * @param entry the entry to unlink
+     */
+    private void unlink(Entry entry) {
+        entry._prev._next = entry._next;
+        entry._next._prev = entry._prev;
+
+        Consumer consumer = entry._consumer;
+        if (entry._prevSent != null) {
+            entry._prevSent._nextSent = entry._nextSent;
+        } else {
+            consumer._first = entry._nextSent;
+        }
+        if (entry._nextSent != null) {
+            entry._nextSent._prevSent = entry._prevSent;
+        } else {
+            consumer._last = entry._prevSent;
+        }
+    }
+
+    /**
+     * Removes all entries.
+     *
+     * @return the handles, in the order they were sent
+     */
+    private synchronized List removeAll() {
+        List handles = new ArrayList();
+        for (Entry entry = _unacked._next; entry != _unacked;
+             entry = entry._next) {
+            handles.add(entry._handle);
+        }
+        _unacked._next = _unacked;
+        _unacked._prev = _unacked;
+        _consumers.clear();
+        return handles;
+    }
+
+    /**
+     * Destroys a list of handles.
+     *
+     * @param handles the handles to destroy
+     * @throws JMSException for any error
+     */
+    private void destroy(List handles) throws JMSException {
+        boolean begun = begin(handles);
+        try {
+            for (int i = 0; i < handles.size(); ++i) {
+                MessageHandle handle = (MessageHandle) handles.get(i);
+                handle.destroy();
+            }
+        } catch (JMSException exception) {
+            rollback(begun);
+            throw exception;
+        }
+        commit(begun);
+    }
+
+    /**
+     * Releases a list of handles.
+     *
+     * @param handles the handles to release
+     * @throws JMSException for any error
+     */
+    private void release(List handles) throws JMSException {
+        boolean begun = begin(handles);
+        try {
+            for (int i = 0; i < handles.size(); ++i) {
+                MessageHandle handle = (MessageHandle) handles.get(i);
                 handle.release();
             }
+        } catch (JMSException exception) {
+            rollback(begun);
+            throw exception;
+        }
+        commit(begun);
+    }
+
+    /**
+     * Begins a transaction to process a list of handles, if one is required
+     * and none is in progress.
+     *
+     * @param handles the handles to process
+     * @return <code>true</code> if a transaction was begun
+     * @throws JMSException if the transaction cannot be begun
+     */
+    private boolean begin(List handles) throws JMSException {
+        boolean begun = false;
+        if (!_database.isTransacted()) {
+            for (int i = 0; i < handles.size(); ++i) {
+                MessageHandle handle = (MessageHandle) handles.get(i);
+                if (!handle.isTransient()) {
+                    try {
+                        _database.begin();
+                    } catch (PersistenceException exception) {
+                        throw new JMSException(exception.getMessage());
+                    }
+                    begun = true;
+                    break;
+                }
+            }
+        }
+        return begun;
+    }
+
+    /**
+     * Commits the transaction begun by {@link #begin}.
+     *
+     * @param begun if <code>true</code>, a transaction was begun
+     * @throws JMSException if the transaction cannot be committed
+     */
+    private void commit(boolean begun) throws JMSException {
+        if (begun) {
+            try {
+                _database.commit();
+            } catch (PersistenceException exception) {
+                throw new JMSException(exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rolls back the transaction begun by {@link #begin}.
+     *
+     * @param begun if <code>true</code>, a transaction was begun
+     */
+    private void rollback(boolean begun) {
+        if (begun) {
+            try {
+                _database.rollback();
+            } catch (PersistenceException exception) {
+                _log.warn("Failed to rollback after error", exception);
+            }
+        }
+    }
+
+    /**
+     * An unacked message.
+     */
+    private static class Entry {
+
+        /**
+         * The message handle.
+         */
+        private final MessageHandle _handle;
+
+        /**
+         * The unacked messages of the consumer the handle was sent to.
+         */
+        private Consumer _consumer;
+
+        /**
+         * The previous and next entries in the session order.
+         */
+        private Entry _prev;
+        private Entry _next;
+
+        /**
+         * The previous and next entries in the consumer order.
+         */
+        private Entry _prevSent;
+        private Entry _nextSent;
+
+        /**
+         * Construct a new <code>Entry</code>.
+         *
+         * @param handle the message handle. May be <code>null</code> for a
+         *               list sentinel
+         */
+        public Entry(MessageHandle handle) {
+            _handle = handle;
+            _prev = this;
+            _next = this;
+        }
+    }
+
+    /**
+     * The unacked messages of a consumer.
+     */
+    private static class Consumer {
+
+        /**
+         * The consumer identifier.
+         */
+        private final Long _id;
+
+        /**
+         * The entries, keyed on message identifier.
+         */
+        private final HashMap _index = new HashMap();
+
+        /**
+         * The first and last entries sent to the consumer.
+         */
+        private Entry _first;
+        private Entry _last;
+
+        /**
+         * Construct a new <code>Consumer</code>.
+         *
+         * @param id the consumer identifier
+         */
+        public Consumer(Long id) {
+            _id = id;
         }
     }
 
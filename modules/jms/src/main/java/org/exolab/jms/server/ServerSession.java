@@ -234,6 +234,30 @@ public interface ServerSession {
     void setAsynchronous(long consumerId, boolean enable)
             throws JMSException;
 
+    /**
+     * Sets the number of messages that may be pushed to a synchronous
+     * consumer ahead of it calling receive.
+     * <p/>
+     * The consumer is granted <code>size</code> credits; each message pushed
+     * uses one, and the client returns them via {@link #credit} as it
+     * consumes. A size of <code>0</code> closes the window, releasing any
+     * messages pushed but not yet acknowledged.
+     *
+     * @param consumerId the consumer identifier
+     * @param size       the prefetch window size
+     * @throws JMSException for any JMS error
+     */
+    void setPrefetch(long consumerId, int size) throws JMSException;
+
+    /**
+     * Returns credit to a consumer's prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @param count      the number of prefetched messages consumed
+     * @throws JMSException for any JMS error
+     */
+    void credit(long consumerId, int count) throws JMSException;
+
     /**
      * Recover the session.
      * <p/>
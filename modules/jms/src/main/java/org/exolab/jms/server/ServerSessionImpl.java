@@ -230,10 +230,37 @@ class ServerSessionImpl implements ServerSession, XAResource {
             throw new JMSException("Argument 'messages' is null");
         }
 
-        Iterator iterator = messages.iterator();
-        while (iterator.hasNext()) {
-            MessageImpl message = (MessageImpl) iterator.next();
-            send(message);
+        // if there is a global transaction currently in process then
+        // the messages must be sent individually to the resource manager,
+        // otherwise send them to the message manager in a single batch
+        if (_xid != null) {
+            Iterator iterator = messages.iterator();
+            while (iterator.hasNext()) {
+                MessageImpl message = (MessageImpl) iterator.next();
+                send(message);
+            }
+            return;
+        }
+
+        try {
+            Iterator iterator = messages.iterator();
+            while (iterator.hasNext()) {
+                MessageImpl message = (MessageImpl) iterator.next();
+                message.setConnectionId(_connection.getConnectionId());
+            }
+            _messages.add(messages);
+        } catch (JMSException exception) {
+            _log.error("Failed to process messages", exception);
+            throw exception;
+        } catch (OutOfMemoryError exception) {
+            String msg =
+                    "Failed to process messages due to out-of-memory error";
+            _log.error(msg, exception);
+            throw new JMSException(msg);
+        } catch (Exception exception) {
+            String msg = "Failed to process messages";
+            _log.error(msg, exception);
+            throw new JMSException(msg);
         }
     }
 
@@ -455,6 +482,30 @@ class ServerSessionImpl implements ServerSession, XAResource {
         _consumer.setAsynchronous(consumerId, enable);
     }
 
+    /**
+     * Sets the number of messages that may be pushed to a synchronous
+     * consumer ahead of it calling receive.
+     *
+     * @param consumerId the consumer identifier
+     * @param size       the prefetch window size. A size of <code>0</code>
+     *                   closes the window
+     * @throws JMSException for any JMS error
+     */
+    public void setPrefetch(long consumerId, int size) throws JMSException {
+        _consumer.setPrefetch(consumerId, size);
+    }
+
+    /**
+     * Returns credit to a consumer's prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @param count      the number of prefetched messages consumed
+     * @throws JMSException for any JMS error
+     */
+    public void credit(long consumerId, int count) throws JMSException {
+        _consumer.credit(consumerId, count);
+    }
+
     /**
      * Close and release any resource allocated to this session.
      *
@@ -123,12 +123,23 @@ class SessionConsumer implements ConsumerEndpointListener {
      */
     private long _consumerId = -1;
 
+    /**
+     * The prefetch windows of synchronous consumers, keyed on consumer id.
+     */
+    private final HashMap _windows = new HashMap();
+
     /**
      * The maximum number of messages that a dispatch can deliver at any one
      * time
      */
     private final int MAX_MESSAGES = 200;
 
+    /**
+     * The maximum number of messages that may be sent to a consumer in a
+     * single call to the client.
+     */
+    private static final int MAX_BATCH = 50;
+
     /**
      * The logger.
      */
@@ -149,7 +160,7 @@ class SessionConsumer implements ConsumerEndpointListener {
     public SessionConsumer(int ackMode, DatabaseService database,
                            Scheduler scheduler) {
         _database = database;
-        _sent = new SentMessageCache(ackMode);
+        _sent = new SentMessageCache(ackMode, database);
         Runnable task = new Runnable() {
             public void run() {
                 dispatch();
@@ -210,6 +221,9 @@ class SessionConsumer implements ConsumerEndpointListener {
             synchronized (_pending) {
                 _pending.remove(consumer);
             }
+            if (removeWindow(consumerId)) {
+                release(consumerId);
+            }
         }
 
         return consumer;
@@ -243,6 +257,71 @@ class SessionConsumer implements ConsumerEndpointListener {
 
     }
 
+    /**
+     * Sets the number of messages that may be pushed to a synchronous
+     * consumer ahead of it calling receive.
+     * <p/>
+     * Closing the window releases any messages pushed to the consumer that
+     * it hasn't yet acknowledged.
+     *
+     * @param consumerId the consumer identifier
+     * @param size       the prefetch window size. A size of <code>0</code>
+     *                   closes the window
+     * @throws JMSException for any JMS error
+     */
+    public void setPrefetch(long consumerId, int size) throws JMSException {
+        ConsumerEndpoint consumer = getConsumer(consumerId);
+        synchronized (_removeLock) {
+            // wait for any in-progress push to the consumer to complete
+            while (consumerId == _consumerId) {
+                try {
+                    _removeLock.wait();
+                } catch (InterruptedException ignore) {
+                    // do nothing
+                }
+            }
+            if (size > 0) {
+                synchronized (_windows) {
+                    _windows.put(new Long(consumerId), new Window(size));
+                }
+            } else if (removeWindow(consumerId)) {
+                release(consumerId);
+            }
+        }
+        if (size > 0 && consumer.getMessageCount() != 0) {
+            messageAvailable(consumer);
+        }
+    }
+
+    /**
+     * Returns credit to a consumer's prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @param count      the number of prefetched messages consumed
+     * @throws JMSException for any JMS error
+     */
+    public void credit(long consumerId, int count) throws JMSException {
+        ConsumerEndpoint consumer;
+        synchronized (this) {
+            // the consumer may have been concurrently closed
+            consumer = (ConsumerEndpoint) _consumers.get(new Long(consumerId));
+        }
+        boolean credited = false;
+        synchronized (_windows) {
+            Window window = (Window) _windows.get(new Long(consumerId));
+            if (window != null) {
+                // messages received directly rather than pushed are also
+                // returned as credit, so limit it to the window size
+                window._credit = Math.min(window._credit + count,
+                                          window._size);
+                credited = true;
+            }
+        }
+        if (credited && consumer != null && consumer.getMessageCount() != 0) {
+            messageAvailable(consumer);
+        }
+    }
+
     /**
      * Stop message delivery.
      */
@@ -286,12 +365,17 @@ class SessionConsumer implements ConsumerEndpointListener {
     public synchronized void recover() throws JMSException {
         stop();             // stop message delivery
         try {
-            _database.begin();
             _sent.clear();  // clear the messages in the sent message cache
-            _database.commit();
         } catch (Exception exception) {
             rethrow(exception.getMessage(), exception);
         }
+        synchronized (_windows) {
+            // the client discards prefetched messages on recovery
+            for (Iterator i = _windows.values().iterator(); i.hasNext();) {
+                Window window = (Window) i.next();
+                window._credit = window._size;
+            }
+        }
         start();           // restart message delivery
     }
 
@@ -304,9 +388,7 @@ class SessionConsumer implements ConsumerEndpointListener {
      */
     public synchronized void commit() throws JMSException {
         try {
-            _database.begin();
             _sent.acknowledgeAll();
-            _database.commit();
         } catch (OutOfMemoryError exception) {
             rethrow("Failed to commit session due to out-of-memory error",
                     exception);
@@ -325,9 +407,7 @@ class SessionConsumer implements ConsumerEndpointListener {
     public synchronized void rollback() throws JMSException {
         stop();             // stop message delivery
         try {
-            _database.begin();
             _sent.clear();  // clear the messages in the sent message cache
-            _database.commit();
         } catch (Exception exception) {
             rethrow(exception.getMessage(), exception);
         }
@@ -430,9 +510,7 @@ class SessionConsumer implements ConsumerEndpointListener {
     public synchronized void acknowledge(long consumerId, String messageId)
             throws JMSException {
         try {
-            _database.begin();
             _sent.acknowledge(messageId, consumerId);
-            _database.commit();
         } catch (Exception exception) {
             rethrow("Failed to acknowledge message", exception);
         }
@@ -447,10 +525,11 @@ class SessionConsumer implements ConsumerEndpointListener {
         _log.debug("close");
         stop();
         _listener = null;
+        synchronized (_windows) {
+            _windows.clear();
+        }
         try {
-            _database.begin();
             _sent.clear();
-            _database.commit();
         } catch (Exception exception) {
             rethrow(exception.getMessage(), exception);
         }
@@ -494,10 +573,8 @@ class SessionConsumer implements ConsumerEndpointListener {
                 }
             }
             if (wantsMessages(consumer)) {
-                if (consumer.isAsynchronous()) {
-                    if (send(consumer, done)) {
-                        ++sent;
-                    }
+                if (consumer.isAsynchronous() || hasCredit(consumer)) {
+                    sent += send(consumer, done);
                     if (needsScheduling(consumer)) {
                         queue(consumer);
                     }
@@ -543,77 +620,128 @@ class SessionConsumer implements ConsumerEndpointListener {
         return queued;
     }
 
-    private boolean send(ConsumerEndpoint consumer, Condition cancel) {
-        boolean sent = false;
-        MessageHandle handle = null;
+    /**
+     * Send the next batch of messages to a consumer.
+     * <p/>
+     * The handles are received and pre-processed in a single transaction.
+     * Whether a handle is transient isn't known until it is received, but no
+     * database connection is acquired unless one is needed, so this is cheap
+     * for non-persistent messages. Post-processing requires a second
+     * transaction, but only if a handle in the batch isn't transient.
+     *
+     * @param consumer the consumer
+     * @param cancel   the condition to cancel the receive
+     * @return the number of messages delivered
+     */
+    private int send(ConsumerEndpoint consumer, Condition cancel) {
+        int sent = 0;
+        List handles = new ArrayList();
+        boolean transacted = false;
         try {
             _database.begin();
+            acquire(consumer.getId());
             try {
-                synchronized (_removeLock) {
-                    _consumerId = consumer.getId();
+                // synchronous consumers are only pushed messages while they
+                // have prefetch credit
+                boolean prefetch = !consumer.isAsynchronous();
+                int max = MAX_BATCH;
+                if (prefetch) {
+                    max = Math.min(getCredit(consumer), MAX_BATCH);
                 }
-                handle = consumer.receive(cancel);
-                if (handle != null) {
+                List messages = new ArrayList(max);
+                while (handles.size() < max) {
+                    MessageHandle handle = consumer.receive(cancel);
+                    if (handle == null) {
+                        break;
+                    }
                     MessageImpl message = handle.getMessage();
                     if (message != null) {
+                        handles.add(handle);
                         // send the client a copy.
-                        message = copy(message, handle);
+                        messages.add(copy(message, handle));
+                        _sent.preSend(handle);
+                        if (!handle.isTransient()) {
+                            transacted = true;
+                        }
+                    }
+                }
+                _database.commit();
 
-                        // clear any wait condition
-                        // @todo - possible race condition? Could
-                        // syncbronous client timeout and request again,
-                        // and this trash subsequent wait?
-                        consumer.setWaitingForMessage(null);
+                if (!messages.isEmpty()) {
+                    // clear any wait condition
+                    // @todo - possible race condition? Could
+                    // syncbronous client timeout and request again,
+                    // and this trash subsequent wait?
+                    consumer.setWaitingForMessage(null);
 
-                        _sent.preSend(handle);
-                        _database.commit();
+                    if (prefetch) {
+                        // reserve the credit before sending, as the client
+                        // may return credit before the send completes
+                        useCredit(consumer, messages.size());
+                    }
 
-                        // send the message
-                        sent = send(message);
+                    // send the messages
+                    sent = send(messages);
 
-                        if (sent) {
+                    if (prefetch) {
+                        // the client acknowledges each message when it is
+                        // received. Restore the credit of any not sent
+                        if (sent < messages.size()) {
+                            useCredit(consumer, sent - messages.size());
+                        }
+                    } else if (sent != 0) {
+                        if (transacted) {
                             _database.begin();
-                            _sent.postSend(handle);
+                        }
+                        for (int i = 0; i < sent; ++i) {
+                            _sent.postSend((MessageHandle) handles.get(i));
+                        }
+                        if (transacted) {
                             _database.commit();
                         }
                     }
-                } else {
-                    _database.commit();
                 }
             } finally {
-                synchronized (_removeLock) {
-                    _consumerId = -1;
-                    _removeLock.notify();
-                }
+                release();
             }
         } catch (Exception exception) {
             cleanup(exception.getMessage(), exception);
         }
-        if (!sent && handle != null) {
+        if (sent < handles.size()) {
             try {
-                _database.begin();
-                handle.release();
-                _database.commit();
+                if (transacted) {
+                    _database.begin();
+                }
+                for (int i = sent; i < handles.size(); ++i) {
+                    // remove the handle from the sent message cache first,
+                    // so that it isn't released or acknowledged again
+                    MessageHandle handle = (MessageHandle) handles.get(i);
+                    _sent.remove(handle);
+                    handle.release();
+                }
+                if (transacted) {
+                    _database.commit();
+                }
             } catch (Exception exception) {
-                cleanup("Failed to release unsent message", exception);
+                cleanup("Failed to release unsent messages", exception);
             }
         }
         return sent;
     }
 
     /**
-     * Send the specified message to the client.
+     * Send the specified messages to the client.
      *
-     * @param message the message
-     * @return <code>true</code> if the message was successfully sent
+     * @param messages the messages
+     * @return the number of messages successfully sent
      */
-    protected boolean send(MessageImpl message) {
-        boolean delivered = false;
+    protected int send(List messages) {
+        int delivered = 0;
         try {
-            // send the message to the listener.
-            delivered = _listener.onMessage(message);
+            // send the messages to the listener.
+            delivered = _listener.onMessages(messages);
             if (_log.isDebugEnabled()) {
-                _log.debug("send[JMSMessageID=" + message.getMessageId()
+                _log.debug("send[messages=" + messages.size()
                         + ", delivered=" + delivered + "]");
             }
         } catch (RemoteException exception) {
@@ -624,7 +752,8 @@ class SessionConsumer implements ConsumerEndpointListener {
 
     private boolean wantsMessages(ConsumerEndpoint consumer) {
         boolean result = false;
-        if (consumer.isAsynchronous() || consumer.isWaitingForMessage()) {
+        if (consumer.isAsynchronous() || consumer.isWaitingForMessage()
+                || hasCredit(consumer)) {
             result = true;
         }
         return result;
@@ -653,10 +782,23 @@ class SessionConsumer implements ConsumerEndpointListener {
             cancel = _stop;
         }
 
+        // if the consumer is prefetching, wait for any push to it to complete
+        // so that messages reach the client in the order they were received
+        boolean prefetch = hasWindow(consumerId);
         MessageImpl message = null;
         try {
             _database.begin();
-            MessageHandle handle = consumer.receive(cancel);
+            MessageHandle handle;
+            if (prefetch) {
+                acquire(consumerId);
+                try {
+                    handle = consumer.receive(cancel);
+                } finally {
+                    release();
+                }
+            } else {
+                handle = consumer.receive(cancel);
+            }
 
             if (handle != null) {
                 // retrieve the message and copy it
@@ -692,6 +834,118 @@ class SessionConsumer implements ConsumerEndpointListener {
         return message;
     }
 
+    /**
+     * Marks a consumer as being dispatched to, waiting for any other dispatch
+     * to complete.
+     *
+     * @param consumerId the consumer identifier
+     */
+    private void acquire(long consumerId) {
+        synchronized (_removeLock) {
+            while (_consumerId != -1) {
+                try {
+                    _removeLock.wait();
+                } catch (InterruptedException ignore) {
+                    // do nothing
+                }
+            }
+            _consumerId = consumerId;
+        }
+    }
+
+    /**
+     * Marks the current dispatch as complete.
+     */
+    private void release() {
+        synchronized (_removeLock) {
+            _consumerId = -1;
+            _removeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Releases the unacknowledged messages sent to a consumer, so that they
+     * may be delivered again.
+     *
+     * @param consumerId the consumer identifier
+     * @throws JMSException if the messages can't be released
+     */
+    private void release(long consumerId) throws JMSException {
+        try {
+            _sent.release(consumerId);
+        } catch (Exception exception) {
+            rethrow("Failed to release prefetched messages", exception);
+        }
+    }
+
+    /**
+     * Determines if a consumer has a prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @return <code>true</code> if the consumer has a prefetch window
+     */
+    private boolean hasWindow(long consumerId) {
+        synchronized (_windows) {
+            return _windows.containsKey(new Long(consumerId));
+        }
+    }
+
+    /**
+     * Removes a consumer's prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @return <code>true</code> if the consumer had a prefetch window
+     */
+    private boolean removeWindow(long consumerId) {
+        synchronized (_windows) {
+            return _windows.remove(new Long(consumerId)) != null;
+        }
+    }
+
+    /**
+     * Determines if a message may be pushed to a synchronous consumer.
+     *
+     * @param consumer the consumer
+     * @return <code>true</code> if the consumer has prefetch credit
+     */
+    private boolean hasCredit(ConsumerEndpoint consumer) {
+        synchronized (_windows) {
+            Window window = (Window) _windows.get(new Long(consumer.getId()));
+            return (window != null && window._credit > 0);
+        }
+    }
+
+    /**
+     * Returns the number of messages that may be pushed to a synchronous
+     * consumer.
+     *
+     * @param consumer the consumer
+     * @return the consumer's prefetch credit
+     */
+    private int getCredit(ConsumerEndpoint consumer) {
+        synchronized (_windows) {
+            Window window = (Window) _windows.get(new Long(consumer.getId()));
+            return (window != null) ? window._credit : 0;
+        }
+    }
+
+    /**
+     * Uses a consumer's prefetch credits.
+     *
+     * @param consumer the consumer
+     * @param count    the number of messages pushed. If negative, the
+     *                 credits are restored
+     */
+    private void useCredit(ConsumerEndpoint consumer, int count) {
+        synchronized (_windows) {
+            Window window = (Window) _windows.get(new Long(consumer.getId()));
+            if (window != null) {
+                window._credit = Math.min(
+                        Math.max(window._credit - count, 0), window._size);
+            }
+        }
+    }
+
     /**
      * Helper to copy a message.
      *
@@ -767,4 +1021,30 @@ class SessionConsumer implements ConsumerEndpointListener {
         throw new JMSException(exception.getMessage());
     }
 
+    /**
+     * The prefetch window of a synchronous consumer.
+     */
+    private static class Window {
+
+        /**
+         * The maximum number of messages that may be pushed ahead.
+         */
+        private final int _size;
+
+        /**
+         * The number of messages that may currently be pushed.
+         */
+        private int _credit;
+
+        /**
+         * Construct a new <code>Window</code>.
+         *
+         * @param size the window size
+         */
+        public Window(int size) {
+            _size = size;
+            _credit = size;
+        }
+    }
+
 }
@@ -321,6 +321,30 @@ public class RemoteServerSession
         _session.setAsynchronous(consumerId, enable);
     }
 
+    /**
+     * Sets the number of messages that may be pushed to a synchronous
+     * consumer ahead of it calling receive.
+     *
+     * @param consumerId the consumer identifier
+     * @param size       the prefetch window size. A size of <code>0</code>
+     *                   closes the window
+     * @throws JMSException for any JMS error
+     */
+    public void setPrefetch(long consumerId, int size) throws JMSException {
+        _session.setPrefetch(consumerId, size);
+    }
+
+    /**
+     * Returns credit to a consumer's prefetch window.
+     *
+     * @param consumerId the consumer identifier
+     * @param count      the number of prefetched messages consumed
+     * @throws JMSException for any JMS error
+     */
+    public void credit(long consumerId, int count) throws JMSException {
+        _session.credit(consumerId, count);
+    }
+
     /**
      * Recover the session. This means all unacknowledged messages are resent
      * with the redelivery flag set
@@ -49,17 +49,21 @@
 package org.exolab.jms.tranlog;
 
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -71,6 +75,31 @@ import org.apache.commons.logging.LogFactory;
  * sequentially and each records has an associated XID. Log files have a finite
  * size, after which they are closed and a new log file is opened. There is
  * only one current transaction log file per resource manager.
+ * <p>
+ * Log files are segments of a fixed, preallocated capacity, which are
+ * appended to and read through a memory mapping. As the blocks of the file
+ * are allocated up front, appends don't update file system metadata. A
+ * segment that is no longer required may be {@link #recycle recycled} as the
+ * next log file, rather than destroying it and creating a new one.
+ * <p>
+ * A log file starts with a header containing {@link #MAGIC},
+ * {@link #VERSION}, and the epoch of the segment, incremented each time the
+ * segment is recycled. Each record is framed by its length, the epoch, and
+ * the CRC32 of its content. The log ends at the first record with a zero
+ * length or a different epoch. A record torn by a crash is detected by its
+ * checksum, and discarded. Log files written by earlier versions, which have
+ * no header and frame records by length only, are still read and appended
+ * to.
+ * <p>
+ * A record is durable when the log methods return. Writers append their
+ * records under a short lock, and then wait for the log to be forced to
+ * disk. The first waiting writer forces the log on behalf of all writers
+ * whose records have been appended by then, so that concurrent writers share
+ * the cost of a single force.
+ * <p>
+ * Mappings are released explicitly when the log is closed or remapped,
+ * rather than when they are garbage collected. Some platforms can't delete
+ * or rename a file while it is mapped.
  */
 public class TransactionLog {
 
@@ -80,14 +109,101 @@ public class TransactionLog {
     private String _name = null;
 
     /**
-     * Maintains the running total of the file size
+     * The offset of the end of the last record
      */
     private long _size = 0;
 
     /**
-     * Cache the DataOutputStream handle
+     * Determines if the log uses the format of earlier versions
      */
-    private transient DataOutputStream _dos = null;
+    private boolean _legacy = false;
+
+    /**
+     * The epoch of the segment
+     */
+    private int _epoch = 0;
+
+    /**
+     * The identifiers of the transactions opened but not closed in this log.
+     * Maintained as state entries are written, and rebuilt on recovery
+     */
+    private HashSet _open = new HashSet();
+
+    /**
+     * Determines if <code>_open</code> reflects the content of the log file.
+     * It doesn't for an existing log file until it has been recovered
+     */
+    private boolean _indexed = true;
+
+    /**
+     * The channel to the log file. Opened on demand
+     */
+    private transient FileChannel _channel = null;
+
+    /**
+     * The mapping of the log file, to append records to. Mapped on demand
+     */
+    private transient MappedByteBuffer _buffer = null;
+
+    /**
+     * The file offset up to which records have been forced to disk
+     */
+    private long _forced = 0;
+
+    /**
+     * Determines if a writer is forcing the log to disk
+     */
+    private boolean _forcing = false;
+
+    /**
+     * The mapping to force, or <code>null</code> if the log isn't mapped.
+     * Guarded by <code>_forceLock</code>, so that the forcing writer doesn't
+     * need to synchronize on the log
+     */
+    private MappedByteBuffer _mapped = null;
+
+    /**
+     * The offset of the end of the last record appended to
+     * <code>_mapped</code>. Guarded by <code>_forceLock</code>
+     */
+    private long _appended = 0;
+
+    /**
+     * The lock guarding <code>_forced</code>, <code>_forcing</code>,
+     * <code>_mapped</code> and <code>_appended</code>
+     */
+    private final Object _forceLock = new Object();
+
+    /**
+     * The marker at the start of each log file
+     */
+    private static final int MAGIC = 0x4f4a544c;
+
+    /**
+     * The log file format version
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of the log file header
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * The size of a record's length, epoch and checksum
+     */
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    /**
+     * The size of a record's length, for earlier versions
+     */
+    private static final int LEGACY_RECORD_HEADER_SIZE = 8;
+
+    /**
+     * The minimum no. of bytes to extend a log file by, when a record doesn't
+     * fit
+     */
+    private static final int MIN_GROWTH = 64 * 1024;
 
     /**
      * The logger
@@ -109,6 +225,21 @@ public class TransactionLog {
      * @throws TransactionLogException
      */
     public TransactionLog(String name, boolean create)
+        throws TransactionLogException {
+        this(name, create, 0);
+    }
+
+    /**
+     * Create a transaction log with the specified name, preallocating
+     * <code>capacity</code> bytes if it is created.
+     *
+     * @param name - the name of the transaction log absolute or final
+     * @param create - flag inidicating whether to open or create the log
+     * @param capacity - the no. of bytes to preallocate, if the log is created
+     * @throws TransactionLogException
+     * @see #TransactionLog(String, boolean)
+     */
+    public TransactionLog(String name, boolean create, int capacity)
         throws TransactionLogException {
         if ((name == null) ||
             (name.length() == 0)) {
@@ -126,7 +257,7 @@ public class TransactionLog {
                     " already exists");
             } else {
                 try {
-                    (new FileOutputStream(file)).close();
+                    initialise(file, capacity, 1);
                 } catch (Exception exception) {
                     // rethrow the exception
                     throw new TransactionLogException(
@@ -140,10 +271,16 @@ public class TransactionLog {
             if (!file.exists()) {
                 throw new TransactionLogException(name + " does not exists");
             }
+            try {
+                scan(null);
+            } catch (Exception exception) {
+                throw new TransactionLogException(
+                    "Failed to open the log file " + name + " b/c" +
+                    exception);
+            }
+            _indexed = false;
         }
-
-        // set the size of the file
-        _size = (new File(name)).length();
+        _forced = _size;
     }
 
     /**
@@ -165,23 +302,23 @@ public class TransactionLog {
      * @param state - the transaction log state
      * @throws TransactionLogException - if the entry cannot be created
      */
-    public synchronized void logTransactionState(ExternalXid txid, long expiry,
-                                                 String rid,
-                                                 TransactionState state)
+    public void logTransactionState(ExternalXid txid, long expiry,
+                                    String rid, TransactionState state)
         throws TransactionLogException {
         try {
             StateTransactionLogEntry entry = new StateTransactionLogEntry(txid, rid);
             entry.setState(state);
             entry.setExpiryTime(expiry);
 
-            DataOutputStream dos = getOutputStream();
-            byte[] blob = SerializationHelper.serialize(entry);
-            dos.writeLong(blob.length);
-            dos.write(blob, 0, blob.length);
-            dos.flush();
+            write(SerializationHelper.serialize(entry));
 
-            // update the size
-            _size += blob.length;
+            synchronized (this) {
+                if (state.isOpened()) {
+                    _open.add(txid);
+                } else if (state.isClosed()) {
+                    _open.remove(txid);
+                }
+            }
         } catch (Exception exception) {
             throw new TransactionLogException("Error in logTransactionState " +
                 exception.toString());
@@ -198,22 +335,15 @@ public class TransactionLog {
      * @param data - the opaque data to write
      * @throws TransactionLogException - if the entry cannot be created
      */
-    public synchronized void logTransactionData(ExternalXid txid, long expiry, String rid,
-                                                Object data)
+    public void logTransactionData(ExternalXid txid, long expiry, String rid,
+                                   Object data)
         throws TransactionLogException {
         try {
             DataTransactionLogEntry entry = new DataTransactionLogEntry(txid, rid);
             entry.setData(data);
             entry.setExpiryTime(expiry);
 
-            DataOutputStream dos = getOutputStream();
-            byte[] blob = SerializationHelper.serialize(entry);
-            dos.writeLong(blob.length);
-            dos.write(blob, 0, blob.length);
-            dos.flush();
-
-            // update the size
-            _size += blob.length;
+            write(SerializationHelper.serialize(entry));
         } catch (Exception exception) {
             throw new TransactionLogException("Error in logTransactionData " +
                 exception.toString());
@@ -225,11 +355,18 @@ public class TransactionLog {
      *
      * @throws TransactionLogException - if it fails to close the log
      */
-    public void close()
+    public synchronized void close()
         throws TransactionLogException {
         try {
-            if (_dos != null) {
-                _dos.close();
+            if (_channel != null) {
+                if (_buffer != null) {
+                    _buffer.force();
+                    release(_buffer);
+                    _buffer = null;
+                }
+                _channel.close();
+                _channel = null;
+                forced(_size);
             }
         } catch (IOException exception) {
             throw new TransactionLogException("Error in close " +
@@ -238,11 +375,12 @@ public class TransactionLog {
     }
 
     /**
-     * Return the size of the transaction log file.
+     * Return the size of the transaction log file. This is the offset of the
+     * end of the last record, rather than the preallocated capacity.
      *
      * @return long - the length of the file
      */
-    public long size() {
+    public synchronized long size() {
         return _size;
     }
 
@@ -260,13 +398,18 @@ public class TransactionLog {
      */
     public synchronized HashMap recover()
         throws TransactionLogException {
-        return getOpenTransactionList();
+        HashMap records = getOpenTransactionList();
+        _open = new HashSet(records.keySet());
+        _indexed = true;
+        return records;
     }
 
     /**
-     * Check if we can garbage collect this transaction log. It will go through
-     * the log file and check to see whether there are any open transaction. If
-     * there are no open transactions the it is a candidate for garage collection
+     * Check if we can garbage collect this transaction log. If there are no
+     * open transactions then it is a candidate for garbage collection.
+     * <p>
+     * The open transactions are tracked as entries are logged, so the log
+     * file is only read if this log hasn't been recovered.
      *
      * @return boolean - true if we can garbage collect; false otherwise
      */
@@ -274,10 +417,10 @@ public class TransactionLog {
         boolean result = false;
 
         try {
-            HashMap records = getOpenTransactionList();
-            if (records.size() == 0) {
-                result = true;
+            if (!_indexed) {
+                recover();
             }
+            result = _open.isEmpty();
         } catch (Exception ignore) {
             ignore.printStackTrace();
         }
@@ -305,6 +448,50 @@ public class TransactionLog {
         }
     }
 
+    /**
+     * Reuse the file of this transaction log for a new, empty, transaction
+     * log with the specified name. The file keeps its preallocated capacity.
+     * This log must not be used afterwards.
+     * <p>
+     * If the file can't be renamed, it is copied to the new name, and then
+     * truncated and deleted.
+     *
+     * @param name - the name of the new transaction log
+     * @return TransactionLog - the new transaction log
+     * @throws TransactionLogException - if the file can't be reused
+     */
+    public synchronized TransactionLog recycle(String name)
+        throws TransactionLogException {
+        close();
+        File file = new File(name);
+        if (file.exists()) {
+            throw new TransactionLogException(name + " already exists");
+        }
+        File current = new File(_name);
+        if (!current.renameTo(file)) {
+            _log.warn("Failed to rename " + _name + " to " + name
+                + ". Copying it instead");
+            try {
+                copy(current, file);
+            } catch (IOException exception) {
+                file.delete();
+                throw new TransactionLogException("Failed to recycle "
+                    + _name + " to " + name + " b/c" + exception);
+            }
+            discard(current);
+        }
+        TransactionLog result = new TransactionLog(name);
+        try {
+            result.initialise(file, 0, _epoch + 1);
+        } catch (IOException exception) {
+            throw new TransactionLogException(
+                "Failed to recycle the log file " + name + " b/c" +
+                exception);
+        }
+        result._forced = result._size;
+        return result;
+    }
+
     // override Object.equals
     public boolean equals(Object obj) {
         boolean result = false;
@@ -318,20 +505,420 @@ public class TransactionLog {
     }
 
     /**
-     * Return an instance of the output stream. If one does not exist then
-     * create it.
+     * Construct a transaction log for a recycled file.
+     *
+     * @param name - the name of the transaction log
+     */
+    private TransactionLog(String name) {
+        _name = name;
+    }
+
+    /**
+     * Write the log header to the specified file, and preallocate it.
+     *
+     * @param file - the log file
+     * @param capacity - the no. of bytes to preallocate
+     * @param epoch - the segment epoch
+     * @throws IOException - if the file can't be written
+     */
+    private void initialise(File file, int capacity, int epoch)
+        throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            fill(channel, channel.size(), capacity);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(epoch);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        _legacy = false;
+        _epoch = epoch;
+        _size = HEADER_SIZE;
+    }
+
+    /**
+     * Write zeros to the specified region of a file, so that its blocks are
+     * allocated.
      *
-     * @return DataOutputStream - the output stream
+     * @param channel - the file channel
+     * @param from - the offset to fill from
+     * @param to - the offset to fill to
+     * @throws IOException - if the file can't be written
      */
-    private DataOutputStream getOutputStream()
-        throws IOException, FileNotFoundException {
-        if (_dos == null) {
-            _dos = new DataOutputStream(
-                new BufferedOutputStream(
-                    new FileOutputStream(_name, true)));
+    private static void fill(FileChannel channel, long from, long to)
+        throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(MIN_GROWTH);
+        for (long offset = from; offset < to; ) {
+            zeros.clear();
+            if (to - offset < zeros.capacity()) {
+                zeros.limit((int) (to - offset));
+            }
+            offset += channel.write(zeros, offset);
         }
+    }
 
-        return _dos;
+    /**
+     * Append a record to the log, and wait for it to be forced to disk.
+     *
+     * @param blob - the record content
+     * @throws IOException - if the record cannot be written
+     * @throws TransactionLogException - if the log cannot be recovered
+     */
+    private void write(byte[] blob)
+        throws IOException, TransactionLogException {
+        long end;
+        synchronized (this) {
+            ByteBuffer buffer = getBuffer(RECORD_HEADER_SIZE + blob.length);
+            if (_legacy) {
+                buffer.putLong(blob.length);
+            } else {
+                CRC32 crc = new CRC32();
+                crc.update(blob, 0, blob.length);
+                buffer.putInt(blob.length);
+                buffer.putInt(_epoch);
+                buffer.putInt((int) crc.getValue());
+            }
+            buffer.put(blob);
+            _size = buffer.position();
+            end = _size;
+            synchronized (_forceLock) {
+                _mapped = _buffer;
+                _appended = end;
+            }
+        }
+        force(end);
+    }
+
+    /**
+     * Wait until the log has been forced to disk up to the specified offset.
+     * If no other writer is forcing the log, then force it on behalf of all
+     * writers.
+     *
+     * @param offset - the offset to force the log up to
+     * @throws IOException - if the log cannot be forced
+     */
+    private void force(long offset) throws IOException {
+        synchronized (_forceLock) {
+            while (_forced < offset && _forcing) {
+                try {
+                    _forceLock.wait();
+                } catch (InterruptedException exception) {
+                    throw new InterruptedIOException(
+                        "Interrupted waiting for the log to be forced");
+                }
+            }
+            if (_forced >= offset) {
+                return;
+            }
+            _forcing = true;
+        }
+
+        long end = 0;
+        boolean forced = false;
+        try {
+            MappedByteBuffer buffer;
+            synchronized (_forceLock) {
+                buffer = _mapped;
+                end = _appended;
+            }
+            if (buffer != null) {
+                buffer.force();
+            }
+            // else closed, which forces the log
+            forced = true;
+        } finally {
+            synchronized (_forceLock) {
+                _forcing = false;
+                if (forced && end > _forced) {
+                    _forced = end;
+                }
+                _forceLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Record that the log has been forced to disk up to the specified offset.
+     *
+     * @param offset - the offset the log has been forced up to
+     */
+    private void forced(long offset) {
+        synchronized (_forceLock) {
+            if (offset > _forced) {
+                _forced = offset;
+            }
+            _forceLock.notifyAll();
+        }
+    }
+
+    /**
+     * Return a view of the mapping of the log file, positioned at the end of
+     * the last record, with at least <code>required</code> bytes remaining.
+     * If the log isn't mapped, or the record doesn't fit, then (re)map it,
+     * extending the file as required.
+     *
+     * @param required - the no. of bytes required
+     * @return ByteBuffer - the mapping
+     * @throws IOException - if the log cannot be mapped
+     */
+    private ByteBuffer getBuffer(int required) throws IOException {
+        if (_channel == null) {
+            _channel = new RandomAccessFile(_name, "rw").getChannel();
+            _buffer = null;
+        }
+        if (_size == 0) {
+            // an empty file. Write the header
+            _channel.close();
+            _channel = null;
+            initialise(new File(_name), 0, 1);
+            return getBuffer(required);
+        }
+        long length = _size + required;
+        if (_buffer == null || length > _buffer.capacity()) {
+            long capacity = _channel.size();
+            if (length > capacity) {
+                long growth = Math.max(capacity / 2, MIN_GROWTH);
+                long extended = Math.max(length, capacity + growth);
+                fill(_channel, capacity, extended);
+                capacity = extended;
+            }
+            if (_buffer != null) {
+                // release the existing mapping, rather than wait for it to
+                // be garbage collected
+                _buffer.force();
+                release(_buffer);
+                _buffer = null;
+                forced(_size);
+            }
+            _buffer = _channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                   capacity);
+        }
+        ByteBuffer result = _buffer.duplicate();
+        result.position((int) _size);
+        return result;
+    }
+
+    /**
+     * Read the log file, determining its format and the end of the last
+     * complete record. If <code>records</code> is non-null, each record is
+     * deserialized and applied to it.
+     *
+     * @param records - the open transactions. May be <code>null</code>
+     * @throws Exception - if the log cannot be read
+     */
+    private void scan(HashMap records) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(_name, "r");
+        MappedByteBuffer buffer = null;
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new TransactionLogException(_name + " is too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            _legacy = (length > 0 && buffer.getInt(0) != MAGIC);
+            if (!_legacy) {
+                if (length < HEADER_SIZE) {
+                    // nothing written yet. The header is written on first use
+                    _size = 0;
+                    return;
+                }
+                buffer.position(4);
+                if (buffer.getInt() != VERSION) {
+                    throw new TransactionLogException(
+                        "Unsupported transaction log format: " + _name);
+                }
+                _epoch = buffer.getInt();
+            }
+
+            byte[] blob;
+            // only report torn records on the first scan, when the log is
+            // opened
+            while ((blob = readRecord(buffer, records == null)) != null) {
+                if (records != null) {
+                    apply(records, SerializationHelper.deserialize(blob));
+                }
+            }
+            _size = buffer.position();
+        } finally {
+            raf.close();
+            if (buffer != null) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Release a mapping of the log file, once no writer is forcing it.
+     * The mapping must have been forced, and must not be used afterwards.
+     *
+     * @param buffer - the mapping to release
+     */
+    private void release(MappedByteBuffer buffer) {
+        synchronized (_forceLock) {
+            while (_forcing) {
+                try {
+                    _forceLock.wait();
+                } catch (InterruptedException exception) {
+                    // leave the mapping to be garbage collected
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (_mapped == buffer) {
+                _mapped = null;
+            }
+        }
+        unmap(buffer);
+    }
+
+    /**
+     * Unmap a mapping, without waiting for it to be garbage collected.
+     * <p>
+     * There is no public API to do this, so it is done reflectively, using
+     * <code>sun.misc.Unsafe.invokeCleaner()</code> where available, and the
+     * buffer's cleaner otherwise. If neither is accessible, the mapping is
+     * released when it is garbage collected.
+     *
+     * @param buffer - the mapping to unmap. Must not be used afterwards
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod(
+                "invokeCleaner", new Class[]{ByteBuffer.class});
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            invokeCleaner.invoke(field.get(null), new Object[]{buffer});
+            return;
+        } catch (NoSuchMethodException ignore) {
+            // pre JDK 1.9. Use the cleaner
+        } catch (Exception exception) {
+            _log.debug("Failed to unmap " + buffer, exception);
+            return;
+        }
+        try {
+            Method getCleaner = buffer.getClass().getMethod(
+                "cleaner", new Class[0]);
+            getCleaner.setAccessible(true);
+            Object cleaner = getCleaner.invoke(buffer, new Object[0]);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod(
+                    "clean", new Class[0]);
+                clean.setAccessible(true);
+                clean.invoke(cleaner, new Object[0]);
+            }
+        } catch (Exception exception) {
+            _log.debug("Failed to unmap " + buffer, exception);
+        }
+    }
+
+    /**
+     * Copy a file.
+     *
+     * @param from - the file to copy
+     * @param to - the file to copy to. Must not exist
+     * @throws IOException - if the file can't be copied
+     */
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(to);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long size = source.size();
+                for (long offset = 0; offset < size; ) {
+                    offset += source.transferTo(offset, size - offset,
+                                                target);
+                }
+                target.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Truncate and delete a file that has been copied. If it can't be
+     * deleted, it is left empty, so that it contains no records.
+     *
+     * @param file - the file to discard
+     */
+    private static void discard(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException exception) {
+            _log.error("Failed to truncate " + file, exception);
+        }
+        if (!file.delete()) {
+            _log.error("Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Read the next record from the log.
+     *
+     * @param buffer - the buffer to read from
+     * @param warn - if <code>true</code>, log a torn record
+     * @return byte[] - the record content, or <code>null</code> if there are
+     * no more complete records, in which case the buffer is positioned at the
+     * end of the last record
+     */
+    private byte[] readRecord(ByteBuffer buffer, boolean warn) {
+        int start = buffer.position();
+        int headerSize = _legacy ? LEGACY_RECORD_HEADER_SIZE : RECORD_HEADER_SIZE;
+        if (buffer.remaining() < headerSize) {
+            return null;
+        }
+        long length;
+        int checksum = 0;
+        if (_legacy) {
+            length = buffer.getLong();
+        } else {
+            length = buffer.getInt();
+            if (length != 0 && buffer.getInt() != _epoch) {
+                // written before the segment was recycled
+                length = 0;
+            }
+            checksum = buffer.getInt();
+        }
+        byte[] blob = null;
+        if (length > 0 && length <= buffer.remaining()) {
+            blob = new byte[(int) length];
+            buffer.get(blob);
+            if (!_legacy) {
+                CRC32 crc = new CRC32();
+                crc.update(blob, 0, blob.length);
+                if ((int) crc.getValue() != checksum) {
+                    blob = null;
+                }
+            }
+        }
+        if (blob == null) {
+            if (length != 0 && warn) {
+                // a record was torn by a failure while it was being written
+                _log.warn("Discarding incomplete record at offset " + start
+                    + " of " + _name);
+            }
+            buffer.position(start);
+        }
+        return blob;
     }
 
     /**
@@ -346,95 +933,78 @@ public class TransactionLog {
 
         HashMap records = new HashMap();
 
-        // if the output stream is opened then close it
+        // if the log is mapped then close it
+        close();
+
         try {
-            if (_dos != null) {
-                _dos.close();
-                _dos = null;
-            }
+            scan(records);
+        } catch (TransactionLogException exception) {
+            throw exception;
         } catch (Exception exception) {
             throw new TransactionLogException("Error in recover " +
                 exception.toString());
         }
 
+        return records;
+    }
 
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(_name);
-            DataInputStream dis = new DataInputStream(new BufferedInputStream(fis));
-
-            while (dis.available() > 0) {
-                byte[] blob = new byte[(int) dis.readLong()];
-                dis.readFully(blob);
-                Object object = SerializationHelper.deserialize(blob);
-                if (object instanceof StateTransactionLogEntry) {
-                    StateTransactionLogEntry state = (StateTransactionLogEntry) object;
-                    LinkedList list = null;
-                    switch (state.getState().getOrd()) {
-                        case TransactionState.OPENED_ORD:
-                            if (records.containsKey(state.getExternalXid())) {
-                                _log.error("OPENED_ORD : Transaction log is inconsistent");
-                                continue;
-                            }
-
-                            list = new LinkedList();
-                            records.put(state.getExternalXid(), list);
-                            list.add(state);
-                            break;
-
-                        case TransactionState.PREPARED_ORD:
-                            list = (LinkedList) records.get(state.getExternalXid());
-                            if (list == null) {
-                                _log.error("PREPARED_ORD : Transaction log is inconsistent");
-                                continue;
-                            }
-
-                            list.add(state);
-                            break;
-
-                        case TransactionState.CLOSED_ORD:
-                            if (records.get(state.getExternalXid()) == null) {
-                                _log.error("CLOSED_ORD : Transaction log is inconsistent");
-                                continue;
-                            }
-
-                            records.remove(state.getExternalXid());
-                            break;
-
-                        default:
-                            break;
+    /**
+     * Apply a log entry to the list of open transactions.
+     *
+     * @param records - the open transactions
+     * @param object - the log entry
+     */
+    private void apply(HashMap records, Object object) {
+        if (object instanceof StateTransactionLogEntry) {
+            StateTransactionLogEntry state = (StateTransactionLogEntry) object;
+            LinkedList list = null;
+            switch (state.getState().getOrd()) {
+                case TransactionState.OPENED_ORD:
+                    if (records.containsKey(state.getExternalXid())) {
+                        _log.error("OPENED_ORD : Transaction log is inconsistent");
+                        return;
                     }
-                } else if (object instanceof DataTransactionLogEntry) {
-                    DataTransactionLogEntry data = (DataTransactionLogEntry) object;
-                    LinkedList list = (LinkedList) records.get(data.getExternalXid());
+
+                    list = new LinkedList();
+                    records.put(state.getExternalXid(), list);
+                    list.add(state);
+                    break;
+
+                case TransactionState.PREPARED_ORD:
+                    list = (LinkedList) records.get(state.getExternalXid());
                     if (list == null) {
-                        _log.error("DATA : Transaction log is inconsistent");
-                        continue;
+                        _log.error("PREPARED_ORD : Transaction log is inconsistent");
+                        return;
                     }
 
-                    list.add(data);
-                } else {
-                    System.err.println("There is no support for log entry " +
-                        "records of type " + object.getClass().getName());
-                }
+                    list.add(state);
+                    break;
 
+                case TransactionState.CLOSED_ORD:
+                    if (records.get(state.getExternalXid()) == null) {
+                        _log.error("CLOSED_ORD : Transaction log is inconsistent");
+                        return;
+                    }
+
+                    records.remove(state.getExternalXid());
+                    break;
+
+                default:
+                    break;
             }
-        } catch (Exception exception) {
-            throw new TransactionLogException("Error in recover " +
-                exception.toString());
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (Exception exception) {
-                    throw new TransactionLogException("Error in recover " +
-                        exception.toString());
-                }
+        } else if (object instanceof DataTransactionLogEntry) {
+            DataTransactionLogEntry data = (DataTransactionLogEntry) object;
+            LinkedList list = (LinkedList) records.get(data.getExternalXid());
+            if (list == null) {
+                _log.error("DATA : Transaction log is inconsistent");
+                return;
             }
-        }
-
-        return records;
 
+            list.add(data);
+        } else {
+            System.err.println("There is no support for log entry " +
+                "records of type " + object.getClass().getName());
+        }
     }
 
 } //-- TransactionLog
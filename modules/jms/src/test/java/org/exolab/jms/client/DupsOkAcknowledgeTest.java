@@ -0,0 +1,329 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Tests the lazy acknowledgement of messages received by
+ * <code>DUPS_OK_ACKNOWLEDGE</code> sessions.
+ * <p/>
+ * Each test receives some messages, and then checks which messages the
+ * server redelivers once the session's connection has been dropped. Those
+ * acknowledged are not redelivered.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class DupsOkAcknowledgeTest extends TestCase {
+
+    /**
+     * The no. of messages sent by each test.
+     */
+    private static final int COUNT = 10;
+
+    /**
+     * The no. of messages received before acknowledgements are checked.
+     */
+    private static final int RECEIVED = 3;
+
+    /**
+     * The time to wait for pending acknowledgements to be flushed when the
+     * session is idle, in milliseconds. This must exceed the maximum time
+     * that acknowledgements are held for.
+     */
+    private static final long IDLE = 2500;
+
+    /**
+     * The maximum time to wait for a message, in milliseconds.
+     */
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * The connection factory.
+     */
+    private JmsConnectionFactory _factory;
+
+    /**
+     * The queue.
+     */
+    private Destination _queue;
+
+    /**
+     * The connections created by the test.
+     */
+    private List _connections = new ArrayList();
+
+
+    /**
+     * Verifies that pending acknowledgements are sent when the session is
+     * idle.
+     *
+     * @throws Exception for any error
+     */
+    public void testFlushWhenIdle() throws Exception {
+        send(COUNT);
+        JmsConnection connection = createConnection();
+        Session session = connection.createSession(
+                false, Session.DUPS_OK_ACKNOWLEDGE);
+        receive(session.createConsumer(_queue), RECEIVED);
+
+        Thread.sleep(IDLE);
+        EmbeddedServerHelper.dropConnection(connection.getConnectionId());
+        checkRedelivered(RECEIVED);
+    }
+
+    /**
+     * Verifies that pending acknowledgements are sent when a receive finds
+     * no message and waits.
+     *
+     * @throws Exception for any error
+     */
+    public void testFlushOnWait() throws Exception {
+        send(COUNT);
+        JmsConnection connection = createConnection();
+        Session session = connection.createSession(
+                false, Session.DUPS_OK_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(_queue);
+        receive(consumer, COUNT);
+        assertNull(consumer.receive(100));
+
+        EmbeddedServerHelper.dropConnection(connection.getConnectionId());
+        checkRedelivered(COUNT);
+    }
+
+    /**
+     * Verifies that pending acknowledgements are sent when the session is
+     * closed.
+     *
+     * @throws Exception for any error
+     */
+    public void testFlushOnClose() throws Exception {
+        send(COUNT);
+        JmsConnection connection = createConnection();
+        Session session = connection.createSession(
+                false, Session.DUPS_OK_ACKNOWLEDGE);
+        receive(session.createConsumer(_queue), RECEIVED);
+        session.close();
+
+        EmbeddedServerHelper.dropConnection(connection.getConnectionId());
+        checkRedelivered(RECEIVED);
+    }
+
+    /**
+     * Verifies that pending acknowledgements are sent on recovery, so that
+     * received messages aren't redelivered.
+     *
+     * @throws Exception for any error
+     */
+    public void testFlushOnRecover() throws Exception {
+        send(COUNT);
+        JmsConnection connection = createConnection();
+        Session session = connection.createSession(
+                false, Session.DUPS_OK_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(_queue);
+        receive(consumer, RECEIVED);
+        session.recover();
+
+        checkReceiveAll(consumer, RECEIVED);
+    }
+
+    /**
+     * Verifies that messages whose acknowledgements are pending when the
+     * connection is dropped are redelivered, and that the subsequent idle
+     * flush fails without acknowledging anything.
+     *
+     * @throws Exception for any error
+     */
+    public void testDroppedConnection() throws Exception {
+        send(COUNT);
+        JmsConnection connection = createConnection();
+        Session session = connection.createSession(
+                false, Session.DUPS_OK_ACKNOWLEDGE);
+        receive(session.createConsumer(_queue), RECEIVED);
+
+        EmbeddedServerHelper.dropConnection(connection.getConnectionId());
+        Thread.sleep(IDLE);
+        checkRedelivered(0);
+    }
+
+    /**
+     * Sets up the test case, removing any messages left by prior tests.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        Context context = EmbeddedServerHelper.start();
+        _factory = (JmsConnectionFactory) context.lookup("ConnectionFactory");
+        _queue = (Destination) context.lookup("queue1");
+
+        Session session = createConnection().createSession(
+                false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(_queue);
+        while (consumer.receive(500) != null) {
+            // discard
+        }
+        consumer.close();
+    }
+
+    /**
+     * Cleans up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void tearDown() throws Exception {
+        Iterator iterator = _connections.iterator();
+        while (iterator.hasNext()) {
+            try {
+                ((Connection) iterator.next()).close();
+            } catch (JMSException ignore) {
+                // the connection may have been dropped
+            }
+        }
+        _connections.clear();
+    }
+
+    /**
+     * Creates a new, started connection.
+     *
+     * @return a new connection
+     * @throws JMSException for any JMS error
+     */
+    private JmsConnection createConnection() throws JMSException {
+        JmsConnection connection = (JmsConnection) _factory.createConnection();
+        _connections.add(connection);
+        connection.start();
+        return connection;
+    }
+
+    /**
+     * Sends messages to the queue, with text "0".."count-1".
+     *
+     * @param count the no. of messages to send
+     * @throws JMSException for any JMS error
+     */
+    private void send(int count) throws JMSException {
+        Connection connection = _factory.createConnection();
+        try {
+            Session session = connection.createSession(
+                    false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(_queue);
+            for (int i = 0; i < count; ++i) {
+                producer.send(session.createTextMessage(Integer.toString(i)));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Receives messages, verifying they are received in the order sent.
+     *
+     * @param consumer the consumer
+     * @param count    the no. of messages to receive
+     * @throws JMSException for any JMS error
+     */
+    private void receive(MessageConsumer consumer, int count)
+            throws JMSException {
+        for (int i = 0; i < count; ++i) {
+            TextMessage message = (TextMessage) consumer.receive(TIMEOUT);
+            assertNotNull("Expected message " + i, message);
+            assertEquals(Integer.toString(i), message.getText());
+        }
+    }
+
+    /**
+     * Verifies that a new consumer receives the messages that weren't
+     * acknowledged.
+     *
+     * @param first the text of the first message expected
+     * @throws JMSException for any JMS error
+     */
+    private void checkRedelivered(int first) throws JMSException {
+        Session session = createConnection().createSession(
+                false, Session.AUTO_ACKNOWLEDGE);
+        checkReceiveAll(session.createConsumer(_queue), first);
+    }
+
+    /**
+     * Receives the remaining messages, and verifies that each is received
+     * exactly once.
+     *
+     * @param consumer the consumer
+     * @param first    the text of the first message expected
+     * @throws JMSException for any JMS error
+     */
+    private void checkReceiveAll(MessageConsumer consumer, int first)
+            throws JMSException {
+        Set expected = new HashSet();
+        for (int i = first; i < COUNT; ++i) {
+            expected.add(Integer.toString(i));
+        }
+        TextMessage message;
+        while ((message = (TextMessage) consumer.receive(1000)) != null) {
+            assertTrue("Unexpected message " + message.getText(),
+                       expected.remove(message.getText()));
+        }
+        assertTrue("Messages not received: " + expected, expected.isEmpty());
+    }
+
+}
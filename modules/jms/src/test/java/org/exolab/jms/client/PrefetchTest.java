@@ -0,0 +1,339 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.naming.Context;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Tests prefetching of messages by synchronous consumers.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class PrefetchTest extends TestCase {
+
+    /**
+     * The prefetch window size.
+     */
+    private static final int WINDOW = 4;
+
+    /**
+     * The no. of messages sent by each test.
+     */
+    private static final int COUNT = 10;
+
+    /**
+     * The maximum time to wait for messages to be pushed, in milliseconds.
+     */
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * The connection factory.
+     */
+    private JmsConnectionFactory _factory;
+
+    /**
+     * The queue.
+     */
+    private Destination _queue;
+
+    /**
+     * The connections created by the test.
+     */
+    private List _connections = new ArrayList();
+
+
+    /**
+     * Verifies that the server pushes no more than the window size, and that
+     * credit is returned once half the window has been received.
+     *
+     * @throws Exception for any error
+     */
+    public void testCreditReplenishedAtHalfWindow() throws Exception {
+        send(COUNT);
+        Session session = createSession(WINDOW, Session.AUTO_ACKNOWLEDGE);
+        JmsMessageConsumer consumer =
+                (JmsMessageConsumer) session.createConsumer(_queue);
+
+        // the first receive opens the window
+        checkReceive(consumer, 0);
+        assertTrue(consumer.isPrefetching());
+        waitForPrefetched(consumer, WINDOW - 1);
+
+        // no credit has been returned, so nothing more is pushed
+        Thread.sleep(500);
+        assertEquals(WINDOW - 1, consumer.getPrefetchedCount());
+
+        // receiving half the window returns credit, refilling it
+        checkReceive(consumer, 1);
+        waitForPrefetched(consumer, WINDOW);
+
+        for (int i = 2; i < COUNT; ++i) {
+            checkReceive(consumer, i);
+        }
+        assertNull(consumer.receive(500));
+        assertEquals(0, consumer.getPrefetchedCount());
+    }
+
+    /**
+     * Verifies that messages prefetched but not received are redelivered
+     * when the consumer is closed.
+     *
+     * @throws Exception for any error
+     */
+    public void testClose() throws Exception {
+        send(COUNT);
+        Session session = createSession(WINDOW, Session.AUTO_ACKNOWLEDGE);
+        JmsMessageConsumer consumer =
+                (JmsMessageConsumer) session.createConsumer(_queue);
+        checkReceive(consumer, 0);
+        waitForPrefetched(consumer, WINDOW - 1);
+        consumer.close();
+
+        Session other = createSession(0, Session.AUTO_ACKNOWLEDGE);
+        checkReceiveAll(other.createConsumer(_queue), 1);
+    }
+
+    /**
+     * Verifies that messages prefetched but not received are redelivered
+     * on recovery.
+     *
+     * @throws Exception for any error
+     */
+    public void testRecover() throws Exception {
+        send(COUNT);
+        Session session = createSession(WINDOW, Session.AUTO_ACKNOWLEDGE);
+        JmsMessageConsumer consumer =
+                (JmsMessageConsumer) session.createConsumer(_queue);
+        checkReceive(consumer, 0);
+        checkReceive(consumer, 1);
+        waitForPrefetched(consumer, WINDOW);
+
+        session.recover();
+        assertEquals(0, consumer.getPrefetchedCount());
+        checkReceiveAll(consumer, 2);
+    }
+
+    /**
+     * Verifies that a window size of <code>0</code> disables prefetching,
+     * leaving unreceived messages available to other consumers.
+     *
+     * @throws Exception for any error
+     */
+    public void testNoPrefetch() throws Exception {
+        send(3);
+        Session session1 = createSession(0, Session.AUTO_ACKNOWLEDGE);
+        JmsMessageConsumer consumer1 =
+                (JmsMessageConsumer) session1.createConsumer(_queue);
+        checkReceive(consumer1, 0);
+        assertFalse(consumer1.isPrefetching());
+        assertEquals(0, consumer1.getPrefetchedCount());
+
+        Session session2 = createSession(0, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer2 = session2.createConsumer(_queue);
+        checkReceive(consumer2, 1);
+        checkReceive(consumer1, 2);
+        assertNull(consumer1.receiveNoWait());
+    }
+
+    /**
+     * Verifies that messages aren't prefetched for
+     * <code>CLIENT_ACKNOWLEDGE</code> sessions.
+     *
+     * @throws Exception for any error
+     */
+    public void testNoPrefetchForClientAcknowledge() throws Exception {
+        send(2);
+        Session session = createSession(WINDOW, Session.CLIENT_ACKNOWLEDGE);
+        JmsMessageConsumer consumer =
+                (JmsMessageConsumer) session.createConsumer(_queue);
+        TextMessage message = (TextMessage) consumer.receive(TIMEOUT);
+        assertNotNull(message);
+        assertFalse(consumer.isPrefetching());
+        assertEquals(0, consumer.getPrefetchedCount());
+        message.acknowledge();
+        checkReceive(consumer, 1);
+        session.recover();
+    }
+
+    /**
+     * Sets up the test case, removing any messages left by prior tests.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        Context context = EmbeddedServerHelper.start();
+        _factory = (JmsConnectionFactory) context.lookup("ConnectionFactory");
+        _queue = (Destination) context.lookup("queue1");
+
+        Session session = createSession(0, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(_queue);
+        while (consumer.receive(500) != null) {
+            // discard
+        }
+        consumer.close();
+    }
+
+    /**
+     * Cleans up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void tearDown() throws Exception {
+        Iterator iterator = _connections.iterator();
+        while (iterator.hasNext()) {
+            ((Connection) iterator.next()).close();
+        }
+        _connections.clear();
+    }
+
+    /**
+     * Creates a session on a new, started connection.
+     *
+     * @param prefetch the prefetch window size
+     * @param ackMode  the acknowledgement mode
+     * @return a new session
+     * @throws JMSException for any JMS error
+     */
+    private Session createSession(int prefetch, int ackMode)
+            throws JMSException {
+        _factory.setPrefetch(prefetch);
+        Connection connection = _factory.createConnection();
+        _connections.add(connection);
+        connection.start();
+        return connection.createSession(false, ackMode);
+    }
+
+    /**
+     * Sends messages to the queue, with text "0".."count-1".
+     *
+     * @param count the no. of messages to send
+     * @throws JMSException for any JMS error
+     */
+    private void send(int count) throws JMSException {
+        Connection connection = _factory.createConnection();
+        try {
+            Session session = connection.createSession(
+                    false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(_queue);
+            for (int i = 0; i < count; ++i) {
+                producer.send(session.createTextMessage(Integer.toString(i)));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Receives a message, and verifies it is the expected one.
+     *
+     * @param consumer the consumer
+     * @param expected the expected message text
+     * @throws JMSException for any JMS error
+     */
+    private void checkReceive(MessageConsumer consumer, int expected)
+            throws JMSException {
+        TextMessage message = (TextMessage) consumer.receive(TIMEOUT);
+        assertNotNull("Expected message " + expected, message);
+        assertEquals(Integer.toString(expected), message.getText());
+    }
+
+    /**
+     * Receives the remaining messages, and verifies that each is received
+     * exactly once.
+     *
+     * @param consumer the consumer
+     * @param first    the text of the first message expected
+     * @throws JMSException for any JMS error
+     */
+    private void checkReceiveAll(MessageConsumer consumer, int first)
+            throws JMSException {
+        Set expected = new HashSet();
+        for (int i = first; i < COUNT; ++i) {
+            expected.add(Integer.toString(i));
+        }
+        TextMessage message;
+        while ((message = (TextMessage) consumer.receive(1000)) != null) {
+            assertTrue("Unexpected message " + message.getText(),
+                       expected.remove(message.getText()));
+        }
+        assertTrue("Messages not received: " + expected, expected.isEmpty());
+    }
+
+    /**
+     * Waits for the no. of prefetched messages to reach the expected count.
+     *
+     * @param consumer the consumer
+     * @param expected the expected no. of prefetched messages
+     * @throws InterruptedException if interrupted
+     */
+    private void waitForPrefetched(JmsMessageConsumer consumer, int expected)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (consumer.getPrefetchedCount() != expected
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertEquals(expected, consumer.getPrefetchedCount());
+    }
+
+}
@@ -0,0 +1,232 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+
+import org.exolab.jms.client.JmsQueue;
+
+
+/**
+ * Compares the size and encode/decode time of messages stored with
+ * {@link MessageCodec} against Java serialization, the format used prior
+ * to its introduction.
+ * <p/>
+ * Usage:
+ * <pre>
+ * MessageCodecBenchmark [iterations]
+ * </pre>
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class MessageCodecBenchmark {
+
+    /**
+     * Main line.
+     *
+     * @param args the command line arguments
+     * @throws Exception for any error
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0])
+                : 200000;
+        MessageImpl[] messages = {createTextMessage(), createMapMessage(),
+                                  createBytesMessage()};
+        for (int i = 0; i < messages.length; ++i) {
+            // warm up
+            run(messages[i], iterations / 10, false, false);
+            run(messages[i], iterations / 10, true, false);
+
+            run(messages[i], iterations, false, true);
+            run(messages[i], iterations, true, true);
+        }
+    }
+
+    /**
+     * Encodes and decodes a message repeatedly, and optionally prints the
+     * encoded size and average times.
+     *
+     * @param message    the message
+     * @param iterations the no. of iterations
+     * @param codec      if <code>true</code> use {@link MessageCodec},
+     *                   otherwise use Java serialization
+     * @param report     if <code>true</code>, print the results
+     * @throws Exception for any error
+     */
+    private static void run(MessageImpl message, int iterations,
+                            boolean codec, boolean report)
+            throws Exception {
+        byte[] encoded = null;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; ++i) {
+            encoded = (codec) ? MessageCodec.encode(message)
+                    : serialize(message);
+        }
+        long end = System.currentTimeMillis();
+        long encodeTime = end - start;
+        for (int i = 0; i < iterations; ++i) {
+            if (codec) {
+                MessageCodec.decode(encoded);
+            } else {
+                deserialize(encoded);
+            }
+        }
+        long decodeTime = System.currentTimeMillis() - end;
+        if (!report) {
+            return;
+        }
+        String name = message.getClass().getName();
+        name = name.substring(name.lastIndexOf('.') + 1);
+        System.out.println(name + " " + ((codec) ? "codec" : "serialized")
+                           + ": " + encoded.length + " bytes, encode="
+                           + (encodeTime * 1000000L / iterations)
+                           + "ns, decode="
+                           + (decodeTime * 1000000L / iterations) + "ns");
+    }
+
+    /**
+     * Serializes a message using Java serialization.
+     *
+     * @param message the message
+     * @return the serialized message
+     * @throws Exception for any error
+     */
+    private static byte[] serialize(MessageImpl message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a message using Java serialization.
+     *
+     * @param serialized the serialized message
+     * @return the message
+     * @throws Exception for any error
+     */
+    private static MessageImpl deserialize(byte[] serialized)
+            throws Exception {
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(serialized));
+        MessageImpl result = (MessageImpl) in.readObject();
+        in.close();
+        return result;
+    }
+
+    /**
+     * Creates a text message with three properties.
+     *
+     * @return a new message
+     * @throws JMSException for any JMS error
+     */
+    private static MessageImpl createTextMessage() throws JMSException {
+        TextMessageImpl message = new TextMessageImpl();
+        populate(message);
+        message.setText("The quick brown fox jumps over the lazy dog");
+        return message;
+    }
+
+    /**
+     * Creates a map message with three properties.
+     *
+     * @return a new message
+     * @throws JMSException for any JMS error
+     */
+    private static MessageImpl createMapMessage() throws JMSException {
+        MapMessageImpl message = new MapMessageImpl();
+        populate(message);
+        message.setString("symbol", "ACME");
+        message.setDouble("price", 12.5);
+        message.setLong("volume", 1000);
+        return message;
+    }
+
+    /**
+     * Creates a bytes message with three properties and a 256 byte body.
+     *
+     * @return a new message
+     * @throws JMSException for any JMS error
+     */
+    private static MessageImpl createBytesMessage() throws JMSException {
+        BytesMessageImpl message = new BytesMessageImpl();
+        populate(message);
+        byte[] body = new byte[256];
+        for (int i = 0; i < body.length; ++i) {
+            body[i] = (byte) i;
+        }
+        message.writeBytes(body);
+        message.reset();
+        return message;
+    }
+
+    /**
+     * Populates the header and properties of a message, as for a message
+     * accepted by the server.
+     *
+     * @param message the message to populate
+     * @throws JMSException for any JMS error
+     */
+    private static void populate(MessageImpl message) throws JMSException {
+        message.setJMSMessageID("ID:" + System.currentTimeMillis());
+        message.setJMSDestination(new JmsQueue("queue1"));
+        message.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+        message.setJMSPriority(4);
+        message.setJMSTimestamp(System.currentTimeMillis());
+        message.setStringProperty("region", "EU");
+        message.setIntProperty("count", 42);
+        message.setBooleanProperty("urgent", true);
+        message.setAcceptedTime(System.currentTimeMillis());
+        message.setSequenceNumber(1);
+    }
+
+}
@@ -0,0 +1,278 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.client.JmsQueue;
+
+
+/**
+ * Tests the {@link MessageCodec}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class MessageCodecTest extends TestCase {
+
+    /**
+     * Verifies a <code>TextMessage</code> can be encoded and decoded.
+     *
+     * @throws Exception for any error
+     */
+    public void testTextMessage() throws Exception {
+        TextMessageImpl message = new TextMessageImpl();
+        populate(message);
+        message.setText("hello");
+
+        TextMessageImpl result = (TextMessageImpl) encodeDecode(message);
+        checkHeaders(message, result);
+        assertEquals("hello", result.getText());
+    }
+
+    /**
+     * Verifies a <code>MapMessage</code> can be encoded and decoded.
+     *
+     * @throws Exception for any error
+     */
+    public void testMapMessage() throws Exception {
+        MapMessageImpl message = new MapMessageImpl();
+        populate(message);
+        message.setString("string", "value");
+        message.setDouble("double", 12.5);
+        message.setBytes("bytes", new byte[]{1, 2, 3});
+
+        MapMessageImpl result = (MapMessageImpl) encodeDecode(message);
+        checkHeaders(message, result);
+        assertEquals("value", result.getString("string"));
+        assertEquals(12.5, result.getDouble("double"), 0);
+        byte[] bytes = result.getBytes("bytes");
+        assertEquals(3, bytes.length);
+        assertEquals(3, bytes[2]);
+    }
+
+    /**
+     * Verifies a <code>BytesMessage</code> can be encoded and decoded.
+     *
+     * @throws Exception for any error
+     */
+    public void testBytesMessage() throws Exception {
+        BytesMessageImpl message = new BytesMessageImpl();
+        populate(message);
+        message.writeInt(10);
+        message.writeUTF("hello");
+        message.reset();
+
+        BytesMessageImpl result = (BytesMessageImpl) encodeDecode(message);
+        checkHeaders(message, result);
+        assertEquals(10, result.readInt());
+        assertEquals("hello", result.readUTF());
+    }
+
+    /**
+     * Verifies that a message larger than the buffer retained between
+     * encodings can be encoded, and that subsequent messages are encoded
+     * correctly.
+     *
+     * @throws Exception for any error
+     */
+    public void testLargeMessage() throws Exception {
+        BytesMessageImpl large = new BytesMessageImpl();
+        populate(large);
+        byte[] data = new byte[200 * 1024];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        large.writeBytes(data);
+        large.reset();
+
+        BytesMessageImpl result = (BytesMessageImpl) encodeDecode(large);
+        checkHeaders(large, result);
+        byte[] bytes = new byte[data.length];
+        assertEquals(data.length, result.readBytes(bytes));
+        assertTrue(Arrays.equals(data, bytes));
+
+        TextMessageImpl small = new TextMessageImpl();
+        populate(small);
+        small.setText("hello");
+        byte[] encoded = MessageCodec.encode(small);
+        assertTrue(encoded.length < 1024);
+        TextMessageImpl text = (TextMessageImpl) MessageCodec.decode(encoded);
+        assertEquals("hello", text.getText());
+    }
+
+    /**
+     * Verifies a <code>StreamMessage</code> can be encoded and decoded.
+     *
+     * @throws Exception for any error
+     */
+    public void testStreamMessage() throws Exception {
+        StreamMessageImpl message = new StreamMessageImpl();
+        populate(message);
+        message.writeLong(1234L);
+        message.writeString("hello");
+        message.reset();
+
+        StreamMessageImpl result = (StreamMessageImpl) encodeDecode(message);
+        checkHeaders(message, result);
+        assertEquals(1234L, result.readLong());
+        assertEquals("hello", result.readString());
+    }
+
+    /**
+     * Verifies an <code>ObjectMessage</code> can be encoded and decoded.
+     *
+     * @throws Exception for any error
+     */
+    public void testObjectMessage() throws Exception {
+        ObjectMessageImpl message = new ObjectMessageImpl();
+        populate(message);
+        Date date = new Date();
+        message.setObject(date);
+
+        ObjectMessageImpl result = (ObjectMessageImpl) encodeDecode(message);
+        checkHeaders(message, result);
+        assertEquals(date, result.getObject());
+    }
+
+    /**
+     * Verifies that {@link MessageCodec#decodeHeaders} decodes the header
+     * and properties of a message, regardless of its type.
+     *
+     * @throws Exception for any error
+     */
+    public void testDecodeHeaders() throws Exception {
+        TextMessageImpl message = new TextMessageImpl();
+        populate(message);
+        message.setText("hello");
+
+        MessageImpl result = MessageCodec.decodeHeaders(
+                MessageCodec.encode(message));
+        checkHeaders(message, result);
+    }
+
+    /**
+     * Verifies that messages stored using Java serialization are
+     * distinguished from encoded messages.
+     *
+     * @throws Exception for any error
+     */
+    public void testIsEncoded() throws Exception {
+        TextMessageImpl message = new TextMessageImpl();
+        populate(message);
+
+        assertTrue(MessageCodec.isEncoded(MessageCodec.encode(message)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        assertFalse(MessageCodec.isEncoded(bytes.toByteArray()));
+    }
+
+    /**
+     * Encodes and decodes a message.
+     *
+     * @param message the message
+     * @return the decoded message
+     * @throws Exception for any error
+     */
+    private MessageImpl encodeDecode(MessageImpl message) throws Exception {
+        MessageImpl result = MessageCodec.decode(MessageCodec.encode(message));
+        assertEquals(message.getClass(), result.getClass());
+        return result;
+    }
+
+    /**
+     * Verifies that a decoded message has the same header and properties
+     * as the original.
+     *
+     * @param expected the original message
+     * @param actual   the decoded message
+     * @throws JMSException for any JMS error
+     */
+    private void checkHeaders(MessageImpl expected, MessageImpl actual)
+            throws JMSException {
+        assertEquals(expected.getJMSMessageID(), actual.getJMSMessageID());
+        assertEquals(expected.getJMSDestination(), actual.getJMSDestination());
+        assertEquals(expected.getJMSDeliveryMode(),
+                     actual.getJMSDeliveryMode());
+        assertEquals(expected.getJMSPriority(), actual.getJMSPriority());
+        assertEquals(expected.getJMSTimestamp(), actual.getJMSTimestamp());
+        assertEquals(expected.getAcceptedTime(), actual.getAcceptedTime());
+        assertEquals(expected.getSequenceNumber(),
+                     actual.getSequenceNumber());
+        assertEquals("EU", actual.getStringProperty("region"));
+        assertEquals(42, actual.getIntProperty("count"));
+        assertTrue(actual.getBooleanProperty("urgent"));
+    }
+
+    /**
+     * Populates the header and properties of a message.
+     *
+     * @param message the message to populate
+     * @throws JMSException for any JMS error
+     */
+    private void populate(MessageImpl message) throws JMSException {
+        message.setJMSMessageID("ID:1");
+        message.setJMSDestination(new JmsQueue("queue1"));
+        message.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+        message.setJMSPriority(7);
+        message.setJMSTimestamp(1000);
+        message.setStringProperty("region", "EU");
+        message.setIntProperty("count", 42);
+        message.setBooleanProperty("urgent", true);
+        message.setAcceptedTime(2000);
+        message.setSequenceNumber(3);
+    }
+
+}
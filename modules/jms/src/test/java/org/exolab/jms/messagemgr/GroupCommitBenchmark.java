@@ -0,0 +1,180 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.naming.Context;
+
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.config.MessageManagerConfiguration;
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Measures the throughput of concurrent persistent producers, to gauge the
+ * effect of group commit.
+ * <p/>
+ * Usage:
+ * <pre>
+ * GroupCommitBenchmark [producers [messages [batchSize [maxLinger]]]]
+ * </pre>
+ * where <em>messages</em> is the no. of messages sent by each producer.
+ * The server cannot be restarted within a JVM, so each batch size must be
+ * measured in a separate run. A <em>batchSize</em> of 1 disables group
+ * commit.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class GroupCommitBenchmark {
+
+    /**
+     * Main line.
+     *
+     * @param args the command line arguments
+     * @throws Exception for any error
+     */
+    public static void main(String[] args) throws Exception {
+        int producers = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+        int batchSize = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+        int maxLinger = (args.length > 3) ? Integer.parseInt(args[3]) : 0;
+
+        Configuration config = EmbeddedServerHelper.getConfiguration();
+        MessageManagerConfiguration manager
+                = config.getMessageManagerConfiguration();
+        manager.setGroupCommitBatchSize(batchSize);
+        manager.setGroupCommitMaxLinger(maxLinger);
+        Context context = EmbeddedServerHelper.start(config);
+        ConnectionFactory factory
+                = (ConnectionFactory) context.lookup("ConnectionFactory");
+        Destination queue = (Destination) context.lookup("queue1");
+
+        // warm up
+        run(factory, queue, producers, messages / 10);
+
+        long elapsed = run(factory, queue, producers, messages);
+        int total = producers * messages;
+        System.out.println("producers=" + producers + ", messages="
+                           + total + ", batchSize=" + batchSize
+                           + ", maxLinger=" + maxLinger + ": "
+                           + (total * 1000L / Math.max(elapsed, 1))
+                           + " msgs/sec");
+        System.exit(0);
+    }
+
+    /**
+     * Sends messages concurrently.
+     *
+     * @param factory   the connection factory
+     * @param queue     the destination to send to
+     * @param producers the no. of concurrent producers
+     * @param messages  the no. of messages to send per producer
+     * @return the elapsed time, in milliseconds
+     * @throws Exception for any error
+     */
+    private static long run(final ConnectionFactory factory,
+                            final Destination queue, int producers,
+                            final int messages) throws Exception {
+        final Exception[] errors = new Exception[producers];
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; ++i) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        send(factory, queue, messages);
+                    } catch (Exception exception) {
+                        errors[index] = exception;
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < producers; ++i) {
+            threads[i].start();
+        }
+        for (int i = 0; i < producers; ++i) {
+            threads[i].join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        for (int i = 0; i < producers; ++i) {
+            if (errors[i] != null) {
+                throw errors[i];
+            }
+        }
+        return elapsed;
+    }
+
+    /**
+     * Sends persistent messages on a new connection.
+     *
+     * @param factory  the connection factory
+     * @param queue    the destination to send to
+     * @param messages the no. of messages to send
+     * @throws Exception for any error
+     */
+    private static void send(ConnectionFactory factory, Destination queue,
+                             int messages) throws Exception {
+        Connection connection = factory.createConnection();
+        try {
+            Session session = connection.createSession(
+                    false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(queue);
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            for (int i = 0; i < messages; ++i) {
+                producer.send(session.createTextMessage("message " + i));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+}
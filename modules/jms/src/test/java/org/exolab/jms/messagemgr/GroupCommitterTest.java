@@ -0,0 +1,286 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import javax.jms.JMSException;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.message.MessageImpl;
+import org.exolab.jms.message.TextMessageImpl;
+import org.exolab.jms.persistence.DatabaseService;
+import org.exolab.jms.persistence.PersistenceException;
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Tests the {@link GroupCommitter}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class GroupCommitterTest extends TestCase {
+
+    /**
+     * The database service. This is never started, so only supports
+     * transactions that don't access the database.
+     */
+    private DatabaseService _database;
+
+    /**
+     * The messages made available after their transaction committed.
+     */
+    private List _published;
+
+    /**
+     * The no. of times each batch was written.
+     */
+    private List _batches;
+
+
+    /**
+     * Verifies that a batch of messages written concurrently is committed in
+     * a single transaction, and that the messages are only made available
+     * once it commits.
+     *
+     * @throws Exception for any error
+     */
+    public void testBatch() throws Exception {
+        final int count = 10;
+        GroupCommitter committer = createCommitter(null, count);
+        MessageImpl[] messages = createMessages(count);
+        Throwable[] errors = write(committer, messages);
+
+        for (int i = 0; i < count; ++i) {
+            assertNull(errors[i]);
+        }
+        assertEquals(1, _batches.size());
+        assertEquals(new Integer(count), _batches.get(0));
+        checkPublished(messages, null);
+    }
+
+    /**
+     * Verifies that when a batch fails, the remaining messages are retried
+     * individually, and that messages are made available exactly once,
+     * and only if their transaction committed.
+     *
+     * @throws Exception for any error
+     */
+    public void testBatchFailure() throws Exception {
+        final int count = 10;
+        MessageImpl[] messages = createMessages(count);
+        MessageImpl bad = messages[count / 2];
+        GroupCommitter committer = createCommitter(bad, count);
+        Throwable[] errors = write(committer, messages);
+
+        for (int i = 0; i < count; ++i) {
+            if (messages[i] == bad) {
+                assertTrue(errors[i] instanceof JMSException);
+            } else {
+                assertNull(errors[i]);
+            }
+        }
+        // the failed batch, followed by one retry per message
+        assertEquals(1 + count, _batches.size());
+        checkPublished(messages, bad);
+    }
+
+    /**
+     * Verifies that interrupting a writer lingering for a batch to fill
+     * commits the message, and preserves the interrupt status of the
+     * writer.
+     *
+     * @throws Exception for any error
+     */
+    public void testInterrupt() throws Exception {
+        final GroupCommitter committer = createCommitter(null, 2);
+        final MessageImpl[] messages = createMessages(1);
+        final Throwable[] error = new Throwable[1];
+        final boolean[] interrupted = new boolean[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    committer.write(messages[0]);
+                } catch (Throwable exception) {
+                    error[0] = exception;
+                }
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        };
+        thread.start();
+        Thread.sleep(500);
+        thread.interrupt();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertNull(error[0]);
+        assertTrue(interrupted[0]);
+        checkPublished(messages, null);
+    }
+
+    /**
+     * Sets up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        Configuration config = EmbeddedServerHelper.getConfiguration();
+        _database = new DatabaseService(config);
+        _published = Collections.synchronizedList(new ArrayList());
+        _batches = Collections.synchronizedList(new ArrayList());
+    }
+
+    /**
+     * Creates a new committer.
+     *
+     * @param bad       a message that will fail to be written. May be
+     *                  <code>null</code>
+     * @param batchSize the batch size. The committer waits up to 10 seconds
+     *                  for a batch to fill
+     * @return a new committer
+     */
+    private GroupCommitter createCommitter(final MessageImpl bad,
+                                           int batchSize) {
+        GroupCommitter.Writer writer = new GroupCommitter.Writer() {
+            public void write(List messages)
+                    throws JMSException, PersistenceException {
+                _batches.add(new Integer(messages.size()));
+                Iterator iterator = messages.iterator();
+                while (iterator.hasNext()) {
+                    final MessageImpl message = (MessageImpl) iterator.next();
+                    if (message == bad) {
+                        throw new JMSException("Failed to write message");
+                    }
+                    _database.afterCommit(new Runnable() {
+                        public void run() {
+                            _published.add(message);
+                        }
+                    });
+                }
+            }
+        };
+        return new GroupCommitter(_database, writer, batchSize, 10000);
+    }
+
+    /**
+     * Writes messages concurrently, one thread per message.
+     *
+     * @param committer the committer
+     * @param messages  the messages to write
+     * @return the exception raised by each write, if any
+     * @throws InterruptedException if interrupted
+     */
+    private Throwable[] write(final GroupCommitter committer,
+                              final MessageImpl[] messages)
+            throws InterruptedException {
+        final Throwable[] errors = new Throwable[messages.length];
+        Thread[] threads = new Thread[messages.length];
+        for (int i = 0; i < messages.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        committer.write(messages[index]);
+                    } catch (Throwable exception) {
+                        errors[index] = exception;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+        }
+        return errors;
+    }
+
+    /**
+     * Verifies that each message, excluding the bad message, was made
+     * available exactly once.
+     *
+     * @param messages the messages
+     * @param bad      the message that failed to be written. May be
+     *                 <code>null</code>
+     */
+    private void checkPublished(MessageImpl[] messages, MessageImpl bad) {
+        int expected = (bad == null) ? messages.length : messages.length - 1;
+        assertEquals(expected, _published.size());
+        for (int i = 0; i < messages.length; ++i) {
+            int occurrences = 0;
+            Iterator iterator = _published.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == messages[i]) {
+                    ++occurrences;
+                }
+            }
+            if (messages[i] == bad) {
+                assertEquals(0, occurrences);
+            } else {
+                assertEquals(1, occurrences);
+            }
+        }
+    }
+
+    /**
+     * Creates messages.
+     *
+     * @param count the no. of messages to create
+     * @return the messages
+     * @throws JMSException for any JMS error
+     */
+    private MessageImpl[] createMessages(int count) throws JMSException {
+        MessageImpl[] messages = new MessageImpl[count];
+        for (int i = 0; i < count; ++i) {
+            messages[i] = new TextMessageImpl();
+        }
+        return messages;
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import javax.jms.JMSException;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.message.MessageImpl;
+import org.exolab.jms.message.TextMessageImpl;
+import org.exolab.jms.selector.Selector;
+
+
+/**
+ * Tests the {@link IndexedMessageQueue}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class IndexedMessageQueueTest extends TestCase {
+
+    /**
+     * The queue under test.
+     */
+    private IndexedMessageQueue _queue;
+
+    /**
+     * Selector keyed on the <em>region</em> property.
+     */
+    private Selector _region;
+
+    /**
+     * Selector keyed on the <em>type</em> property.
+     */
+    private Selector _type;
+
+
+    /**
+     * Verifies that only handles with a matching key value are returned as
+     * candidates.
+     *
+     * @throws Exception for any error
+     */
+    public void testCandidates() throws Exception {
+        _queue.addSelector(_region);
+        TestMessageHandle eu = add("1", "EU", "order");
+        add("2", "US", "order");
+
+        // handles added with their message are indexed immediately
+        checkCandidates(_region, new TestMessageHandle[]{eu});
+    }
+
+    /**
+     * Verifies that handles removed after a second index is created, but
+     * before they are re-indexed, are no longer returned as candidates.
+     *
+     * @throws Exception for any error
+     */
+    public void testRemoveBeforeReindex() throws Exception {
+        _queue.addSelector(_region);
+        TestMessageHandle first = add("1", "EU", "order");
+        TestMessageHandle second = add("2", "EU", "order");
+        checkCandidates(_region, new TestMessageHandle[]{first, second});
+
+        // creating the second index requires all handles to be re-indexed
+        _queue.addSelector(_type);
+        assertNotNull(_queue.remove(first));
+        checkCandidates(_region, new TestMessageHandle[]{second});
+        checkCandidates(_type, new TestMessageHandle[]{second});
+
+        // index the remaining handle, and verify that it is returned only
+        // once
+        _queue.index(second, second.getMessage());
+        checkCandidates(_region, new TestMessageHandle[]{second});
+        assertNotNull(_queue.remove(second.getMessageId()));
+        checkCandidates(_region, new TestMessageHandle[0]);
+        checkCandidates(_type, new TestMessageHandle[0]);
+    }
+
+    /**
+     * Verifies that an index is removed when the last selector using it is
+     * deregistered.
+     *
+     * @throws Exception for any error
+     */
+    public void testRemoveSelector() throws Exception {
+        Selector region = new Selector("region = 'EU'");
+        _queue.addSelector(_region);
+        _queue.addSelector(region);
+        TestMessageHandle eu = add("1", "EU", "order");
+        TestMessageHandle us = add("2", "US", "order");
+
+        _queue.removeSelector(_region);
+        checkCandidates(region, new TestMessageHandle[]{eu});
+
+        // once deregistered, all handles are candidates
+        _queue.removeSelector(region);
+        checkCandidates(region, new TestMessageHandle[]{eu, us});
+
+        // handles added after the index is removed aren't indexed
+        TestMessageHandle other = add("3", "EU", "order");
+        _queue.addSelector(region);
+        checkCandidates(region, new TestMessageHandle[]{eu, us, other});
+        _queue.index(eu, eu.getMessage());
+        _queue.index(us, us.getMessage());
+        _queue.index(other, other.getMessage());
+        checkCandidates(region, new TestMessageHandle[]{eu, other});
+    }
+
+    /**
+     * Sets up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        _queue = new IndexedMessageQueue();
+        _region = new Selector("region IN ('EU', 'AP')");
+        _type = new Selector("type = 'order'");
+    }
+
+    /**
+     * Adds a handle to the queue, indexed on its message.
+     *
+     * @param messageId the message identifier
+     * @param region    the value of the <em>region</em> property
+     * @param type      the value of the <em>type</em> property
+     * @return the new handle
+     * @throws JMSException for any JMS error
+     */
+    private TestMessageHandle add(String messageId, String region,
+                                  String type) throws JMSException {
+        MessageImpl message = new TextMessageImpl();
+        message.setStringProperty("region", region);
+        message.setStringProperty("type", type);
+        TestMessageHandle handle = new TestMessageHandle(messageId,
+                                                         message);
+        assertTrue(_queue.add(handle, message));
+        return handle;
+    }
+
+    /**
+     * Verifies that the candidates for a selector are those expected, in
+     * order.
+     *
+     * @param selector the selector
+     * @param expected the expected candidates
+     */
+    private void checkCandidates(Selector selector,
+                                 TestMessageHandle[] expected) {
+        MessageHandle[] handles = _queue.getCandidates(selector);
+        assertEquals(expected.length, handles.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertSame(expected[i], handles[i]);
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+
+/**
+ * Measures the throughput of concurrent producers and consumers of a
+ * {@link MessageQueue}, with all handles at the same priority.
+ * <p/>
+ * Usage:
+ * <pre>
+ * MessageQueueBenchmark [threads [handles]]
+ * </pre>
+ * where <em>threads</em> is the no. of producer threads, and also the no. of
+ * consumer threads, and <em>handles</em> is the no. of handles added by each
+ * producer.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class MessageQueueBenchmark {
+
+    /**
+     * The next sequence number.
+     */
+    private static long _sequence = 0;
+
+
+    /**
+     * Main line.
+     *
+     * @param args the command line arguments
+     * @throws Exception for any error
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int handles = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+
+        // warm up
+        run(threads, handles / 10);
+
+        long elapsed = run(threads, handles);
+        long total = (long) threads * handles;
+        System.out.println("threads=" + threads + ", handles=" + total
+                           + ": " + (total * 1000L / Math.max(elapsed, 1))
+                           + " handles/sec added and removed");
+    }
+
+    /**
+     * Adds and removes handles concurrently.
+     *
+     * @param threads the no. of producer and consumer threads
+     * @param handles the no. of handles added by each producer
+     * @return the elapsed time, in milliseconds
+     * @throws InterruptedException if interrupted
+     */
+    private static long run(int threads, final int handles)
+            throws InterruptedException {
+        final MessageQueue queue = new MessageQueue();
+        Thread[] producers = new Thread[threads];
+        Thread[] consumers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final String prefix = i + "-";
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < handles; ++j) {
+                        queue.add(new TestMessageHandle(
+                                prefix + j, 4, 0, nextSequence(), null));
+                    }
+                }
+            };
+            consumers[i] = new Thread() {
+                public void run() {
+                    int removed = 0;
+                    while (removed < handles) {
+                        if (queue.removeFirst() != null) {
+                            ++removed;
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; ++i) {
+            producers[i].start();
+            consumers[i].start();
+        }
+        for (int i = 0; i < threads; ++i) {
+            producers[i].join();
+            consumers[i].join();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Returns the next sequence number.
+     *
+     * @return the next sequence number
+     */
+    private static synchronized long nextSequence() {
+        return ++_sequence;
+    }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests the {@link MessageQueue}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class MessageQueueTest extends TestCase {
+
+    /**
+     * The queue under test.
+     */
+    private MessageQueue _queue;
+
+
+    /**
+     * Verifies that handles are ordered on priority, accepted time and
+     * sequence number, irrespective of the order they are added in.
+     */
+    public void testOrder() {
+        MessageHandle h1 = handle("1", 4, 100, 1);
+        MessageHandle h2 = handle("2", 4, 100, 2);
+        MessageHandle h3 = handle("3", 4, 200, 3);
+        MessageHandle h4 = handle("4", 9, 300, 4);
+        MessageHandle h5 = handle("5", 0, 50, 5);
+
+        // h1 and h2 are added out of order, as they would be if returned
+        // for redelivery
+        assertTrue(_queue.add(h3));
+        assertTrue(_queue.add(h2));
+        assertTrue(_queue.add(h5));
+        assertTrue(_queue.add(h4));
+        assertTrue(_queue.add(h1));
+        assertEquals(5, _queue.size());
+
+        MessageHandle[] expected = {h4, h1, h2, h3, h5};
+        check(expected, _queue.toArray());
+        check(new MessageHandle[]{h4, h1, h2}, _queue.first(3));
+        for (int i = 0; i < expected.length; ++i) {
+            assertSame(expected[i], _queue.removeFirst());
+        }
+        assertNull(_queue.removeFirst());
+        assertEquals(0, _queue.size());
+    }
+
+    /**
+     * Verifies that a handle can't be added twice.
+     */
+    public void testDuplicate() {
+        MessageHandle h1 = handle("1", 4, 100, 1);
+        MessageHandle h2 = handle("2", 4, 100, 2);
+        assertTrue(_queue.add(h1));
+        assertTrue(_queue.add(h2));
+        assertFalse(_queue.add(h1));
+        assertFalse(_queue.add(h2));
+        assertEquals(2, _queue.size());
+
+        // once removed, it can be added again
+        assertSame(h1, _queue.removeFirst());
+        assertTrue(_queue.add(h1));
+        check(new MessageHandle[]{h1, h2}, _queue.toArray());
+    }
+
+    /**
+     * Verifies that handles can be removed from anywhere in the queue.
+     */
+    public void testRemove() {
+        MessageHandle h1 = handle("1", 4, 100, 1);
+        MessageHandle h2 = handle("2", 4, 100, 2);
+        MessageHandle h3 = handle("3", 4, 100, 3);
+        MessageHandle h4 = handle("4", 4, 100, 4);
+        _queue.add(h1);
+        _queue.add(h3);
+        _queue.add(h4);
+        _queue.add(h2);
+
+        assertTrue(_queue.contains(h3));
+        assertSame(h3, _queue.remove(h3));
+        assertFalse(_queue.contains(h3));
+        assertNull(_queue.remove(h3));
+        assertSame(h2, _queue.remove("2"));
+        assertNull(_queue.remove("2"));
+        assertEquals(2, _queue.size());
+        check(new MessageHandle[]{h1, h4}, _queue.toArray());
+
+        assertSame(h1, _queue.removeFirst());
+        assertSame(h4, _queue.removeFirst());
+        assertNull(_queue.removeFirst());
+        assertEquals(0, _queue.size());
+    }
+
+    /**
+     * Verifies that removing many handles from the middle of the queue
+     * preserves the remaining handles.
+     */
+    public void testRemoveMany() {
+        int count = 1000;
+        MessageHandle[] handles = new MessageHandle[count];
+        for (int i = 0; i < count; ++i) {
+            handles[i] = handle(Integer.toString(i), 4, 100, i);
+            assertTrue(_queue.add(handles[i]));
+        }
+        // remove all but every tenth handle, leaving the first in place
+        for (int i = 0; i < count; ++i) {
+            if (i % 10 != 0) {
+                assertSame(handles[i], _queue.remove(handles[i]));
+            }
+        }
+        assertEquals(count / 10, _queue.size());
+        MessageHandle last = handle("last", 4, 200, count);
+        assertTrue(_queue.add(last));
+
+        MessageHandle[] remaining = _queue.toArray();
+        assertEquals(count / 10 + 1, remaining.length);
+        for (int i = 0; i < count / 10; ++i) {
+            assertSame(handles[i * 10], remaining[i]);
+            assertSame(handles[i * 10], _queue.removeFirst());
+        }
+        assertSame(last, _queue.removeFirst());
+        assertEquals(0, _queue.size());
+    }
+
+    /**
+     * Verifies that the queue can be cleared.
+     */
+    public void testClear() {
+        MessageHandle h1 = handle("1", 4, 100, 1);
+        MessageHandle h2 = handle("2", 4, 50, 2);
+        _queue.add(h1);
+        _queue.add(h2);
+        _queue.clear();
+        assertEquals(0, _queue.size());
+        assertFalse(_queue.contains(h1));
+        assertNull(_queue.removeFirst());
+
+        assertTrue(_queue.add(h1));
+        assertTrue(_queue.add(h2));
+        check(new MessageHandle[]{h2, h1}, _queue.toArray());
+    }
+
+    /**
+     * Sets up the test case.
+     */
+    protected void setUp() {
+        _queue = new MessageQueue();
+    }
+
+    /**
+     * Creates a new message handle.
+     *
+     * @param messageId    the message identifier
+     * @param priority     the message priority
+     * @param acceptedTime the time that the message was accepted
+     * @param sequence     the message sequence number
+     * @return a new handle
+     */
+    private MessageHandle handle(String messageId, int priority,
+                                 long acceptedTime, long sequence) {
+        return new TestMessageHandle(messageId, priority, acceptedTime,
+                                     sequence, null);
+    }
+
+    /**
+     * Verifies that handles are those expected, in order.
+     *
+     * @param expected the expected handles
+     * @param actual   the actual handles
+     */
+    private void check(MessageHandle[] expected, MessageHandle[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertSame(expected[i], actual[i]);
+        }
+    }
+
+}
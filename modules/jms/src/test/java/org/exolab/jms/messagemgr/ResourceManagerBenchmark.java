@@ -0,0 +1,209 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.XAConnection;
+import javax.jms.XAConnectionFactory;
+import javax.jms.XASession;
+import javax.naming.Context;
+import javax.transaction.xa.XAResource;
+
+import org.exolab.jms.server.EmbeddedServerHelper;
+import org.exolab.jms.tranlog.ExternalXid;
+
+
+/**
+ * Measures the throughput of concurrent XA transactions, each publishing a
+ * single persistent message, to gauge how {@link ResourceManager} scales
+ * with the no. of threads.
+ * <p/>
+ * Usage:
+ * <pre>
+ * ResourceManagerBenchmark [transactions [threads...]]
+ * </pre>
+ * where <em>transactions</em> is the no. of transactions performed by each
+ * thread, and each <em>threads</em> argument is a no. of concurrent threads
+ * to measure. By default, 1, 4 and 16 threads are measured.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class ResourceManagerBenchmark {
+
+    /**
+     * Used to allocate unique transaction identifiers.
+     */
+    private static int _seed = 0;
+
+
+    /**
+     * Main line.
+     *
+     * @param args the command line arguments
+     * @throws Exception for any error
+     */
+    public static void main(String[] args) throws Exception {
+        int transactions = (args.length > 0) ? Integer.parseInt(args[0])
+                : 200;
+        int[] threads;
+        if (args.length > 1) {
+            threads = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                threads[i - 1] = Integer.parseInt(args[i]);
+            }
+        } else {
+            threads = new int[]{1, 4, 16};
+        }
+
+        Context context = EmbeddedServerHelper.start();
+        XAConnectionFactory factory = (XAConnectionFactory)
+                context.lookup("XAQueueConnectionFactory");
+        Destination queue = (Destination) context.lookup("queue1");
+
+        // warm up
+        run(factory, queue, threads[0], transactions / 10);
+
+        for (int i = 0; i < threads.length; ++i) {
+            long elapsed = run(factory, queue, threads[i], transactions);
+            int total = threads[i] * transactions;
+            System.out.println("threads=" + threads[i] + ", transactions="
+                               + total + ": "
+                               + (total * 1000L / Math.max(elapsed, 1))
+                               + " tx/sec");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Performs transactions concurrently.
+     *
+     * @param factory      the connection factory
+     * @param queue        the destination to send to
+     * @param threads      the no. of concurrent threads
+     * @param transactions the no. of transactions to perform per thread
+     * @return the elapsed time, in milliseconds
+     * @throws Exception for any error
+     */
+    private static long run(final XAConnectionFactory factory,
+                            final Destination queue, int threads,
+                            final int transactions) throws Exception {
+        final Exception[] errors = new Exception[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            final int index = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        send(factory, queue, transactions);
+                    } catch (Exception exception) {
+                        errors[index] = exception;
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; ++i) {
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; ++i) {
+            workers[i].join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        for (int i = 0; i < threads; ++i) {
+            if (errors[i] != null) {
+                throw errors[i];
+            }
+        }
+        return elapsed;
+    }
+
+    /**
+     * Performs transactions on a new connection, each sending a single
+     * message, and committed using two-phase commit.
+     *
+     * @param factory      the connection factory
+     * @param queue        the destination to send to
+     * @param transactions the no. of transactions to perform
+     * @throws Exception for any error
+     */
+    private static void send(XAConnectionFactory factory, Destination queue,
+                             int transactions) throws Exception {
+        XAConnection connection = factory.createXAConnection();
+        try {
+            XASession xaSession = connection.createXASession();
+            XAResource resource = xaSession.getXAResource();
+            Session session = xaSession.getSession();
+            MessageProducer producer = session.createProducer(queue);
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            for (int i = 0; i < transactions; ++i) {
+                ExternalXid xid = createXid();
+                resource.start(xid, XAResource.TMNOFLAGS);
+                producer.send(session.createTextMessage("message " + i));
+                resource.end(xid, XAResource.TMSUCCESS);
+                resource.prepare(xid);
+                resource.commit(xid, false);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Creates a unique transaction identifier.
+     *
+     * @return a new transaction identifier
+     */
+    private static synchronized ExternalXid createXid() {
+        int id = ++_seed;
+        byte[] global = {(byte) (id >> 24), (byte) (id >> 16),
+                         (byte) (id >> 8), (byte) id};
+        return new ExternalXid(0, global, new byte[]{1});
+    }
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import org.exolab.jms.client.JmsDestination;
+import org.exolab.jms.message.MessageImpl;
+
+
+/**
+ * Transient {@link MessageHandle} for testing message queues.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+class TestMessageHandle implements MessageHandle {
+
+    /**
+     * The message identifier.
+     */
+    private final String _messageId;
+
+    /**
+     * The message priority.
+     */
+    private final int _priority;
+
+    /**
+     * The time that the message was accepted.
+     */
+    private final long _acceptedTime;
+
+    /**
+     * The message sequence number.
+     */
+    private final long _sequence;
+
+    /**
+     * The message. May be <code>null</code>.
+     */
+    private final MessageImpl _message;
+
+
+    /**
+     * Construct a new <code>TestMessageHandle</code> with the default
+     * priority, and a sequence number derived from the message identifier.
+     *
+     * @param messageId the message identifier. Must be numeric
+     * @param message   the message. May be <code>null</code>
+     */
+    public TestMessageHandle(String messageId, MessageImpl message) {
+        this(messageId, 4, 0, Long.parseLong(messageId), message);
+    }
+
+    /**
+     * Construct a new <code>TestMessageHandle</code>.
+     *
+     * @param messageId    the message identifier
+     * @param priority     the message priority
+     * @param acceptedTime the time that the message was accepted
+     * @param sequence     the message sequence number
+     * @param message      the message. May be <code>null</code>
+     */
+    public TestMessageHandle(String messageId, int priority,
+                             long acceptedTime, long sequence,
+                             MessageImpl message) {
+        _messageId = messageId;
+        _priority = priority;
+        _acceptedTime = acceptedTime;
+        _sequence = sequence;
+        _message = message;
+    }
+
+    public String getMessageId() {
+        return _messageId;
+    }
+
+    public void setDelivered(boolean delivered) {
+    }
+
+    public boolean getDelivered() {
+        return false;
+    }
+
+    public int getPriority() {
+        return _priority;
+    }
+
+    public long getAcceptedTime() {
+        return _acceptedTime;
+    }
+
+    public long getExpiryTime() {
+        return 0;
+    }
+
+    public boolean hasExpired() {
+        return false;
+    }
+
+    public long getSequenceNumber() {
+        return _sequence;
+    }
+
+    public JmsDestination getDestination() {
+        return null;
+    }
+
+    public long getConsumerId() {
+        return 0;
+    }
+
+    public long getConnectionId() {
+        return 0;
+    }
+
+    public String getConsumerPersistentId() {
+        return null;
+    }
+
+    public boolean isPersistent() {
+        return false;
+    }
+
+    public boolean isTransient() {
+        return true;
+    }
+
+    public MessageImpl getMessage() {
+        return _message;
+    }
+
+    public void add() {
+    }
+
+    public void update() {
+    }
+
+    public void destroy() {
+    }
+
+    public void release() {
+    }
+
+    public MessageRef getMessageRef() {
+        return null;
+    }
+
+    public String toString() {
+        return _messageId;
+    }
+
+}
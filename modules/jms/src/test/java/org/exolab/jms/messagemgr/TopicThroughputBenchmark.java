@@ -0,0 +1,286 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.messagemgr;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+import javax.naming.Context;
+
+import org.exolab.jms.client.JmsTopic;
+import org.exolab.jms.message.MessageImpl;
+import org.exolab.jms.message.TextMessageImpl;
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Measures the throughput of non-persistent messages published to a topic,
+ * and delivered to asynchronous, non-durable subscribers.
+ * <p/>
+ * Messages are published both by a client, and directly to the
+ * {@link MessageMgr}. The latter excludes the cost of the client and
+ * network layers, and reports the average time spent in
+ * {@link MessageMgr#add(MessageImpl)}, for the best of several rounds.
+ * <p/>
+ * Usage:
+ * <pre>
+ * TopicThroughputBenchmark [messages [subscribers...]]
+ * </pre>
+ * where <em>messages</em> is the no. of messages published, and each
+ * <em>subscribers</em> argument is a no. of subscribers to measure. By
+ * default, 1 and 4 subscribers are measured.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class TopicThroughputBenchmark {
+
+    /**
+     * The no. of rounds of messages published directly to the message
+     * manager.
+     */
+    private static final int ROUNDS = 5;
+
+
+    /**
+     * Main line.
+     *
+     * @param args the command line arguments
+     * @throws Exception for any error
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int[] subscribers;
+        if (args.length > 1) {
+            subscribers = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                subscribers[i - 1] = Integer.parseInt(args[i]);
+            }
+        } else {
+            subscribers = new int[]{1, 4};
+        }
+
+        Context context = EmbeddedServerHelper.start();
+        ConnectionFactory factory = (ConnectionFactory)
+                context.lookup("ConnectionFactory");
+        Topic topic = (Topic) context.lookup("topic1");
+
+        MessageMgr manager = (MessageMgr) EmbeddedServerHelper.getService(
+                MessageMgr.class);
+
+        // warm up
+        run(factory, topic, messages / 10, subscribers[0]);
+        publish(manager, factory, topic, messages / 10, subscribers[0]);
+
+        for (int i = 0; i < subscribers.length; ++i) {
+            long elapsed = run(factory, topic, messages, subscribers[i]);
+            long delivered = (long) messages * subscribers[i];
+            System.out.println("subscribers=" + subscribers[i]
+                               + ", messages=" + messages + ": "
+                               + (messages * 1000L / Math.max(elapsed, 1))
+                               + " msgs/sec published, "
+                               + (delivered * 1000L / Math.max(elapsed, 1))
+                               + " msgs/sec delivered");
+        }
+        for (int i = 0; i < subscribers.length; ++i) {
+            // report the best of several rounds, as the time spent in add()
+            // is small relative to collection and scheduling noise
+            long elapsed = Long.MAX_VALUE;
+            for (int j = 0; j < ROUNDS; ++j) {
+                elapsed = Math.min(elapsed, publish(manager, factory, topic,
+                                                    messages, subscribers[i]));
+            }
+            System.out.println("subscribers=" + subscribers[i]
+                               + ", messages=" + messages + ": "
+                               + (elapsed * 1000000L / messages)
+                               + " ns per MessageMgr.add()");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Publishes messages, and waits for each subscriber to receive them.
+     *
+     * @param factory     the connection factory
+     * @param topic       the topic to publish to
+     * @param messages    the no. of messages to publish
+     * @param subscribers the no. of subscribers
+     * @return the elapsed time, in milliseconds
+     * @throws Exception for any error
+     */
+    private static long run(ConnectionFactory factory, Topic topic,
+                            int messages, int subscribers) throws Exception {
+        Connection[] connections = new Connection[subscribers];
+        Counter counter = new Counter(messages * subscribers);
+        for (int i = 0; i < subscribers; ++i) {
+            connections[i] = factory.createConnection();
+            Session session = connections[i].createSession(
+                    false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(topic);
+            consumer.setMessageListener(counter);
+            connections[i].start();
+        }
+
+        Connection connection = factory.createConnection();
+        try {
+            Session session = connection.createSession(
+                    false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(topic);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            Message message = session.createTextMessage("message");
+
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < messages; ++i) {
+                producer.send(message);
+            }
+            counter.waitForAll();
+            return System.currentTimeMillis() - start;
+        } finally {
+            connection.close();
+            for (int i = 0; i < subscribers; ++i) {
+                connections[i].close();
+            }
+        }
+    }
+
+    /**
+     * Publishes messages directly to the message manager, and waits for
+     * each subscriber to receive them.
+     *
+     * @param manager     the message manager
+     * @param factory     the connection factory
+     * @param topic       the topic to publish to
+     * @param messages    the no. of messages to publish
+     * @param subscribers the no. of subscribers
+     * @return the time spent adding messages, in milliseconds
+     * @throws Exception for any error
+     */
+    private static long publish(MessageMgr manager, ConnectionFactory factory,
+                                Topic topic, int messages, int subscribers)
+            throws Exception {
+        MessageImpl[] list = new MessageImpl[messages];
+        for (int i = 0; i < messages; ++i) {
+            MessageImpl message = new TextMessageImpl();
+            message.setJMSMessageID("ID:benchmark-" + System.currentTimeMillis()
+                                    + "-" + i);
+            message.setJMSDestination((JmsTopic) topic);
+            message.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            list[i] = message;
+        }
+
+        Connection[] connections = new Connection[subscribers];
+        Counter counter = new Counter(messages * subscribers);
+        for (int i = 0; i < subscribers; ++i) {
+            connections[i] = factory.createConnection();
+            Session session = connections[i].createSession(
+                    false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(topic);
+            consumer.setMessageListener(counter);
+            connections[i].start();
+        }
+        try {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < messages; ++i) {
+                manager.add(list[i]);
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            counter.waitForAll();
+            return elapsed;
+        } finally {
+            for (int i = 0; i < subscribers; ++i) {
+                connections[i].close();
+            }
+        }
+    }
+
+    /**
+     * Counts the messages received by the subscribers.
+     */
+    private static class Counter implements MessageListener {
+
+        /**
+         * The no. of messages yet to be received.
+         */
+        private int _remaining;
+
+        /**
+         * Construct a new <code>Counter</code>.
+         *
+         * @param expected the no. of messages expected
+         */
+        public Counter(int expected) {
+            _remaining = expected;
+        }
+
+        /**
+         * Invoked when a message is received.
+         *
+         * @param message the message
+         */
+        public synchronized void onMessage(Message message) {
+            if (--_remaining == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for all messages to be received.
+         *
+         * @throws InterruptedException if interrupted
+         */
+        public synchronized void waitForAll() throws InterruptedException {
+            while (_remaining > 0) {
+                wait();
+            }
+        }
+    }
+
+}
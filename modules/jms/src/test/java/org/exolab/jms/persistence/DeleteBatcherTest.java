@@ -0,0 +1,237 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.persistence;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import javax.jms.DeliveryMode;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.client.JmsQueue;
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.config.RdbmsDatabaseConfiguration;
+import org.exolab.jms.message.TextMessageImpl;
+import org.exolab.jms.messagemgr.MessageHandle;
+import org.exolab.jms.messagemgr.PersistentMessageHandle;
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Tests the {@link DeleteBatcher}, via the {@link DatabaseService}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class DeleteBatcherTest extends TestCase {
+
+    /**
+     * The maximum time, in milliseconds, that removals are queued for.
+     * This is long enough for handles to be reloaded before the removals
+     * are flushed.
+     */
+    private static final int MAX_LINGER = 5000;
+
+    /**
+     * The queue.
+     */
+    private static final JmsQueue QUEUE = new JmsQueue("queue1");
+
+    /**
+     * The database service.
+     */
+    private DatabaseService _database;
+
+
+    /**
+     * Verifies that message handles pending removal are excluded when
+     * handles are reloaded, and that the removals are subsequently flushed.
+     *
+     * @throws Exception for any error
+     */
+    public void testReloadBeforeFlush() throws Exception {
+        final int count = 3;
+        addMessages(count);
+
+        _database.begin();
+        List handles = _database.getMessageHandles(QUEUE, QUEUE.getName());
+        assertEquals(count, handles.size());
+        MessageHandle removed = (MessageHandle) handles.get(0);
+        _database.removeMessageHandle(removed);
+        _database.removeMessage(removed.getMessageId());
+        _database.commit();
+
+        // the removal is queued, so the handle remains in the database,
+        // but must not be reloaded
+        assertEquals(count, getHandleCount());
+        _database.begin();
+        handles = _database.getMessageHandles(QUEUE, QUEUE.getName());
+        _database.commit();
+        assertEquals(count - 1, handles.size());
+        Iterator iterator = handles.iterator();
+        while (iterator.hasNext()) {
+            MessageHandle handle = (MessageHandle) iterator.next();
+            assertFalse(removed.getMessageId().equals(handle.getMessageId()));
+        }
+
+        // wait for the removal to be flushed
+        long end = System.currentTimeMillis() + MAX_LINGER * 2;
+        while (getHandleCount() != count - 1
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+        }
+        assertEquals(count - 1, getHandleCount());
+        _database.begin();
+        handles = _database.getMessageHandles(QUEUE, QUEUE.getName());
+        _database.commit();
+        assertEquals(count - 1, handles.size());
+    }
+
+    /**
+     * Verifies that stopping the service flushes queued removals.
+     *
+     * @throws Exception for any error
+     */
+    public void testFlushOnStop() throws Exception {
+        final int count = 2;
+        addMessages(count);
+
+        _database.begin();
+        List handles = _database.getMessageHandles(QUEUE, QUEUE.getName());
+        Iterator iterator = handles.iterator();
+        while (iterator.hasNext()) {
+            MessageHandle handle = (MessageHandle) iterator.next();
+            _database.removeMessageHandle(handle);
+            _database.removeMessage(handle.getMessageId());
+        }
+        _database.commit();
+        assertEquals(count, getHandleCount());
+
+        _database.stop();
+        assertEquals(0, getHandleCount());
+    }
+
+    /**
+     * Sets up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        Configuration config = EmbeddedServerHelper.getConfiguration();
+        EmbeddedServerHelper.createDatabase(config);
+        RdbmsDatabaseConfiguration rdbms = config.getDatabaseConfiguration()
+                .getRdbmsDatabaseConfiguration();
+        rdbms.setAckBatchSize(1000);
+        rdbms.setAckMaxLinger(MAX_LINGER);
+        _database = new DatabaseService(config);
+        _database.start();
+
+        _database.begin();
+        _database.getAdapter().addDestination(_database.getConnection(),
+                                              QUEUE.getName(), true);
+        _database.commit();
+    }
+
+    /**
+     * Cleans up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void tearDown() throws Exception {
+        if (_database.isStarted()) {
+            _database.stop();
+        }
+    }
+
+    /**
+     * Adds persistent messages to the queue.
+     *
+     * @param count the no. of messages to add
+     * @throws Exception for any error
+     */
+    private void addMessages(int count) throws Exception {
+        _database.begin();
+        Connection connection = _database.getConnection();
+        PersistenceAdapter adapter = _database.getAdapter();
+        for (int i = 0; i < count; ++i) {
+            TextMessageImpl message = new TextMessageImpl();
+            message.setJMSMessageID("ID:" + i);
+            message.setJMSDestination(QUEUE);
+            message.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+            message.setAcceptedTime(System.currentTimeMillis());
+            message.setSequenceNumber(i);
+            adapter.addMessage(connection, message);
+            adapter.addMessageHandle(connection, new PersistentMessageHandle(
+                    message, QUEUE.getName()));
+        }
+        _database.commit();
+    }
+
+    /**
+     * Returns the no. of message handles in the database.
+     *
+     * @return the no. of message handles
+     * @throws Exception for any error
+     */
+    private int getHandleCount() throws Exception {
+        Connection connection = _database.getAdapter().getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet set = statement.executeQuery(
+                    "select count(*) from message_handles");
+            assertTrue(set.next());
+            int result = set.getInt(1);
+            set.close();
+            statement.close();
+            return result;
+        } finally {
+            connection.close();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import junit.framework.TestCase;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.DelegatingConnection;
+
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.config.RdbmsDatabaseConfiguration;
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Tests the {@link PreparedStatementCache}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class PreparedStatementCacheTest extends TestCase {
+
+    /**
+     * The SQL used by the tests.
+     */
+    private static final String SQL = "select seed from seeds where name=?";
+
+    /**
+     * A pool that closes connections when they are returned.
+     */
+    private BasicDataSource _pool;
+
+    /**
+     * The cache under test.
+     */
+    private PreparedStatementCache _cache;
+
+
+    /**
+     * Verifies that statements are reused while the physical connection
+     * remains open.
+     *
+     * @throws Exception for any error
+     */
+    public void testReuse() throws Exception {
+        _pool.setMaxIdle(1);
+        Connection first = getConnection();
+        prepare(first);
+        prepare(first);
+        first.close();
+
+        Connection second = getConnection();
+        prepare(second);
+        second.close();
+
+        assertEquals(1, _cache.getMisses());
+        assertEquals(2, _cache.getHits());
+        assertEquals(1, _cache.size());
+    }
+
+    /**
+     * Verifies that the statements of physical connections closed by the
+     * pool are discarded.
+     *
+     * @throws Exception for any error
+     */
+    public void testCycleConnections() throws Exception {
+        for (int i = 0; i < 20; ++i) {
+            Connection connection = getConnection();
+            prepare(connection);
+            connection.close();
+            assertEquals(1, _cache.size());
+        }
+        assertEquals(20, _cache.getMisses());
+    }
+
+    /**
+     * Sets up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        Configuration config = EmbeddedServerHelper.getConfiguration();
+        EmbeddedServerHelper.createDatabase(config);
+        RdbmsDatabaseConfiguration rdbms = config.getDatabaseConfiguration()
+                .getRdbmsDatabaseConfiguration();
+
+        _pool = new BasicDataSource();
+        _pool.setDriverClassName(rdbms.getDriver());
+        _pool.setUrl(rdbms.getUrl());
+        _pool.setUsername(rdbms.getUser());
+        _pool.setPassword(rdbms.getPassword());
+        _pool.setAccessToUnderlyingConnectionAllowed(true);
+        _pool.setMaxIdle(0);
+        _cache = new PreparedStatementCache(10);
+    }
+
+    /**
+     * Cleans up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void tearDown() throws Exception {
+        _pool.close();
+    }
+
+    /**
+     * Returns a pooled connection whose statements are cached.
+     *
+     * @return a new connection
+     * @throws Exception for any error
+     */
+    private Connection getConnection() throws Exception {
+        Connection connection = _pool.getConnection();
+        Connection physical = ((DelegatingConnection) connection)
+                .getInnermostDelegate();
+        return _cache.getConnection(connection, physical);
+    }
+
+    /**
+     * Prepares and closes a statement.
+     *
+     * @param connection the connection to use
+     * @throws Exception for any error
+     */
+    private void prepare(Connection connection) throws Exception {
+        PreparedStatement statement = connection.prepareStatement(SQL);
+        statement.close();
+    }
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.config.RdbmsDatabaseConfiguration;
+import org.exolab.jms.server.EmbeddedServerHelper;
+
+
+/**
+ * Tests the {@link SeedGenerator}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class SeedGeneratorTest extends TestCase {
+
+    /**
+     * A pool limited to a single connection.
+     */
+    private DBConnectionManager _pool;
+
+
+    /**
+     * Verifies that seeds are allocated sequentially across blocks, and
+     * that the highest reserved value is recorded in the seeds table.
+     *
+     * @throws Exception for any error
+     */
+    public void testNext() throws Exception {
+        SeedGenerator seeds = createGenerator(3);
+        for (long i = 1; i <= 7; ++i) {
+            assertEquals(i, seeds.next("a"));
+        }
+        assertEquals(1, seeds.next("b"));
+
+        assertEquals(9, getReserved("a"));
+        assertEquals(3, getReserved("b"));
+    }
+
+    /**
+     * Verifies that the connection used to reserve a block is returned to
+     * the pool once the reservation is committed.
+     *
+     * @throws Exception for any error
+     */
+    public void testReleasesConnection() throws Exception {
+        SeedGenerator seeds = createGenerator(2);
+        for (long i = 1; i <= 5; ++i) {
+            assertEquals(i, seeds.next("a"));
+        }
+
+        // the pool is limited to a single connection, so this would block
+        // if a reservation had not released its connection
+        assertEquals(6, getReserved("a"));
+    }
+
+    /**
+     * Sets up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        Configuration config = EmbeddedServerHelper.getConfiguration();
+        EmbeddedServerHelper.createDatabase(config);
+        RdbmsDatabaseConfiguration rdbms = config.getDatabaseConfiguration()
+                .getRdbmsDatabaseConfiguration();
+
+        _pool = new DBCPConnectionManager();
+        _pool.setDriver(rdbms.getDriver());
+        _pool.setURL(rdbms.getUrl());
+        _pool.setUser(rdbms.getUser());
+        _pool.setPassword(rdbms.getPassword());
+        _pool.setMaxActive(1);
+        _pool.setMaxIdle(1);
+        _pool.init();
+    }
+
+    /**
+     * Creates a new seed generator.
+     *
+     * @param blockSize the no. of seeds to reserve at a time
+     * @return a new seed generator
+     */
+    private SeedGenerator createGenerator(int blockSize) {
+        return new SeedGenerator(_pool, blockSize);
+    }
+
+    /**
+     * Returns the highest reserved value of a seed.
+     *
+     * @param name the seed name
+     * @return the highest reserved value
+     * @throws Exception for any error
+     */
+    private long getReserved(String name) throws Exception {
+        Connection connection = _pool.getConnection();
+        try {
+            PreparedStatement select = connection.prepareStatement(
+                    "select seed from seeds where name=?");
+            select.setString(1, name);
+            ResultSet set = select.executeQuery();
+            assertTrue(set.next());
+            long result = set.getLong(1);
+            set.close();
+            select.close();
+            return result;
+        } finally {
+            connection.close();
+        }
+    }
+
+}
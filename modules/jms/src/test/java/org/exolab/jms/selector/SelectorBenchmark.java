@@ -0,0 +1,198 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.selector;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.exolab.jms.message.TextMessageImpl;
+
+
+/**
+ * Compares the cost of evaluating typical selectors using the compiled
+ * conditions produced by {@link SelectorCompiler} against the interpreted
+ * expression tree.
+ * <p/>
+ * Usage:
+ * <pre>
+ * SelectorBenchmark [iterations [selector...]]
+ * </pre>
+ * where <em>iterations</em> is the no. of times each message is evaluated.
+ * If no selectors are specified, a default set is used.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class SelectorBenchmark {
+
+    /**
+     * The default selectors.
+     */
+    private static final String[] SELECTORS = {
+        "priority > 5 AND region IN ('EU','US')",
+        "JMSPriority > 5 AND region IN ('EU','US')",
+        "x BETWEEN 1 AND 3 OR region = 'EU'",
+        "region LIKE 'E%' AND JMSPriority > 2",
+        "price * volume > 10000 AND symbol <> 'ACME'"
+    };
+
+    /**
+     * The regions assigned to messages.
+     */
+    private static final String[] REGIONS = {"EU", "US", "AP", null};
+
+
+    /**
+     * Main line.
+     *
+     * @param args the command line arguments
+     * @throws Exception for any error
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0])
+                : 100000;
+        String[] selectors;
+        if (args.length > 1) {
+            selectors = new String[args.length - 1];
+            System.arraycopy(args, 1, selectors, 0, selectors.length);
+        } else {
+            selectors = SELECTORS;
+        }
+        Message[] messages = createMessages(16);
+
+        for (int i = 0; i < selectors.length; ++i) {
+            Selector interpreted = new Selector(selectors[i], false);
+            Selector compiled = new Selector(selectors[i], true);
+            check(interpreted, compiled, messages);
+
+            // warm up
+            run(interpreted, messages, iterations / 10);
+            run(compiled, messages, iterations / 10);
+
+            long before = run(interpreted, messages, iterations);
+            long after = run(compiled, messages, iterations);
+            System.out.println(selectors[i] + ": interpreted=" + before
+                               + "ns, compiled=" + after + "ns");
+        }
+    }
+
+    /**
+     * Evaluates a selector against each message repeatedly.
+     *
+     * @param selector   the selector
+     * @param messages   the messages to evaluate
+     * @param iterations the no. of times to evaluate each message
+     * @return the average time per evaluation, in nanoseconds
+     */
+    private static long run(Selector selector, Message[] messages,
+                            int iterations) {
+        int selected = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; ++i) {
+            for (int j = 0; j < messages.length; ++j) {
+                if (selector.selects(messages[j])) {
+                    ++selected;
+                }
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        if (selected < 0) {
+            // never happens; prevents the loop being optimised away
+            System.out.println(selected);
+        }
+        return elapsed * 1000000L / ((long) iterations * messages.length);
+    }
+
+    /**
+     * Verifies that the interpreted and compiled forms of a selector
+     * select the same messages.
+     *
+     * @param interpreted the interpreted selector
+     * @param compiled    the compiled selector
+     * @param messages    the messages to evaluate
+     */
+    private static void check(Selector interpreted, Selector compiled,
+                              Message[] messages) {
+        for (int i = 0; i < messages.length; ++i) {
+            if (interpreted.selects(messages[i])
+                    != compiled.selects(messages[i])) {
+                throw new IllegalStateException(
+                    "Compiled and interpreted results differ for selector="
+                    + interpreted.getExpression() + ", message=" + i);
+            }
+        }
+    }
+
+    /**
+     * Creates messages with a range of property values, including
+     * messages with missing properties.
+     *
+     * @param count the no. of messages to create
+     * @return the messages
+     * @throws JMSException for any JMS error
+     */
+    private static Message[] createMessages(int count) throws JMSException {
+        Message[] result = new Message[count];
+        for (int i = 0; i < count; ++i) {
+            TextMessageImpl message = new TextMessageImpl();
+            message.setJMSPriority(i % 10);
+            message.setIntProperty("priority", i % 10);
+            String region = REGIONS[i % REGIONS.length];
+            if (region != null) {
+                message.setStringProperty("region", region);
+            }
+            if (i % 3 != 0) {
+                message.setLongProperty("x", i % 5);
+            }
+            message.setDoubleProperty("price", 12.5 * i);
+            message.setLongProperty("volume", 100 * i);
+            message.setStringProperty("symbol", (i % 2 == 0) ? "ACME" : "XYZ");
+            message.setText("message " + i);
+            result[i] = message;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,295 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Hashtable;
+import javax.naming.Context;
+import javax.naming.InitialContext;
+
+import org.exolab.jms.config.Configuration;
+import org.exolab.jms.config.ConfigurationReader;
+import org.exolab.jms.config.RdbmsDatabaseConfiguration;
+import org.exolab.jms.jndi.InitialContextFactory;
+
+
+/**
+ * Helper to run an embedded server, backed by a Derby database, for testing
+ * purposes.
+ * <p/>
+ * The server is started at most once per JVM, as it cannot be stopped.
+ * Tests using it must therefore be forked.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public final class EmbeddedServerHelper {
+
+    /**
+     * The server configuration resource.
+     */
+    public static final String CONFIG = "/openjmstest.xml";
+
+    /**
+     * The database schema resource.
+     */
+    private static final String SCHEMA = "/openjmstest.sql";
+
+    /**
+     * The server configuration. Non-null once the server is started.
+     */
+    private static Configuration _config;
+
+    /**
+     * The JNDI context for the server. Non-null once the server is started.
+     */
+    private static Context _context;
+
+    /**
+     * The server. Non-null once the server is started.
+     */
+    private static JmsServer _server;
+
+
+    /**
+     * Prevent construction of utility class.
+     */
+    private EmbeddedServerHelper() {
+    }
+
+    /**
+     * Starts the server, if it isn't already running.
+     * <p/>
+     * The database is re-created prior to the server starting.
+     *
+     * @return the JNDI context for the server
+     * @throws Exception for any error
+     */
+    public static Context start() throws Exception {
+        return start(getConfiguration());
+    }
+
+    /**
+     * Starts the server with the specified configuration, if it isn't
+     * already running.
+     * <p/>
+     * The database is re-created prior to the server starting.
+     *
+     * @param config the server configuration
+     * @return the JNDI context for the server
+     * @throws Exception for any error
+     */
+    public static synchronized Context start(Configuration config)
+            throws Exception {
+        if (_context == null) {
+            createDatabase(config);
+
+            JmsServer server = new JmsServer(config);
+            server.init();
+            _server = server;
+
+            Hashtable properties = new Hashtable();
+            properties.put(Context.INITIAL_CONTEXT_FACTORY,
+                           InitialContextFactory.class.getName());
+            properties.put(Context.PROVIDER_URL, "vm:openjms");
+            _context = new InitialContext(properties);
+            _config = config;
+        }
+        return _context;
+    }
+
+    /**
+     * Returns the configuration of the running server.
+     *
+     * @return the server configuration, or <code>null</code> if the server
+     *         hasn't been started
+     */
+    public static synchronized Configuration getServerConfiguration() {
+        return _config;
+    }
+
+    /**
+     * Returns a service of the running server.
+     *
+     * @param type the type of the service
+     * @return the service
+     * @throws Exception if the server hasn't been started, or the service
+     *                   can't be found
+     */
+    public static synchronized Object getService(Class type)
+            throws Exception {
+        if (_server == null) {
+            throw new IllegalStateException("Server not started");
+        }
+        return _server.getServices().getService(type);
+    }
+
+    /**
+     * Drops a client connection, as the server would on detecting that the
+     * client had disconnected without closing it.
+     *
+     * @param connectionId the connection identifier
+     * @throws Exception for any error
+     */
+    public static void dropConnection(long connectionId) throws Exception {
+        ServerConnectionManagerImpl manager = (ServerConnectionManagerImpl)
+                getService(ServerConnectionManagerImpl.class);
+        ServerConnectionImpl connection = manager.getConnection(connectionId);
+        if (connection == null) {
+            throw new IllegalArgumentException(
+                    "No connection with id=" + connectionId);
+        }
+        connection.close();
+    }
+
+    /**
+     * Loads the test configuration.
+     *
+     * @return the test configuration
+     * @throws Exception for any error
+     */
+    public static Configuration getConfiguration() throws Exception {
+        Configuration config;
+        InputStream stream = getResourceAsStream(CONFIG);
+        try {
+            config = ConfigurationReader.read(stream);
+        } finally {
+            stream.close();
+        }
+        return config;
+    }
+
+    /**
+     * Creates the database tables, dropping any existing ones.
+     *
+     * @param config the configuration
+     * @throws Exception for any error
+     */
+    public static void createDatabase(Configuration config) throws Exception {
+        RdbmsDatabaseConfiguration rdbms = config.getDatabaseConfiguration()
+                .getRdbmsDatabaseConfiguration();
+        Class.forName(rdbms.getDriver());
+        Connection connection = DriverManager.getConnection(
+                rdbms.getUrl(), rdbms.getUser(), rdbms.getPassword());
+        try {
+            String[] sql = getStatements();
+            Statement statement = connection.createStatement();
+            for (int i = 0; i < sql.length; ++i) {
+                if (sql[i].startsWith("drop")) {
+                    try {
+                        statement.execute(sql[i]);
+                    } catch (SQLException ignore) {
+                        // table doesn't exist
+                    }
+                } else {
+                    statement.execute(sql[i]);
+                }
+            }
+            statement.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Reads the SQL statements from the schema resource.
+     *
+     * @return the SQL statements
+     * @throws IOException for any I/O error
+     */
+    private static String[] getStatements() throws IOException {
+        StringBuffer buffer = new StringBuffer();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(getResourceAsStream(SCHEMA)));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() != 0 && !line.startsWith("--")) {
+                    buffer.append(line);
+                    buffer.append(' ');
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        String[] result = buffer.toString().split(";");
+        int count = 0;
+        for (int i = 0; i < result.length; ++i) {
+            String sql = result[i].trim();
+            if (sql.length() != 0) {
+                result[count++] = sql;
+            }
+        }
+        String[] statements = new String[count];
+        System.arraycopy(result, 0, statements, 0, count);
+        return statements;
+    }
+
+    /**
+     * Returns a resource as a stream.
+     *
+     * @param name the resource name
+     * @return a stream to the resource
+     * @throws IOException if the resource doesn't exist
+     */
+    private static InputStream getResourceAsStream(String name)
+            throws IOException {
+        InputStream stream
+                = EmbeddedServerHelper.class.getResourceAsStream(name);
+        if (stream == null) {
+            throw new IOException("Resource not found: " + name);
+        }
+        return stream;
+    }
+
+}
@@ -0,0 +1,375 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import junit.framework.TestCase;
+
+import org.exolab.jms.client.JmsDestination;
+import org.exolab.jms.message.MessageImpl;
+import org.exolab.jms.messagemgr.MessageHandle;
+import org.exolab.jms.messagemgr.MessageRef;
+import org.exolab.jms.persistence.DatabaseService;
+
+
+/**
+ * Tests the {@link SentMessageCache}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class SentMessageCacheTest extends TestCase {
+
+    /**
+     * The database service.
+     */
+    private DatabaseService _database;
+
+    /**
+     * The handles destroyed or released, in the order they were processed.
+     */
+    private List _processed = new ArrayList();
+
+
+    /**
+     * Verifies that acknowledging a message destroys all handles sent before
+     * it, in the order they were sent.
+     *
+     * @throws Exception for any error
+     */
+    public void testAcknowledge() throws Exception {
+        SentMessageCache cache = createCache(Session.CLIENT_ACKNOWLEDGE);
+        Handle a = send(cache, "A", 1);
+        Handle b = send(cache, "B", 2);
+        Handle c = send(cache, "C", 1);
+
+        cache.acknowledge("B", 2);
+        checkProcessed(new Handle[]{a, b});
+        assertEquals(1, a._destroyed);
+        assertEquals(1, b._destroyed);
+
+        cache.acknowledge("C", 1);
+        checkProcessed(new Handle[]{c});
+        assertEquals(1, c._destroyed);
+
+        // stale acknowledgements are ignored
+        cache.acknowledge("A", 1);
+        checkProcessed(new Handle[0]);
+    }
+
+    /**
+     * Verifies that acknowledging a message in <code>AUTO_ACKNOWLEDGE</code>
+     * mode only destroys handles sent to the same consumer.
+     *
+     * @throws Exception for any error
+     */
+    public void testAcknowledgeConsumer() throws Exception {
+        SentMessageCache cache = createCache(Session.AUTO_ACKNOWLEDGE);
+        Handle a = send(cache, "A", 1);
+        Handle b = send(cache, "B", 2);
+        Handle c = send(cache, "C", 1);
+
+        cache.acknowledge("C", 1);
+        checkProcessed(new Handle[]{a, c});
+
+        cache.clear();
+        checkProcessed(new Handle[]{b});
+        assertEquals(1, b._released);
+    }
+
+    /**
+     * Verifies that when a message is sent again to the same consumer with
+     * a new handle, the superseded handle is destroyed when the message is
+     * acknowledged.
+     *
+     * @throws Exception for any error
+     */
+    public void testAcknowledgeDuplicate() throws Exception {
+        SentMessageCache cache = createCache(Session.CLIENT_ACKNOWLEDGE);
+        Handle a1 = send(cache, "A", 1);
+        Handle b = send(cache, "B", 1);
+        Handle a2 = send(cache, "A", 1);
+
+        cache.acknowledge("A", 1);
+        checkProcessed(new Handle[]{a1, b, a2});
+        assertEquals(1, a1._destroyed);
+        assertEquals(1, a2._destroyed);
+        assertEquals(0, a1._released);
+    }
+
+    /**
+     * Verifies that when a message is sent again to the same consumer with
+     * a new handle, the superseded handle is released on recovery.
+     *
+     * @throws Exception for any error
+     */
+    public void testReleaseDuplicate() throws Exception {
+        SentMessageCache cache = createCache(Session.DUPS_OK_ACKNOWLEDGE);
+        Handle a1 = send(cache, "A", 1);
+        Handle a2 = send(cache, "A", 1);
+
+        cache.release(1);
+        checkProcessed(new Handle[]{a1, a2});
+        assertEquals(1, a1._released);
+        assertEquals(1, a2._released);
+        assertEquals(0, a1._destroyed);
+    }
+
+    /**
+     * Verifies that resending the same handle moves it to the end of the
+     * send order, and that it is only destroyed once.
+     *
+     * @throws Exception for any error
+     */
+    public void testResend() throws Exception {
+        SentMessageCache cache = createCache(Session.CLIENT_ACKNOWLEDGE);
+        Handle a = send(cache, "A", 1);
+        Handle b = send(cache, "B", 1);
+        cache.preSend(a);
+
+        cache.acknowledge("B", 1);
+        checkProcessed(new Handle[]{b});
+        cache.acknowledge("A", 1);
+        checkProcessed(new Handle[]{a});
+        assertEquals(1, a._destroyed);
+    }
+
+    /**
+     * Verifies that a handle that couldn't be sent can be removed, and isn't
+     * subsequently processed.
+     *
+     * @throws Exception for any error
+     */
+    public void testRemove() throws Exception {
+        SentMessageCache cache = createCache(Session.CLIENT_ACKNOWLEDGE);
+        Handle a = send(cache, "A", 1);
+        Handle b = send(cache, "B", 1);
+
+        assertTrue(cache.remove(b));
+        assertFalse(cache.remove(b));
+        cache.acknowledgeAll();
+        checkProcessed(new Handle[]{a});
+        assertEquals(0, b._destroyed);
+    }
+
+    /**
+     * Sets up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        EmbeddedServerHelper.start();
+        _database = (DatabaseService) EmbeddedServerHelper.getService(
+                DatabaseService.class);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param ackMode the acknowledgement mode
+     * @return a new cache
+     */
+    private SentMessageCache createCache(int ackMode) {
+        return new SentMessageCache(ackMode, _database);
+    }
+
+    /**
+     * Creates a handle and adds it to the cache.
+     *
+     * @param cache      the cache
+     * @param messageId  the message identifier
+     * @param consumerId the consumer identifier
+     * @return the handle
+     * @throws JMSException for any JMS error
+     */
+    private Handle send(SentMessageCache cache, String messageId,
+                        long consumerId) throws JMSException {
+        Handle handle = new Handle(messageId, consumerId);
+        cache.preSend(handle);
+        return handle;
+    }
+
+    /**
+     * Verifies that the expected handles were processed, in order, since
+     * the last check.
+     *
+     * @param expected the expected handles
+     */
+    private void checkProcessed(Handle[] expected) {
+        assertEquals(expected.length, _processed.size());
+        for (int i = 0; i < expected.length; ++i) {
+            assertSame(expected[i], _processed.get(i));
+        }
+        _processed.clear();
+    }
+
+    /**
+     * Transient message handle that records when it is destroyed or
+     * released.
+     */
+    private class Handle implements MessageHandle {
+
+        /**
+         * The message identifier.
+         */
+        private final String _messageId;
+
+        /**
+         * The consumer identifier.
+         */
+        private final long _consumerId;
+
+        /**
+         * Determines if the message has been delivered.
+         */
+        private boolean _delivered;
+
+        /**
+         * The no. of times the handle has been destroyed.
+         */
+        private int _destroyed;
+
+        /**
+         * The no. of times the handle has been released.
+         */
+        private int _released;
+
+        /**
+         * Construct a new <code>Handle</code>.
+         *
+         * @param messageId  the message identifier
+         * @param consumerId the consumer identifier
+         */
+        public Handle(String messageId, long consumerId) {
+            _messageId = messageId;
+            _consumerId = consumerId;
+        }
+
+        public String getMessageId() {
+            return _messageId;
+        }
+
+        public void setDelivered(boolean delivered) {
+            _delivered = delivered;
+        }
+
+        public boolean getDelivered() {
+            return _delivered;
+        }
+
+        public int getPriority() {
+            return 4;
+        }
+
+        public long getAcceptedTime() {
+            return 0;
+        }
+
+        public long getExpiryTime() {
+            return 0;
+        }
+
+        public boolean hasExpired() {
+            return false;
+        }
+
+        public long getSequenceNumber() {
+            return 0;
+        }
+
+        public JmsDestination getDestination() {
+            return null;
+        }
+
+        public long getConsumerId() {
+            return _consumerId;
+        }
+
+        public long getConnectionId() {
+            return 0;
+        }
+
+        public String getConsumerPersistentId() {
+            return null;
+        }
+
+        public boolean isPersistent() {
+            return false;
+        }
+
+        public boolean isTransient() {
+            return true;
+        }
+
+        public MessageImpl getMessage() {
+            return null;
+        }
+
+        public void add() {
+        }
+
+        public void update() {
+        }
+
+        public void destroy() {
+            ++_destroyed;
+            _processed.add(this);
+        }
+
+        public void release() {
+            ++_released;
+            _processed.add(this);
+        }
+
+        public MessageRef getMessageRef() {
+            return null;
+        }
+    }
+
+}
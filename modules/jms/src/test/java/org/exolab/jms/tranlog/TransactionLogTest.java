@@ -0,0 +1,179 @@
+/**
+ * Redistribution and use of this software and associated documentation
+ * ("Software"), with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain copyright
+ *    statements and notices.  Redistributions must also contain a
+ *    copy of this document.
+ *
+ * 2. Redistributions in binary form must reproduce the
+ *    above copyright notice, this list of conditions and the
+ *    following disclaimer in the documentation and/or other
+ *    materials provided with the distribution.
+ *
+ * 3. The name "Exolab" must not be used to endorse or promote
+ *    products derived from this Software without prior written
+ *    permission of Exoffice Technologies.  For written permission,
+ *    please contact info@exolab.org.
+ *
+ * 4. Products derived from this Software may not be called "Exolab"
+ *    nor may "Exolab" appear in their names without prior written
+ *    permission of Exoffice Technologies. Exolab is a registered
+ *    trademark of Exoffice Technologies.
+ *
+ * 5. Due credit should be given to the Exolab Project
+ *    (http://www.exolab.org/).
+ *
+ * THIS SOFTWARE IS PROVIDED BY EXOFFICE TECHNOLOGIES AND CONTRIBUTORS
+ * ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT
+ * NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL
+ * EXOFFICE TECHNOLOGIES OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright 2006 (C) Exoffice Technologies Inc. All Rights Reserved.
+ *
+ * $Id$
+ */
+package org.exolab.jms.tranlog;
+
+import java.io.File;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests the {@link TransactionLog}.
+ *
+ * @author <a href="mailto:agent@local">agent</a>
+ * @version $Revision$ $Date$
+ */
+public class TransactionLogTest extends TestCase {
+
+    /**
+     * The directory to create logs in.
+     */
+    private File _dir;
+
+
+    /**
+     * Verifies that open transactions are recovered from a log.
+     *
+     * @throws Exception for any error
+     */
+    public void testRecover() throws Exception {
+        String name = getPath("recover.log");
+        TransactionLog log = new TransactionLog(name, true, 4096);
+        ExternalXid open = createXid(1);
+        ExternalXid closed = createXid(2);
+        log.logTransactionState(open, 0, "rid", TransactionState.OPENED);
+        log.logTransactionData(open, 0, "rid", "data");
+        log.logTransactionState(closed, 0, "rid", TransactionState.OPENED);
+        log.logTransactionState(closed, 0, "rid", TransactionState.CLOSED);
+        assertFalse(log.canGarbageCollect());
+        log.close();
+
+        log = new TransactionLog(name, false);
+        HashMap records = log.recover();
+        assertEquals(1, records.size());
+        assertTrue(records.containsKey(open));
+        log.destroy();
+    }
+
+    /**
+     * Verifies that a log that has been written to can be destroyed.
+     *
+     * @throws Exception for any error
+     */
+    public void testDestroy() throws Exception {
+        String name = getPath("destroy.log");
+        TransactionLog log = new TransactionLog(name, true, 4096);
+        log.logTransactionState(createXid(1), 0, "rid",
+                                TransactionState.OPENED);
+        log.destroy();
+        assertFalse(new File(name).exists());
+    }
+
+    /**
+     * Verifies that a log that has been written to, and extended beyond its
+     * preallocated capacity, can be recycled, and that the recycled log
+     * contains no records of the original.
+     *
+     * @throws Exception for any error
+     */
+    public void testRecycle() throws Exception {
+        String name = getPath("recycle1.log");
+        String recycled = getPath("recycle2.log");
+        TransactionLog log = new TransactionLog(name, true, 1024);
+        // write enough to force the log to be remapped
+        for (int i = 0; i < 100; ++i) {
+            ExternalXid xid = createXid(i);
+            log.logTransactionState(xid, 0, "rid", TransactionState.OPENED);
+            log.logTransactionData(xid, 0, "rid", new byte[512]);
+        }
+        long capacity = new File(name).length();
+
+        TransactionLog result = log.recycle(recycled);
+        assertFalse(new File(name).exists());
+        assertEquals(capacity, new File(recycled).length());
+        assertTrue(result.recover().isEmpty());
+
+        ExternalXid xid = createXid(1000);
+        result.logTransactionState(xid, 0, "rid", TransactionState.OPENED);
+        result.close();
+
+        result = new TransactionLog(recycled, false);
+        HashMap records = result.recover();
+        assertEquals(1, records.size());
+        assertTrue(records.containsKey(xid));
+        result.destroy();
+        assertFalse(new File(recycled).exists());
+    }
+
+    /**
+     * Sets up the test case.
+     *
+     * @throws Exception for any error
+     */
+    protected void setUp() throws Exception {
+        _dir = new File(System.getProperty("java.io.tmpdir"),
+                        "openjms-tranlog-test");
+        if (!_dir.exists()) {
+            assertTrue(_dir.mkdirs());
+        }
+        File[] files = _dir.listFiles();
+        for (int i = 0; i < files.length; ++i) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Returns the path of a log file.
+     *
+     * @param name the log file name
+     * @return the path of the log file
+     */
+    private String getPath(String name) {
+        return new File(_dir, name).getPath();
+    }
+
+    /**
+     * Creates a transaction identifier.
+     *
+     * @param id the global transaction id
+     * @return a new transaction identifier
+     */
+    private ExternalXid createXid(int id) {
+        byte[] global = {(byte) (id >> 8), (byte) id};
+        return new ExternalXid(0, global, new byte[]{1});
+    }
+
+}
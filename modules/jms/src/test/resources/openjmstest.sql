@@ -0,0 +1,60 @@
+-- Derby schema for the OpenJMS tests.
+-- Mirrors the schema created by the dbtool for Derby.
+
+drop table system_data;
+drop table seeds;
+drop table destinations;
+drop table messages;
+drop table message_handles;
+drop table consumers;
+drop table users;
+
+create table system_data (
+    id integer not null,
+    version varchar(20) not null,
+    creationDate date not null,
+    constraint system_data_pk primary key (id));
+
+create table seeds (
+    name varchar(20) not null,
+    seed bigint not null,
+    constraint seeds_pk primary key (name));
+
+create table destinations (
+    name varchar(252) not null,
+    isQueue char(1) not null,
+    destinationId bigint not null,
+    constraint destinations_pk primary key (name));
+
+create table messages (
+    messageId varchar(64) not null,
+    destinationId bigint not null,
+    priority integer not null,
+    createTime bigint not null,
+    expiryTime bigint not null,
+    processed integer not null,
+    messageBlob long varchar for bit data not null,
+    constraint messages_pk primary key (messageId));
+
+create table message_handles (
+    messageId varchar(64) not null,
+    destinationId bigint not null,
+    consumerId bigint not null,
+    priority integer not null,
+    acceptedTime bigint not null,
+    sequenceNumber bigint not null,
+    expiryTime bigint not null,
+    delivered integer not null,
+    constraint message_handles_pk
+        primary key (messageId, destinationId, consumerId));
+
+create table consumers (
+    name varchar(252) not null,
+    destinationId bigint not null,
+    consumerId bigint not null,
+    created bigint not null,
+    constraint consumers_pk primary key (name, destinationId));
+
+create table users (
+    username varchar(50) not null,
+    password varchar(50) not null);